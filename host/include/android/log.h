@@ -0,0 +1,45 @@
+/*
+ * Host replacement for the NDK's <android/log.h>.
+ *
+ * Debug messages are dropped, everything from ANDROID_LOG_INFO upwards goes to stderr.
+ */
+
+#ifndef HOST_ANDROID_LOG_H
+#define HOST_ANDROID_LOG_H
+
+#include <stdio.h>
+#include <stdarg.h>
+
+#define ANDROID_LOG_VERBOSE	2
+#define ANDROID_LOG_DEBUG	3
+#define ANDROID_LOG_INFO	4
+#define ANDROID_LOG_WARN	5
+#define ANDROID_LOG_ERROR	6
+
+static inline int __android_log_write(int prio, const char *tag, const char *text)
+{
+	if (prio < ANDROID_LOG_INFO)
+	{
+		return 0;
+	}
+	return fprintf(stderr, "%s %s\n", tag, text);
+}
+
+static inline int __android_log_print(int prio, const char *tag, const char *fmt, ...)
+{
+	va_list args;
+	int length;
+
+	if (prio < ANDROID_LOG_INFO)
+	{
+		return 0;
+	}
+	va_start(args, fmt);
+	length = fprintf(stderr, "%s ", tag);
+	length += vfprintf(stderr, fmt, args);
+	length += fprintf(stderr, "\n");
+	va_end(args);
+	return length;
+}
+
+#endif
@@ -0,0 +1,82 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package android.util;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Host replacement for android.util.Log, so the codec classes can run on a plain JVM.
+ *
+ *	Debug and verbose messages are dropped, everything else is printed to System.err.
+ */
+public final class Log
+{
+	private Log()
+	{
+	}
+
+	public static int v( String tag, String msg )
+	{
+		return 0;
+	}
+
+	public static int d( String tag, String msg )
+	{
+		return 0;
+	}
+
+	public static int i( String tag, String msg )
+	{
+		return println( "I", tag, msg, null );
+	}
+
+	public static int w( String tag, String msg )
+	{
+		return println( "W", tag, msg, null );
+	}
+
+	public static int w( String tag, String msg, Throwable tr )
+	{
+		return println( "W", tag, msg, tr );
+	}
+
+	public static int e( String tag, String msg )
+	{
+		return println( "E", tag, msg, null );
+	}
+
+	public static int e( String tag, String msg, Throwable tr )
+	{
+		return println( "E", tag, msg, tr );
+	}
+
+	private static int println( String level, String tag, String msg, Throwable tr )
+	{
+		System.err.println( level + "/" + tag + ": " + msg );
+		if ( tr != null )
+		{
+			tr.printStackTrace();
+		}
+		return 0;
+	}
+}
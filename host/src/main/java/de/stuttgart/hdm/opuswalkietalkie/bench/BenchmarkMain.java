@@ -0,0 +1,60 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie.bench;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Entry point of benchmarks.jar.
+ *
+ *	Runs all benchmarks matching the optional regular expression given as first argument with the GC profiler
+ *	enabled and writes the results as JSON to the file given as second argument, by default
+ *	results-&lt;timestamp&gt;.json. Keep the files of every release to compare them for regressions.
+ */
+public class BenchmarkMain
+{
+	public static void main( String[] args ) throws RunnerException
+	{
+		String include = args.length > 0 ? args[0] : ".*Benchmark.*";
+		String resultFile = args.length > 1 ? args[1] : "results-" + new SimpleDateFormat( "yyyyMMdd-HHmmss" ).format( new Date() ) + ".json";
+
+		Options options = new OptionsBuilder()
+				.include( include )
+				.addProfiler( GCProfiler.class )
+				.resultFormat( ResultFormatType.JSON )
+				.result( resultFile )
+				.build();
+
+		new Runner( options ).run();
+	}
+}
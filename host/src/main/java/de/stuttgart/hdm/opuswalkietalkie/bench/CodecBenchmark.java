@@ -0,0 +1,162 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.stuttgart.hdm.opuswalkietalkie.OpusDecoder;
+import de.stuttgart.hdm.opuswalkietalkie.OpusEncoder;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	JMH benchmarks for OpusEncoder and OpusDecoder on the host JVM.
+ *
+ *	Every combination of sampling rate, channel count and legal opus frame duration is measured.
+ *	Throughput mode gives frames per second, sample mode gives the per-frame latency distribution
+ *	(p50, p99, p99.9) and the GC profiler added by {@link BenchmarkMain} gives the allocation rate.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( value = 1, jvmArgsAppend = "-Djava.library.path=target/native" )
+public class CodecBenchmark
+{
+	@Param( { "8000", "16000", "48000" } )
+	public int				samplingRate;
+
+	@Param( { "1", "2" } )
+	public int				numberOfChannels;
+
+	@Param( { "2.5", "5", "10", "20", "40", "60" } )
+	public double			frameDuration;	// Milliseconds
+
+	private OpusEncoder		encoder;
+	private OpusDecoder		decoder;
+	private short[]			frame;			// One frame of input signal for the stream API
+	private ShortBuffer		pcmIn;
+	private ShortBuffer		pcmOut;
+	private ByteBuffer		packetOut;
+	private ByteBuffer		packetIn;		// One encoded frame of the input signal
+
+	@Setup( Level.Trial )
+	public void setUp() throws IOException
+	{
+		int frameSize = ( int ) ( this.samplingRate * this.frameDuration / 1000 );
+		int samples = frameSize * this.numberOfChannels;
+
+		this.encoder = new OpusEncoder( new NullOutputStream(), this.samplingRate, this.numberOfChannels, frameSize );
+		this.decoder = new OpusDecoder( new ByteArrayInputStream( new byte[0] ), this.samplingRate, this.numberOfChannels, frameSize );
+
+		this.frame = new short[samples];
+		this.pcmIn = ByteBuffer.allocateDirect( 2 * samples ).order( ByteOrder.nativeOrder() ).asShortBuffer();
+		this.pcmOut = ByteBuffer.allocateDirect( 2 * samples ).order( ByteOrder.nativeOrder() ).asShortBuffer();
+		this.packetOut = ByteBuffer.allocateDirect( OpusEncoder.MAX_PACKET_SIZE );
+		this.packetIn = ByteBuffer.allocateDirect( OpusEncoder.MAX_PACKET_SIZE );
+
+		for ( int i = 0; i < samples; i++ )
+		{
+			this.frame[i] = ( short ) ( 8000 * Math.sin( 2 * Math.PI * 440 * ( i / this.numberOfChannels ) / this.samplingRate ) );
+			this.pcmIn.put( i, this.frame[i] );
+		}
+
+		this.encoder.encode( this.pcmIn, this.packetIn );
+		this.packetIn.flip();
+	}
+
+	@TearDown( Level.Trial )
+	public void tearDown() throws IOException
+	{
+		this.encoder.close();
+		this.decoder.close();
+	}
+
+	/**
+	 * One frame through the stream API, which copies through Java arrays.
+	 */
+	@Benchmark
+	public void encodeStream() throws IOException
+	{
+		this.encoder.write( this.frame );
+	}
+
+	/**
+	 * One frame through the direct buffer API.
+	 */
+	@Benchmark
+	public int encodeDirect() throws IOException
+	{
+		this.pcmIn.clear();
+		this.packetOut.clear();
+		return this.encoder.encode( this.pcmIn, this.packetOut );
+	}
+
+	/**
+	 * One packet through the direct buffer API.
+	 */
+	@Benchmark
+	public int decodeDirect() throws IOException
+	{
+		this.packetIn.position( 0 );
+		this.pcmOut.clear();
+		return this.decoder.decode( this.packetIn, this.pcmOut );
+	}
+
+	/**
+	 * Discards everything, so the stream benchmark only measures the encoder.
+	 */
+	private static class NullOutputStream extends OutputStream
+	{
+		@Override
+		public void write( byte[] buffer, int offset, int count )
+		{
+		}
+
+		@Override
+		public void write( int oneByte )
+		{
+		}
+	}
+}
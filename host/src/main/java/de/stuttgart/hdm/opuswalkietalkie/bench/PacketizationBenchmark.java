@@ -0,0 +1,159 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+
+package de.stuttgart.hdm.opuswalkietalkie.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.stuttgart.hdm.opuswalkietalkie.FrameDuration;
+import de.stuttgart.hdm.opuswalkietalkie.OggOpusWriter;
+import de.stuttgart.hdm.opuswalkietalkie.OpusEncoder;
+import de.stuttgart.hdm.opuswalkietalkie.OpusRepacketizer;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Compares the frame durations of a recording: the 20ms frames of a live stream, one per packet, against the 60ms
+ *	frames merged into 120ms packets a recording gets in archive mode, see {@link FrameDuration}.
+ *
+ *	One operation records SECONDS of a speech-like signal into an Ogg Opus file in memory, the way Recording writes
+ *	a file, so the average time is the CPU cost of that much audio. The size of the file is printed at the end of
+ *	every trial as bytes per second of audio.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( value = 1, jvmArgsAppend = "-Djava.library.path=target/native" )
+public class PacketizationBenchmark
+{
+	private static final int	SECONDS		= 10;
+
+	@Param( { "0", "1" } )
+	public int					latencyMode;	// FrameDuration.LIVE or FrameDuration.ARCHIVE
+
+	@Param( { "16000", "48000" } )
+	public int					samplingRate;
+
+	private short[]				signal;
+	private short[]				frame;
+	private int					frameSize;
+	private int					framesPerPacket;
+	private final CountingOutputStream	file	= new CountingOutputStream();
+
+	//Statistics
+	private long				recordings	= 0;
+	private long				bytes		= 0;
+
+	@Setup( Level.Trial )
+	public void setUp()
+	{
+		this.frameSize = FrameDuration.getFrameSize( this.latencyMode, this.samplingRate );
+		this.framesPerPacket = FrameDuration.getFramesPerPacket( this.latencyMode );
+		this.frame = new short[this.frameSize];
+
+		// Voiced syllables with a gliding pitch, separated by short pauses of background noise
+		Random random = new Random( 1 );
+		this.signal = new short[SECONDS * this.samplingRate];
+		double phase = 0;
+		for ( int i = 0; i < this.signal.length; i++ )
+		{
+			double time = ( double ) i / this.samplingRate;
+			phase += 2 * Math.PI * ( 140 + 30 * Math.sin( 2 * Math.PI * 0.5 * time ) ) / this.samplingRate;
+			double voiced = 0;
+			for ( int harmonic = 1; harmonic <= 10; harmonic++ )
+			{
+				voiced += Math.sin( harmonic * phase ) / harmonic;
+			}
+			double envelope = Math.max( 0, Math.sin( 2 * Math.PI * 3 * time ) );
+			this.signal[i] = ( short ) ( 6000 * envelope * envelope * voiced + 50 * random.nextGaussian() );
+		}
+	}
+
+	@TearDown( Level.Trial )
+	public void tearDown()
+	{
+		System.out.println( "Frames of " + this.frameSize + " samples, " + this.framesPerPacket + " per packet: "
+				+ this.bytes / Math.max( 1, this.recordings ) / SECONDS + " bytes per second of audio" );
+	}
+
+	/**
+	 * Encodes the signal and writes it as Ogg Opus, through a repacketizer in archive mode.
+	 */
+	@Benchmark
+	public long record() throws IOException
+	{
+		this.file.count = 0;
+		OggOpusWriter writer = new OggOpusWriter( this.file, this.samplingRate, 1 );
+		OutputStream packetStream = this.framesPerPacket > 1 ? new OpusRepacketizer( writer, this.framesPerPacket * this.frameSize * 48000 / this.samplingRate ) : writer;
+		OpusEncoder encoder = new OpusEncoder( packetStream, this.samplingRate, 1, this.frameSize );
+		for ( int offset = 0; offset + this.frameSize <= this.signal.length; offset += this.frameSize )
+		{
+			System.arraycopy( this.signal, offset, this.frame, 0, this.frameSize );
+			encoder.write( this.frame );
+		}
+		encoder.close();
+
+		this.recordings++;
+		this.bytes += this.file.count;
+		return this.file.count;
+	}
+
+	/**
+	 * Counts the bytes of the file instead of keeping them.
+	 */
+	private static class CountingOutputStream extends OutputStream
+	{
+		long	count	= 0;
+
+		@Override
+		public void write( byte[] buffer, int offset, int length )
+		{
+			this.count += length;
+		}
+
+		@Override
+		public void write( int oneByte )
+		{
+			this.count++;
+		}
+	}
+}
@@ -0,0 +1,337 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie.relay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import de.stuttgart.hdm.opuswalkietalkie.JitterBuffer;
+import de.stuttgart.hdm.opuswalkietalkie.Mixer;
+import de.stuttgart.hdm.opuswalkietalkie.OpusDecoder;
+import de.stuttgart.hdm.opuswalkietalkie.OpusEncoder;
+import de.stuttgart.hdm.opuswalkietalkie.RtpPacket;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Turns the talkers of a talk group into one stream with its own SSRC, for the members that asked for a mixed stream.
+ *
+ *	As long as only one member talks, its packets are passed through with a rewritten header and nothing is decoded.
+ *	Only while several members talk at once their packets go through a jitter buffer each, and once per frame period
+ *	{@link #mixNext(long, ByteBuffer)} decodes them, mixes them with a {@link Mixer} and encodes the mix again.
+ *	Decoders and encoder are created the first time that happens, so the native codec is only needed then.
+ *	Only touched by the relay thread.
+ */
+class GroupMixer
+{
+	static final int			MAX_TALKERS		= 4;
+	static final long			TALKER_TIMEOUT	= 200;	// Milliseconds of silence after which a talker is not mixed any more
+	private static final long	NO_PACKET		= Long.MIN_VALUE;
+	private static final int	BUFFER_FRAMES	= 32;	// Jitter buffer capacity per talker
+
+	//Config
+	private final int				samplingRate;
+	private final int				frameSize;
+	private final int				frameMillis;
+
+	//Talkers
+	private final int[]				ssrcs			= new int[MAX_TALKERS];
+	private final long[]			lastPacketTimes	= new long[MAX_TALKERS];
+	private final int[]				lastTimestamps	= new int[MAX_TALKERS];
+	private final JitterBuffer[]	jitterBuffers	= new JitterBuffer[MAX_TALKERS];
+	private OpusDecoder[]			decoders;
+	private boolean					isMixing		= false;
+
+	//Mixing
+	private final Mixer				mixer;
+	private final ShortBuffer		pcm;
+	private final short[]			frame;
+	private final short[]			mixed;
+	private OpusEncoder				encoder;
+
+	//Outgoing stream
+	private final int				ssrc;
+	private int						sequenceNumber;
+	private int						timestamp;
+	private int						lastTalker		= -1;	// Talker of the last passed through packet
+	private boolean					marker			= true;
+
+	//Statistics
+	private long					packetsPassedThrough	= 0;
+	private long					packetsIgnored			= 0;
+	private long					framesMixed				= 0;
+
+	/**
+	 * @param samplingRate Sampling rate of the talkers and the mixed stream
+	 * @param frameSize Samples per frame of the talkers and the mixed stream, mono
+	 */
+	GroupMixer( int samplingRate, int frameSize )
+	{
+		this.samplingRate = samplingRate;
+		this.frameSize = frameSize;
+		this.frameMillis = frameSize * 1000 / samplingRate;
+		for ( int talker = 0; talker < MAX_TALKERS; talker++ )
+		{
+			this.lastPacketTimes[talker] = NO_PACKET;
+			this.jitterBuffers[talker] = new JitterBuffer( BUFFER_FRAMES, samplingRate, frameSize, OpusEncoder.MAX_PACKET_SIZE );
+		}
+		this.mixer = new Mixer( MAX_TALKERS, frameSize );
+		this.pcm = ByteBuffer.allocateDirect( frameSize * ( Short.SIZE / Byte.SIZE ) ).order( ByteOrder.nativeOrder() ).asShortBuffer();
+		this.frame = new short[frameSize];
+		this.mixed = new short[frameSize];
+
+		Random random = new Random();
+		this.ssrc = random.nextInt();
+		this.sequenceNumber = random.nextInt( 0x10000 );
+		this.timestamp = random.nextInt();
+	}
+
+	/**
+	 * Takes a packet of a talker. While it is the only talker, the packet is written to out with the header of the
+	 * mixed stream, otherwise it is stored for the next {@link #mixNext(long, ByteBuffer)}.
+	 *
+	 * @param packet Valid RTP packet between position and limit, left unchanged
+	 * @param headerLength Header length as returned by RtpPacket.getHeaderLength()
+	 * @param now Arrival time in milliseconds
+	 * @param out Cleared and receives the packet to send between position and limit, empty if there is nothing to send
+	 */
+	void put( ByteBuffer packet, int headerLength, long now, ByteBuffer out )
+	{
+		out.clear();
+		int talker = this.findTalker( RtpPacket.getSsrc( packet ), now );
+		if ( talker < 0 )
+		{
+			this.packetsIgnored++;
+			out.flip();
+			return;
+		}
+		this.lastPacketTimes[talker] = now;
+
+		int start = packet.position();
+		int limit = packet.limit();
+		int packetTimestamp = RtpPacket.getTimestamp( packet );
+		int elapsed = packetTimestamp - this.lastTimestamps[talker];
+		this.lastTimestamps[talker] = packetTimestamp;
+
+		if ( this.getActiveTalkers( now ) > 1 )
+		{
+			this.isMixing = true;
+			int sequenceNumber = RtpPacket.getSequenceNumber( packet );
+			boolean marker = RtpPacket.getMarker( packet );
+			packet.limit( limit - RtpPacket.getPaddingLength( packet ) );
+			packet.position( start + headerLength );
+			this.jitterBuffers[talker].put( sequenceNumber, packetTimestamp, marker, packet, now );
+			packet.limit( limit );
+			packet.position( start );
+			out.flip();
+			return;
+		}
+		if ( this.isMixing )
+		{
+			this.stopMixing();
+		}
+
+		// The timestamp follows the talker's clock, and advances by one frame whenever another talker takes over
+		if ( talker != this.lastTalker || elapsed <= 0 || elapsed > this.samplingRate )
+		{
+			elapsed = this.frameSize;
+		}
+		this.lastTalker = talker;
+		this.timestamp += elapsed;
+		this.writeHeader( out );
+		packet.limit( limit - RtpPacket.getPaddingLength( packet ) );
+		packet.position( start + headerLength );
+		out.put( packet );
+		packet.limit( limit );
+		packet.position( start );
+		out.flip();
+		this.packetsPassedThrough++;
+	}
+
+	/**
+	 * Mixes the next frame period of all current talkers and encodes it. Called once per frame period while
+	 * {@link #isMixing()}.
+	 *
+	 * @param now Current time in milliseconds
+	 * @param out Cleared and receives the packet to send between position and limit, empty if nobody is talking
+	 * @return Number of talkers in the mix
+	 * @throws IOException
+	 */
+	int mixNext( long now, ByteBuffer out ) throws IOException
+	{
+		out.clear();
+		if ( this.decoders == null )
+		{
+			this.decoders = new OpusDecoder[MAX_TALKERS];
+			for ( int talker = 0; talker < MAX_TALKERS; talker++ )
+			{
+				this.decoders[talker] = new OpusDecoder( null, this.samplingRate, 1, this.frameSize );
+			}
+			this.encoder = new OpusEncoder( null, this.samplingRate, 1, this.frameSize );
+		}
+
+		boolean isTalking = false;
+		for ( int talker = 0; talker < MAX_TALKERS; talker++ )
+		{
+			long lastPacketTime = this.lastPacketTimes[talker];
+			if ( lastPacketTime == NO_PACKET || now - lastPacketTime > TALKER_TIMEOUT + this.jitterBuffers[talker].getTargetDelay() )
+			{
+				continue;
+			}
+			isTalking = true;
+			this.pcm.clear();
+			if ( this.jitterBuffers[talker].decodeNext( this.decoders[talker], this.pcm, now ) > 0 )
+			{
+				this.pcm.flip();
+				int samples = this.pcm.remaining();
+				this.pcm.get( this.frame, 0, samples );
+				this.mixer.add( talker, this.frame, samples );
+			}
+		}
+		if ( !isTalking )
+		{
+			this.stopMixing();
+		}
+
+		int talkers = this.mixer.mix( this.mixed );
+		if ( talkers > 0 )
+		{
+			this.pcm.clear();
+			this.pcm.put( this.mixed );
+			this.pcm.flip();
+			this.timestamp += this.frameSize;
+			this.lastTalker = -1;
+			this.writeHeader( out );
+			this.encoder.encode( this.pcm, out );
+			this.framesMixed++;
+		}
+		out.flip();
+		return talkers;
+	}
+
+	private void stopMixing()
+	{
+		this.isMixing = false;
+		for ( int talker = 0; talker < MAX_TALKERS; talker++ )
+		{
+			this.jitterBuffers[talker].reset();
+		}
+	}
+
+	private void writeHeader( ByteBuffer out )
+	{
+		RtpPacket.writeHeader( out, this.marker, this.sequenceNumber, this.timestamp, this.ssrc );
+		this.sequenceNumber = ( this.sequenceNumber + 1 ) & 0xFFFF;
+		this.marker = false;
+	}
+
+	/**
+	 * @return Index of the talker, or -1 if all slots are taken by other talkers
+	 */
+	private int findTalker( int ssrc, long now )
+	{
+		int free = -1;
+		for ( int talker = 0; talker < MAX_TALKERS; talker++ )
+		{
+			boolean isTaken = this.lastPacketTimes[talker] != NO_PACKET && now - this.lastPacketTimes[talker] <= TALKER_TIMEOUT;
+			if ( isTaken && this.ssrcs[talker] == ssrc )
+			{
+				return talker;
+			}
+			if ( free < 0 && !isTaken )
+			{
+				free = talker;
+			}
+		}
+		if ( free >= 0 )
+		{
+			this.jitterBuffers[free].reset();
+			this.ssrcs[free] = ssrc;
+			this.lastTimestamps[free] = 0;
+			if ( free == this.lastTalker )
+			{
+				this.lastTalker = -1;
+			}
+		}
+		return free;
+	}
+
+	/**
+	 * @return Talkers that sent a packet within TALKER_TIMEOUT
+	 */
+	int getActiveTalkers( long now )
+	{
+		int talkers = 0;
+		for ( int talker = 0; talker < MAX_TALKERS; talker++ )
+		{
+			if ( this.lastPacketTimes[talker] != NO_PACKET && now - this.lastPacketTimes[talker] <= TALKER_TIMEOUT )
+			{
+				talkers++;
+			}
+		}
+		return talkers;
+	}
+
+	/**
+	 * @return Whether several members talk and {@link #mixNext(long, ByteBuffer)} has to be called every frame period
+	 */
+	boolean isMixing()
+	{
+		return this.isMixing;
+	}
+
+	int getFrameMillis()
+	{
+		return this.frameMillis;
+	}
+
+	long getPacketsPassedThrough()
+	{
+		return this.packetsPassedThrough;
+	}
+
+	long getPacketsIgnored()
+	{
+		return this.packetsIgnored;
+	}
+
+	long getFramesMixed()
+	{
+		return this.framesMixed;
+	}
+
+	void close() throws IOException
+	{
+		if ( this.decoders != null )
+		{
+			for ( int talker = 0; talker < MAX_TALKERS; talker++ )
+			{
+				this.decoders[talker].close();
+			}
+			this.encoder.close();
+		}
+	}
+}
@@ -0,0 +1,292 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie.relay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.stuttgart.hdm.opuswalkietalkie.Histogram;
+import de.stuttgart.hdm.opuswalkietalkie.RtpPacket;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Simulates thousands of walkie talkies on the loopback interface against a {@link RelayNode} and reports the
+ *	throughput of the relay and the latency from sending a packet until a member received it.
+ *
+ *	Every client has its own socket and joins group client / groupSize. The first talkersPerGroup clients of every
+ *	group send a 20ms packet of PAYLOAD_SIZE bytes per frame period, with the send time in the payload instead of
+ *	Opus data, the relay does not look at it. One thread sends for all talkers, one thread receives for all clients.
+ *
+ *	Usage: LoadGenerator [clients] [groupSize] [talkersPerGroup] [seconds] [relay host:port]
+ *	Without a relay address a relay is started in the same process.
+ */
+public class LoadGenerator
+{
+	private static final Logger	LOG				= Logger.getLogger( LoadGenerator.class.getName() );
+
+	private static final int	FRAME_NANOS		= 20000000;	// 20ms packets
+	private static final int	SAMPLES_PER_FRAME	= 960;
+	private static final int	PAYLOAD_SIZE	= 60;		// About a 24 kbit/s voice frame
+	private static final long	KEEPALIVE		= 10000;	// Milliseconds between JOINs of every client
+	private static final long	SETTLE_TIME		= 500;		// Milliseconds for the joins to arrive and the last packets to drain
+
+	//Config
+	private final SocketAddress		relay;
+	private final int				clients;
+	private final int				groupSize;
+	private final int				talkersPerGroup;
+
+	//Fields
+	private final DatagramChannel[]	channels;
+	private final Selector			selector;
+	private volatile boolean		isRunning	= true;
+
+	//Statistics
+	private volatile long			packetsSent		= 0;
+	private volatile long			packetsReceived	= 0;
+	private final Histogram			latency			= new Histogram();	// Microseconds from sending until a member received the packet
+
+	public LoadGenerator( SocketAddress relay, int clients, int groupSize, int talkersPerGroup ) throws IOException
+	{
+		this.relay = relay;
+		this.clients = clients;
+		this.groupSize = groupSize;
+		this.talkersPerGroup = talkersPerGroup;
+		this.channels = new DatagramChannel[clients];
+		this.selector = Selector.open();
+		for ( int client = 0; client < clients; client++ )
+		{
+			this.channels[client] = DatagramChannel.open();
+			this.channels[client].configureBlocking( false );
+			this.channels[client].connect( relay );
+			this.channels[client].register( this.selector, SelectionKey.OP_READ );
+		}
+	}
+
+	private boolean isTalker( int client )
+	{
+		return client % this.groupSize < this.talkersPerGroup;
+	}
+
+	/**
+	 * Sends a JOIN from every client.
+	 */
+	private void join() throws IOException
+	{
+		ByteBuffer control = ByteBuffer.allocate( RelayProtocol.SIZE );
+		for ( int client = 0; client < this.clients; client++ )
+		{
+			control.clear();
+			RelayProtocol.write( control, RelayProtocol.JOIN, client / this.groupSize, false );
+			control.flip();
+			this.channels[client].write( control );
+		}
+	}
+
+	/**
+	 * Sender thread: sends one packet per talker and frame period until the run is over.
+	 */
+	private void send( long endTime ) throws IOException
+	{
+		ByteBuffer packet = ByteBuffer.allocateDirect( RtpPacket.HEADER_SIZE + PAYLOAD_SIZE );
+		int sequenceNumber = 0;
+		long nextFrame = System.nanoTime();
+		long nextKeepalive = RelayNode.now() + KEEPALIVE;
+		while ( System.nanoTime() < endTime )
+		{
+			for ( int client = 0; client < this.clients; client++ )
+			{
+				if ( !this.isTalker( client ) )
+				{
+					continue;
+				}
+				packet.clear();
+				RtpPacket.writeHeader( packet, sequenceNumber == 0, sequenceNumber, sequenceNumber * SAMPLES_PER_FRAME, client );
+				packet.putLong( System.nanoTime() );
+				while ( packet.hasRemaining() )
+				{
+					packet.put( ( byte ) 0 );
+				}
+				packet.flip();
+				if ( this.channels[client].write( packet ) > 0 )
+				{
+					this.packetsSent++;
+				}
+			}
+			sequenceNumber = ( sequenceNumber + 1 ) & 0xFFFF;
+
+			if ( RelayNode.now() >= nextKeepalive )
+			{
+				this.join();
+				nextKeepalive += KEEPALIVE;
+			}
+			nextFrame += FRAME_NANOS;
+			LockSupport.parkNanos( nextFrame - System.nanoTime() );
+		}
+	}
+
+	/**
+	 * Receiver thread: counts the packets arriving at any client and records their latency.
+	 */
+	private void receive()
+	{
+		ByteBuffer packet = ByteBuffer.allocateDirect( RtpPacket.MAX_SIZE );
+		try
+		{
+			while ( this.isRunning )
+			{
+				if ( this.selector.select( 100 ) == 0 )
+				{
+					continue;
+				}
+				Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+				while ( keys.hasNext() )
+				{
+					DatagramChannel channel = ( DatagramChannel ) keys.next().channel();
+					keys.remove();
+					packet.clear();
+					while ( channel.read( packet ) > 0 )
+					{
+						packet.flip();
+						int headerLength = RtpPacket.getHeaderLength( packet );
+						if ( headerLength >= 0 )
+						{
+							this.latency.record( ( System.nanoTime() - packet.getLong( headerLength ) ) / 1000 );
+							this.packetsReceived++;
+						}
+						packet.clear();
+					}
+				}
+			}
+		}
+		catch ( IOException e )
+		{
+			if ( this.isRunning )
+			{
+				LOG.log( Level.SEVERE, e.getLocalizedMessage(), e );
+			}
+		}
+	}
+
+	/**
+	 * Runs the load for the given time and prints the results.
+	 *
+	 * @param seconds Duration of the load
+	 * @param node Relay running in this process for its statistics, or null
+	 */
+	public void run( int seconds, RelayNode node ) throws Exception
+	{
+		Thread receiver = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				receive();
+			}
+		}, "Load receiver" );
+		receiver.start();
+
+		this.join();
+		Thread.sleep( SETTLE_TIME );
+		long relayReceived = node != null ? node.getPacketsReceived() : 0;
+		long relayForwarded = node != null ? node.getPacketsForwarded() : 0;
+
+		long start = System.nanoTime();
+		this.send( start + TimeUnit.SECONDS.toNanos( seconds ) );
+		double elapsed = ( System.nanoTime() - start ) / 1e9;
+		Thread.sleep( SETTLE_TIME );
+
+		this.isRunning = false;
+		receiver.join();
+		long expected = this.packetsSent * ( this.groupSize - 1 );
+
+		System.out.println( "clients=" + this.clients + " groupSize=" + this.groupSize + " talkersPerGroup=" + this.talkersPerGroup + " seconds=" + seconds );
+		System.out.println( String.format( "sent      %10d packets %10.0f/s", this.packetsSent, this.packetsSent / elapsed ) );
+		System.out.println( String.format( "delivered %10d packets %10.0f/s, %.2f%% of %d expected", this.packetsReceived, this.packetsReceived / elapsed,
+				expected > 0 ? 100.0 * this.packetsReceived / expected : 0, expected ) );
+		if ( node != null )
+		{
+			System.out.println( String.format( "relay     %10.0f in/s %10.0f out/s, dropped %d, handling p50<=%dus p99<=%dus max=%dus",
+					( node.getPacketsReceived() - relayReceived ) / elapsed, ( node.getPacketsForwarded() - relayForwarded ) / elapsed, node.getPacketsDropped(),
+					node.getForwardTime().getPercentile( 0.5 ) / 1000, node.getForwardTime().getPercentile( 0.99 ) / 1000, node.getForwardTime().getMax() / 1000 ) );
+		}
+		System.out.println( String.format( "latency   p50<=%dus p99<=%dus p99.9<=%dus max=%dus", this.latency.getPercentile( 0.5 ), this.latency.getPercentile( 0.99 ),
+				this.latency.getPercentile( 0.999 ), this.latency.getMax() ) );
+	}
+
+	public void close() throws IOException
+	{
+		this.selector.close();
+		for ( int client = 0; client < this.clients; client++ )
+		{
+			this.channels[client].close();
+		}
+	}
+
+	public static void main( String[] args ) throws Exception
+	{
+		int clients = args.length > 0 ? Integer.parseInt( args[0] ) : 2000;
+		int groupSize = args.length > 1 ? Integer.parseInt( args[1] ) : 20;
+		int talkersPerGroup = args.length > 2 ? Integer.parseInt( args[2] ) : 1;
+		int seconds = args.length > 3 ? Integer.parseInt( args[3] ) : 10;
+
+		RelayNode node = null;
+		SocketAddress relay;
+		if ( args.length > 4 )
+		{
+			String[] hostPort = args[4].split( ":" );
+			relay = new InetSocketAddress( hostPort[0], Integer.parseInt( hostPort[1] ) );
+		}
+		else
+		{
+			node = new RelayNode( 0 );
+			node.start();
+			relay = new InetSocketAddress( "127.0.0.1", node.getLocalPort() );
+		}
+
+		LoadGenerator generator = new LoadGenerator( relay, clients, groupSize, talkersPerGroup );
+		try
+		{
+			generator.run( seconds, node );
+		}
+		finally
+		{
+			generator.close();
+			if ( node != null )
+			{
+				node.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,542 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie.relay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.stuttgart.hdm.opuswalkietalkie.Histogram;
+import de.stuttgart.hdm.opuswalkietalkie.RtpPacket;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Headless relay for a plain JVM that forwards the RTP streams of the walkie talkies to everybody in their talk group.
+ *
+ *	Clients join a group with a {@link RelayProtocol} control datagram and then send their RTP packets to the relay
+ *	from the same address. Every packet is sent on unchanged to all other members of the sender's group, the relay
+ *	does not look at the payload. Members that asked for a mixed stream get the talkers of their group through a
+ *	{@link GroupMixer} instead, which only decodes while several of them talk at once. A member that sends nothing,
+ *	not even a JOIN as keepalive, for the member timeout is dropped.
+ *
+ *	One thread waits on a selector for the non-blocking channel and handles every datagram in one reused direct buffer,
+ *	the same way as the RtpReceiver on the phone. Forwarding allocates nothing apart from the source address NIO
+ *	returns for every datagram, so a single thread keeps up with thousands of clients. A datagram the socket can not
+ *	take right now is dropped and counted, like in the RtpSender.
+ */
+public class RelayNode
+{
+	private static final Logger	LOG				= Logger.getLogger( RelayNode.class.getName() );
+
+	public static final int		DEFAULT_PORT	= 7078;
+	public static final int		SAMPLING_RATE	= 48000;	// Stream format the mixer expects from the clients
+	public static final int		FRAME_SIZE		= 960;		// 20ms at 48kHz, mono
+
+	private static final long	MEMBER_TIMEOUT	= 30000;	// Default milliseconds without datagram after which a member is dropped
+	private static final long	SWEEP_INTERVAL	= 1000;		// Milliseconds between the checks for timed out members
+	private static final int	MAX_BATCH		= 1024;		// Datagrams received in a row before mixing and sweeping get their turn
+	private static final int	SOCKET_BUFFER	= 4 << 20;	// Bytes, a burst of packets for thousands of members must fit
+
+	//Config
+	private volatile long								memberTimeout	= MEMBER_TIMEOUT;
+
+	//Fields
+	private final DatagramChannel						channel;
+	private final Selector								selector;
+	private final ByteBuffer							datagram	= ByteBuffer.allocateDirect( RtpPacket.MAX_SIZE );	// Reused for every received datagram
+	private final ByteBuffer							outgoing	= ByteBuffer.allocateDirect( RtpPacket.MAX_SIZE );	// Reused for every packet of a mixed stream
+	private final HashMap<SocketAddress, TalkGroup.Member>	members		= new HashMap<SocketAddress, TalkGroup.Member>();
+	private final HashMap<Integer, TalkGroup>			groups		= new HashMap<Integer, TalkGroup>();
+	private final ArrayList<TalkGroup>					mixedGroups	= new ArrayList<TalkGroup>();	// Groups with a mixer
+	private Thread										relayThread;
+	private volatile boolean							isRunning	= false;
+	private long										nextMixTime	= 0;
+	private long										nextSweep	= 0;
+
+	//Statistics
+	private volatile long			packetsReceived		= 0;
+	private volatile long			packetsForwarded	= 0;
+	private volatile long			packetsDropped		= 0;
+	private volatile long			packetsIgnored		= 0;
+	private volatile long			packetsInvalid		= 0;
+	private volatile int			memberCount			= 0;
+	private volatile int			groupCount			= 0;
+	private final Histogram			forwardTime			= new Histogram();	// Nanoseconds from receiving a packet until it was sent to the last member
+
+	/**
+	 * Binds the channel. Call {@link #start()} to begin relaying.
+	 *
+	 * @param port Local UDP port, 0 for any free port
+	 * @throws IOException
+	 */
+	public RelayNode( int port ) throws IOException
+	{
+		this.channel = DatagramChannel.open();
+		this.channel.configureBlocking( false );
+		this.channel.socket().setReceiveBufferSize( SOCKET_BUFFER );
+		this.channel.socket().setSendBufferSize( SOCKET_BUFFER );
+		this.channel.socket().bind( new InetSocketAddress( port ) );
+		this.selector = Selector.open();
+		this.channel.register( this.selector, SelectionKey.OP_READ );
+	}
+
+	/**
+	 * Starts the relay thread.
+	 */
+	public synchronized void start()
+	{
+		if ( this.isRunning )
+		{
+			return;
+		}
+		this.isRunning = true;
+		this.relayThread = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				relay();
+			}
+		}, "Relay" );
+		this.relayThread.start();
+	}
+
+	/**
+	 * Relay thread: handles datagrams, mixes the groups that need it once per frame and drops silent members.
+	 */
+	private void relay()
+	{
+		try
+		{
+			while ( this.isRunning )
+			{
+				long now = now();
+				long timeout = this.nextSweep - now;
+				if ( this.isAnyGroupMixing() )
+				{
+					timeout = Math.min( timeout, this.nextMixTime - now );
+				}
+				if ( timeout <= 0 || this.selector.select( timeout ) > 0 )
+				{
+					this.selector.selectedKeys().clear();
+					this.receive();
+				}
+
+				now = now();
+				if ( this.isAnyGroupMixing() && now >= this.nextMixTime )
+				{
+					this.mix( now );
+					this.nextMixTime = Math.max( this.nextMixTime + FRAME_SIZE * 1000 / SAMPLING_RATE, now );
+				}
+				if ( now >= this.nextSweep )
+				{
+					this.sweep( now );
+					this.nextSweep = now + SWEEP_INTERVAL;
+				}
+			}
+		}
+		catch ( IOException e )
+		{
+			if ( this.isRunning )
+			{
+				LOG.log( Level.SEVERE, e.getLocalizedMessage(), e );
+			}
+		}
+	}
+
+	private void receive() throws IOException
+	{
+		SocketAddress source;
+		int batch = 0;
+		this.datagram.clear();
+		while ( batch++ < MAX_BATCH && ( source = this.channel.receive( this.datagram ) ) != null )
+		{
+			long start = System.nanoTime();
+			this.datagram.flip();
+			this.handleDatagram( source, this.datagram, now() );
+			this.forwardTime.record( System.nanoTime() - start );
+			this.datagram.clear();
+		}
+	}
+
+	private void handleDatagram( SocketAddress source, ByteBuffer packet, long now ) throws IOException
+	{
+		if ( RelayProtocol.isControl( packet ) )
+		{
+			this.handleControl( source, packet, now );
+			return;
+		}
+
+		int headerLength = RtpPacket.getHeaderLength( packet );
+		if ( headerLength < 0 )
+		{
+			this.packetsInvalid++;
+			return;
+		}
+		TalkGroup.Member sender = this.members.get( source );
+		if ( sender == null )
+		{
+			this.packetsIgnored++;
+			return;
+		}
+		sender.lastSeen = now;
+		sender.lastPacketTime = now;
+		this.packetsReceived++;
+
+		TalkGroup group = sender.group;
+		int start = packet.position();
+		for ( int i = 0; i < group.members.size(); i++ )
+		{
+			TalkGroup.Member member = group.members.get( i );
+			if ( member != sender && !member.isMixing )
+			{
+				packet.position( start );
+				this.send( packet, member.address );
+			}
+		}
+		packet.position( start );
+
+		if ( group.mixer != null )
+		{
+			group.mixer.put( packet, headerLength, now, this.outgoing );
+			if ( this.outgoing.hasRemaining() )
+			{
+				this.sendMixed( group, sender, now );
+			}
+		}
+	}
+
+	private void handleControl( SocketAddress source, ByteBuffer packet, long now ) throws IOException
+	{
+		TalkGroup.Member member = this.members.get( source );
+		if ( RelayProtocol.getType( packet ) == RelayProtocol.LEAVE )
+		{
+			if ( member != null )
+			{
+				this.removeMember( member );
+			}
+			return;
+		}
+		if ( RelayProtocol.getType( packet ) != RelayProtocol.JOIN )
+		{
+			this.packetsInvalid++;
+			return;
+		}
+
+		int groupId = RelayProtocol.getGroup( packet );
+		boolean isMixing = RelayProtocol.isMixing( packet );
+		if ( member != null && member.group.id == groupId && member.isMixing == isMixing )
+		{
+			member.lastSeen = now;	// Keepalive
+			return;
+		}
+		if ( member != null )
+		{
+			this.removeMember( member );
+		}
+
+		member = new TalkGroup.Member( source );
+		member.isMixing = isMixing;
+		member.lastSeen = now;
+		TalkGroup group = this.groups.get( groupId );
+		if ( group == null )
+		{
+			group = new TalkGroup( groupId );
+			this.groups.put( groupId, group );
+		}
+		group.add( member );
+		if ( group.mixer == null && group.mixingMembers > 0 )
+		{
+			group.mixer = new GroupMixer( SAMPLING_RATE, FRAME_SIZE );
+			this.mixedGroups.add( group );
+		}
+		this.members.put( source, member );
+		this.memberCount = this.members.size();
+		this.groupCount = this.groups.size();
+	}
+
+	private void removeMember( TalkGroup.Member member ) throws IOException
+	{
+		TalkGroup group = member.group;
+		group.remove( member );
+		this.members.remove( member.address );
+		if ( group.mixer != null && group.mixingMembers == 0 )
+		{
+			group.mixer.close();
+			group.mixer = null;
+			this.mixedGroups.remove( group );
+		}
+		if ( group.isEmpty() )
+		{
+			this.groups.remove( group.id );
+		}
+		this.memberCount = this.members.size();
+		this.groupCount = this.groups.size();
+	}
+
+	/**
+	 * Sends the mixed stream of a group to its mixing members, except to those talking right now.
+	 *
+	 * @param talker Member whose packet was passed through, null for a mixed frame
+	 */
+	private void sendMixed( TalkGroup group, TalkGroup.Member talker, long now ) throws IOException
+	{
+		int start = this.outgoing.position();
+		for ( int i = 0; i < group.members.size(); i++ )
+		{
+			TalkGroup.Member member = group.members.get( i );
+			if ( member.isMixing && member != talker && now - member.lastPacketTime > GroupMixer.TALKER_TIMEOUT )
+			{
+				this.outgoing.position( start );
+				this.send( this.outgoing, member.address );
+			}
+		}
+	}
+
+	private void send( ByteBuffer packet, SocketAddress target ) throws IOException
+	{
+		if ( this.channel.send( packet, target ) > 0 )
+		{
+			this.packetsForwarded++;
+		}
+		else
+		{
+			this.packetsDropped++;
+		}
+	}
+
+	private boolean isAnyGroupMixing()
+	{
+		for ( int i = 0; i < this.mixedGroups.size(); i++ )
+		{
+			if ( this.mixedGroups.get( i ).mixer.isMixing() )
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void mix( long now ) throws IOException
+	{
+		for ( int i = 0; i < this.mixedGroups.size(); i++ )
+		{
+			TalkGroup group = this.mixedGroups.get( i );
+			if ( group.mixer.isMixing() && group.mixer.mixNext( now, this.outgoing ) > 0 )
+			{
+				this.sendMixed( group, null, now );
+			}
+		}
+	}
+
+	private void sweep( long now ) throws IOException
+	{
+		Iterator<TalkGroup.Member> iterator = this.members.values().iterator();
+		ArrayList<TalkGroup.Member> expired = null;
+		while ( iterator.hasNext() )
+		{
+			TalkGroup.Member member = iterator.next();
+			if ( now - member.lastSeen > this.memberTimeout )
+			{
+				if ( expired == null )
+				{
+					expired = new ArrayList<TalkGroup.Member>();
+				}
+				expired.add( member );
+			}
+		}
+		if ( expired != null )
+		{
+			for ( int i = 0; i < expired.size(); i++ )
+			{
+				this.removeMember( expired.get( i ) );
+			}
+			LOG.info( expired.size() + " members timed out, " + this.members.size() + " left" );
+		}
+	}
+
+	/**
+	 * @return The clock used for all relay times, in milliseconds
+	 */
+	static long now()
+	{
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * @param memberTimeout Milliseconds without datagram after which a member is dropped, checked once per second
+	 */
+	public void setMemberTimeout( long memberTimeout )
+	{
+		this.memberTimeout = memberTimeout;
+	}
+
+	/**
+	 * @return The local UDP port the relay is bound to
+	 */
+	public int getLocalPort()
+	{
+		return this.channel.socket().getLocalPort();
+	}
+
+	/**
+	 * @return RTP packets received from members
+	 */
+	public long getPacketsReceived()
+	{
+		return this.packetsReceived;
+	}
+
+	/**
+	 * @return Packets sent to members, passed through or mixed
+	 */
+	public long getPacketsForwarded()
+	{
+		return this.packetsForwarded;
+	}
+
+	/**
+	 * @return Packets the socket could not take
+	 */
+	public long getPacketsDropped()
+	{
+		return this.packetsDropped;
+	}
+
+	/**
+	 * @return RTP packets from addresses that did not join a group
+	 */
+	public long getPacketsIgnored()
+	{
+		return this.packetsIgnored;
+	}
+
+	/**
+	 * @return Datagrams that were neither control datagrams nor RTP packets of our payload type
+	 */
+	public long getPacketsInvalid()
+	{
+		return this.packetsInvalid;
+	}
+
+	public int getMemberCount()
+	{
+		return this.memberCount;
+	}
+
+	public int getGroupCount()
+	{
+		return this.groupCount;
+	}
+
+	/**
+	 * @return Time in nanoseconds from receiving a datagram until it was handled, sending included
+	 */
+	public Histogram getForwardTime()
+	{
+		return this.forwardTime;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "members=" + this.memberCount + " groups=" + this.groupCount + " received=" + this.packetsReceived + " forwarded=" + this.packetsForwarded
+				+ " dropped=" + this.packetsDropped + " ignored=" + this.packetsIgnored + " invalid=" + this.packetsInvalid + " forwardTime[ns] " + this.forwardTime;
+	}
+
+	/**
+	 * Stops the relay thread and closes the channel.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException
+	{
+		Thread thread;
+		synchronized ( this )
+		{
+			this.isRunning = false;
+			thread = this.relayThread;
+			this.relayThread = null;
+		}
+		this.selector.wakeup();
+		if ( thread != null )
+		{
+			try
+			{
+				thread.join();
+			}
+			catch ( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		for ( int i = 0; i < this.mixedGroups.size(); i++ )
+		{
+			this.mixedGroups.get( i ).mixer.close();
+		}
+		this.selector.close();
+		this.channel.close();
+	}
+
+	/**
+	 * Runs a relay until the process is killed and logs its statistics every 10 seconds.
+	 *
+	 * @param args [port], DEFAULT_PORT if omitted
+	 */
+	public static void main( String[] args ) throws Exception
+	{
+		final RelayNode relay = new RelayNode( args.length > 0 ? Integer.parseInt( args[0] ) : DEFAULT_PORT );
+		Runtime.getRuntime().addShutdownHook( new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					relay.close();
+				}
+				catch ( IOException e )
+				{
+					LOG.log( Level.WARNING, e.getLocalizedMessage(), e );
+				}
+			}
+		} );
+		relay.start();
+		LOG.info( "Relay listening on UDP port " + relay.getLocalPort() );
+		while ( true )
+		{
+			Thread.sleep( 10000 );
+			LOG.info( relay.toString() );
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie.relay;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Control datagrams a client sends to a {@link RelayNode} to join or leave a talk group, next to its RTP packets.
+ *
+ *	A control datagram is 12 bytes: the magic "WTRL", the type, flags, two reserved bytes and the group as a big endian
+ *	int. The first byte of the magic has 01 in its two top bits, so it is never taken for an RTP packet of version 2.
+ *	A client joins by sending JOIN from the address it sends and receives RTP on, and repeats it as a keepalive while
+ *	it is silent. Like {@link de.stuttgart.hdm.opuswalkietalkie.RtpPacket}, the methods never change position or limit.
+ */
+public final class RelayProtocol
+{
+	public static final int		SIZE		= 12;
+	public static final int		MAGIC		= 0x5754524C;	// "WTRL"
+	public static final int		JOIN		= 1;
+	public static final int		LEAVE		= 2;
+	public static final int		FLAG_MIX	= 0x01;	// The member takes a single mixed stream instead of one stream per talker
+
+	private RelayProtocol()
+	{
+	}
+
+	/**
+	 * Writes a control datagram at the position of buffer and advances it.
+	 *
+	 * @param type JOIN or LEAVE
+	 * @param group Talk group
+	 * @param isMixing Whether the member wants the talkers mixed into one stream, see FLAG_MIX
+	 */
+	public static void write( ByteBuffer buffer, int type, int group, boolean isMixing )
+	{
+		buffer.putInt( MAGIC );
+		buffer.put( ( byte ) type );
+		buffer.put( ( byte ) ( isMixing ? FLAG_MIX : 0 ) );
+		buffer.putShort( ( short ) 0 );
+		buffer.putInt( group );
+	}
+
+	/**
+	 * @param datagram Received datagram between position and limit
+	 * @return Whether it is a control datagram
+	 */
+	public static boolean isControl( ByteBuffer datagram )
+	{
+		return datagram.remaining() == SIZE && datagram.getInt( datagram.position() ) == MAGIC;
+	}
+
+	public static int getType( ByteBuffer datagram )
+	{
+		return datagram.get( datagram.position() + 4 );
+	}
+
+	public static boolean isMixing( ByteBuffer datagram )
+	{
+		return ( datagram.get( datagram.position() + 5 ) & FLAG_MIX ) != 0;
+	}
+
+	public static int getGroup( ByteBuffer datagram )
+	{
+		return datagram.getInt( datagram.position() + 8 );
+	}
+}
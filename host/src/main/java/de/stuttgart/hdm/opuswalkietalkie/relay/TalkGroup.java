@@ -0,0 +1,90 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie.relay;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Members of one talk group on a {@link RelayNode}. Only touched by the relay thread.
+ *
+ *	The mixer is created when the first member asking for a mixed stream joins, groups where every member takes the
+ *	streams of the talkers as they are never decode anything.
+ */
+class TalkGroup
+{
+	/**
+	 * A client of the relay, identified by the address its datagrams come from.
+	 */
+	static class Member
+	{
+		final SocketAddress	address;
+		TalkGroup			group;
+		boolean				isMixing;
+		long				lastSeen;						// Time of the last datagram of any kind
+		long				lastPacketTime	= Long.MIN_VALUE;	// Time of the last RTP packet, while talking
+
+		Member( SocketAddress address )
+		{
+			this.address = address;
+		}
+	}
+
+	//Fields
+	final int						id;
+	final ArrayList<Member>			members			= new ArrayList<Member>();
+	GroupMixer						mixer;				// Null while no member is mixing
+	int								mixingMembers	= 0;
+
+	TalkGroup( int id )
+	{
+		this.id = id;
+	}
+
+	void add( Member member )
+	{
+		this.members.add( member );
+		member.group = this;
+		if ( member.isMixing )
+		{
+			this.mixingMembers++;
+		}
+	}
+
+	void remove( Member member )
+	{
+		this.members.remove( member );
+		member.group = null;
+		if ( member.isMixing )
+		{
+			this.mixingMembers--;
+		}
+	}
+
+	boolean isEmpty()
+	{
+		return this.members.isEmpty();
+	}
+}
@@ -0,0 +1,331 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie.relay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.stuttgart.hdm.opuswalkietalkie.OpusEncoder;
+import de.stuttgart.hdm.opuswalkietalkie.RtpPacket;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Drives a {@link RelayNode} over the loopback interface with clients on plain datagram sockets.
+ *
+ *	Forwarding and the membership tests send RTP packets with made-up payloads, as the relay does not look at them.
+ *	The mixing test sends real Opus packets and is skipped if the JNI libraries were not built, see the Makefile.
+ */
+public class RelayNodeTest
+{
+	private static final int	FRAME_MILLIS	= RelayNode.FRAME_SIZE * 1000 / RelayNode.SAMPLING_RATE;
+	private static final int	SILENCE_MILLIS	= 300;	// Time a client waits before it takes the absence of a packet for granted
+
+	private RelayNode			relay;
+	private InetSocketAddress	relayAddress;
+	private final List<Client>	clients			= new ArrayList<Client>();
+
+	@Before
+	public void setUp() throws IOException
+	{
+		this.relay = new RelayNode( 0 );
+		this.relay.start();
+		this.relayAddress = new InetSocketAddress( InetAddress.getLoopbackAddress(), this.relay.getLocalPort() );
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		for ( int i = 0; i < this.clients.size(); i++ )
+		{
+			this.clients.get( i ).socket.close();
+		}
+		this.relay.close();
+	}
+
+	@Test
+	public void testTwoMembersForward() throws Exception
+	{
+		Client talker = this.join( 1, false );
+		Client listener = this.join( 1, false );
+		Client otherGroup = this.join( 2, false );
+		this.awaitMembers( 3 );
+
+		for ( int i = 0; i < 10; i++ )
+		{
+			byte[] packet = rtpPacket( i, i * RelayNode.FRAME_SIZE, 1, new byte[] { ( byte ) i, 1, 2, 3 } );
+			talker.send( packet );
+			assertArrayEquals( "Packet " + i, packet, listener.receive( 1000 ) );
+		}
+		assertNull( "Forwarded to another group", otherGroup.receive( SILENCE_MILLIS ) );
+		assertNull( "Sent back to the talker", talker.receive( SILENCE_MILLIS ) );
+		assertEquals( 10, this.relay.getPacketsReceived() );
+		assertEquals( 10, this.relay.getPacketsForwarded() );
+	}
+
+	@Test
+	public void testLeaveStopsForwarding() throws Exception
+	{
+		Client talker = this.join( 1, false );
+		Client listener = this.join( 1, false );
+		this.awaitMembers( 2 );
+		talker.send( rtpPacket( 0, 0, 1, new byte[4] ) );
+		assertNotNull( listener.receive( 1000 ) );
+
+		listener.sendControl( RelayProtocol.LEAVE, 1, false );
+		this.awaitMembers( 1 );
+		talker.send( rtpPacket( 1, RelayNode.FRAME_SIZE, 1, new byte[4] ) );
+		assertNull( listener.receive( SILENCE_MILLIS ) );
+		assertEquals( 1, this.relay.getPacketsForwarded() );
+		assertEquals( 1, this.relay.getGroupCount() );
+	}
+
+	@Test
+	public void testTimeoutStopsForwarding() throws Exception
+	{
+		this.relay.setMemberTimeout( 200 );
+		Client talker = this.join( 1, false );
+		Client listener = this.join( 1, false );
+		this.awaitMembers( 2 );
+
+		// The talker stays a member by sending, the silent listener is dropped by one of the next sweeps
+		int sequenceNumber = 0;
+		long end = System.currentTimeMillis() + 3000;
+		while ( this.relay.getMemberCount() > 1 && System.currentTimeMillis() < end )
+		{
+			talker.send( rtpPacket( sequenceNumber, sequenceNumber * RelayNode.FRAME_SIZE, 1, new byte[4] ) );
+			sequenceNumber++;
+			Thread.sleep( 50 );
+		}
+		assertEquals( 1, this.relay.getMemberCount() );
+
+		while ( listener.receive( 10 ) != null )
+		{
+			// Packets forwarded before the timeout
+		}
+		talker.send( rtpPacket( sequenceNumber, sequenceNumber * RelayNode.FRAME_SIZE, 1, new byte[4] ) );
+		assertNull( listener.receive( SILENCE_MILLIS ) );
+	}
+
+	/**
+	 * Two members talk at once to a member that asked for a mixed stream. It has to get one stream with continuous
+	 * sequence numbers and timestamps, made of the first passed through packet and the mixed frames.
+	 */
+	@Test
+	public void testConcurrentTalkersAreMixed() throws Exception
+	{
+		Assume.assumeTrue( "JNI libraries not built", isCodecAvailable() );
+
+		Client[] talkers = { this.join( 1, false ), this.join( 1, false ) };
+		Client listener = this.join( 1, true );
+		this.awaitMembers( 3 );
+
+		final int frames = 100;
+		OpusEncoder[] encoders = new OpusEncoder[talkers.length];
+		for ( int talker = 0; talker < talkers.length; talker++ )
+		{
+			encoders[talker] = new OpusEncoder( null, RelayNode.SAMPLING_RATE, 1, RelayNode.FRAME_SIZE );
+		}
+		ShortBuffer pcm = ByteBuffer.allocateDirect( RelayNode.FRAME_SIZE * ( Short.SIZE / Byte.SIZE ) ).order( ByteOrder.nativeOrder() ).asShortBuffer();
+		ByteBuffer encoded = ByteBuffer.allocateDirect( OpusEncoder.MAX_PACKET_SIZE );
+		HashSet<ByteBuffer> sentPayloads = new HashSet<ByteBuffer>();
+		long nextFrame = System.nanoTime();
+		try
+		{
+			for ( int frame = 0; frame < frames; frame++ )
+			{
+				for ( int talker = 0; talker < talkers.length; talker++ )
+				{
+					pcm.clear();
+					for ( int i = 0; i < RelayNode.FRAME_SIZE; i++ )
+					{
+						int sample = frame * RelayNode.FRAME_SIZE + i;
+						pcm.put( ( short ) ( 8000 * Math.sin( 2 * Math.PI * ( 440 + 220 * talker ) * sample / RelayNode.SAMPLING_RATE ) ) );
+					}
+					pcm.flip();
+					encoded.clear();
+					encoders[talker].encode( pcm, encoded );
+					encoded.flip();
+					byte[] payload = new byte[encoded.remaining()];
+					encoded.get( payload );
+					sentPayloads.add( ByteBuffer.wrap( payload ) );
+					talkers[talker].send( rtpPacket( frame, frame * RelayNode.FRAME_SIZE, talker + 1, payload ) );
+				}
+				nextFrame += FRAME_MILLIS * 1000000L;
+				LockSupport.parkNanos( nextFrame - System.nanoTime() );
+			}
+		}
+		finally
+		{
+			for ( int talker = 0; talker < talkers.length; talker++ )
+			{
+				encoders[talker].close();
+			}
+		}
+
+		List<ByteBuffer> received = new ArrayList<ByteBuffer>();
+		byte[] packet;
+		while ( ( packet = listener.receive( SILENCE_MILLIS + ( int ) GroupMixer.TALKER_TIMEOUT ) ) != null )
+		{
+			received.add( ByteBuffer.wrap( packet ) );
+		}
+		assertTrue( "Only " + received.size() + " packets of " + frames + " frames", received.size() >= frames / 2 );
+
+		int mixedPackets = 0;
+		ByteBuffer first = received.get( 0 );
+		for ( int i = 0; i < received.size(); i++ )
+		{
+			ByteBuffer current = received.get( i );
+			int headerLength = RtpPacket.getHeaderLength( current );
+			assertTrue( headerLength > 0 );
+			assertEquals( RtpPacket.getSsrc( first ), RtpPacket.getSsrc( current ) );
+			if ( i > 0 )
+			{
+				ByteBuffer previous = received.get( i - 1 );
+				assertEquals( "Sequence number of packet " + i, ( RtpPacket.getSequenceNumber( previous ) + 1 ) & 0xFFFF, RtpPacket.getSequenceNumber( current ) );
+				assertEquals( "Timestamp of packet " + i, RtpPacket.getTimestamp( previous ) + RelayNode.FRAME_SIZE, RtpPacket.getTimestamp( current ) );
+			}
+			current.position( headerLength );
+			if ( !sentPayloads.contains( current.slice() ) )
+			{
+				mixedPackets++;
+			}
+			current.position( 0 );
+		}
+		assertTrue( "No mixed frame in " + received.size() + " packets", mixedPackets > 0 );
+	}
+
+	private static boolean isCodecAvailable()
+	{
+		try
+		{
+			new OpusEncoder( null, RelayNode.SAMPLING_RATE, 1, RelayNode.FRAME_SIZE ).close();
+			return true;
+		}
+		catch ( LinkageError e )
+		{
+			return false;
+		}
+		catch ( Exception e )
+		{
+			return false;
+		}
+	}
+
+	private static byte[] rtpPacket( int sequenceNumber, int timestamp, int ssrc, byte[] payload )
+	{
+		ByteBuffer packet = ByteBuffer.allocate( RtpPacket.HEADER_SIZE + payload.length );
+		RtpPacket.writeHeader( packet, sequenceNumber == 0, sequenceNumber & 0xFFFF, timestamp, ssrc );
+		packet.put( payload );
+		return packet.array();
+	}
+
+	private Client join( int group, boolean isMixing ) throws IOException
+	{
+		Client client = new Client( this.relayAddress );
+		this.clients.add( client );
+		client.sendControl( RelayProtocol.JOIN, group, isMixing );
+		return client;
+	}
+
+	/**
+	 * Waits for the relay thread to handle the control datagrams sent so far.
+	 */
+	private void awaitMembers( int members ) throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + 2000;
+		while ( this.relay.getMemberCount() != members && System.currentTimeMillis() < end )
+		{
+			Thread.sleep( 5 );
+		}
+		assertEquals( members, this.relay.getMemberCount() );
+	}
+
+	/**
+	 * A walkie talkie with a socket of its own, connected to the relay.
+	 */
+	private static class Client
+	{
+		final DatagramSocket	socket;
+		private final byte[]	buffer	= new byte[RtpPacket.MAX_SIZE];
+
+		Client( InetSocketAddress relay ) throws IOException
+		{
+			this.socket = new DatagramSocket( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ) );
+			this.socket.connect( relay );
+		}
+
+		void sendControl( int type, int group, boolean isMixing ) throws IOException
+		{
+			ByteBuffer control = ByteBuffer.allocate( RelayProtocol.SIZE );
+			RelayProtocol.write( control, type, group, isMixing );
+			this.send( control.array() );
+		}
+
+		void send( byte[] datagram ) throws IOException
+		{
+			this.socket.send( new DatagramPacket( datagram, datagram.length ) );
+		}
+
+		/**
+		 * @return The next datagram, or null if none arrived within the timeout
+		 */
+		byte[] receive( int timeoutMillis ) throws IOException
+		{
+			DatagramPacket packet = new DatagramPacket( this.buffer, this.buffer.length );
+			this.socket.setSoTimeout( timeoutMillis );
+			try
+			{
+				this.socket.receive( packet );
+			}
+			catch ( SocketTimeoutException e )
+			{
+				return null;
+			}
+			return Arrays.copyOf( packet.getData(), packet.getLength() );
+		}
+	}
+}
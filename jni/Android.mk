@@ -22,4 +22,14 @@ LOCAL_LDLIBS := -L$(SYSROOT)/usr/lib -llog
 LOCAL_STATIC_LIBRARIES := opus
 include $(BUILD_SHARED_LIBRARY)
 
+include $(CLEAR_VARS)
+
+LOCAL_MODULE    := OpusRepacketizer
+
+LOCAL_SRC_FILES := de_stuttgart_hdm_opuswalkietalkie_OpusRepacketizer.c
+
+LOCAL_LDLIBS := -L$(SYSROOT)/usr/lib -llog 
+LOCAL_STATIC_LIBRARIES := opus
+include $(BUILD_SHARED_LIBRARY)
+
 $(call import-module,opus) 
\ No newline at end of file
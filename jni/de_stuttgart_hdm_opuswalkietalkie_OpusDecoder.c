@@ -22,98 +22,349 @@
 
 #include <de_stuttgart_hdm_opuswalkietalkie_OpusDecoder.h>
 #include <string.h>
+#include <stdlib.h>
+#include <stdint.h>
 #include <android/log.h>
 #include <opus/opus.h>
+#include <opus/opus_multistream.h>
 #include <stdio.h>
 
-//Fields
-char logMsg[255];
-OpusDecoder *dec;
+/*
+ * Per-frame debug messages cost more than the codec itself, so LOGD is compiled out of release builds,
+ * which ndk-build compiles with -DNDEBUG. Errors are always logged.
+ */
+#ifdef NDEBUG
+#define LOGD(...)
+#else
+#define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, "Native Code:", __VA_ARGS__)
+#endif
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, "Native Code:", __VA_ARGS__)
 
 //Config
-opus_int32 SAMPLING_RATE;
-int CHANNELS;
-int APPLICATION_TYPE = OPUS_APPLICATION_VOIP;
-int FRAME_SIZE;
+#define MAX_PAYLOAD_BYTES 4000
+#define MAX_FRAME_SIZE 5760		// 120ms at 48kHz, the longest frame an opus packet can carry
 //--
 
+/*
+ * Native state of one Java OpusDecoder instance.
+ * The Java object keeps the pointer to this struct as a long handle, so every decoder owns its own state.
+ * The scratch buffers are allocated once in nativeInitDecoder, so decoding a packet never calls malloc.
+ * A multistream decoder decodes all streams of a packet into one interleaved frame, then msDec is set instead of dec.
+ */
+typedef struct
+{
+	OpusDecoder *dec;
+	OpusMSDecoder *msDec;
+	opus_int32 samplingRate;
+	int channels;
+	int frameSize;
+	opus_int16 *pcm;			// Scratch for one decoded packet: MAX_FRAME_SIZE * channels samples
+	unsigned char *packet;		// Scratch for one encoded packet: maxPacketSize bytes
+	opus_int32 maxPacketSize;	// MAX_PAYLOAD_BYTES per stream
+} DecoderState;
+
+/*
+ * Frees a decoder state and everything it owns.
+ */
+static void releaseState(DecoderState *state)
+{
+	if (state != NULL)
+	{
+		free(state->packet);
+		free(state->pcm);
+		free(state->msDec);
+		free(state->dec);
+		free(state);
+	}
+}
+
+/*
+ * Allocates a state with its scratch buffers, without the decoder itself.
+ */
+static DecoderState *allocateState(jint samplingRate, jint numberOfChannels, jint frameSize, int streams)
+{
+	DecoderState *state = (DecoderState*)calloc(1, sizeof(DecoderState));
+	if (state == NULL)
+	{
+		return NULL;
+	}
+
+	state->frameSize = frameSize;
+	state->samplingRate = samplingRate;
+	state->channels = numberOfChannels;
+	state->maxPacketSize = MAX_PAYLOAD_BYTES * streams;
+	state->pcm = (opus_int16*)malloc(MAX_FRAME_SIZE * numberOfChannels * sizeof(opus_int16));
+	state->packet = (unsigned char*)malloc(state->maxPacketSize);
+	if (state->pcm == NULL || state->packet == NULL)
+	{
+		releaseState(state);
+		return NULL;
+	}
+	return state;
+}
+
+/*
+ * Decodes one packet, or conceals a lost one if data is NULL, with whichever decoder the state holds.
+ */
+static int decodePacket(DecoderState *state, const unsigned char *data, opus_int32 length, opus_int16 *pcm, int maxFrameSize, int decodeFec)
+{
+	if (state->msDec != NULL)
+	{
+		return opus_multistream_decode(state->msDec, data, length, pcm, maxFrameSize, decodeFec);
+	}
+	return opus_decode(state->dec, data, length, pcm, maxFrameSize, decodeFec);
+}
+
 /*
  * Class:     de_stuttgart_hdm_opuswalkietalkie_OpusDecoder
  * Method:    nativeInitDecoder
- * Signature: (I;I;I)Z
+ * Signature: (III)J
  */
-JNIEXPORT jboolean JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusDecoder_nativeInitDecoder (JNIEnv *env, jobject obj, jint samplingRate, jint numberOfChannels, jint frameSize )
+JNIEXPORT jlong JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusDecoder_nativeInitDecoder (JNIEnv *env, jobject obj, jint samplingRate, jint numberOfChannels, jint frameSize )
 {
-	FRAME_SIZE = frameSize;
-	SAMPLING_RATE = samplingRate;
-	CHANNELS = numberOfChannels;
+	int error;
+
+	DecoderState *state = allocateState(samplingRate, numberOfChannels, frameSize, 1);
+	if (state == NULL)
+	{
+		return 0;
+	}
+
+	state->dec = malloc(opus_decoder_get_size(state->channels));
+	if (state->dec == NULL)
+	{
+		error = OPUS_ALLOC_FAIL;
+	}
+	else
+	{
+		error = opus_decoder_init(state->dec, state->samplingRate, state->channels);
+	}
+
+	LOGD("Initialized Decoder with ErrorCode: %d", error);
+
+	if (error != OPUS_OK)
+	{
+		releaseState(state);
+		return 0;
+	}
+
+	return (jlong)(intptr_t)state;
+}
 
-	int size;
+/*
+ * Class:     de_stuttgart_hdm_opuswalkietalkie_OpusDecoder
+ * Method:    nativeInitMultistreamDecoder
+ * Signature: (IIII[BI)J
+ *
+ * Creates a multistream decoder, mapping holds one byte per channel as described for opus_multistream_decoder_init.
+ */
+JNIEXPORT jlong JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusDecoder_nativeInitMultistreamDecoder (JNIEnv *env, jobject obj, jint samplingRate, jint numberOfChannels, jint streams, jint coupledStreams, jbyteArray mapping, jint frameSize)
+{
+	unsigned char channelMapping[255];
+	opus_int32 size;
 	int error;
 
-	size = opus_decoder_get_size(CHANNELS);
-	dec = malloc(size);
-	error = opus_decoder_init(dec, SAMPLING_RATE, CHANNELS);
+	if (numberOfChannels < 1 || numberOfChannels > 255 || (*env)->GetArrayLength(env, mapping) < numberOfChannels)
+	{
+		return 0;
+	}
+	size = opus_multistream_decoder_get_size(streams, coupledStreams);
+	if (size <= 0)
+	{
+		return 0;
+	}
+
+	DecoderState *state = allocateState(samplingRate, numberOfChannels, frameSize, streams);
+	if (state == NULL)
+	{
+		return 0;
+	}
+
+	(*env)->GetByteArrayRegion(env, mapping, 0, numberOfChannels, (jbyte*)channelMapping);
+	state->msDec = malloc(size);
+	if (state->msDec == NULL)
+	{
+		error = OPUS_ALLOC_FAIL;
+	}
+	else
+	{
+		error = opus_multistream_decoder_init(state->msDec, state->samplingRate, state->channels, streams, coupledStreams, channelMapping);
+	}
+
+	LOGD("Initialized Multistream Decoder of %d streams with ErrorCode: %d", streams, error);
 
-	sprintf(logMsg, "Initialized Decoder with ErrorCode: %d", error);
-	__android_log_write(ANDROID_LOG_DEBUG, "Native Code:", logMsg);
+	if (error != OPUS_OK)
+	{
+		releaseState(state);
+		return 0;
+	}
 
-	return error;
+	return (jlong)(intptr_t)state;
 }
 
 /*
  * Class:     de_stuttgart_hdm_opuswalkietalkie_OpusDecoder
  * Method:    nativeDecodeBytes
- * Signature: ([B;[S)I
+ * Signature: (J[BI[S)I
  */
-JNIEXPORT jint JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusDecoder_nativeDecodeBytes (JNIEnv *env, jobject obj, jbyteArray in, jshortArray out)
+JNIEXPORT jint JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusDecoder_nativeDecodeBytes (JNIEnv *env, jobject obj, jlong handle, jbyteArray in, jint length, jshortArray out)
 {
-	__android_log_write(ANDROID_LOG_DEBUG, "Native Code:", "Opus decoding");
+	DecoderState *state = (DecoderState*)(intptr_t)handle;
 
-	sprintf(logMsg, "FrameSize: %d - SamplingRate: %d - Channels: %d", FRAME_SIZE, SAMPLING_RATE, CHANNELS);
-	__android_log_write(ANDROID_LOG_DEBUG, "Native Code:", logMsg);
+	LOGD("Opus decoding");
 
-	jint inputArraySize = (*env)->GetArrayLength(env, in);
+	LOGD("FrameSize: %d - SamplingRate: %d - Channels: %d", state->frameSize, state->samplingRate, state->channels);
+
+	jint inputArraySize = length;
 	jint outputArraySize = (*env)->GetArrayLength(env, out);
 
-	sprintf(logMsg, "Length of Input Array: %d", inputArraySize);
-	__android_log_write(ANDROID_LOG_DEBUG, "Native Code:", logMsg);
-	sprintf(logMsg, "Length of Output Array: %d", outputArraySize);
-		__android_log_write(ANDROID_LOG_DEBUG, "Native Code:", logMsg);
+	LOGD("Length of Input Array: %d", inputArraySize);
+	LOGD("Length of Output Array: %d", outputArraySize);
 
-	jbyte* encodedData = (*env)->GetByteArrayElements(env, in, 0);
-	opus_int16 *data = (opus_int16*)calloc(outputArraySize,sizeof(opus_int16));
-	int decodedDataArraySize = opus_decode(dec, encodedData, inputArraySize, data, FRAME_SIZE, 0);
+	if (inputArraySize > state->maxPacketSize)
+	{
+		return OPUS_BAD_ARG;
+	}
+
+	(*env)->GetByteArrayRegion(env, in, 0, inputArraySize, (jbyte*)state->packet);
+	int maxFrameSize = outputArraySize / state->channels;
+	if (maxFrameSize > MAX_FRAME_SIZE)
+	{
+		maxFrameSize = MAX_FRAME_SIZE;
+	}
+	int decodedDataArraySize = decodePacket(state, state->packet, inputArraySize, state->pcm, maxFrameSize, 0);
 
-	sprintf(logMsg, "Length of Decoded Data: %d", decodedDataArraySize);
-	__android_log_write(ANDROID_LOG_DEBUG, "Native Code:", logMsg);
+	LOGD("Length of Decoded Data: %d", decodedDataArraySize);
 
 	if (decodedDataArraySize >=0)
 	{
-		if (decodedDataArraySize <= outputArraySize)
+		(*env)->SetShortArrayRegion(env,out,0,decodedDataArraySize * state->channels,state->pcm);
+	}
+
+	return decodedDataArraySize;
+}
+
+/*
+ * Class:     de_stuttgart_hdm_opuswalkietalkie_OpusDecoder
+ * Method:    nativeDecodeDirect
+ * Signature: (JLjava/nio/ByteBuffer;IILjava/nio/ShortBuffer;IIZ)I
+ *
+ * Decodes straight from and into direct buffers. No copies, no allocations and no logging,
+ * the Java side has already checked offsets and capacities.
+ *
+ * A null input buffer runs the packet loss concealment for maxFrameSize samples. With decodeFec set,
+ * the in-band FEC data of the given packet is decoded instead, which restores the frame before that packet.
+ * In both cases maxFrameSize has to be the exact duration of the missing frame.
+ */
+JNIEXPORT jint JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusDecoder_nativeDecodeDirect (JNIEnv *env, jobject obj, jlong handle, jobject in, jint inOffset, jint inLength, jobject out, jint outOffset, jint maxFrameSize, jboolean decodeFec)
+{
+	DecoderState *state = (DecoderState*)(intptr_t)handle;
+	unsigned char *data = NULL;
+
+	if (in != NULL)
+	{
+		data = (unsigned char*)(*env)->GetDirectBufferAddress(env, in);
+		if (data == NULL)
+		{
+			return OPUS_BAD_ARG;
+		}
+		data += inOffset;
+	}
+	else
+	{
+		inLength = 0;
+	}
+
+	opus_int16 *audioSignal = (opus_int16*)(*env)->GetDirectBufferAddress(env, out);
+	if (audioSignal == NULL)
+	{
+		return OPUS_BAD_ARG;
+	}
+
+	return decodePacket(state, data, inLength, audioSignal + outOffset, maxFrameSize, decodeFec ? 1 : 0);
+}
+
+/*
+ * Class:     de_stuttgart_hdm_opuswalkietalkie_OpusDecoder
+ * Method:    nativeDecodeFrames
+ * Signature: (J[B[II[S)I
+ *
+ * Decodes packetCount packets stored back-to-back in in, with their lengths given in lengths, in one call.
+ * The decoded signal is appended to out. Returns the total number of samples per channel or an opus error code.
+ * The arrays are pinned with GetPrimitiveArrayCritical, so nothing is copied and no other JNI function
+ * may be called until they are released. Returns OPUS_ALLOC_FAIL if an array can not be pinned.
+ */
+JNIEXPORT jint JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusDecoder_nativeDecodeFrames (JNIEnv *env, jobject obj, jlong handle, jbyteArray in, jintArray lengths, jint packetCount, jshortArray out)
+{
+	DecoderState *state = (DecoderState*)(intptr_t)handle;
+	jint inputArraySize = (*env)->GetArrayLength(env, in);
+	jint outputArraySize = (*env)->GetArrayLength(env, out);
+	jint inputOffset = 0;
+	jint result = 0;
+	int packet;
+
+	if ((*env)->GetArrayLength(env, lengths) < packetCount)
+	{
+		return OPUS_BAD_ARG;
+	}
+
+	unsigned char *data = (unsigned char*)(*env)->GetPrimitiveArrayCritical(env, in, 0);
+	if (data == NULL)
+	{
+		return OPUS_ALLOC_FAIL;
+	}
+	jint *packetLengths = (jint*)(*env)->GetPrimitiveArrayCritical(env, lengths, 0);
+	if (packetLengths == NULL)
+	{
+		(*env)->ReleasePrimitiveArrayCritical(env, in, data, JNI_ABORT);
+		return OPUS_ALLOC_FAIL;
+	}
+	opus_int16 *audioSignal = (opus_int16*)(*env)->GetPrimitiveArrayCritical(env, out, 0);
+	if (audioSignal == NULL)
+	{
+		(*env)->ReleasePrimitiveArrayCritical(env, lengths, packetLengths, JNI_ABORT);
+		(*env)->ReleasePrimitiveArrayCritical(env, in, data, JNI_ABORT);
+		return OPUS_ALLOC_FAIL;
+	}
+
+	for (packet = 0; packet < packetCount; packet++)
+	{
+		if (packetLengths[packet] < 0 || inputOffset + packetLengths[packet] > inputArraySize)
 		{
-			(*env)->SetShortArrayRegion(env,out,0,decodedDataArraySize,data);
+			result = OPUS_BAD_ARG;
+			break;
 		}
-		else
+
+		int maxFrameSize = (outputArraySize - result * state->channels) / state->channels;
+		if (maxFrameSize > MAX_FRAME_SIZE)
 		{
-			sprintf(logMsg, "Output array of size: %d to small for storing encoded data.", outputArraySize);
-			__android_log_write(ANDROID_LOG_DEBUG, "Native Code:", logMsg);
+			maxFrameSize = MAX_FRAME_SIZE;
+		}
 
-			return -1;
+		int decodedDataArraySize = decodePacket(state, data + inputOffset, packetLengths[packet], audioSignal + result * state->channels, maxFrameSize, 0);
+		if (decodedDataArraySize < 0)
+		{
+			result = decodedDataArraySize;
+			break;
 		}
+
+		inputOffset += packetLengths[packet];
+		result += decodedDataArraySize;
 	}
 
-	(*env)->ReleaseByteArrayElements(env,in,encodedData,JNI_ABORT);
+	(*env)->ReleasePrimitiveArrayCritical(env, out, audioSignal, 0);
+	(*env)->ReleasePrimitiveArrayCritical(env, lengths, packetLengths, JNI_ABORT);
+	(*env)->ReleasePrimitiveArrayCritical(env, in, data, JNI_ABORT);
 
-	return decodedDataArraySize;
+	return result;
 }
 
 /*
  * Class:     de_stuttgart_hdm_opuswalkietalkie_OpusDecoder
  * Method:    nativeReleaseDecoder
- * Signature: ()Z
+ * Signature: (J)Z
  */
-JNIEXPORT jboolean JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusDecoder_nativeReleaseDecoder (JNIEnv *env, jobject obj)
+JNIEXPORT jboolean JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusDecoder_nativeReleaseDecoder (JNIEnv *env, jobject obj, jlong handle)
 {
 	/*
 	 * 	opus_encoder_destroy(enc);
@@ -124,6 +375,7 @@ JNIEXPORT jboolean JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusDecoder_na
 	 * then no action is required aside from potentially freeing the memory that was manually allocated for it
 	 * (calling free(enc) for the example above)
 	 */
+	releaseState((DecoderState*)(intptr_t)handle);
 
 	return 1;
 }
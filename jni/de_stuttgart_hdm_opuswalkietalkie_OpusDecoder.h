@@ -28,14 +28,23 @@
 extern "C" {
 #endif
 
-JNIEXPORT jboolean JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusDecoder_nativeInitDecoder
+JNIEXPORT jlong JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusDecoder_nativeInitDecoder
   (JNIEnv *, jobject, jint, jint, jint);
 
+JNIEXPORT jlong JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusDecoder_nativeInitMultistreamDecoder
+  (JNIEnv *, jobject, jint, jint, jint, jint, jbyteArray, jint);
+
 JNIEXPORT jint JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusDecoder_nativeDecodeBytes
-  (JNIEnv *, jobject, jbyteArray, jshortArray);
+  (JNIEnv *, jobject, jlong, jbyteArray, jint, jshortArray);
+
+JNIEXPORT jint JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusDecoder_nativeDecodeDirect
+  (JNIEnv *, jobject, jlong, jobject, jint, jint, jobject, jint, jint, jboolean);
+
+JNIEXPORT jint JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusDecoder_nativeDecodeFrames
+  (JNIEnv *, jobject, jlong, jbyteArray, jintArray, jint, jshortArray);
 
 JNIEXPORT jboolean JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusDecoder_nativeReleaseDecoder
-  (JNIEnv *, jobject);
+  (JNIEnv *, jobject, jlong);
 
 #ifdef __cplusplus
 }
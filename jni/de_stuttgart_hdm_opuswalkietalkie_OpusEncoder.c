@@ -22,97 +22,434 @@
 
 #include <de_stuttgart_hdm_opuswalkietalkie_OpusEncoder.h>
 #include <string.h>
+#include <stdlib.h>
+#include <stdint.h>
 #include <android/log.h>
 #include <opus/opus.h>
+#include <opus/opus_multistream.h>
 #include <stdio.h>
 
-char logMsg[255];
-OpusEncoder *enc;
+/*
+ * Per-frame debug messages cost more than the codec itself, so LOGD is compiled out of release builds,
+ * which ndk-build compiles with -DNDEBUG. Errors are always logged.
+ */
+#ifdef NDEBUG
+#define LOGD(...)
+#else
+#define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, "Native Code:", __VA_ARGS__)
+#endif
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, "Native Code:", __VA_ARGS__)
 
 //Config
-opus_int32 SAMPLING_RATE;
-int CHANNELS;
 int APPLICATION_TYPE = OPUS_APPLICATION_VOIP;
-int FRAME_SIZE;
-const int MAX_PAYLOAD_BYTES = 4000;
+#define MAX_PAYLOAD_BYTES 4000
 //--
 
+/*
+ * Native state of one Java OpusEncoder instance.
+ * The Java object keeps the pointer to this struct as a long handle, so every encoder owns its own state.
+ * The scratch buffers are allocated once in nativeInitEncoder, so encoding a frame never calls malloc.
+ * A multistream encoder codes all channels of a frame into one packet of several streams, then msEnc is set instead of enc.
+ */
+typedef struct
+{
+	OpusEncoder *enc;
+	OpusMSEncoder *msEnc;
+	opus_int32 samplingRate;
+	int channels;
+	int frameSize;
+	opus_int16 *pcm;			// Scratch for one input frame: frameSize * channels samples
+	unsigned char *packet;		// Scratch for one encoded packet: maxPacketSize bytes
+	opus_int32 maxPacketSize;	// MAX_PAYLOAD_BYTES per stream
+} EncoderState;
+
+/*
+ * Frees an encoder state and everything it owns.
+ */
+static void releaseState(EncoderState *state)
+{
+	if (state != NULL)
+	{
+		free(state->packet);
+		free(state->pcm);
+		free(state->msEnc);
+		free(state->enc);
+		free(state);
+	}
+}
+
+/*
+ * Allocates a state with its scratch buffers, without the encoder itself.
+ */
+static EncoderState *allocateState(jint samplingRate, jint numberOfChannels, jint frameSize, int streams)
+{
+	EncoderState *state = (EncoderState*)calloc(1, sizeof(EncoderState));
+	if (state == NULL)
+	{
+		return NULL;
+	}
+
+	state->samplingRate = samplingRate;
+	state->channels = numberOfChannels;
+	state->frameSize = frameSize;
+	state->maxPacketSize = MAX_PAYLOAD_BYTES * streams;
+	state->pcm = (opus_int16*)malloc(frameSize * numberOfChannels * sizeof(opus_int16));
+	state->packet = (unsigned char*)malloc(state->maxPacketSize);
+	if (state->pcm == NULL || state->packet == NULL)
+	{
+		releaseState(state);
+		return NULL;
+	}
+	return state;
+}
+
+/*
+ * Encodes one frame with whichever encoder the state holds.
+ */
+static int encodeFrame(EncoderState *state, const opus_int16 *pcm, unsigned char *data, opus_int32 maxDataBytes)
+{
+	if (state->msEnc != NULL)
+	{
+		return opus_multistream_encode(state->msEnc, pcm, state->frameSize, data, maxDataBytes);
+	}
+	return opus_encode(state->enc, pcm, state->frameSize, data, maxDataBytes);
+}
+
 /*
  * Class:     de_stuttgart_hdm_opuswalkietalkie_OpusEncoder
  * Method:    nativeInitEncoder
- * Signature: (I;I;I)Z
+ * Signature: (III)J
  */
-JNIEXPORT jboolean JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusEncoder_nativeInitEncoder (JNIEnv *env, jobject obj, jint samplingRate, jint numberOfChannels, jint frameSize)
+JNIEXPORT jlong JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusEncoder_nativeInitEncoder (JNIEnv *env, jobject obj, jint samplingRate, jint numberOfChannels, jint frameSize)
 {
-	FRAME_SIZE = frameSize;
-	SAMPLING_RATE = samplingRate;
-	CHANNELS = numberOfChannels;
+	int error;
+
+	EncoderState *state = allocateState(samplingRate, numberOfChannels, frameSize, 1);
+	if (state == NULL)
+	{
+		return 0;
+	}
+
+	state->enc = malloc(opus_encoder_get_size(state->channels));
+	if (state->enc == NULL)
+	{
+		error = OPUS_ALLOC_FAIL;
+	}
+	else
+	{
+		error = opus_encoder_init(state->enc, state->samplingRate, state->channels, APPLICATION_TYPE);
+	}
+
+	LOGD("Initialized Encoder with ErrorCode: %d", error);
+
+	if (error != OPUS_OK)
+	{
+		releaseState(state);
+		return 0;
+	}
+
+	return (jlong)(intptr_t)state;
+}
 
+/*
+ * Class:     de_stuttgart_hdm_opuswalkietalkie_OpusEncoder
+ * Method:    nativeInitMultistreamEncoder
+ * Signature: (IIII[BI)J
+ *
+ * Creates a multistream encoder, mapping holds one byte per channel as described for opus_multistream_encoder_init.
+ */
+JNIEXPORT jlong JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusEncoder_nativeInitMultistreamEncoder (JNIEnv *env, jobject obj, jint samplingRate, jint numberOfChannels, jint streams, jint coupledStreams, jbyteArray mapping, jint frameSize)
+{
+	unsigned char channelMapping[255];
+	opus_int32 size;
 	int error;
-	int size;
 
-	size = opus_encoder_get_size(1);
-	enc = malloc(size);
-	error = opus_encoder_init(enc, SAMPLING_RATE, CHANNELS, APPLICATION_TYPE);
+	if (numberOfChannels < 1 || numberOfChannels > 255 || (*env)->GetArrayLength(env, mapping) < numberOfChannels)
+	{
+		return 0;
+	}
+	size = opus_multistream_encoder_get_size(streams, coupledStreams);
+	if (size <= 0)
+	{
+		return 0;
+	}
 
-	sprintf(logMsg, "Initialized Encoder with ErrorCode: %d", error);
-	__android_log_write(ANDROID_LOG_DEBUG, "Native Code:", logMsg);
+	EncoderState *state = allocateState(samplingRate, numberOfChannels, frameSize, streams);
+	if (state == NULL)
+	{
+		return 0;
+	}
 
-	return error;
+	(*env)->GetByteArrayRegion(env, mapping, 0, numberOfChannels, (jbyte*)channelMapping);
+	state->msEnc = malloc(size);
+	if (state->msEnc == NULL)
+	{
+		error = OPUS_ALLOC_FAIL;
+	}
+	else
+	{
+		error = opus_multistream_encoder_init(state->msEnc, state->samplingRate, state->channels, streams, coupledStreams, channelMapping, APPLICATION_TYPE);
+	}
+
+	LOGD("Initialized Multistream Encoder of %d streams with ErrorCode: %d", streams, error);
+
+	if (error != OPUS_OK)
+	{
+		releaseState(state);
+		return 0;
+	}
+
+	return (jlong)(intptr_t)state;
 }
 
 /*
  * Class:     de_stuttgart_hdm_opuswalkietalkie_OpusEncoder
  * Method:    nativeEncodeBytes
- * Signature: ([S;[B)I
+ * Signature: (J[S[B)I
  */
-JNIEXPORT jint JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusEncoder_nativeEncodeBytes (JNIEnv *env, jobject obj, jshortArray in, jbyteArray out)
+JNIEXPORT jint JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusEncoder_nativeEncodeBytes (JNIEnv *env, jobject obj, jlong handle, jshortArray in, jbyteArray out)
 {
-	__android_log_write(ANDROID_LOG_DEBUG, "Native Code:", "Opus Encoding");
+	EncoderState *state = (EncoderState*)(intptr_t)handle;
+
+	LOGD("Opus Encoding");
 
-	sprintf(logMsg, "FrameSize: %d - SamplingRate: %d - Channels: %d", FRAME_SIZE, SAMPLING_RATE, CHANNELS);
-	__android_log_write(ANDROID_LOG_DEBUG, "Native Code:", logMsg);
+	LOGD("FrameSize: %d - SamplingRate: %d - Channels: %d", state->frameSize, state->samplingRate, state->channels);
 
 	jint inputArraySize = (*env)->GetArrayLength(env, in);
 	jint outputArraySize = (*env)->GetArrayLength(env, out);
+	jint frameSamples = state->frameSize * state->channels;
 
-	jshort* audioSignal = (*env)->GetShortArrayElements(env, in, 0);
+	LOGD("Length of Input Data: %d", inputArraySize);
 
-	sprintf(logMsg, "Length of Input Data: %d", inputArraySize);
-	__android_log_write(ANDROID_LOG_DEBUG, "Native Code:", logMsg);
+	if (inputArraySize < frameSamples)
+	{
+		LOGE("Input array of size: %d to small for one frame of %d samples.", inputArraySize, frameSamples);
+
+		return OPUS_BAD_ARG;
+	}
 
-	unsigned char *data = (unsigned char*)calloc(MAX_PAYLOAD_BYTES,sizeof(unsigned char));
-	int dataArraySize = opus_encode(enc, audioSignal, FRAME_SIZE, data, MAX_PAYLOAD_BYTES);
+	(*env)->GetShortArrayRegion(env, in, 0, frameSamples, state->pcm);
+	int dataArraySize = encodeFrame(state, state->pcm, state->packet, state->maxPacketSize);
 
-	sprintf(logMsg, "Length of Encoded Data: %d", dataArraySize);
-	__android_log_write(ANDROID_LOG_DEBUG, "Native Code:", logMsg);
+	LOGD("Length of Encoded Data: %d", dataArraySize);
 
 	if (dataArraySize >=0)
 	{
 		if (dataArraySize <= outputArraySize)
 		{
-			(*env)->SetByteArrayRegion(env,out,0,dataArraySize,data);
+			(*env)->SetByteArrayRegion(env,out,0,dataArraySize,(const jbyte*)state->packet);
 		}
 		else
 		{
-			sprintf(logMsg, "Output array of size: %d to small for storing encoded data.", outputArraySize);
-			__android_log_write(ANDROID_LOG_DEBUG, "Native Code:", logMsg);
+			LOGE("Output array of size: %d to small for storing encoded data.", outputArraySize);
 
 			return -1;
 		}
 	}
 
-	(*env)->ReleaseShortArrayElements(env,in,audioSignal,JNI_ABORT);
-
 	return dataArraySize;
 }
 
+/*
+ * Class:     de_stuttgart_hdm_opuswalkietalkie_OpusEncoder
+ * Method:    nativeEncodeDirect
+ * Signature: (JLjava/nio/ShortBuffer;ILjava/nio/ByteBuffer;II)I
+ *
+ * Encodes straight from and into direct buffers. No copies, no allocations and no logging,
+ * the Java side has already checked offsets and capacities.
+ */
+JNIEXPORT jint JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusEncoder_nativeEncodeDirect (JNIEnv *env, jobject obj, jlong handle, jobject in, jint inOffset, jobject out, jint outOffset, jint outLength)
+{
+	EncoderState *state = (EncoderState*)(intptr_t)handle;
+
+	opus_int16 *audioSignal = (opus_int16*)(*env)->GetDirectBufferAddress(env, in);
+	unsigned char *data = (unsigned char*)(*env)->GetDirectBufferAddress(env, out);
+	if (audioSignal == NULL || data == NULL)
+	{
+		return OPUS_BAD_ARG;
+	}
+
+	return encodeFrame(state, audioSignal + inOffset, data + outOffset, outLength);
+}
+
+/*
+ * Class:     de_stuttgart_hdm_opuswalkietalkie_OpusEncoder
+ * Method:    nativeEncodeFrames
+ * Signature: (J[SI[B[I)I
+ *
+ * Encodes frameCount consecutive frames in one call. The packets are packed back-to-back into out
+ * and their lengths are stored in lengths. Returns the total number of bytes written or an opus error code.
+ * The arrays are pinned with GetPrimitiveArrayCritical, so nothing is copied and no other JNI function
+ * may be called until they are released. Returns OPUS_ALLOC_FAIL if an array can not be pinned.
+ */
+JNIEXPORT jint JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusEncoder_nativeEncodeFrames (JNIEnv *env, jobject obj, jlong handle, jshortArray in, jint frameCount, jbyteArray out, jintArray lengths)
+{
+	EncoderState *state = (EncoderState*)(intptr_t)handle;
+	jint frameSamples = state->frameSize * state->channels;
+	jint outputArraySize = (*env)->GetArrayLength(env, out);
+	jint result = 0;
+	int frame;
+
+	if ((*env)->GetArrayLength(env, in) < frameCount * frameSamples || (*env)->GetArrayLength(env, lengths) < frameCount)
+	{
+		return OPUS_BAD_ARG;
+	}
+
+	opus_int16 *audioSignal = (opus_int16*)(*env)->GetPrimitiveArrayCritical(env, in, 0);
+	if (audioSignal == NULL)
+	{
+		return OPUS_ALLOC_FAIL;
+	}
+	unsigned char *data = (unsigned char*)(*env)->GetPrimitiveArrayCritical(env, out, 0);
+	if (data == NULL)
+	{
+		(*env)->ReleasePrimitiveArrayCritical(env, in, audioSignal, JNI_ABORT);
+		return OPUS_ALLOC_FAIL;
+	}
+	jint *packetLengths = (jint*)(*env)->GetPrimitiveArrayCritical(env, lengths, 0);
+	if (packetLengths == NULL)
+	{
+		(*env)->ReleasePrimitiveArrayCritical(env, out, data, JNI_ABORT);
+		(*env)->ReleasePrimitiveArrayCritical(env, in, audioSignal, JNI_ABORT);
+		return OPUS_ALLOC_FAIL;
+	}
+
+	for (frame = 0; frame < frameCount; frame++)
+	{
+		jint capacity = outputArraySize - result;
+		if (capacity > state->maxPacketSize)
+		{
+			capacity = state->maxPacketSize;
+		}
+
+		int dataArraySize = encodeFrame(state, audioSignal + frame * frameSamples, data + result, capacity);
+		if (dataArraySize < 0)
+		{
+			result = dataArraySize;
+			break;
+		}
+
+		packetLengths[frame] = dataArraySize;
+		result += dataArraySize;
+	}
+
+	(*env)->ReleasePrimitiveArrayCritical(env, lengths, packetLengths, 0);
+	(*env)->ReleasePrimitiveArrayCritical(env, out, data, 0);
+	(*env)->ReleasePrimitiveArrayCritical(env, in, audioSignal, JNI_ABORT);
+
+	return result;
+}
+
+/*
+ * Class:     de_stuttgart_hdm_opuswalkietalkie_OpusEncoder
+ * Method:    nativeSetOption
+ * Signature: (JII)I
+ *
+ * Calls opus_encoder_ctl with one of the integer OPUS_SET_* requests. opus_encoder_ctl is variadic and can not check
+ * its argument, so only requests known to take an opus_int32 are passed on.
+ */
+JNIEXPORT jint JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusEncoder_nativeSetOption (JNIEnv *env, jobject obj, jlong handle, jint request, jint value)
+{
+	EncoderState *state = (EncoderState*)(intptr_t)handle;
+
+	switch (request)
+	{
+		case OPUS_SET_APPLICATION_REQUEST:
+		case OPUS_SET_BITRATE_REQUEST:
+		case OPUS_SET_MAX_BANDWIDTH_REQUEST:
+		case OPUS_SET_VBR_REQUEST:
+		case OPUS_SET_BANDWIDTH_REQUEST:
+		case OPUS_SET_COMPLEXITY_REQUEST:
+		case OPUS_SET_INBAND_FEC_REQUEST:
+		case OPUS_SET_PACKET_LOSS_PERC_REQUEST:
+		case OPUS_SET_DTX_REQUEST:
+		case OPUS_SET_VBR_CONSTRAINT_REQUEST:
+		case OPUS_SET_FORCE_CHANNELS_REQUEST:
+		case OPUS_SET_SIGNAL_REQUEST:
+			if (state->msEnc != NULL)
+			{
+				return opus_multistream_encoder_ctl(state->msEnc, request, (opus_int32)value);
+			}
+			return opus_encoder_ctl(state->enc, request, (opus_int32)value);
+		default:
+			return OPUS_UNIMPLEMENTED;
+	}
+}
+
+/*
+ * Class:     de_stuttgart_hdm_opuswalkietalkie_OpusEncoder
+ * Method:    nativeGetOption
+ * Signature: (JI[I)I
+ *
+ * Calls opus_encoder_ctl with one of the integer OPUS_GET_* requests and stores the value in value[0].
+ */
+JNIEXPORT jint JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusEncoder_nativeGetOption (JNIEnv *env, jobject obj, jlong handle, jint request, jintArray value)
+{
+	EncoderState *state = (EncoderState*)(intptr_t)handle;
+	opus_int32 result = 0;
+	int error;
+
+	switch (request)
+	{
+		case OPUS_GET_APPLICATION_REQUEST:
+		case OPUS_GET_BITRATE_REQUEST:
+		case OPUS_GET_MAX_BANDWIDTH_REQUEST:
+		case OPUS_GET_VBR_REQUEST:
+		case OPUS_GET_BANDWIDTH_REQUEST:
+		case OPUS_GET_COMPLEXITY_REQUEST:
+		case OPUS_GET_INBAND_FEC_REQUEST:
+		case OPUS_GET_PACKET_LOSS_PERC_REQUEST:
+		case OPUS_GET_DTX_REQUEST:
+		case OPUS_GET_VBR_CONSTRAINT_REQUEST:
+		case OPUS_GET_FORCE_CHANNELS_REQUEST:
+		case OPUS_GET_SIGNAL_REQUEST:
+		case OPUS_GET_LOOKAHEAD_REQUEST:
+			if (state->msEnc != NULL)
+			{
+				error = opus_multistream_encoder_ctl(state->msEnc, request, &result);
+			}
+			else
+			{
+				error = opus_encoder_ctl(state->enc, request, &result);
+			}
+			break;
+		default:
+			return OPUS_UNIMPLEMENTED;
+	}
+
+	if (error == OPUS_OK)
+	{
+		jint jresult = result;
+		(*env)->SetIntArrayRegion(env, value, 0, 1, &jresult);
+	}
+
+	return error;
+}
+
+/*
+ * Class:     de_stuttgart_hdm_opuswalkietalkie_OpusEncoder
+ * Method:    nativeResetEncoder
+ * Signature: (J)I
+ *
+ * Resets the encoder to the state of a freshly initialized one, keeping its configuration.
+ */
+JNIEXPORT jint JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusEncoder_nativeResetEncoder (JNIEnv *env, jobject obj, jlong handle)
+{
+	EncoderState *state = (EncoderState*)(intptr_t)handle;
+
+	if (state->msEnc != NULL)
+	{
+		return opus_multistream_encoder_ctl(state->msEnc, OPUS_RESET_STATE);
+	}
+	return opus_encoder_ctl(state->enc, OPUS_RESET_STATE);
+}
+
 /*
  * Class:     de_stuttgart_hdm_opuswalkietalkie_OpusEncoder
  * Method:    nativeReleaseEncoder
- * Signature: ()Z
+ * Signature: (J)Z
  */
-JNIEXPORT jboolean JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusEncoder_nativeReleaseEncoder (JNIEnv *env, jobject obj)
+JNIEXPORT jboolean JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusEncoder_nativeReleaseEncoder (JNIEnv *env, jobject obj, jlong handle)
 {
 	/*
 	 * 	opus_encoder_destroy(enc);
@@ -123,7 +460,7 @@ JNIEXPORT jboolean JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusEncoder_na
 	 * then no action is required aside from potentially freeing the memory that was manually allocated for it
 	 * (calling free(enc) for the example above)
 	 */
-
+	releaseState((EncoderState*)(intptr_t)handle);
 
 	return 1;
 }
@@ -28,14 +28,32 @@
 extern "C" {
 #endif
 
-JNIEXPORT jboolean JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusEncoder_nativeInitEncoder
+JNIEXPORT jlong JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusEncoder_nativeInitEncoder
   (JNIEnv *, jobject, jint, jint, jint);
 
+JNIEXPORT jlong JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusEncoder_nativeInitMultistreamEncoder
+  (JNIEnv *, jobject, jint, jint, jint, jint, jbyteArray, jint);
+
 JNIEXPORT jint JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusEncoder_nativeEncodeBytes
-  (JNIEnv *, jobject, jshortArray, jbyteArray);
+  (JNIEnv *, jobject, jlong, jshortArray, jbyteArray);
+
+JNIEXPORT jint JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusEncoder_nativeEncodeDirect
+  (JNIEnv *, jobject, jlong, jobject, jint, jobject, jint, jint);
+
+JNIEXPORT jint JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusEncoder_nativeEncodeFrames
+  (JNIEnv *, jobject, jlong, jshortArray, jint, jbyteArray, jintArray);
+
+JNIEXPORT jint JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusEncoder_nativeSetOption
+  (JNIEnv *, jobject, jlong, jint, jint);
+
+JNIEXPORT jint JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusEncoder_nativeGetOption
+  (JNIEnv *, jobject, jlong, jint, jintArray);
+
+JNIEXPORT jint JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusEncoder_nativeResetEncoder
+  (JNIEnv *, jobject, jlong);
 
 JNIEXPORT jboolean JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusEncoder_nativeReleaseEncoder
-  (JNIEnv *, jobject);
+  (JNIEnv *, jobject, jlong);
 
 #ifdef __cplusplus
 }
@@ -0,0 +1,165 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+#include <de_stuttgart_hdm_opuswalkietalkie_OpusRepacketizer.h>
+#include <stdlib.h>
+#include <stdint.h>
+#include <android/log.h>
+#include <opus/opus.h>
+
+#ifdef NDEBUG
+#define LOGD(...)
+#else
+#define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, "Native Code:", __VA_ARGS__)
+#endif
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, "Native Code:", __VA_ARGS__)
+
+//Config
+#define MAX_PACKET_BYTES 4000		// OpusEncoder.MAX_PACKET_SIZE, the largest packet the Java side reads or writes
+//--
+
+/*
+ * Native state of one Java OpusRepacketizer instance, kept by the Java object as a long handle.
+ * opus_repacketizer_cat() does not copy the packets, it keeps pointers into them until opus_repacketizer_out(),
+ * so every packet is copied into data first and the Java array can be released right away.
+ */
+typedef struct
+{
+	OpusRepacketizer *rp;
+	opus_int32 used;						// Bytes of data taken by the packets collected so far
+	unsigned char data[MAX_PACKET_BYTES];	// Collected packets
+	unsigned char out[MAX_PACKET_BYTES];	// Merged packet
+} RepacketizerState;
+
+/*
+ * Frees a repacketizer state and everything it owns.
+ */
+static void releaseState(RepacketizerState *state)
+{
+	if (state != NULL)
+	{
+		free(state->rp);
+		free(state);
+	}
+}
+
+/*
+ * Class:     de_stuttgart_hdm_opuswalkietalkie_OpusRepacketizer
+ * Method:    nativeInitRepacketizer
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusRepacketizer_nativeInitRepacketizer (JNIEnv *env, jobject obj)
+{
+	RepacketizerState *state = (RepacketizerState*)calloc(1, sizeof(RepacketizerState));
+	if (state == NULL)
+	{
+		return 0;
+	}
+
+	state->rp = malloc(opus_repacketizer_get_size());
+	if (state->rp == NULL)
+	{
+		LOGE("Could not allocate repacketizer");
+		releaseState(state);
+		return 0;
+	}
+	opus_repacketizer_init(state->rp);
+
+	return (jlong)(intptr_t)state;
+}
+
+/*
+ * Class:     de_stuttgart_hdm_opuswalkietalkie_OpusRepacketizer
+ * Method:    nativeCat
+ * Signature: (J[BII)I
+ *
+ * Adds one packet to the collected ones. Returns OPUS_INVALID_PACKET if its TOC does not match the collected packets
+ * or they would last longer than 120ms, the collected packets are unchanged then.
+ */
+JNIEXPORT jint JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusRepacketizer_nativeCat (JNIEnv *env, jobject obj, jlong handle, jbyteArray packet, jint offset, jint length)
+{
+	RepacketizerState *state = (RepacketizerState*)(intptr_t)handle;
+	int error;
+
+	if (length <= 0 || length > MAX_PACKET_BYTES - state->used)
+	{
+		return OPUS_BUFFER_TOO_SMALL;
+	}
+
+	(*env)->GetByteArrayRegion(env, packet, offset, length, (jbyte*)state->data + state->used);
+	error = opus_repacketizer_cat(state->rp, state->data + state->used, length);
+	if (error == OPUS_OK)
+	{
+		state->used += length;
+	}
+
+	LOGD("Added packet of %d bytes, %d frames collected, ErrorCode: %d", length, opus_repacketizer_get_nb_frames(state->rp), error);
+
+	return error;
+}
+
+/*
+ * Class:     de_stuttgart_hdm_opuswalkietalkie_OpusRepacketizer
+ * Method:    nativeOut
+ * Signature: (J[B)I
+ *
+ * Writes all collected frames as one packet into out and starts collecting anew.
+ * Returns the length of the packet, 0 if nothing was collected or a negative opus error code.
+ */
+JNIEXPORT jint JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusRepacketizer_nativeOut (JNIEnv *env, jobject obj, jlong handle, jbyteArray out)
+{
+	RepacketizerState *state = (RepacketizerState*)(intptr_t)handle;
+	opus_int32 length = 0;
+
+	if (opus_repacketizer_get_nb_frames(state->rp) > 0)
+	{
+		opus_int32 maxLength = (*env)->GetArrayLength(env, out);
+		length = opus_repacketizer_out(state->rp, state->out, maxLength < MAX_PACKET_BYTES ? maxLength : MAX_PACKET_BYTES);
+		if (length > 0)
+		{
+			(*env)->SetByteArrayRegion(env, out, 0, length, (jbyte*)state->out);
+		}
+		else
+		{
+			LOGE("Could not merge packets, ErrorCode: %d", length);
+		}
+	}
+
+	opus_repacketizer_init(state->rp);
+	state->used = 0;
+
+	return length;
+}
+
+/*
+ * Class:     de_stuttgart_hdm_opuswalkietalkie_OpusRepacketizer
+ * Method:    nativeReleaseRepacketizer
+ * Signature: (J)Z
+ */
+JNIEXPORT jboolean JNICALL Java_de_stuttgart_hdm_opuswalkietalkie_OpusRepacketizer_nativeReleaseRepacketizer (JNIEnv *env, jobject obj, jlong handle)
+{
+	releaseState((RepacketizerState*)(intptr_t)handle);
+
+	return 1;
+}
+
+void main(){}
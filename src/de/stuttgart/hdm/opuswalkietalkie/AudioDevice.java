@@ -0,0 +1,152 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.lang.reflect.Method;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioRecord;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Native sample rate and burst size of the audio device, and the smallest buffers that work with them.
+ *
+ *	Audio at the native rate in buffers of whole bursts skips the platform resampler and, on devices that have it, takes the
+ *	low-latency fast path of the mixer. Android 4.2 reports both values through AudioManager.getProperty(), which is
+ *	called by reflection as the app is built against Android 4.1. Older devices only report the output rate, the burst
+ *	size then falls back to DEFAULT_BURST.
+ */
+public class AudioDevice
+{
+	private static String		TAG							= "AudioDevice";
+
+	private static final String	PROPERTY_SAMPLE_RATE		= "android.media.property.OUTPUT_SAMPLE_RATE";
+	private static final String	PROPERTY_FRAMES_PER_BUFFER	= "android.media.property.OUTPUT_FRAMES_PER_BUFFER";
+	private static final int	DEFAULT_SAMPLE_RATE			= 44100;	// The one rate every device has to support
+	private static final int	DEFAULT_BURST				= 256;		// Frames, a common burst size of devices that do not report it
+
+	//Fields
+	private final int			sampleRate;
+	private final int			framesPerBurst;
+
+	/**
+	 * Queries the device, without a context only the output rate is available.
+	 *
+	 * @param context Any context of the app, null to use the default burst size
+	 */
+	public AudioDevice( Context context )
+	{
+		int reportedRate = parseProperty( context, PROPERTY_SAMPLE_RATE );
+		if ( reportedRate <= 0 )
+		{
+			reportedRate = AudioTrack.getNativeOutputSampleRate( AudioManager.STREAM_MUSIC );
+		}
+		int reportedBurst = parseProperty( context, PROPERTY_FRAMES_PER_BUFFER );
+
+		this.sampleRate = reportedRate > 0 ? reportedRate : DEFAULT_SAMPLE_RATE;
+		this.framesPerBurst = reportedBurst > 0 ? reportedBurst : DEFAULT_BURST;
+		Log.i( TAG, "Native sample rate " + this.sampleRate + "Hz, " + this.framesPerBurst + " frames per burst" );
+	}
+
+	/**
+	 * @param sampleRate Native sample rate in Hz
+	 * @param framesPerBurst Frames the mixer reads at once
+	 */
+	public AudioDevice( int sampleRate, int framesPerBurst )
+	{
+		this.sampleRate = sampleRate;
+		this.framesPerBurst = framesPerBurst;
+	}
+
+	/**
+	 * @return Value of an AudioManager property, -1 before Android 4.2 or if the property is not set
+	 */
+	private static int parseProperty( Context context, String key )
+	{
+		if ( context == null || Build.VERSION.SDK_INT < 17 )
+		{
+			return -1;
+		}
+		try
+		{
+			Object audioManager = context.getSystemService( Context.AUDIO_SERVICE );
+			Method getProperty = AudioManager.class.getMethod( "getProperty", String.class );
+			Object value = getProperty.invoke( audioManager, key );
+			return value != null ? Integer.parseInt( value.toString() ) : -1;
+		}
+		catch ( Exception e )
+		{
+			Log.w( TAG, "Could not read " + key, e );
+			return -1;
+		}
+	}
+
+	/**
+	 * @return Native sample rate in Hz
+	 */
+	public int getSampleRate()
+	{
+		return this.sampleRate;
+	}
+
+	/**
+	 * @return Frames the mixer reads at once
+	 */
+	public int getFramesPerBurst()
+	{
+		return this.framesPerBurst;
+	}
+
+	/**
+	 * @return Smallest buffer size in bytes AudioRecord accepts for 16 bit samples, at least one burst. -1 if the rate is not supported.
+	 */
+	public int getCaptureBufferSize( int sampleRate, int channelConfiguration, int numberOfChannels )
+	{
+		int minBufferSize = AudioRecord.getMinBufferSize( sampleRate, channelConfiguration, AudioFormat.ENCODING_PCM_16BIT );
+		if ( minBufferSize <= 0 )
+		{
+			return -1;
+		}
+		return Math.max( minBufferSize, this.framesPerBurst * numberOfChannels * ( Short.SIZE / Byte.SIZE ) );
+	}
+
+	/**
+	 * @return Smallest buffer size in bytes AudioTrack accepts for 16 bit samples, rounded up to whole bursts. -1 if the rate is not supported.
+	 */
+	public int getPlayoutBufferSize( int sampleRate, int channelConfiguration, int numberOfChannels )
+	{
+		int minBufferSize = AudioTrack.getMinBufferSize( sampleRate, channelConfiguration, AudioFormat.ENCODING_PCM_16BIT );
+		if ( minBufferSize <= 0 )
+		{
+			return -1;
+		}
+		int burstBytes = this.framesPerBurst * numberOfChannels * ( Short.SIZE / Byte.SIZE );
+		return ( minBufferSize + burstBytes - 1 ) / burstBytes * burstBytes;
+	}
+}
@@ -0,0 +1,332 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Runs recording and playback sessions on two long-lived worker threads at urgent audio priority, instead of a new
+ *	thread per button press.
+ *
+ *	The manager is in one of the states IDLE, RECORDING or PLAYING. A request from the UI thread never blocks: it
+ *	stops the active session and queues the new one on its worker, which waits on the monitor of the manager until
+ *	the other session has ended. Only the latest request is started, so a record request followed quickly by a play
+ *	request only plays. A stop request cancels queued sessions as well. Stop flags are reset under the lock before a
+ *	session starts, so a stop arriving while the session starts up is never lost.
+ *
+ *	The time from a request to the first captured or played sample is kept in two histograms.
+ */
+public class AudioSessionManager
+{
+	private static String		TAG			= "AudioSessionManager";
+
+	public static final int		IDLE		= 0;
+	public static final int		RECORDING	= 1;
+	public static final int		PLAYING		= 2;
+
+	private static final Runnable	SHUTDOWN	= new Runnable()
+	{
+		@Override
+		public void run()
+		{
+		}
+	};
+
+	/**
+	 * A thread running the sessions queued for it one after another, parked while there are none.
+	 */
+	private static class Worker extends Thread
+	{
+		private final BlockingQueue<Runnable>	sessions	= new LinkedBlockingQueue<Runnable>();
+
+		Worker( String name )
+		{
+			super( name );
+		}
+
+		@Override
+		public void run()
+		{
+			Process.setThreadPriority( Process.THREAD_PRIORITY_URGENT_AUDIO );
+			try
+			{
+				Runnable session;
+				while ( ( session = this.sessions.take() ) != SHUTDOWN )
+				{
+					try
+					{
+						session.run();
+					}
+					catch ( RuntimeException e )
+					{
+						Log.e( TAG, "Session failed", e );
+					}
+				}
+			}
+			catch ( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	//Fields
+	private final Recording			recording;
+	private final Playback			playback;
+	private final RecordingStore	recordingStore;	// May be null, see Recording#setRecordingStore(RecordingStore)
+	private final Worker			captureWorker	= new Worker( "Audio capture" );
+	private final Worker			playoutWorker	= new Worker( "Audio playout" );
+	private int						state			= IDLE;	// Guarded by this
+	private int						requestedState	= IDLE;	// State of the latest request, IDLE again once its session ended
+	private long					generation		= 0;	// Incremented by every request, only the latest queued session starts
+
+	//Statistics
+	private final Histogram			recordStartLatency	= new Histogram();	// Nanoseconds from the request to the first captured sample
+	private final Histogram			playStartLatency	= new Histogram();	// Nanoseconds from the request to the first sample written to the track
+
+	/**
+	 * Starts the worker threads.
+	 *
+	 * @param recording Records the sessions
+	 * @param playback Plays the last recording
+	 * @param recordingStore Store the recording adds to, null if it writes a single file
+	 */
+	public AudioSessionManager( Recording recording, Playback playback, RecordingStore recordingStore )
+	{
+		this.recording = recording;
+		this.playback = playback;
+		this.recordingStore = recordingStore;
+		this.captureWorker.start();
+		this.playoutWorker.start();
+	}
+
+	/**
+	 * Stops the active session and records once it has ended.
+	 */
+	public synchronized void startRecording()
+	{
+		final long request = this.request( RECORDING );
+		final long requestTime = System.nanoTime();
+		this.captureWorker.sessions.add( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if ( !begin( request, RECORDING ) )
+				{
+					return;
+				}
+				try
+				{
+					recording.recordToFile();
+				}
+				finally
+				{
+					end( request, recording.getFirstSampleTime(), requestTime, recordStartLatency );
+				}
+			}
+		} );
+	}
+
+	/**
+	 * Stops the active session and plays the last recording once it has ended, so a recording that is still being
+	 * finished is played completely.
+	 */
+	public synchronized void startPlaying()
+	{
+		final long request = this.request( PLAYING );
+		final long requestTime = System.nanoTime();
+		this.playoutWorker.sessions.add( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if ( !begin( request, PLAYING ) )
+				{
+					return;
+				}
+				try
+				{
+					if ( recording.recordedEntry != null && recordingStore != null )
+					{
+						playback.playRecording( recordingStore, recording.recordedEntry, 0 );
+					}
+					else if ( recording.recordedFile != null )
+					{
+						playback.playFile( recording.recordedFile );
+					}
+				}
+				finally
+				{
+					end( request, playback.getFirstSampleTime(), requestTime, playStartLatency );
+				}
+			}
+		} );
+	}
+
+	/**
+	 * Stops the active session and cancels the queued ones.
+	 */
+	public synchronized void stop()
+	{
+		this.request( IDLE );
+	}
+
+	/**
+	 * Cancels queued sessions, stops the active one and wakes the waiting workers.
+	 *
+	 * @param newState State requested
+	 * @return The new generation
+	 */
+	private long request( int newState )
+	{
+		this.requestedState = newState;
+		if ( this.state == RECORDING )
+		{
+			this.recording.stopRecording();
+		}
+		else if ( this.state == PLAYING )
+		{
+			this.playback.stopPlaying();
+		}
+		this.notifyAll();
+		return ++this.generation;
+	}
+
+	/**
+	 * Worker: waits until no session is active and enters the state of the new one.
+	 *
+	 * @return False if a later request superseded the session
+	 */
+	private synchronized boolean begin( long request, int newState )
+	{
+		try
+		{
+			while ( this.state != IDLE && request == this.generation )
+			{
+				this.wait();
+			}
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		if ( request != this.generation )
+		{
+			return false;
+		}
+		if ( newState == RECORDING )
+		{
+			this.recording.resetStop();
+		}
+		else
+		{
+			this.playback.resetStop();
+		}
+		this.state = newState;
+		return true;
+	}
+
+	/**
+	 * Worker: returns to IDLE and wakes a session waiting for it.
+	 */
+	private synchronized void end( long request, long firstSampleTime, long requestTime, Histogram startLatency )
+	{
+		if ( firstSampleTime >= requestTime )
+		{
+			startLatency.record( firstSampleTime - requestTime );
+			Log.d( TAG, "First sample " + ( firstSampleTime - requestTime ) / 1000 + "us after the request" );
+		}
+		if ( request == this.generation )
+		{
+			this.requestedState = IDLE;
+		}
+		this.state = IDLE;
+		this.notifyAll();
+	}
+
+	/**
+	 * @return IDLE, RECORDING or PLAYING
+	 */
+	public synchronized int getState()
+	{
+		return this.state;
+	}
+
+	/**
+	 * @return State of the latest request, which may still wait for the previous session to end. IDLE once it ended by itself.
+	 */
+	public synchronized int getRequestedState()
+	{
+		return this.requestedState;
+	}
+
+	/**
+	 * @return Nanoseconds from a record request to the first captured sample
+	 */
+	public Histogram getRecordStartLatency()
+	{
+		return this.recordStartLatency;
+	}
+
+	/**
+	 * @return Nanoseconds from a play request to the first sample written to the track
+	 */
+	public Histogram getPlayStartLatency()
+	{
+		return this.playStartLatency;
+	}
+
+	/**
+	 * Stops the active session and waits for the worker threads to end.
+	 */
+	public void shutdown()
+	{
+		this.stop();
+		this.captureWorker.sessions.add( SHUTDOWN );
+		this.playoutWorker.sessions.add( SHUTDOWN );
+		try
+		{
+			this.captureWorker.join();
+			this.playoutWorker.join();
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		Log.d( TAG, this.toString() );
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Record start latency ns: " + this.recordStartLatency + " - play start latency ns: " + this.playStartLatency;
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Describes how the channels of a multi-channel signal are split into the Opus streams of one multistream packet.
+ *
+ *	Each stream is an ordinary mono or stereo Opus stream, the coupled (stereo) streams come first. The mapping tells
+ *	for every input channel which stream channel carries it: index 2*i and 2*i+1 are the left and right channel of
+ *	coupled stream i, after them come the mono streams, and 255 leaves the channel silent. This is the layout of
+ *	opus_multistream_encoder_init() and of channel mapping family 255 in RFC 7845.
+ *
+ *	A {@link OpusEncoder} or {@link OpusDecoder} created with a mapping handles all channels in one native call.
+ */
+public class ChannelMapping
+{
+	public static final int		MAX_CHANNELS	= 255;
+	public static final int		SILENT			= 255;	// Mapping value of a channel that is not coded
+
+	//Fields
+	private final int			numberOfChannels;
+	private final int			streams;
+	private final int			coupledStreams;
+	private final byte[]		mapping;
+
+	/**
+	 * @param numberOfChannels Channels of the signal
+	 * @param streams Streams in a packet, coupled ones included
+	 * @param coupledStreams Stereo streams among them
+	 * @param mapping Stream channel of every input channel, or SILENT. Copied
+	 */
+	public ChannelMapping( int numberOfChannels, int streams, int coupledStreams, int[] mapping )
+	{
+		if ( numberOfChannels < 1 || numberOfChannels > MAX_CHANNELS || mapping.length != numberOfChannels )
+		{
+			throw new IllegalArgumentException( "A mapping needs one entry for each of 1 to " + MAX_CHANNELS + " channels" );
+		}
+		if ( streams < 1 || coupledStreams < 0 || coupledStreams > streams || streams + coupledStreams > MAX_CHANNELS )
+		{
+			throw new IllegalArgumentException( "Invalid stream count " + streams + " with " + coupledStreams + " coupled streams" );
+		}
+		this.numberOfChannels = numberOfChannels;
+		this.streams = streams;
+		this.coupledStreams = coupledStreams;
+		this.mapping = new byte[numberOfChannels];
+		for ( int channel = 0; channel < numberOfChannels; channel++ )
+		{
+			if ( mapping[channel] != SILENT && ( mapping[channel] < 0 || mapping[channel] >= streams + coupledStreams ) )
+			{
+				throw new IllegalArgumentException( "Channel " + channel + " mapped to stream channel " + mapping[channel] + " which does not exist" );
+			}
+			this.mapping[channel] = ( byte ) mapping[channel];
+		}
+	}
+
+	/**
+	 * Codes every channel as its own mono stream, for unrelated signals like several microphones.
+	 */
+	public static ChannelMapping independent( int numberOfChannels )
+	{
+		int[] mapping = new int[numberOfChannels];
+		for ( int channel = 0; channel < numberOfChannels; channel++ )
+		{
+			mapping[channel] = channel;
+		}
+		return new ChannelMapping( numberOfChannels, numberOfChannels, 0, mapping );
+	}
+
+	/**
+	 * Codes the channels in stereo pairs, an odd last channel as a mono stream. For signals like a stereo monitor feed.
+	 */
+	public static ChannelMapping pairs( int numberOfChannels )
+	{
+		int coupled = numberOfChannels / 2;
+		int[] mapping = new int[numberOfChannels];
+		for ( int channel = 0; channel < numberOfChannels; channel++ )
+		{
+			mapping[channel] = channel;
+		}
+		return new ChannelMapping( numberOfChannels, coupled + numberOfChannels % 2, coupled, mapping );
+	}
+
+	public int getNumberOfChannels()
+	{
+		return this.numberOfChannels;
+	}
+
+	public int getStreams()
+	{
+		return this.streams;
+	}
+
+	public int getCoupledStreams()
+	{
+		return this.coupledStreams;
+	}
+
+	/**
+	 * @return Copy of the mapping, one unsigned byte per input channel
+	 */
+	public byte[] getMapping()
+	{
+		return this.mapping.clone();
+	}
+
+	/**
+	 * @return Largest packet of one frame, as every stream may produce a packet of the maximum size
+	 */
+	public int getMaxPacketSize()
+	{
+		return this.streams * OpusEncoder.MAX_PACKET_SIZE;
+	}
+
+	@Override
+	public String toString()
+	{
+		return this.numberOfChannels + " channels in " + this.streams + " streams, " + this.coupledStreams + " coupled";
+	}
+}
@@ -0,0 +1,214 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Settings of an OpusEncoder that are applied with opus_encoder_ctl. A new instance holds the libopus defaults
+ *	for the VOIP application.
+ *
+ *	Change a copy from {@link OpusEncoder#getConfig()} and pass it to {@link OpusEncoder#configure(EncoderConfig)},
+ *	which applies the changed settings before the next frame. The constants are the values of opus_defines.h.
+ */
+public class EncoderConfig
+{
+	// Values of opus_defines.h
+	public static final int	AUTO								= -1000;
+	public static final int	BITRATE_MAX							= -1;
+
+	public static final int	APPLICATION_VOIP					= 2048;
+	public static final int	APPLICATION_AUDIO					= 2049;
+	public static final int	APPLICATION_RESTRICTED_LOWDELAY		= 2051;
+
+	public static final int	SIGNAL_VOICE						= 3001;
+	public static final int	SIGNAL_MUSIC						= 3002;
+
+	public static final int	BANDWIDTH_NARROWBAND				= 1101;	// 4kHz bandpass
+	public static final int	BANDWIDTH_MEDIUMBAND				= 1102;	// 6kHz bandpass
+	public static final int	BANDWIDTH_WIDEBAND					= 1103;	// 8kHz bandpass
+	public static final int	BANDWIDTH_SUPERWIDEBAND				= 1104;	// 12kHz bandpass
+	public static final int	BANDWIDTH_FULLBAND					= 1105;	// 20kHz bandpass
+
+	//Config
+	private int				application							= APPLICATION_VOIP;	// Can only be changed before the first frame is encoded
+	private int				bitrate								= AUTO;				// Bits per second, AUTO or BITRATE_MAX
+	private int				complexity							= 10;				// 0 (fastest) to 10 (best quality)
+	private boolean			isVbr								= true;
+	private boolean			isVbrConstrained					= true;
+	private boolean			isDtx								= false;			// Discontinuous transmission during silence
+	private boolean			isInbandFec							= false;			// Forward error correction for the previous frame
+	private int				packetLossPercentage				= 0;				// Expected loss, makes FEC and the encoder more robust
+	private int				signal								= AUTO;				// AUTO, SIGNAL_VOICE or SIGNAL_MUSIC
+	private int				maxBandwidth						= BANDWIDTH_FULLBAND;
+
+	public EncoderConfig()
+	{
+	}
+
+	/**
+	 * @param other Configuration to copy
+	 */
+	public EncoderConfig( EncoderConfig other )
+	{
+		this.application = other.application;
+		this.bitrate = other.bitrate;
+		this.complexity = other.complexity;
+		this.isVbr = other.isVbr;
+		this.isVbrConstrained = other.isVbrConstrained;
+		this.isDtx = other.isDtx;
+		this.isInbandFec = other.isInbandFec;
+		this.packetLossPercentage = other.packetLossPercentage;
+		this.signal = other.signal;
+		this.maxBandwidth = other.maxBandwidth;
+	}
+
+	public int getApplication()
+	{
+		return this.application;
+	}
+
+	/**
+	 * @param application APPLICATION_VOIP, APPLICATION_AUDIO or APPLICATION_RESTRICTED_LOWDELAY
+	 */
+	public void setApplication( int application )
+	{
+		this.application = application;
+	}
+
+	public int getBitrate()
+	{
+		return this.bitrate;
+	}
+
+	/**
+	 * @param bitrate Bits per second from 500 to 512000, AUTO or BITRATE_MAX
+	 */
+	public void setBitrate( int bitrate )
+	{
+		this.bitrate = bitrate;
+	}
+
+	public int getComplexity()
+	{
+		return this.complexity;
+	}
+
+	/**
+	 * @param complexity 0 (fastest) to 10 (best quality)
+	 */
+	public void setComplexity( int complexity )
+	{
+		this.complexity = complexity;
+	}
+
+	public boolean isVbr()
+	{
+		return this.isVbr;
+	}
+
+	public void setVbr( boolean isVbr )
+	{
+		this.isVbr = isVbr;
+	}
+
+	public boolean isVbrConstrained()
+	{
+		return this.isVbrConstrained;
+	}
+
+	public void setVbrConstrained( boolean isVbrConstrained )
+	{
+		this.isVbrConstrained = isVbrConstrained;
+	}
+
+	public boolean isDtx()
+	{
+		return this.isDtx;
+	}
+
+	public void setDtx( boolean isDtx )
+	{
+		this.isDtx = isDtx;
+	}
+
+	public boolean isInbandFec()
+	{
+		return this.isInbandFec;
+	}
+
+	/**
+	 * In-band FEC is only produced for SILK frames of 10ms and more, and only when packet loss is expected.
+	 */
+	public void setInbandFec( boolean isInbandFec )
+	{
+		this.isInbandFec = isInbandFec;
+	}
+
+	public int getPacketLossPercentage()
+	{
+		return this.packetLossPercentage;
+	}
+
+	/**
+	 * @param packetLossPercentage Expected packet loss from 0 to 100
+	 */
+	public void setPacketLossPercentage( int packetLossPercentage )
+	{
+		this.packetLossPercentage = packetLossPercentage;
+	}
+
+	public int getSignal()
+	{
+		return this.signal;
+	}
+
+	/**
+	 * @param signal AUTO, SIGNAL_VOICE or SIGNAL_MUSIC
+	 */
+	public void setSignal( int signal )
+	{
+		this.signal = signal;
+	}
+
+	public int getMaxBandwidth()
+	{
+		return this.maxBandwidth;
+	}
+
+	/**
+	 * @param maxBandwidth One of the BANDWIDTH_ constants
+	 */
+	public void setMaxBandwidth( int maxBandwidth )
+	{
+		this.maxBandwidth = maxBandwidth;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "application: " + this.application + ", bitrate: " + this.bitrate + ", complexity: " + this.complexity + ", vbr: " + this.isVbr
+				+ ", constrained vbr: " + this.isVbrConstrained + ", dtx: " + this.isDtx + ", inband fec: " + this.isInbandFec + ", packet loss: "
+				+ this.packetLossPercentage + "%, signal: " + this.signal + ", max bandwidth: " + this.maxBandwidth;
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.IOException;
+
+import android.util.Log;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Keeps an OpusEncoder within real time on weak CPUs.
+ *
+ *	The encoder reports the encode time and packet size of every frame. After each window of WINDOW_FRAMES frames the
+ *	governor compares the average encode time with the duration of a frame. If encoding takes more than HIGH_LOAD of
+ *	real time, it first lowers the complexity and, once the complexity is at its minimum, the bitrate. After CALM_WINDOWS
+ *	windows in a row below LOW_LOAD it undoes the last step, bitrate first, until the original settings are back.
+ *
+ *	Attach it with {@link OpusEncoder#setGovernor(EncoderGovernor)}. It runs on the encoding thread and allocates nothing
+ *	per frame.
+ */
+public class EncoderGovernor
+{
+	private static String		TAG					= "EncoderGovernor";
+
+	private static final int	WINDOW_FRAMES		= 50;	// Frames averaged before a decision
+	private static final double	HIGH_LOAD			= 0.6;	// Fraction of real time above which the encoder is stepped down
+	private static final double	LOW_LOAD			= 0.25;	// Fraction of real time below which the encoder may be stepped up
+	private static final int	CALM_WINDOWS		= 10;	// Windows below LOW_LOAD before stepping up again
+	private static final int	COMPLEXITY_STEP		= 2;
+	private static final double	BITRATE_STEP		= 0.75;	// Factor the bitrate is lowered by per step
+
+	//Config
+	private final OpusEncoder	encoder;
+	private final long			frameDuration;		// Nanoseconds
+	private final int			maxComplexity;		// Complexity configured when the governor was created
+	private final int			maxBitrate;			// Bitrate configured when the governor was created, may be AUTO
+	private int					bitrateCeiling;		// maxBitrate in bits per second, measured at the first step down if it is AUTO
+	private int					minComplexity		= 0;
+	private int					minBitrate			= 6000;
+
+	//Window
+	private long				windowTime			= 0;
+	private long				windowBytes			= 0;
+	private int					windowFrames		= 0;
+	private int					calmWindows			= 0;
+
+	//Statistics
+	private volatile double		load				= 0;	// Encode time / real time of the last window
+	private volatile int		measuredBitrate		= 0;	// Bits per second of the last window
+	private volatile int		stepsDown			= 0;
+	private volatile int		stepsUp				= 0;
+
+	/**
+	 * @param encoder The encoder to govern, its current configuration is the upper limit for complexity and bitrate
+	 */
+	public EncoderGovernor( OpusEncoder encoder )
+	{
+		EncoderConfig config = encoder.getConfig();
+		this.encoder = encoder;
+		this.frameDuration = encoder.getFrameSize() * 1000000000L / encoder.getSamplingRate();
+		this.maxComplexity = config.getComplexity();
+		this.maxBitrate = config.getBitrate();
+		this.bitrateCeiling = config.getBitrate();
+	}
+
+	/**
+	 * @param minComplexity Lowest complexity the governor steps down to
+	 */
+	public void setMinComplexity( int minComplexity )
+	{
+		this.minComplexity = minComplexity;
+	}
+
+	/**
+	 * @param minBitrate Lowest bitrate in bits per second the governor steps down to
+	 */
+	public void setMinBitrate( int minBitrate )
+	{
+		this.minBitrate = minBitrate;
+	}
+
+	/**
+	 * Called by the encoder after encoding.
+	 *
+	 * @param frames Number of frames encoded
+	 * @param encodeTime Time spent encoding them in nanoseconds
+	 * @param bytes Size of all packets
+	 * @throws IOException If the encoder rejects a new setting
+	 */
+	public void framesEncoded( int frames, long encodeTime, int bytes ) throws IOException
+	{
+		this.windowTime += encodeTime;
+		this.windowBytes += bytes;
+		this.windowFrames += frames;
+		if ( this.windowFrames < WINDOW_FRAMES )
+		{
+			return;
+		}
+
+		double load = ( double ) this.windowTime / ( this.windowFrames * this.frameDuration );
+		this.load = load;
+		this.measuredBitrate = ( int ) ( this.windowBytes * 8 * 1000000000L / ( this.windowFrames * this.frameDuration ) );
+		this.windowTime = 0;
+		this.windowBytes = 0;
+		this.windowFrames = 0;
+
+		if ( load > HIGH_LOAD )
+		{
+			this.calmWindows = 0;
+			this.stepDown();
+		}
+		else if ( load < LOW_LOAD && ++this.calmWindows >= CALM_WINDOWS )
+		{
+			this.calmWindows = 0;
+			this.stepUp();
+		}
+	}
+
+	/**
+	 * Lowers the complexity or, if it is at the minimum, the bitrate.
+	 */
+	private void stepDown() throws IOException
+	{
+		EncoderConfig config = this.encoder.getConfig();
+		if ( config.getComplexity() > this.minComplexity )
+		{
+			config.setComplexity( Math.max( this.minComplexity, config.getComplexity() - COMPLEXITY_STEP ) );
+		}
+		else
+		{
+			if ( config.getBitrate() <= 0 )
+			{
+				this.bitrateCeiling = this.measuredBitrate;
+			}
+			int bitrate = config.getBitrate() > 0 ? config.getBitrate() : this.measuredBitrate;
+			int lowered = Math.max( this.minBitrate, ( int ) ( bitrate * BITRATE_STEP ) );
+			if ( lowered >= bitrate )
+			{
+				return;	// Nothing left to give up
+			}
+			config.setBitrate( lowered );
+		}
+
+		this.encoder.configure( config );
+		this.stepsDown++;
+		Log.d( TAG, "Encoding at " + ( int ) ( this.load * 100 ) + "% of real time, stepped down to complexity " + config.getComplexity() + ", bitrate " + config.getBitrate() );
+	}
+
+	/**
+	 * Raises the bitrate back towards the original one or, if it is back, the complexity.
+	 */
+	private void stepUp() throws IOException
+	{
+		EncoderConfig config = this.encoder.getConfig();
+		if ( config.getBitrate() != this.maxBitrate )
+		{
+			int raised = ( int ) ( config.getBitrate() / BITRATE_STEP );
+			config.setBitrate( raised < this.bitrateCeiling ? raised : this.maxBitrate );
+		}
+		else if ( config.getComplexity() < this.maxComplexity )
+		{
+			config.setComplexity( Math.min( this.maxComplexity, config.getComplexity() + 1 ) );
+		}
+		else
+		{
+			return;
+		}
+
+		this.encoder.configure( config );
+		this.stepsUp++;
+		Log.d( TAG, "Encoding at " + ( int ) ( this.load * 100 ) + "% of real time, stepped up to complexity " + config.getComplexity() + ", bitrate " + config.getBitrate() );
+	}
+
+	/**
+	 * @return Encode time relative to real time of the last window, 1.0 means encoding just keeps up
+	 */
+	public double getLoad()
+	{
+		return this.load;
+	}
+
+	/**
+	 * @return Output bitrate in bits per second measured over the last window
+	 */
+	public int getMeasuredBitrate()
+	{
+		return this.measuredBitrate;
+	}
+
+	public int getStepsDown()
+	{
+		return this.stepsDown;
+	}
+
+	public int getStepsUp()
+	{
+		return this.stepsUp;
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Chooses the frame size of an encoder from the latency a stream needs, and checks frame sizes against the sampling rate.
+ *
+ *	Opus takes frames of 2.5, 5, 10, 20, 40 or 60ms. Short frames cost more CPU per second and more bytes for the
+ *	per-frame and per-packet overhead, 2.5ms frames are the most expensive mode of the codec. A live stream uses 20ms
+ *	frames, a good trade between delay and overhead for push-to-talk. A recording nobody listens to while it is made
+ *	uses 60ms frames, the longest the encoder takes, and two of them are merged into one 120ms packet by an
+ *	{@link OpusRepacketizer}. Frame sizes are samples per channel at the sampling rate of the encoder, not milliseconds.
+ */
+public final class FrameDuration
+{
+	public static final int		LIVE				= 0;	// Streams someone listens to right away: 20ms frames, one per packet
+	public static final int		ARCHIVE				= 1;	// Recordings for storage and bulk transfer: 60ms frames, two per packet
+
+	private static final int[]	SAMPLING_RATES		= { 8000, 12000, 16000, 24000, 48000 };
+	private static final int[]	DURATIONS			= { 25, 50, 100, 200, 400, 600 };	// Legal frame durations in 1/10ms
+	private static final int	LIVE_DURATION		= 200;
+	private static final int	ARCHIVE_DURATION	= 600;
+	private static final int	ARCHIVE_FRAMES		= 2;	// 120ms, the longest packet Opus allows
+
+	private FrameDuration()
+	{
+	}
+
+	/**
+	 * @param mode LIVE or ARCHIVE
+	 * @param samplingRate Sampling rate of the encoder
+	 * @return Samples per channel of one frame
+	 */
+	public static int getFrameSize( int mode, int samplingRate )
+	{
+		int frameSize = samplingRate * ( mode == ARCHIVE ? ARCHIVE_DURATION : LIVE_DURATION ) / 10000;
+		check( samplingRate, frameSize );
+		return frameSize;
+	}
+
+	/**
+	 * @param mode LIVE or ARCHIVE
+	 * @return Number of frames to merge into one packet
+	 */
+	public static int getFramesPerPacket( int mode )
+	{
+		return mode == ARCHIVE ? ARCHIVE_FRAMES : 1;
+	}
+
+	/**
+	 * @return Whether Opus can encode frames of frameSize samples per channel at the sampling rate
+	 */
+	public static boolean isValid( int samplingRate, int frameSize )
+	{
+		boolean isRateValid = false;
+		for ( int i = 0; i < SAMPLING_RATES.length; i++ )
+		{
+			isRateValid |= SAMPLING_RATES[i] == samplingRate;
+		}
+		for ( int i = 0; isRateValid && i < DURATIONS.length; i++ )
+		{
+			if ( ( long ) frameSize * 10000 == ( long ) samplingRate * DURATIONS[i] )
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @throws IllegalArgumentException If Opus can not encode frames of frameSize samples per channel at the sampling rate
+	 */
+	public static void check( int samplingRate, int frameSize )
+	{
+		if ( !isValid( samplingRate, frameSize ) )
+		{
+			StringBuilder permitted = new StringBuilder();
+			for ( int i = 0; i < DURATIONS.length; i++ )
+			{
+				permitted.append( i == 0 ? "" : ", " ).append( samplingRate * DURATIONS[i] / 10000 );
+			}
+			throw new IllegalArgumentException( "Frame size " + frameSize + " is no Opus frame size at " + samplingRate + "Hz, permitted are " + permitted );
+		}
+	}
+}
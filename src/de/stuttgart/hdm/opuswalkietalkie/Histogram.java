@@ -0,0 +1,169 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Lock-free histogram of non-negative values in fixed power-of-two buckets.
+ *
+ *	Bucket i counts the values with the highest one bit at position i, so percentiles are exact to a factor of two,
+ *	which is enough to tell a 200us encode from a 2ms one. Recording a value costs a few atomic increments and never
+ *	allocates, so it can be done for every frame from any thread. Reads are not atomic across buckets, use the copy
+ *	constructor for a consistent enough snapshot.
+ */
+public class Histogram
+{
+	public static final int			BUCKETS		= 64;
+
+	//Fields
+	private final AtomicLongArray	buckets		= new AtomicLongArray( BUCKETS );
+	private final AtomicLong		count		= new AtomicLong();
+	private final AtomicLong		sum			= new AtomicLong();
+	private final AtomicLong		max			= new AtomicLong();
+
+	public Histogram()
+	{
+	}
+
+	/**
+	 * Copies the current state of another histogram, while it may still be recording.
+	 */
+	public Histogram( Histogram histogram )
+	{
+		for ( int i = 0; i < BUCKETS; i++ )
+		{
+			long bucketCount = histogram.buckets.get( i );
+			this.buckets.set( i, bucketCount );
+			this.count.addAndGet( bucketCount );
+		}
+		this.sum.set( histogram.sum.get() );
+		this.max.set( histogram.max.get() );
+	}
+
+	/**
+	 * @param value Value to count, negative values are counted as 0
+	 */
+	public void record( long value )
+	{
+		value = Math.max( value, 0 );
+		this.buckets.incrementAndGet( bucketOf( value ) );
+		this.count.incrementAndGet();
+		this.sum.addAndGet( value );
+
+		long currentMax = this.max.get();
+		while ( value > currentMax && !this.max.compareAndSet( currentMax, value ) )
+		{
+			currentMax = this.max.get();
+		}
+	}
+
+	/**
+	 * Clears all buckets. Values recorded at the same time may get lost.
+	 */
+	public void reset()
+	{
+		for ( int i = 0; i < BUCKETS; i++ )
+		{
+			this.buckets.set( i, 0 );
+		}
+		this.count.set( 0 );
+		this.sum.set( 0 );
+		this.max.set( 0 );
+	}
+
+	/**
+	 * @return Index of the bucket counting value, 0 for 0 and 1
+	 */
+	public static int bucketOf( long value )
+	{
+		return value <= 1 ? 0 : 63 - Long.numberOfLeadingZeros( value );
+	}
+
+	/**
+	 * @return Largest value counted by bucket i
+	 */
+	public static long bucketLimit( int i )
+	{
+		return i >= 62 ? Long.MAX_VALUE : ( 2L << i ) - 1;
+	}
+
+	public long getBucketCount( int i )
+	{
+		return this.buckets.get( i );
+	}
+
+	public long getCount()
+	{
+		return this.count.get();
+	}
+
+	public long getSum()
+	{
+		return this.sum.get();
+	}
+
+	public long getMax()
+	{
+		return this.max.get();
+	}
+
+	public double getMean()
+	{
+		long currentCount = this.count.get();
+		return currentCount == 0 ? 0 : ( double ) this.sum.get() / currentCount;
+	}
+
+	/**
+	 * @param fraction Fraction of the values, 0.99 for the 99th percentile
+	 * @return Upper bound of the values below the percentile, at most a factor of two above the exact value
+	 */
+	public long getPercentile( double fraction )
+	{
+		long currentCount = 0;
+		for ( int i = 0; i < BUCKETS; i++ )
+		{
+			currentCount += this.buckets.get( i );
+		}
+		long rank = ( long ) Math.ceil( fraction * currentCount );
+		long seen = 0;
+		for ( int i = 0; i < BUCKETS; i++ )
+		{
+			seen += this.buckets.get( i );
+			if ( seen >= rank && seen > 0 )
+			{
+				return Math.min( bucketLimit( i ), this.max.get() );
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "count=" + this.getCount() + " mean=" + ( long ) this.getMean() + " p50<=" + this.getPercentile( 0.5 ) + " p99<=" + this.getPercentile( 0.99 ) + " max=" + this.getMax();
+	}
+}
@@ -0,0 +1,451 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Adaptive jitter buffer in front of an OpusDecoder for live streams.
+ *
+ *	The receiving thread stores packets with {@link #put(int, ByteBuffer, long)} in any order. The playout thread calls
+ *	{@link #next(long)} or {@link #decodeNext(OpusDecoder, ShortBuffer, long)} once per frame period and gets the packets
+ *	back ordered by sequence number. A missing packet is restored from the FEC data of the following packet if that one
+ *	is already there, otherwise it is concealed.
+ *
+ *	The playout delay follows the interarrival jitter, estimated as in RFC 3550 from the RTP timestamps. It grows by one
+ *	frame whenever the buffer runs dry while the expected packet may still be on its way, and shrinks by dropping a
+ *	frame when more frames are buffered than the current jitter requires.
+ *
+ *	A sender with silence suppression pauses between talk spurts and marks the first packet after the pause. When the
+ *	buffer runs dry, it conceals for the target delay at most, as the next packet may only be late, and plays nothing
+ *	after that. The concealed frames count as lost once the next packet shows the stream went on, a marked packet
+ *	starts buffering anew instead, so pauses neither count as losses nor raise the jitter estimate.
+ *
+ *	Packets are copied into preallocated direct buffers, nothing is allocated after construction.
+ *	{@link #next(long)} does not touch a decoder, so the buffer can be driven by a simulator as well.
+ */
+public class JitterBuffer
+{
+	// Results of next()
+	public static final int		PACKET			= 0;	// The expected packet is there, decode it
+	public static final int		FEC				= 1;	// The expected packet is missing, decode the FEC data of the next one
+	public static final int		CONCEAL			= 2;	// The expected packet is missing, conceal it
+	public static final int		WAIT			= 3;	// Buffering before playout starts, or the sender paused: play nothing
+
+	private static final int	JITTER_FACTOR	= 3;	// Jitter estimates the delay covers in addition to one frame
+
+	//Config
+	private final int			samplingRate;
+	private final int			frameSize;				// Samples per channel and frame
+	private final double		frameDuration;			// Milliseconds per frame
+	private final int			maxDelayFrames;			// Upper bound for the playout delay
+
+	//Packet slots, indexed by sequence number modulo capacity
+	private final ByteBuffer[]	slots;
+	private final long[]		slotSequence;
+	private final long[]		slotArrival;
+	private final int			mask;
+	private final ByteBuffer	current;				// Copy of the packet returned by next(), owned by the playout thread
+
+	//State
+	private boolean				isStarted			= false;
+	private long				firstArrival		= 0;
+	private long				lowestSequence		= -1;	// Lowest sequence number received before playout started
+	private long				highestSequence		= -1;
+	private long				playoutSequence		= 0;	// Sequence number of the next frame to play
+	private double				jitter				= 0;	// Interarrival jitter estimate in milliseconds
+	private boolean				hasTransit			= false;	// Whether lastArrival and lastTimestamp hold the previous packet
+	private long				lastArrival			= 0;
+	private int					lastTimestamp		= 0;
+	private int					dryFrames			= 0;	// Frames concealed since the buffer ran dry, not yet known to be lost
+
+	//Statistics
+	private long				framesPlayed		= 0;
+	private long				framesRecovered		= 0;
+	private long				framesConcealed		= 0;
+	private long				packetsLate			= 0;
+	private long				packetsDropped		= 0;
+	private long				totalDelay			= 0;	// Sum of playout time - arrival time of all played packets
+
+	/**
+	 * @param capacity Number of packet slots, rounded up to the next power of two
+	 * @param samplingRate Sampling rate of the stream
+	 * @param frameSize Samples per channel and frame of the stream
+	 * @param maxPacketSize Size of the largest packet to store
+	 */
+	public JitterBuffer( int capacity, int samplingRate, int frameSize, int maxPacketSize )
+	{
+		int slotCount = Integer.highestOneBit( Math.max( capacity - 1, 1 ) ) << 1;
+		this.slots = new ByteBuffer[slotCount];
+		this.slotSequence = new long[slotCount];
+		this.slotArrival = new long[slotCount];
+		this.mask = slotCount - 1;
+		for ( int i = 0; i < slotCount; i++ )
+		{
+			this.slots[i] = ByteBuffer.allocateDirect( maxPacketSize );
+			this.slotSequence[i] = -1;
+		}
+		this.current = ByteBuffer.allocateDirect( maxPacketSize );
+
+		this.samplingRate = samplingRate;
+		this.frameSize = frameSize;
+		this.frameDuration = frameSize * 1000.0 / samplingRate;
+		this.maxDelayFrames = slotCount / 2;
+	}
+
+	/**
+	 * Stores a received packet of a stream without pauses, whose timestamp advances by one frame per sequence number.
+	 * Called by the receiving thread.
+	 *
+	 * @param sequenceNumber 16 bit sequence number of the packet, wrapping around
+	 * @param packet The packet between position and limit, copied and left unchanged
+	 * @param arrivalTime Arrival time in milliseconds, on the same clock as the playout time passed to {@link #next(long)}
+	 * @return False if the packet was discarded because it is too late, a duplicate or too far ahead
+	 */
+	public synchronized boolean put( int sequenceNumber, ByteBuffer packet, long arrivalTime )
+	{
+		return this.put( sequenceNumber, ( int ) ( this.unwrap( sequenceNumber ) * this.frameSize ), false, packet, arrivalTime );
+	}
+
+	/**
+	 * Stores a received packet. Called by the receiving thread.
+	 *
+	 * @param sequenceNumber 16 bit sequence number of the packet, wrapping around
+	 * @param timestamp RTP timestamp of the packet in samples, advanced over the pauses of the sender
+	 * @param marker RTP marker bit, set on the first packet of a talk spurt
+	 * @param packet The packet between position and limit, copied and left unchanged
+	 * @param arrivalTime Arrival time in milliseconds, on the same clock as the playout time passed to {@link #next(long)}
+	 * @return False if the packet was discarded because it is too late, a duplicate or too far ahead
+	 */
+	public synchronized boolean put( int sequenceNumber, int timestamp, boolean marker, ByteBuffer packet, long arrivalTime )
+	{
+		long sequence = this.unwrap( sequenceNumber );
+
+		if ( sequence < this.playoutSequence )
+		{
+			this.packetsLate++;
+			return false;
+		}
+		long oldest = this.isStarted ? this.playoutSequence : this.lowestSequence < 0 ? sequence : Math.min( this.lowestSequence, sequence );
+		if ( sequence > oldest + this.mask || packet.remaining() > this.current.capacity() )
+		{
+			this.packetsDropped++;
+			return false;
+		}
+
+		int slot = ( int ) sequence & this.mask;
+		if ( this.slotSequence[slot] == sequence )
+		{
+			return false;
+		}
+
+		copy( packet, this.slots[slot] );
+		this.slotSequence[slot] = sequence;
+		this.slotArrival[slot] = arrivalTime;
+
+		if ( this.isStarted && this.highestSequence < this.playoutSequence )
+		{
+			if ( marker )
+			{
+				// A new talk spurt after a pause: buffer again, the frames concealed in the pause were no losses
+				this.isStarted = false;
+				this.lowestSequence = -1;
+			}
+			else
+			{
+				this.framesConcealed += this.dryFrames;
+				for ( int i = 0; i < this.dryFrames; i++ )
+				{
+					Metrics.get().playbackUnderrun();
+				}
+			}
+			this.dryFrames = 0;
+		}
+
+		if ( this.lowestSequence < 0 )
+		{
+			this.firstArrival = arrivalTime;
+			this.lowestSequence = sequence;
+		}
+		else if ( !this.isStarted && sequence < this.lowestSequence )
+		{
+			this.lowestSequence = sequence;
+		}
+		this.highestSequence = Math.max( this.highestSequence, sequence );
+
+		// RFC 3550 interarrival jitter: difference of the transit times of consecutive packets
+		if ( this.hasTransit )
+		{
+			double difference = ( arrivalTime - this.lastArrival ) - ( timestamp - this.lastTimestamp ) * 1000.0 / this.samplingRate;
+			this.jitter += ( Math.abs( difference ) - this.jitter ) / 16;
+		}
+		this.hasTransit = true;
+		this.lastArrival = arrivalTime;
+		this.lastTimestamp = timestamp;
+
+		return true;
+	}
+
+	/**
+	 * Decides what to play for the next frame period. Called by the playout thread once per frame.
+	 * For PACKET and FEC the packet to decode is available through {@link #packet()} until the next call.
+	 *
+	 * @param now Current playout time in milliseconds
+	 * @return One of PACKET, FEC, CONCEAL or WAIT
+	 */
+	public synchronized int next( long now )
+	{
+		if ( !this.isStarted )
+		{
+			if ( this.lowestSequence < 0 || now < this.firstArrival + this.getTargetDelay() )
+			{
+				return WAIT;
+			}
+			this.isStarted = true;
+			this.playoutSequence = this.lowestSequence;
+		}
+
+		// More buffered than the jitter requires: drop the oldest frame to cut the delay
+		if ( this.highestSequence - this.playoutSequence + 1 > this.getTargetDelayFrames() + 1 && this.isPresent( this.playoutSequence ) )
+		{
+			this.slotSequence[( int ) this.playoutSequence & this.mask] = -1;
+			this.playoutSequence++;
+			this.packetsDropped++;
+		}
+
+		Metrics.get().jitterBufferDepth( this.getBufferedFrames() );
+		int slot = ( int ) this.playoutSequence & this.mask;
+		if ( this.isPresent( this.playoutSequence ) )
+		{
+			this.take( slot );
+			this.totalDelay += now - this.slotArrival[slot];
+			this.playoutSequence++;
+			this.framesPlayed++;
+			return PACKET;
+		}
+
+		if ( this.highestSequence < this.playoutSequence )
+		{
+			// Nothing newer arrived, the packet may just be late: conceal and wait one more frame for it.
+			// Skipping it would not help, the following packets could only arrive even later.
+			// Beyond the target delay the sender rather paused, play nothing until the next packet tells.
+			if ( this.dryFrames >= this.getTargetDelayFrames() )
+			{
+				return WAIT;
+			}
+			this.dryFrames++;
+			return CONCEAL;
+		}
+
+		this.playoutSequence++;
+		if ( this.isPresent( this.playoutSequence ) )
+		{
+			copy( this.slots[( int ) this.playoutSequence & this.mask], this.current );
+			this.framesRecovered++;
+			return FEC;
+		}
+
+		this.framesConcealed++;
+		Metrics.get().playbackUnderrun();
+		return CONCEAL;
+	}
+
+	/**
+	 * Plays the next frame period through the given decoder, see {@link #next(long)}.
+	 *
+	 * @param decoder Decoder of the stream
+	 * @param pcm Direct buffer receiving the signal at its position, which is advanced
+	 * @param now Current playout time in milliseconds
+	 * @return Number of samples per channel written to pcm, 0 while waiting for playout to start or during a pause
+	 * @throws IOException
+	 */
+	public int decodeNext( OpusDecoder decoder, ShortBuffer pcm, long now ) throws IOException
+	{
+		switch ( this.next( now ) )
+		{
+			case PACKET:
+				return decoder.decode( this.current, pcm );
+			case FEC:
+				return decoder.decodeFec( this.current, pcm, this.frameSize );
+			case CONCEAL:
+				return decoder.decodeLost( pcm, this.frameSize );
+			default:
+				return 0;
+		}
+	}
+
+	/**
+	 * @return The packet to decode after {@link #next(long)} returned PACKET or FEC
+	 */
+	public ByteBuffer packet()
+	{
+		return this.current;
+	}
+
+	/**
+	 * Forgets all buffered packets and the sequence numbers seen so far, for a new stream with its own numbering.
+	 * The jitter estimate and the statistics are kept.
+	 */
+	public synchronized void reset()
+	{
+		for ( int i = 0; i < this.slotSequence.length; i++ )
+		{
+			this.slotSequence[i] = -1;
+		}
+		this.isStarted = false;
+		this.lowestSequence = -1;
+		this.highestSequence = -1;
+		this.playoutSequence = 0;
+		this.hasTransit = false;
+		this.dryFrames = 0;
+	}
+
+	/**
+	 * Maps a wrapping 16 bit sequence number to a non-wrapping one close to the highest sequence number seen.
+	 */
+	private long unwrap( int sequenceNumber )
+	{
+		if ( this.highestSequence < 0 )
+		{
+			return ( sequenceNumber & 0xFFFF ) + 0x10000;	// Leaves room for packets that arrive out of order before the first one
+		}
+		short delta = ( short ) ( sequenceNumber - ( int ) this.highestSequence );
+		return this.highestSequence + delta;
+	}
+
+	private boolean isPresent( long sequence )
+	{
+		return this.slotSequence[( int ) sequence & this.mask] == sequence;
+	}
+
+	/**
+	 * Moves the packet of a slot into the current packet buffer and frees the slot.
+	 */
+	private void take( int slot )
+	{
+		copy( this.slots[slot], this.current );
+		this.slotSequence[slot] = -1;
+	}
+
+	/**
+	 * Replaces the contents of to with the remaining bytes of from, without a view of from. The position of from is restored.
+	 */
+	private static void copy( ByteBuffer from, ByteBuffer to )
+	{
+		int position = from.position();
+		to.clear();
+		to.put( from );
+		to.flip();
+		from.position( position );
+	}
+
+	/**
+	 * @return Playout delay in frames the buffer currently aims for
+	 */
+	public synchronized int getTargetDelayFrames()
+	{
+		int frames = ( int ) Math.ceil( ( this.frameDuration + JITTER_FACTOR * this.jitter ) / this.frameDuration );
+		return Math.max( 1, Math.min( frames, this.maxDelayFrames ) );
+	}
+
+	/**
+	 * @return Playout delay in milliseconds the buffer currently aims for
+	 */
+	public synchronized long getTargetDelay()
+	{
+		return Math.round( this.getTargetDelayFrames() * this.frameDuration );
+	}
+
+	/**
+	 * @return Number of frames from the next one to play up to the newest received, including gaps
+	 */
+	public synchronized int getBufferedFrames()
+	{
+		if ( this.highestSequence < 0 )
+		{
+			return 0;
+		}
+		long first = this.isStarted ? this.playoutSequence : this.lowestSequence;
+		return ( int ) Math.max( 0, this.highestSequence - first + 1 );
+	}
+
+	/**
+	 * @return Current interarrival jitter estimate in milliseconds
+	 */
+	public synchronized double getJitter()
+	{
+		return this.jitter;
+	}
+
+	/**
+	 * @return Average time in milliseconds played packets spent in the buffer, the latency added by the buffer
+	 */
+	public synchronized double getAverageDelay()
+	{
+		return this.framesPlayed == 0 ? 0 : ( double ) this.totalDelay / this.framesPlayed;
+	}
+
+	/**
+	 * @return Frames played from their own packet
+	 */
+	public synchronized long getFramesPlayed()
+	{
+		return this.framesPlayed;
+	}
+
+	/**
+	 * @return Frames restored from the FEC data of the following packet
+	 */
+	public synchronized long getFramesRecovered()
+	{
+		return this.framesRecovered;
+	}
+
+	/**
+	 * @return Frames filled by packet loss concealment
+	 */
+	public synchronized long getFramesConcealed()
+	{
+		return this.framesConcealed;
+	}
+
+	/**
+	 * @return Packets discarded because their frame had already been played
+	 */
+	public synchronized long getPacketsLate()
+	{
+		return this.packetsLate;
+	}
+
+	/**
+	 * @return Packets discarded to cut the delay or because they were too far ahead or too large
+	 */
+	public synchronized long getPacketsDropped()
+	{
+		return this.packetsDropped;
+	}
+}
@@ -0,0 +1,354 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Peak and RMS level of a recording at several resolutions, to draw a waveform or level meter without decoding.
+ *
+ *	Level 0 holds one entry per captured frame, every entry of level n + 1 sums up FAN_OUT entries of level n, like
+ *	the mip-maps of a texture. All levels together take a third more than level 0, 4 bytes per 20ms frame. The levels
+ *	are built while recording, {@link #add(short[], int, int)} costs one pass over the frame and nothing is allocated
+ *	except when the level arrays grow.
+ *
+ *	{@link #getLevels(long, long, int, short[], short[])} picks the coarsest level that still has at least one entry
+ *	per pixel, so any range at any width touches at most a few entries per pixel, independent of the length of the
+ *	recording. Groups of entries that are not complete yet, at the end of a recording in progress, are taken from the
+ *	levels below. {@link #save(File)} writes the summary next to the recording, {@link #open(File)} maps it again.
+ *	Methods are synchronized, so the level meter can query a summary while the recording adds to it.
+ */
+public class LevelSummary
+{
+	public static final String	FILE_SUFFIX			= ".levels";
+	public static final int		FAN_OUT_BITS		= 2;
+	public static final int		FAN_OUT				= 1 << FAN_OUT_BITS;	// Entries of a level summed up by one entry of the level above
+
+	private static final int	MAGIC				= 0x564C5457;	// "WTLV" read little endian
+	private static final int	VERSION				= 1;
+	private static final int	HEADER_SIZE			= 16;	// magic, version, number of levels, sampling rate, frame size
+	private static final int	MAX_LEVELS			= 16;	// 4^15 frames of 20ms are more than 20 years
+	private static final int	INITIAL_CAPACITY	= 256;	// Entries per level before the first growth
+
+	//Fields
+	private final int				samplingRate;
+	private final int				frameSize;
+	private final short[][]			entries			= new short[MAX_LEVELS][];			// Peak and RMS of every entry while recording, null for an opened summary
+	private final ShortBuffer[]		levels			= new ShortBuffer[MAX_LEVELS];		// Peak and RMS of every entry, for queries
+	private final int[]				lengths			= new int[MAX_LEVELS];				// Entries per level
+	private int						levelCount		= 0;
+	private final boolean			isReadOnly;
+
+	//Query state
+	private int						peak;
+	private double					squareSum;
+	private int						count;
+
+	/**
+	 * Creates an empty summary to add the frames of a recording to.
+	 *
+	 * @param samplingRate Sampling rate of the recording
+	 * @param frameSize Samples per channel of every added frame
+	 */
+	public LevelSummary( int samplingRate, int frameSize )
+	{
+		this( samplingRate, frameSize, false );
+	}
+
+	private LevelSummary( int samplingRate, int frameSize, boolean isReadOnly )
+	{
+		this.samplingRate = samplingRate;
+		this.frameSize = frameSize;
+		this.isReadOnly = isReadOnly;
+	}
+
+	/**
+	 * Maps a summary written by {@link #save(File)}.
+	 *
+	 * @param file The summary file
+	 * @return A read-only summary
+	 * @throws IOException If the file can not be read or is no summary
+	 */
+	public static LevelSummary open( File file ) throws IOException
+	{
+		RandomAccessFile randomAccessFile = new RandomAccessFile( file, "r" );
+		ByteBuffer mapping;
+		try
+		{
+			mapping = randomAccessFile.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length() );
+		}
+		finally
+		{
+			randomAccessFile.close();	// The mapping stays valid
+		}
+		mapping.order( ByteOrder.LITTLE_ENDIAN );
+		if ( mapping.remaining() < HEADER_SIZE || mapping.getInt( 0 ) != MAGIC || mapping.getShort( 4 ) != VERSION )
+		{
+			throw new IOException( "No level summary: " + file );
+		}
+
+		int levelCount = mapping.getShort( 6 );
+		LevelSummary summary = new LevelSummary( mapping.getInt( 8 ), mapping.getInt( 12 ), true );
+		int offset = HEADER_SIZE + 4 * levelCount;
+		for ( int level = 0; level < levelCount; level++ )
+		{
+			int length = mapping.getInt( HEADER_SIZE + 4 * level );
+			int bytes = length * 2 * ( Short.SIZE / Byte.SIZE );
+			if ( length < 0 || offset + bytes > mapping.capacity() || offset + bytes < 0 )
+			{
+				throw new IOException( "Truncated level summary: " + file );
+			}
+			mapping.limit( offset + bytes );
+			mapping.position( offset );
+			summary.levels[level] = mapping.slice().order( ByteOrder.LITTLE_ENDIAN ).asShortBuffer();
+			summary.lengths[level] = length;
+			mapping.limit( mapping.capacity() );
+			offset += bytes;
+		}
+		summary.levelCount = levelCount;
+		return summary;
+	}
+
+	/**
+	 * Adds the level of the next frame of the recording.
+	 *
+	 * @param pcm Samples of the frame, interleaved if there are several channels
+	 * @param offset Index of the first sample in pcm
+	 * @param length Samples of the frame over all channels
+	 */
+	public synchronized void add( short[] pcm, int offset, int length )
+	{
+		if ( this.isReadOnly )
+		{
+			throw new IllegalStateException( "Summary opened from a file" );
+		}
+		int framePeak = 0;
+		long squares = 0;
+		for ( int i = offset; i < offset + length; i++ )
+		{
+			int sample = pcm[i];
+			framePeak = Math.max( framePeak, Math.abs( sample ) );
+			squares += sample * sample;
+		}
+		int rms = length > 0 ? ( int ) Math.sqrt( ( double ) squares / length ) : 0;
+		this.append( 0, Math.min( framePeak, Short.MAX_VALUE ), Math.min( rms, Short.MAX_VALUE ) );
+	}
+
+	/**
+	 * Appends an entry to a level and sums up the last FAN_OUT entries in the level above once they are complete.
+	 */
+	private void append( int level, int entryPeak, int entryRms )
+	{
+		if ( level == this.levelCount )
+		{
+			this.entries[level] = new short[INITIAL_CAPACITY * 2];
+			this.levels[level] = ShortBuffer.wrap( this.entries[level] );
+			this.levelCount++;
+		}
+		short[] levelEntries = this.entries[level];
+		int length = this.lengths[level];
+		if ( length * 2 == levelEntries.length )
+		{
+			levelEntries = Arrays.copyOf( levelEntries, levelEntries.length * 2 );
+			this.entries[level] = levelEntries;
+			this.levels[level] = ShortBuffer.wrap( levelEntries );
+		}
+		levelEntries[2 * length] = ( short ) entryPeak;
+		levelEntries[2 * length + 1] = ( short ) entryRms;
+		this.lengths[level] = ++length;
+
+		if ( length % FAN_OUT == 0 && level + 1 < MAX_LEVELS )
+		{
+			int groupPeak = 0;
+			double groupSquares = 0;
+			for ( int i = length - FAN_OUT; i < length; i++ )
+			{
+				groupPeak = Math.max( groupPeak, levelEntries[2 * i] );
+				groupSquares += ( double ) levelEntries[2 * i + 1] * levelEntries[2 * i + 1];
+			}
+			this.append( level + 1, groupPeak, ( int ) Math.sqrt( groupSquares / FAN_OUT ) );
+		}
+	}
+
+	/**
+	 * Computes the level of every pixel of a waveform.
+	 *
+	 * @param startMillis Time in the recording of the left edge
+	 * @param endMillis Time in the recording of the right edge
+	 * @param width Number of pixels
+	 * @param peaks Receives the peak level of every pixel, 0 for pixels past the end of the recording
+	 * @param rms Receives the RMS level of every pixel, 0 for pixels past the end of the recording
+	 * @return Number of pixels up to the last one with a level
+	 */
+	public synchronized int getLevels( long startMillis, long endMillis, int width, short[] peaks, short[] rms )
+	{
+		double firstFrame = ( double ) startMillis * this.samplingRate / 1000 / this.frameSize;
+		double framesPerPixel = ( double ) ( endMillis - startMillis ) * this.samplingRate / 1000 / this.frameSize / width;
+		int level = 0;
+		while ( level + 1 < this.levelCount && 1L << ( FAN_OUT_BITS * ( level + 1 ) ) <= framesPerPixel )
+		{
+			level++;
+		}
+		int shift = FAN_OUT_BITS * level;
+
+		int pixels = 0;
+		for ( int pixel = 0; pixel < width; pixel++ )
+		{
+			long first = ( long ) ( firstFrame + pixel * framesPerPixel );
+			long end = Math.max( ( long ) ( firstFrame + ( pixel + 1 ) * framesPerPixel ), first + 1 );
+			this.peak = 0;
+			this.squareSum = 0;
+			this.count = 0;
+			if ( this.levelCount > 0 )
+			{
+				this.accumulate( level, first >> shift, ( end - 1 ) >> shift );
+			}
+			peaks[pixel] = ( short ) this.peak;
+			rms[pixel] = ( short ) ( this.count > 0 ? Math.sqrt( this.squareSum / this.count ) : 0 );
+			if ( this.count > 0 )
+			{
+				pixels = pixel + 1;
+			}
+		}
+		return pixels;
+	}
+
+	/**
+	 * Adds the entries first to last of a level to the query state, and the entries of the levels below for the part
+	 * of the range the level does not cover yet.
+	 */
+	private void accumulate( int level, long first, long last )
+	{
+		int length = this.lengths[level];
+		ShortBuffer levelEntries = this.levels[level];
+		long end = Math.min( last + 1, length );
+		for ( long i = first; i < end; i++ )
+		{
+			int entryRms = levelEntries.get( ( int ) ( 2 * i + 1 ) );
+			this.peak = Math.max( this.peak, levelEntries.get( ( int ) ( 2 * i ) ) );
+			this.squareSum += ( double ) entryRms * entryRms;
+			this.count++;
+		}
+		if ( last >= length && level > 0 )
+		{
+			this.accumulate( level - 1, Math.max( first, length ) << FAN_OUT_BITS, ( last << FAN_OUT_BITS ) + FAN_OUT - 1 );
+		}
+	}
+
+	/**
+	 * Writes the summary to a file, replacing it atomically.
+	 *
+	 * @param file File of the summary, next to the recording
+	 * @throws IOException
+	 */
+	public synchronized void save( File file ) throws IOException
+	{
+		int size = HEADER_SIZE + 4 * this.levelCount;
+		for ( int level = 0; level < this.levelCount; level++ )
+		{
+			size += this.lengths[level] * 2 * ( Short.SIZE / Byte.SIZE );
+		}
+		ByteBuffer buffer = ByteBuffer.allocate( size ).order( ByteOrder.LITTLE_ENDIAN );
+		buffer.putInt( MAGIC );
+		buffer.putShort( ( short ) VERSION );
+		buffer.putShort( ( short ) this.levelCount );
+		buffer.putInt( this.samplingRate );
+		buffer.putInt( this.frameSize );
+		for ( int level = 0; level < this.levelCount; level++ )
+		{
+			buffer.putInt( this.lengths[level] );
+		}
+		for ( int level = 0; level < this.levelCount; level++ )
+		{
+			ShortBuffer levelEntries = this.levels[level].duplicate();
+			levelEntries.clear().limit( this.lengths[level] * 2 );
+			buffer.asShortBuffer().put( levelEntries );
+			buffer.position( buffer.position() + this.lengths[level] * 2 * ( Short.SIZE / Byte.SIZE ) );
+		}
+		buffer.flip();
+
+		File temporary = new File( file.getPath() + ".new" );
+		RandomAccessFile randomAccessFile = new RandomAccessFile( temporary, "rw" );
+		try
+		{
+			randomAccessFile.setLength( 0 );
+			FileChannel channel = randomAccessFile.getChannel();
+			while ( buffer.hasRemaining() )
+			{
+				channel.write( buffer );
+			}
+		}
+		finally
+		{
+			randomAccessFile.close();
+		}
+		if ( !temporary.renameTo( file ) )
+		{
+			temporary.delete();
+			throw new IOException( "Could not replace " + file );
+		}
+	}
+
+	/**
+	 * @return Number of frames in the summary
+	 */
+	public synchronized long getFrames()
+	{
+		return this.lengths[0];
+	}
+
+	/**
+	 * @return Duration of the summarized recording in milliseconds
+	 */
+	public synchronized long getDuration()
+	{
+		return ( long ) this.lengths[0] * this.frameSize * 1000 / this.samplingRate;
+	}
+
+	/**
+	 * @return Number of levels, including level 0 with one entry per frame
+	 */
+	public synchronized int getLevelCount()
+	{
+		return this.levelCount;
+	}
+
+	public int getSamplingRate()
+	{
+		return this.samplingRate;
+	}
+
+	public int getFrameSize()
+	{
+		return this.frameSize;
+	}
+}
@@ -21,6 +21,9 @@
 
 package de.stuttgart.hdm.opuswalkietalkie;
 
+import java.io.File;
+import java.io.IOException;
+
 import android.app.Activity;
 import android.os.Bundle;
 import android.util.Log;
@@ -40,6 +43,8 @@ public class MainActivity extends Activity
 
 	private Playback		playback	= new Playback();
 	private Recording		recording	= new Recording();
+	private RecordingStore	recordingStore;
+	private AudioSessionManager	sessionManager;	// Runs recording and playback on long-lived worker threads
 
 	@Override
 	public void onCreate( Bundle savedInstanceState )
@@ -50,6 +55,39 @@ public class MainActivity extends Activity
 		this.recordStatus = ( TextView ) this.findViewById( R.id.tv_record_status );
 		this.recordButton = ( Button ) this.findViewById( R.id.b_record_button );
 		this.playButton = ( Button ) this.findViewById( R.id.b_play_button );
+
+		AudioDevice audioDevice = new AudioDevice( this );
+		this.recording.setAudioDevice( audioDevice );
+		this.playback.setAudioDevice( audioDevice );
+
+		try
+		{
+			this.recordingStore = new RecordingStore( new File( this.getFilesDir(), "recordings" ), RecordingStore.DEFAULT_SEGMENT_SIZE );
+			this.recording.setRecordingStore( this.recordingStore );
+		}
+		catch ( IOException e )
+		{
+			Log.e( TAG, "Could not open the recording store, recordings overwrite each other", e );
+		}
+		this.sessionManager = new AudioSessionManager( this.recording, this.playback, this.recordingStore );
+	}
+
+	@Override
+	protected void onDestroy()
+	{
+		super.onDestroy();
+		this.sessionManager.shutdown();
+		if ( this.recordingStore != null )
+		{
+			try
+			{
+				this.recordingStore.close();
+			}
+			catch ( IOException e )
+			{
+				Log.e( TAG, e.getLocalizedMessage(), e );
+			}
+		}
 	}
 
 	@Override
@@ -64,7 +102,7 @@ public class MainActivity extends Activity
 	 */
 	public void onRecord( View view )
 	{
-		if ( this.recording.isRecording )
+		if ( this.sessionManager.getRequestedState() == AudioSessionManager.RECORDING )
 		{
 			this.stopRecording();
 		}
@@ -79,23 +117,23 @@ public class MainActivity extends Activity
 	 */
 	public void onPlay( View view )
 	{
-		if ( !this.recording.isRecordFinished )
+		int requestedState = this.sessionManager.getRequestedState();
+		if ( !this.recording.isRecordFinished && requestedState != AudioSessionManager.RECORDING )
 		{
 			Log.d( TAG, "No record found" );
 			return;
 		}
 
 		Log.d( TAG, "Play button pressed" );
-		if ( this.playback.isPlaying )
+		if ( requestedState == AudioSessionManager.PLAYING )
 		{
 			this.stopPlaying();
 		}
 		else
 		{
-
-			if ( this.recording.isRecording )
+			if ( requestedState == AudioSessionManager.RECORDING )
 			{
-				this.stopRecording();
+				this.showRecordingStopped();
 			}
 
 			this.startPlaying();
@@ -104,68 +142,43 @@ public class MainActivity extends Activity
 	}
 
 	/**
-	 *	Starts the thread to play a recorded file.
+	 *	Plays the last recording once the active session has ended.
 	 */
 	private void startPlaying()
 	{
-
-		if ( this.recording.isRecordFinished && this.recording.recordedFile != null )
-		{
-			new Thread( new Runnable()
-			{
-				@Override
-				public void run()
-				{
-					playback.playFile( recording.recordedFile );
-					Log.d( TAG, "Play thread end" );
-				}
-			} ).start();
-
-		}
-
+		this.sessionManager.startPlaying();
 	}
 
 	/**
-	 *	Stops the playback thread.
+	 *	Stops the playback.
 	 */
 	private void stopPlaying()
 	{
-		this.playback.stopPlaying();
-
+		this.sessionManager.stop();
 	}
 
 	/**
-	 *	Starts recording and ends the current playback thread if necessary.
+	 *	Starts recording once the current playback has ended.
 	 */
 	private void startRecording()
 	{
-		if ( this.playback.isPlaying )
-		{
-			this.playback.stopPlaying();
-		}
-
 		this.recordButton.setText( "Stop" );
 		this.recordStatus.setText( "Recording..." );
-		new Thread( new Runnable()
-		{
-			@Override
-			public void run()
-			{
-				recording.recordToFile();
-				
-				Log.d( TAG, "Record thread end" );
-			}
-		} ).start();
+		this.sessionManager.startRecording();
 	}
 
 	/**
 	 *	Stops recording.
 	 */
 	private void stopRecording()
+	{
+		this.showRecordingStopped();
+		this.sessionManager.stop();
+	}
+
+	private void showRecordingStopped()
 	{
 		this.recordButton.setText( "Record" );
 		this.recordStatus.setText( "Press 'Record' to start recording" );
-
-		this.recording.stopRecording();
 	}
 }
@@ -0,0 +1,309 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Process-wide counters and latency histograms of the codec and the audio pipeline, in place of per-frame logging.
+ *
+ *	Encoders, decoders, the recording ring and the jitter buffer report every frame here. Recording costs a few atomic
+ *	increments and never allocates or blocks. {@link #snapshot()} copies the current values, {@link #startExport(long, Exporter)}
+ *	hands a snapshot to an exporter periodically, for example {@link #LOG_EXPORTER}.
+ *
+ *	Values are cumulative since start or the last {@link #reset()}, rates follow from two snapshots and their times.
+ */
+public class Metrics
+{
+	private static String			TAG					= "Metrics";
+
+	private static final Metrics	INSTANCE			= new Metrics();
+
+	/**
+	 * Receives the snapshots of a periodic export, on the export thread.
+	 */
+	public interface Exporter
+	{
+		void export( Snapshot snapshot );
+	}
+
+	/**
+	 * Writes every snapshot to the log.
+	 */
+	public static final Exporter	LOG_EXPORTER		= new Exporter()
+	{
+		@Override
+		public void export( Snapshot snapshot )
+		{
+			Log.i( TAG, snapshot.toString() );
+		}
+	};
+
+	//Codec
+	private final Histogram			encodeTime			= new Histogram();	// Nanoseconds per encoded frame
+	private final Histogram			decodeTime			= new Histogram();	// Nanoseconds per decoded, recovered or concealed frame
+	private final AtomicLong		pcmBytesEncoded		= new AtomicLong();
+	private final AtomicLong		packetBytesEncoded	= new AtomicLong();
+	private final AtomicLong		packetBytesDecoded	= new AtomicLong();
+	private final AtomicLong		pcmBytesDecoded		= new AtomicLong();
+
+	//Pipeline
+	private final AtomicLong		captureOverruns		= new AtomicLong();	// Captured frames dropped because the ring was full
+	private final AtomicLong		playbackUnderruns	= new AtomicLong();	// Frames concealed because no packet was there in time
+	private final Histogram			captureQueueDepth	= new Histogram();	// Frames waiting in the ring when the writer takes one
+	private final Histogram			jitterBufferDepth	= new Histogram();	// Frames buffered when one is played
+
+	//Export
+	private Timer					exportTimer			= null;
+
+	/**
+	 * @return The metrics of this process
+	 */
+	public static Metrics get()
+	{
+		return INSTANCE;
+	}
+
+	/**
+	 * @param frames Number of frames encoded in one call
+	 * @param nanos Time the call took
+	 * @param pcmBytes Size of the input signal
+	 * @param packetBytes Size of the packets
+	 */
+	public void framesEncoded( int frames, long nanos, int pcmBytes, int packetBytes )
+	{
+		long perFrame = nanos / Math.max( frames, 1 );
+		for ( int i = 0; i < frames; i++ )
+		{
+			this.encodeTime.record( perFrame );
+		}
+		this.pcmBytesEncoded.addAndGet( pcmBytes );
+		this.packetBytesEncoded.addAndGet( packetBytes );
+	}
+
+	/**
+	 * @param frames Number of packets decoded in one call, or 1 for a recovered or concealed frame
+	 * @param nanos Time the call took
+	 * @param packetBytes Size of the packets, 0 for concealment
+	 * @param pcmBytes Size of the decoded signal
+	 */
+	public void framesDecoded( int frames, long nanos, int packetBytes, int pcmBytes )
+	{
+		long perFrame = nanos / Math.max( frames, 1 );
+		for ( int i = 0; i < frames; i++ )
+		{
+			this.decodeTime.record( perFrame );
+		}
+		this.packetBytesDecoded.addAndGet( packetBytes );
+		this.pcmBytesDecoded.addAndGet( pcmBytes );
+	}
+
+	public void captureOverrun()
+	{
+		this.captureOverruns.incrementAndGet();
+	}
+
+	public void playbackUnderrun()
+	{
+		this.playbackUnderruns.incrementAndGet();
+	}
+
+	public void captureQueueDepth( int frames )
+	{
+		this.captureQueueDepth.record( frames );
+	}
+
+	public void jitterBufferDepth( int frames )
+	{
+		this.jitterBufferDepth.record( frames );
+	}
+
+	/**
+	 * @return Copy of all current values
+	 */
+	public Snapshot snapshot()
+	{
+		return new Snapshot( this );
+	}
+
+	/**
+	 * Sets all values back to 0, for example before a benchmark. Values recorded at the same time may get lost.
+	 */
+	public void reset()
+	{
+		this.encodeTime.reset();
+		this.decodeTime.reset();
+		this.pcmBytesEncoded.set( 0 );
+		this.packetBytesEncoded.set( 0 );
+		this.packetBytesDecoded.set( 0 );
+		this.pcmBytesDecoded.set( 0 );
+		this.captureOverruns.set( 0 );
+		this.playbackUnderruns.set( 0 );
+		this.captureQueueDepth.reset();
+		this.jitterBufferDepth.reset();
+	}
+
+	/**
+	 * Hands a snapshot to the exporter every period on a daemon thread, replacing an export started before.
+	 *
+	 * @param periodMillis Time between two snapshots
+	 * @param exporter Receives the snapshots, see {@link #LOG_EXPORTER}
+	 */
+	public synchronized void startExport( long periodMillis, final Exporter exporter )
+	{
+		this.stopExport();
+		this.exportTimer = new Timer( "Metrics export", true );
+		this.exportTimer.scheduleAtFixedRate( new TimerTask()
+		{
+			@Override
+			public void run()
+			{
+				exporter.export( snapshot() );
+			}
+		}, periodMillis, periodMillis );
+	}
+
+	public synchronized void stopExport()
+	{
+		if ( this.exportTimer != null )
+		{
+			this.exportTimer.cancel();
+			this.exportTimer = null;
+		}
+	}
+
+	/**
+	 * Values of all metrics at one point in time.
+	 */
+	public static class Snapshot
+	{
+		private final long		time;	// Milliseconds, System.nanoTime() based
+		private final Histogram	encodeTime;
+		private final Histogram	decodeTime;
+		private final long		pcmBytesEncoded;
+		private final long		packetBytesEncoded;
+		private final long		packetBytesDecoded;
+		private final long		pcmBytesDecoded;
+		private final long		captureOverruns;
+		private final long		playbackUnderruns;
+		private final Histogram	captureQueueDepth;
+		private final Histogram	jitterBufferDepth;
+
+		private Snapshot( Metrics metrics )
+		{
+			this.time = System.nanoTime() / 1000000;
+			this.encodeTime = new Histogram( metrics.encodeTime );
+			this.decodeTime = new Histogram( metrics.decodeTime );
+			this.pcmBytesEncoded = metrics.pcmBytesEncoded.get();
+			this.packetBytesEncoded = metrics.packetBytesEncoded.get();
+			this.packetBytesDecoded = metrics.packetBytesDecoded.get();
+			this.pcmBytesDecoded = metrics.pcmBytesDecoded.get();
+			this.captureOverruns = metrics.captureOverruns.get();
+			this.playbackUnderruns = metrics.playbackUnderruns.get();
+			this.captureQueueDepth = new Histogram( metrics.captureQueueDepth );
+			this.jitterBufferDepth = new Histogram( metrics.jitterBufferDepth );
+		}
+
+		public long getTime()
+		{
+			return this.time;
+		}
+
+		/**
+		 * @return Nanoseconds per encoded frame
+		 */
+		public Histogram getEncodeTime()
+		{
+			return this.encodeTime;
+		}
+
+		/**
+		 * @return Nanoseconds per decoded frame
+		 */
+		public Histogram getDecodeTime()
+		{
+			return this.decodeTime;
+		}
+
+		public long getPcmBytesEncoded()
+		{
+			return this.pcmBytesEncoded;
+		}
+
+		public long getPacketBytesEncoded()
+		{
+			return this.packetBytesEncoded;
+		}
+
+		public long getPacketBytesDecoded()
+		{
+			return this.packetBytesDecoded;
+		}
+
+		public long getPcmBytesDecoded()
+		{
+			return this.pcmBytesDecoded;
+		}
+
+		public long getCaptureOverruns()
+		{
+			return this.captureOverruns;
+		}
+
+		public long getPlaybackUnderruns()
+		{
+			return this.playbackUnderruns;
+		}
+
+		/**
+		 * @return Frames waiting in the recording ring
+		 */
+		public Histogram getCaptureQueueDepth()
+		{
+			return this.captureQueueDepth;
+		}
+
+		/**
+		 * @return Frames buffered in the jitter buffer
+		 */
+		public Histogram getJitterBufferDepth()
+		{
+			return this.jitterBufferDepth;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "encode ns [" + this.encodeTime + "] decode ns [" + this.decodeTime + "] "
+					+ "bytes pcm>opus " + this.pcmBytesEncoded + ">" + this.packetBytesEncoded + " opus>pcm " + this.packetBytesDecoded + ">" + this.pcmBytesDecoded + " "
+					+ "overruns " + this.captureOverruns + " underruns " + this.playbackUnderruns + " "
+					+ "ring depth [" + this.captureQueueDepth + "] jitter buffer depth [" + this.jitterBufferDepth + "]";
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Mixes the decoded frames of several talkers into one playout frame.
+ *
+ *	Every frame period the inputs are added with {@link #add(int, short[], int)} into an int sum, each with its own gain,
+ *	and {@link #mix(short[])} turns the sum into the output frame. When the sum exceeds the 16 bit range, the whole mix is
+ *	attenuated so it just fits, and the attenuation is released slowly afterwards. Whatever still exceeds the range,
+ *	like the start of a frame while the gain ramps down, is saturated instead of wrapping around.
+ *
+ *	The inner loops are plain array loops without branches, so the compiler can vectorize them. Nothing is allocated
+ *	after construction. Gains may be set from any thread, everything else belongs to the playout thread.
+ */
+public class Mixer
+{
+	public static final float	MAX_GAIN		= 4f;
+
+	private static final int	GAIN_BITS		= 12;	// Fixed point gains with 12 fractional bits
+	private static final int	UNITY_GAIN		= 1 << GAIN_BITS;
+	private static final float	RELEASE			= 0.05f;	// Part of the remaining attenuation released per frame, about 400ms at 20ms frames
+
+	//Fields
+	private final int[]					sum;
+	private final AtomicIntegerArray	gains;
+	private float						attenuation		= 1f;	// Gain applied to the sum at the end of the last frame
+	private int							inputsAdded		= 0;	// Inputs added to the current sum
+
+	//Statistics
+	private long						framesMixed		= 0;
+	private long						framesAttenuated	= 0;
+
+	/**
+	 * @param maxInputs Number of inputs, one per simultaneous talker
+	 * @param frameSamples Samples per frame over all channels
+	 */
+	public Mixer( int maxInputs, int frameSamples )
+	{
+		this.sum = new int[frameSamples];
+		this.gains = new AtomicIntegerArray( maxInputs );
+		for ( int input = 0; input < maxInputs; input++ )
+		{
+			this.gains.set( input, UNITY_GAIN );
+		}
+	}
+
+	/**
+	 * Adds the decoded frame of one input to the current mix.
+	 * 
+	 * @param input Index of the input, determines the gain
+	 * @param frame Decoded frame
+	 * @param samples Valid samples in frame, the rest of the frame period counts as silence
+	 */
+	public void add( int input, short[] frame, int samples )
+	{
+		accumulate( this.sum, frame, this.gains.get( input ), Math.min( samples, this.sum.length ) );
+		this.inputsAdded++;
+	}
+
+	/**
+	 * Writes the current mix to out and starts the next one.
+	 * 
+	 * @param out Receives one frame, silence if nothing was added
+	 * @return Number of inputs in the mix
+	 */
+	public int mix( short[] out )
+	{
+		int length = this.sum.length;
+		float gain = this.attenuation + ( 1f - this.attenuation ) * RELEASE;
+		int peak = peak( this.sum, length );
+		if ( peak * gain > Short.MAX_VALUE )
+		{
+			gain = ( float ) Short.MAX_VALUE / peak;
+			this.framesAttenuated++;
+		}
+		saturate( this.sum, this.attenuation, gain, out, length );
+		this.attenuation = gain;
+
+		Arrays.fill( this.sum, 0 );
+		int inputs = this.inputsAdded;
+		this.inputsAdded = 0;
+		this.framesMixed++;
+		return inputs;
+	}
+
+	/**
+	 * sum[i] += in[i] * gain, with a fixed point gain.
+	 */
+	static void accumulate( int[] sum, short[] in, int gain, int length )
+	{
+		for ( int i = 0; i < length; i++ )
+		{
+			sum[i] += ( in[i] * gain ) >> GAIN_BITS;
+		}
+	}
+
+	/**
+	 * @return Largest magnitude in sum
+	 */
+	static int peak( int[] sum, int length )
+	{
+		int peak = 0;
+		for ( int i = 0; i < length; i++ )
+		{
+			peak = Math.max( peak, Math.abs( sum[i] ) );
+		}
+		return peak;
+	}
+
+	/**
+	 * Scales sum with a gain ramping linearly from startGain to endGain and saturates it to 16 bit.
+	 */
+	static void saturate( int[] sum, float startGain, float endGain, short[] out, int length )
+	{
+		float step = ( endGain - startGain ) / length;
+		for ( int i = 0; i < length; i++ )
+		{
+			int value = ( int ) ( sum[i] * ( startGain + step * i ) );
+			out[i] = ( short ) Math.max( Short.MIN_VALUE, Math.min( Short.MAX_VALUE, value ) );
+		}
+	}
+
+	/**
+	 * @param input Index of the input
+	 * @param gain Linear gain from 0 up to MAX_GAIN, 1 leaves the input unchanged
+	 */
+	public void setGain( int input, float gain )
+	{
+		if ( gain < 0 || gain > MAX_GAIN )
+		{
+			throw new IllegalArgumentException( "Gain " + gain + " out of range 0.." + MAX_GAIN );
+		}
+		this.gains.set( input, Math.round( gain * UNITY_GAIN ) );
+	}
+
+	public float getGain( int input )
+	{
+		return ( float ) this.gains.get( input ) / UNITY_GAIN;
+	}
+
+	/**
+	 * @return Number of inputs
+	 */
+	public int getMaxInputs()
+	{
+		return this.gains.length();
+	}
+
+	/**
+	 * @return Gain the automatic attenuation applied at the end of the last frame, 1 if the mix fits
+	 */
+	public float getAttenuation()
+	{
+		return this.attenuation;
+	}
+
+	/**
+	 * @return Frames mixed so far
+	 */
+	public long getFramesMixed()
+	{
+		return this.framesMixed;
+	}
+
+	/**
+	 * @return Frames that had to be attenuated to fit the 16 bit range
+	 */
+	public long getFramesAttenuated()
+	{
+		return this.framesAttenuated;
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	CRC-32 of Ogg pages: polynomial 0x04c11db7, not reflected, initial value and final xor 0.
+ *	Table driven, the CRC can be updated piece by piece over header, segment table and data.
+ */
+final class OggCrc
+{
+	private static final int[]	TABLE	= new int[256];
+
+	static
+	{
+		for ( int i = 0; i < 256; i++ )
+		{
+			int crc = i << 24;
+			for ( int bit = 0; bit < 8; bit++ )
+			{
+				crc = ( crc & 0x80000000 ) != 0 ? ( crc << 1 ) ^ 0x04c11db7 : crc << 1;
+			}
+			TABLE[i] = crc;
+		}
+	}
+
+	private OggCrc()
+	{
+	}
+
+	/**
+	 * @param crc CRC of the bytes before, 0 to start
+	 * @return CRC including the given bytes
+	 */
+	static int update( int crc, byte[] buffer, int offset, int length )
+	{
+		for ( int i = offset; i < offset + length; i++ )
+		{
+			crc = ( crc << 8 ) ^ TABLE[( ( crc >>> 24 ) ^ buffer[i] ) & 0xFF];
+		}
+		return crc;
+	}
+
+	/**
+	 * @param crc CRC of the bytes before, 0 to start
+	 * @return CRC including the given bytes, read with absolute gets
+	 */
+	static int update( int crc, ByteBuffer buffer, int offset, int length )
+	{
+		for ( int i = offset; i < offset + length; i++ )
+		{
+			crc = ( crc << 8 ) ^ TABLE[( ( crc >>> 24 ) ^ buffer.get( i ) ) & 0xFF];
+		}
+		return crc;
+	}
+}
@@ -0,0 +1,719 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Reads the Opus packets of an Ogg Opus file (RFC 7845) and seeks to any point in time.
+ *
+ *	Every call of {@link #read(byte[], int, int)} returns exactly one packet, so an OpusDecoder can read straight from it.
+ *	{@link #readPacket()} returns the packet as a direct buffer for {@link OpusDecoder#decode(ByteBuffer, ShortBuffer)}
+ *	instead, without copying it. {@link #seek(long)} bisects the file by byte offset, syncing to the next page at each
+ *	probe, and needs O(log n) page reads for a file of n pages. The CRC of every page is checked, pages of other logical
+ *	streams are skipped, and so are damaged pages.
+ *
+ *	A reader created with the constructor reads pages with positional reads into one reused direct buffer. A reader
+ *	created with {@link #map(File)} maps the whole file and parses the pages in place, so reading costs no system call
+ *	and no copy at all. {@link #duplicate()} creates further readers of the same mapping, each with its own position,
+ *	for concurrent playback of one recording. A single reader is not thread-safe.
+ */
+public class OggOpusReader extends InputStream
+{
+	private static final int	MAX_PAGE_SIZE		= 27 + 255 + 255 * 255;
+	private static final int	PRE_ROLL			= 3840;	// 80ms at 48kHz decoded before a seek target, as RFC 7845 recommends
+	private static final int	BISECTION_SPAN		= 4096;	// Bytes below which seek() walks the pages instead of bisecting
+	private static final int	CONTINUED			= 0x01;
+	private static final byte[]	CRC_FIELD			= new byte[4];	// The CRC is computed with its own field set to 0
+
+	//Fields
+	private final RandomAccessFile	file;		// Null for a mapped reader
+	private final FileChannel		channel;	// Null for a mapped reader
+	private final ByteBuffer		mapping;	// Whole file of a mapped reader, own duplicate per reader, null otherwise
+	private final long				size;
+	private final ByteBuffer		page;		// Holds the current page, from pageStart on
+	private int						pageStart;
+	private final ByteBuffer		packetView;	// Returned by readPacket() for packets within one page
+	private final ByteBuffer		packet		= ByteBuffer.allocateDirect( OpusEncoder.MAX_PACKET_SIZE );	// Packet assembled from several pages
+
+	//Stream header
+	private int						serialNumber;
+	private int						numberOfChannels;
+	private int						preSkip;
+	private int						inputSampleRate;
+	private long					audioStart;		// Offset of the first audio page
+	private long					lastGranule;
+
+	//Read position
+	private long					nextPageOffset;
+	private int						segmentIndex	= 0;
+	private int						segmentCount	= 0;	// Segments of the current page
+	private int						dataPosition	= 0;	// Offset of the next segment from pageStart
+	private int						pageFlags;		// Header type of the current page
+	private long					pageGranule;	// Granule position of the current page
+	private long					position;		// Start of the next packet in 48kHz samples, including the pre-skip
+	private ByteBuffer				pendingPacket	= null;	// Packet read() had no room for, returned by the next read
+
+	//Statistics
+	private long					pageReads		= 0;
+
+	/**
+	 * Opens the file and reads its headers. Pages are read with positional reads.
+	 *
+	 * @param file An Ogg Opus file
+	 * @throws IOException If the file is no Ogg Opus file
+	 */
+	public OggOpusReader( File file ) throws IOException
+	{
+		this.file = new RandomAccessFile( file, "r" );
+		this.channel = this.file.getChannel();
+		this.mapping = null;
+		this.page = ByteBuffer.allocateDirect( MAX_PAGE_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+		this.packetView = this.page.duplicate();
+		try
+		{
+			this.size = this.channel.size();
+			this.readHeaders();
+		}
+		catch ( IOException e )
+		{
+			this.file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Creates a reader of a mapped file, see {@link #map(File)} and {@link #duplicate()}.
+	 */
+	private OggOpusReader( ByteBuffer mapping ) throws IOException
+	{
+		this.file = null;
+		this.channel = null;
+		this.mapping = mapping.duplicate().order( ByteOrder.LITTLE_ENDIAN );
+		this.size = mapping.capacity();
+		this.page = this.mapping;
+		this.packetView = this.mapping.duplicate();
+		this.readHeaders();
+	}
+
+	/**
+	 * Maps the file into memory and reads its headers. The mapping lives until all readers of it are garbage collected,
+	 * closing the file right away does not invalidate it.
+	 *
+	 * @param file An Ogg Opus file smaller than 2GB
+	 * @return A reader parsing the pages in the mapped memory
+	 * @throws IOException If the file is no Ogg Opus file or too large to be mapped
+	 */
+	public static OggOpusReader map( File file ) throws IOException
+	{
+		return map( file, 0, -1 );
+	}
+
+	/**
+	 * Maps a region of a file holding one complete Ogg Opus stream, like a recording in a segment of a {@link RecordingStore}.
+	 *
+	 * @param file File containing the stream
+	 * @param offset Start of the stream in the file
+	 * @param length Length of the stream in bytes, below 2GB, or -1 for the rest of the file
+	 * @return A reader parsing the pages in the mapped memory
+	 * @throws IOException If the region holds no Ogg Opus stream or is too large to be mapped
+	 */
+	public static OggOpusReader map( File file, long offset, long length ) throws IOException
+	{
+		RandomAccessFile randomAccessFile = new RandomAccessFile( file, "r" );
+		try
+		{
+			FileChannel channel = randomAccessFile.getChannel();
+			if ( length < 0 )
+			{
+				length = channel.size() - offset;
+			}
+			if ( length > Integer.MAX_VALUE )
+			{
+				throw new IOException( "Stream of " + length + " bytes too large to be mapped" );
+			}
+			return new OggOpusReader( channel.map( FileChannel.MapMode.READ_ONLY, offset, length ) );
+		}
+		finally
+		{
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Creates another reader of the same mapped file, positioned at the first packet. Nothing is read from the file.
+	 *
+	 * @return A new reader sharing the mapping of this one
+	 * @throws IOException
+	 */
+	public OggOpusReader duplicate() throws IOException
+	{
+		if ( this.mapping == null )
+		{
+			throw new UnsupportedOperationException( "Only mapped readers can be duplicated" );
+		}
+		return new OggOpusReader( this.mapping );
+	}
+
+	/**
+	 * @return True if the reader parses a mapping of the file
+	 */
+	public boolean isMapped()
+	{
+		return this.mapping != null;
+	}
+
+	private void readHeaders() throws IOException
+	{
+		if ( this.readPage( 0, false ) < 0 || this.segmentCount == 0 || !this.startsWith( "OpusHead", 19 ) )
+		{
+			throw new IOException( "No Ogg Opus file" );
+		}
+		int head = this.pageStart + this.dataPosition;
+		this.serialNumber = this.page.getInt( this.pageStart + 14 );
+		this.numberOfChannels = this.page.get( head + 9 ) & 0xFF;
+		this.preSkip = this.page.getShort( head + 10 ) & 0xFFFF;
+		this.inputSampleRate = this.page.getInt( head + 12 );
+		if ( this.page.get( head + 18 ) != 0 )
+		{
+			throw new IOException( "Only mono and stereo streams are supported" );
+		}
+
+		this.audioStart = this.findAudioStart();
+
+		this.lastGranule = this.findLastGranule();
+		this.rewind();
+	}
+
+	/**
+	 * The comment header may span several pages, audio starts on the page after the one completing the second packet.
+	 *
+	 * @return Offset of the first page after the headers
+	 */
+	private long findAudioStart() throws IOException
+	{
+		long offset = 0;
+		int headerPackets = 0;
+		while ( headerPackets < 2 )
+		{
+			long next = this.readPage( offset, false );
+			if ( next < 0 )
+			{
+				throw new IOException( "Ogg Opus file without comment header" );
+			}
+			for ( int i = 0; i < this.segmentCount; i++ )
+			{
+				if ( ( this.page.get( this.pageStart + 27 + i ) & 0xFF ) < 255 )
+				{
+					headerPackets++;
+				}
+			}
+			offset = next;
+		}
+		return offset;
+	}
+
+	/**
+	 * Reads the next packet.
+	 *
+	 * @return Length of the packet, -1 at the end of the stream
+	 * @throws IOException If the packet does not fit into length bytes, it stays the next packet then, or the file can not be read
+	 */
+	@Override
+	public int read( byte[] buffer, int offset, int length ) throws IOException
+	{
+		ByteBuffer packet = this.readPacket();
+		if ( packet == null )
+		{
+			return -1;
+		}
+		int packetLength = packet.remaining();
+		if ( packetLength > length )
+		{
+			this.pendingPacket = packet;
+			this.position -= Math.max( 0, OpusPacket.getSamples( packet ) );
+			throw new IOException( "Buffer of " + length + " bytes too small for a packet of " + packetLength + " bytes" );
+		}
+		packet.get( buffer, offset, packetLength );
+		return packetLength;
+	}
+
+	/**
+	 * Reads the next packet without copying it, unless it is split across pages.
+	 *
+	 * @return Direct buffer holding the packet between position and limit, valid until the next call on this reader.
+	 * 			Null at the end of the stream.
+	 * @throws IOException If the file can not be read
+	 */
+	public ByteBuffer readPacket() throws IOException
+	{
+		if ( this.pendingPacket != null )
+		{
+			ByteBuffer packet = this.pendingPacket;
+			this.pendingPacket = null;
+			return this.packetRead( packet );
+		}
+		boolean isAssembling = false;	// Collecting a packet that continues on the next page
+		while ( true )
+		{
+			while ( this.segmentIndex == this.segmentCount )
+			{
+				if ( this.readPage( this.nextPageOffset, true ) < 0 && this.findPage( this.nextPageOffset + 1, this.size ) < 0 )
+				{
+					return null;	// End of the file, a damaged page is skipped by syncing to the next valid one
+				}
+				if ( ( this.pageFlags & CONTINUED ) != 0 && !isAssembling )
+				{
+					this.skipSegments();	// The start of the packet is on a page before a seek target or damaged page
+				}
+				else if ( ( this.pageFlags & CONTINUED ) == 0 && isAssembling )
+				{
+					isAssembling = false;	// The rest of the packet is lost
+				}
+			}
+
+			int start = this.pageStart + this.dataPosition;
+			int lacing = this.skipSegments();
+			int end = this.pageStart + this.dataPosition;
+
+			if ( isAssembling || lacing == 255 )
+			{
+				if ( !isAssembling )
+				{
+					this.packet.clear();
+					isAssembling = true;
+				}
+				if ( end - start > this.packet.remaining() )
+				{
+					throw new IOException( "Packet larger than " + this.packet.capacity() + " bytes" );
+				}
+				this.packetView.clear();
+				this.packetView.position( start );
+				this.packetView.limit( end );
+				this.packet.put( this.packetView );
+				if ( lacing == 255 )
+				{
+					continue;
+				}
+				this.packet.flip();
+				return this.packetRead( this.packet );
+			}
+
+			this.packetView.clear();
+			this.packetView.position( start );
+			this.packetView.limit( end );
+			return this.packetRead( this.packetView );
+		}
+	}
+
+	/**
+	 * Advances the read position over the packet.
+	 */
+	private ByteBuffer packetRead( ByteBuffer packet )
+	{
+		this.position += Math.max( 0, OpusPacket.getSamples( packet ) );
+		return packet;
+	}
+
+	/**
+	 * Moves over the segments of the current page up to the end of a packet or the page.
+	 *
+	 * @return Lacing value of the last segment, 255 if the packet continues on the next page
+	 */
+	private int skipSegments()
+	{
+		int lacing = 255;
+		while ( lacing == 255 && this.segmentIndex < this.segmentCount )
+		{
+			lacing = this.page.get( this.pageStart + 27 + this.segmentIndex++ ) & 0xFF;
+			this.dataPosition += lacing;
+		}
+		return lacing;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		throw new UnsupportedOperationException( "Packets can not be read byte by byte" );
+	}
+
+	/**
+	 * Positions the reader so the next packet starts at least PRE_ROLL samples before the given time.
+	 * The decoder should decode from there and discard the returned number of samples, which also takes care of the pre-skip.
+	 *
+	 * @param millis Time from the start of the recording in milliseconds
+	 * @return Samples at 48kHz to discard from the decoded signal before the given time is reached
+	 * @throws IOException
+	 */
+	public long seek( long millis ) throws IOException
+	{
+		long target = this.preSkip + Math.min( millis * 48, this.lastGranule - this.preSkip );
+		long preRollTarget = Math.max( 0, target - PRE_ROLL );
+
+		// Bisection for the last page ending at or before preRollTarget, reading starts behind it
+		long startOffset = this.audioStart;
+		long startGranule = 0;
+		long low = this.audioStart;
+		long high = this.size;
+		while ( high - low > BISECTION_SPAN )
+		{
+			long middle = low + ( high - low ) / 2;
+			long pageOffset = this.findPage( middle, high );
+			if ( pageOffset < 0 )
+			{
+				high = middle;
+				continue;
+			}
+			if ( this.pageGranule >= 0 && this.pageGranule <= preRollTarget )
+			{
+				low = this.nextPageOffset;
+				startOffset = this.nextPageOffset;
+				startGranule = this.pageGranule;
+			}
+			else
+			{
+				high = middle;
+			}
+		}
+
+		// Walk the last few pages of the remaining span
+		long offset = low;
+		while ( offset < high )
+		{
+			long pageOffset = this.findPage( offset, high );
+			if ( pageOffset < 0 || this.pageGranule > preRollTarget )
+			{
+				break;
+			}
+			if ( this.pageGranule >= 0 )
+			{
+				startOffset = this.nextPageOffset;
+				startGranule = this.pageGranule;
+			}
+			offset = this.nextPageOffset;
+		}
+
+		this.segmentIndex = 0;
+		this.segmentCount = 0;
+		this.nextPageOffset = startOffset;
+		this.position = startGranule;
+		this.pendingPacket = null;
+
+		return target - startGranule;
+	}
+
+	/**
+	 * Goes back to the first packet.
+	 */
+	public void rewind()
+	{
+		this.segmentIndex = 0;
+		this.segmentCount = 0;
+		this.nextPageOffset = this.audioStart;
+		this.position = 0;
+		this.pendingPacket = null;
+	}
+
+	/**
+	 * Finds the first valid page of the stream starting at or after offset and before limit, and reads it.
+	 *
+	 * @return Offset of the page, -1 if there is none
+	 */
+	private long findPage( long offset, long limit ) throws IOException
+	{
+		if ( this.mapping != null )
+		{
+			for ( ; offset < limit && offset <= this.size - 4; offset++ )
+			{
+				if ( this.mapping.getInt( ( int ) offset ) == 0x5367674F && this.readPage( offset, true ) >= 0 )	// "OggS" read little endian
+				{
+					return offset;
+				}
+			}
+			return -1;
+		}
+
+		ByteBuffer scan = this.page;
+		while ( offset < limit )
+		{
+			scan.clear();
+			int bytesRead = this.channel.read( scan, offset );
+			this.pageReads++;
+			if ( bytesRead < 4 )
+			{
+				return -1;
+			}
+
+			for ( int i = 0; i <= bytesRead - 4 && offset + i < limit; i++ )
+			{
+				if ( scan.getInt( i ) == 0x5367674F )
+				{
+					if ( this.readPage( offset + i, true ) >= 0 )
+					{
+						return offset + i;
+					}
+					scan.clear();
+					this.channel.read( scan, offset );	// readPage replaced the scanned bytes
+				}
+			}
+			offset += bytesRead - 3;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Granule position of the last page of the stream
+	 */
+	private long findLastGranule() throws IOException
+	{
+		for ( long end = this.size; end > this.audioStart; end -= MAX_PAGE_SIZE )
+		{
+			long lastGranule = -1;
+			long offset = Math.max( this.audioStart, end - MAX_PAGE_SIZE );
+			while ( true )
+			{
+				long pageOffset = this.findPage( offset, this.size );
+				if ( pageOffset < 0 )
+				{
+					break;
+				}
+				if ( this.pageGranule >= 0 )
+				{
+					lastGranule = this.pageGranule;
+				}
+				offset = this.nextPageOffset;
+			}
+			if ( lastGranule >= 0 )
+			{
+				return lastGranule;
+			}
+		}
+		return this.preSkip;
+	}
+
+	/**
+	 * Reads and checks the page at offset and makes it the current page.
+	 *
+	 * @param checkSerial Only accept pages of the stream found in the headers
+	 * @return Offset of the next page, -1 if there is no valid page at offset
+	 */
+	private long readPage( long offset, boolean checkSerial ) throws IOException
+	{
+		ByteBuffer page = this.page;
+		while ( true )
+		{
+			int length = this.loadPage( offset );
+			if ( length < 0 )
+			{
+				return -1;
+			}
+			this.pageReads++;
+
+			int start = this.pageStart;
+			int crc = OggCrc.update( 0, page, start, 22 );
+			crc = OggCrc.update( crc, CRC_FIELD, 0, 4 );
+			crc = OggCrc.update( crc, page, start + 26, length - 26 );
+			if ( crc != page.getInt( start + 22 ) )
+			{
+				return -1;
+			}
+
+			offset += length;
+			if ( checkSerial && page.getInt( start + 14 ) != this.serialNumber )
+			{
+				continue;	// Page of another logical stream
+			}
+
+			this.segmentCount = page.get( start + 26 ) & 0xFF;
+			this.segmentIndex = 0;
+			this.dataPosition = 27 + this.segmentCount;
+			this.pageFlags = page.get( start + 5 );
+			this.pageGranule = page.getLong( start + 6 );
+			this.nextPageOffset = offset;
+			return offset;
+		}
+	}
+
+	/**
+	 * Makes the page at offset available in page from pageStart on. A mapped reader only checks that the page lies
+	 * within the file, otherwise the page is read in three steps: fixed header, segment table and data.
+	 *
+	 * @return Length of the page, -1 if there is no complete page at offset
+	 */
+	private int loadPage( long offset ) throws IOException
+	{
+		ByteBuffer page = this.page;
+		if ( this.mapping != null )
+		{
+			if ( offset < 0 || offset > this.size - 27 || page.getInt( ( int ) offset ) != 0x5367674F )
+			{
+				return -1;
+			}
+			int start = ( int ) offset;
+			int segments = page.get( start + 26 ) & 0xFF;
+			if ( offset > this.size - 27 - segments )
+			{
+				return -1;
+			}
+			int length = 27 + segments;
+			for ( int i = 0; i < segments; i++ )
+			{
+				length += page.get( start + 27 + i ) & 0xFF;
+			}
+			this.pageStart = start;
+			return offset <= this.size - length ? length : -1;
+		}
+
+		this.pageStart = 0;
+		page.clear();
+		page.limit( 27 );
+		if ( this.readFully( page, offset ) < 27 || page.getInt( 0 ) != 0x5367674F )
+		{
+			return -1;
+		}
+		int segments = page.get( 26 ) & 0xFF;
+		page.limit( 27 + segments );
+		if ( this.readFully( page, offset ) < page.limit() )
+		{
+			return -1;
+		}
+		int length = 27 + segments;
+		for ( int i = 0; i < segments; i++ )
+		{
+			length += page.get( 27 + i ) & 0xFF;
+		}
+		page.limit( length );
+		return this.readFully( page, offset ) < length ? -1 : length;
+	}
+
+	/**
+	 * Reads from offset + position up to the limit of buffer.
+	 *
+	 * @return Position of buffer after reading
+	 */
+	private int readFully( ByteBuffer buffer, long offset ) throws IOException
+	{
+		while ( buffer.hasRemaining() )
+		{
+			if ( this.channel.read( buffer, offset + buffer.position() ) < 0 )
+			{
+				break;
+			}
+		}
+		return buffer.position();
+	}
+
+	/**
+	 * @return True if the first packet of the current page starts with magic and is at least minLength bytes long
+	 */
+	private boolean startsWith( String magic, int minLength )
+	{
+		int packetLength = 0;
+		for ( int i = 0; i < this.segmentCount; i++ )
+		{
+			int lacing = this.page.get( this.pageStart + 27 + i ) & 0xFF;
+			packetLength += lacing;
+			if ( lacing < 255 )
+			{
+				break;
+			}
+		}
+		if ( packetLength < Math.max( minLength, magic.length() ) )
+		{
+			return false;
+		}
+		for ( int i = 0; i < magic.length(); i++ )
+		{
+			if ( this.page.get( this.pageStart + this.dataPosition + i ) != magic.charAt( i ) )
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return Start of the next packet in milliseconds, after subtracting the pre-skip
+	 */
+	public long getPosition()
+	{
+		return Math.max( 0, this.position - this.preSkip ) / 48;
+	}
+
+	/**
+	 * @return Duration of the recording in milliseconds
+	 */
+	public long getDuration()
+	{
+		return Math.max( 0, this.lastGranule - this.preSkip ) / 48;
+	}
+
+	public int getNumberOfChannels()
+	{
+		return this.numberOfChannels;
+	}
+
+	/**
+	 * @return Samples at 48kHz to discard at the start of the stream
+	 */
+	public int getPreSkip()
+	{
+		return this.preSkip;
+	}
+
+	/**
+	 * @return Sampling rate of the recorded signal, informational only
+	 */
+	public int getInputSampleRate()
+	{
+		return this.inputSampleRate;
+	}
+
+	/**
+	 * @return Pages read or scanned so far, to check the cost of seeking
+	 */
+	public long getPageReads()
+	{
+		return this.pageReads;
+	}
+
+	/**
+	 * Closes the file. A mapped reader has nothing to close, its mapping is released with the last reader.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if ( this.file != null )
+		{
+			this.file.close();
+		}
+	}
+}
@@ -0,0 +1,264 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Writes Opus packets as an Ogg Opus stream (RFC 7845).
+ *
+ *	Every call of {@link #write(byte[], int, int)} adds one packet, so an OpusEncoder can write straight into the writer.
+ *	The identification and comment headers are written before the first packet, so the pre-skip can still be set after
+ *	the encoder has been created. Packets are collected into pages of at most MAX_PAGE_DURATION, the granule position
+ *	of each page is the end of its last packet in 48kHz samples, counted from the first decoded sample, so the
+ *	pre-skip is part of it. A page never splits a packet, so every page starts with a whole packet and can be decoded on its own,
+ *	which is what {@link OggOpusReader#seek(long)} relies on.
+ *
+ *	Pages are assembled in preallocated arrays and handed to the output stream with two writes, the CRC is computed
+ *	while the page is assembled.
+ */
+public class OggOpusWriter extends OutputStream
+{
+	private static final int	MAX_PAGE_DURATION	= 48000 / 4;	// 250ms in 48kHz samples, the granularity of seeking
+	private static final int	MAX_PAGE_DATA		= 255 * 255;	// Data a page can hold with 255 full segments
+	private static final String	VENDOR				= "opus_android_demo";
+
+	// Header type flags
+	private static final int	BEGIN_OF_STREAM		= 0x02;
+	private static final int	END_OF_STREAM		= 0x04;
+
+	//Fields
+	private final OutputStream	out;
+	private final int			inputSampleRate;
+	private final int			numberOfChannels;
+	private final int			serialNumber		= new Random().nextInt();
+	private int					preSkip				= 0;
+	private boolean				isHeaderWritten		= false;
+	private boolean				isClosed			= false;
+
+	//Page being assembled
+	private final byte[]		pageHeader			= new byte[27 + 255];	// Fixed header and segment table
+	private final byte[]		pageData			= new byte[MAX_PAGE_DATA];
+	private int					segmentCount		= 0;
+	private int					pageDataLength		= 0;
+	private int					pageSequence		= 0;
+	private long				pageStartGranule	= 0;
+	private long				granulePosition		= 0;	// End of the last packet in 48kHz samples
+
+	/**
+	 * @param out Stream to write the pages to, usually a file
+	 * @param inputSampleRate Sampling rate of the recorded signal, informational only, Opus always runs at 48kHz
+	 * @param numberOfChannels Number of channels, 1 or 2
+	 */
+	public OggOpusWriter( OutputStream out, int inputSampleRate, int numberOfChannels )
+	{
+		this.out = out;
+		this.inputSampleRate = inputSampleRate;
+		this.numberOfChannels = numberOfChannels;
+	}
+
+	/**
+	 * Sets the number of 48kHz samples a player discards at the start, the lookahead of the encoder.
+	 * Must be called before the first packet is written.
+	 *
+	 * @param preSkip Samples at 48kHz, see {@link OpusEncoder#getLookahead()}
+	 */
+	public void setPreSkip( int preSkip )
+	{
+		if ( this.isHeaderWritten )
+		{
+			throw new IllegalStateException( "Headers already written" );
+		}
+		this.preSkip = preSkip;
+	}
+
+	/**
+	 * Adds one Opus packet.
+	 */
+	@Override
+	public void write( byte[] packet, int offset, int length ) throws IOException
+	{
+		if ( this.isClosed )
+		{
+			throw new IOException( "Writer already closed" );
+		}
+		int samples = OpusPacket.getSamples( packet, offset, length );
+		if ( samples < 0 || length > OpusEncoder.MAX_PACKET_SIZE )
+		{
+			throw new IOException( "Invalid opus packet of " + length + " bytes" );
+		}
+		this.writeHeaders();
+
+		if ( this.segmentCount + length / 255 + 1 > 255 || this.pageDataLength + length > MAX_PAGE_DATA )
+		{
+			this.writePage( 0 );
+		}
+
+		int remaining = length;
+		while ( remaining >= 255 )
+		{
+			this.pageHeader[27 + this.segmentCount++] = ( byte ) 255;
+			remaining -= 255;
+		}
+		this.pageHeader[27 + this.segmentCount++] = ( byte ) remaining;
+		System.arraycopy( packet, offset, this.pageData, this.pageDataLength, length );
+		this.pageDataLength += length;
+		this.granulePosition += samples;
+
+		if ( this.granulePosition - this.pageStartGranule >= MAX_PAGE_DURATION )
+		{
+			this.writePage( 0 );
+		}
+	}
+
+	@Override
+	public void write( int oneByte ) throws IOException
+	{
+		throw new UnsupportedOperationException( "Single bytes can not be written as a packet" );
+	}
+
+	/**
+	 * Writes the packets collected so far as a page and flushes the output stream.
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		if ( this.segmentCount > 0 )
+		{
+			this.writePage( 0 );
+		}
+		this.out.flush();
+	}
+
+	/**
+	 * Writes the remaining packets as the last page of the stream and closes the output stream.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if ( this.isClosed )
+		{
+			return;
+		}
+		this.writeHeaders();
+		this.writePage( END_OF_STREAM );
+		this.isClosed = true;
+		this.out.close();
+	}
+
+	/**
+	 * @return End of the last written packet in 48kHz samples, the pre-skip included
+	 */
+	public long getGranulePosition()
+	{
+		return this.granulePosition;
+	}
+
+	/**
+	 * Writes the identification and the comment header, each on its own page, unless already done.
+	 */
+	private void writeHeaders() throws IOException
+	{
+		if ( this.isHeaderWritten )
+		{
+			return;
+		}
+		this.isHeaderWritten = true;
+
+		int length = putAscii( this.pageData, 0, "OpusHead" );
+		this.pageData[length++] = 1;	// Version
+		this.pageData[length++] = ( byte ) this.numberOfChannels;
+		length = putLittleEndian( this.pageData, length, this.preSkip, 2 );
+		length = putLittleEndian( this.pageData, length, this.inputSampleRate, 4 );
+		length = putLittleEndian( this.pageData, length, 0, 2 );	// Output gain
+		this.pageData[length++] = 0;	// Channel mapping family: mono or stereo
+		this.writeHeaderPage( length, BEGIN_OF_STREAM );
+
+		length = putAscii( this.pageData, 0, "OpusTags" );
+		length = putLittleEndian( this.pageData, length, VENDOR.length(), 4 );
+		length = putAscii( this.pageData, length, VENDOR );
+		length = putLittleEndian( this.pageData, length, 0, 4 );	// No user comments
+		this.writeHeaderPage( length, 0 );
+	}
+
+	private void writeHeaderPage( int length, int flags ) throws IOException
+	{
+		this.pageHeader[27] = ( byte ) length;	// Both headers are shorter than 255 bytes
+		this.segmentCount = 1;
+		this.pageDataLength = length;
+		long granulePosition = this.granulePosition;
+		this.granulePosition = 0;
+		this.writePage( flags );
+		this.granulePosition = granulePosition;
+	}
+
+	/**
+	 * Writes the collected segments as one page.
+	 */
+	private void writePage( int flags ) throws IOException
+	{
+		byte[] header = this.pageHeader;
+		putAscii( header, 0, "OggS" );
+		header[4] = 0;	// Version
+		header[5] = ( byte ) flags;
+		putLittleEndian( header, 6, this.granulePosition, 8 );
+		putLittleEndian( header, 14, this.serialNumber, 4 );
+		putLittleEndian( header, 18, this.pageSequence++, 4 );
+		putLittleEndian( header, 22, 0, 4 );	// CRC, computed with this field set to 0
+		header[26] = ( byte ) this.segmentCount;
+
+		int headerLength = 27 + this.segmentCount;
+		int crc = OggCrc.update( 0, header, 0, headerLength );
+		crc = OggCrc.update( crc, this.pageData, 0, this.pageDataLength );
+		putLittleEndian( header, 22, crc, 4 );
+
+		this.out.write( header, 0, headerLength );
+		this.out.write( this.pageData, 0, this.pageDataLength );
+
+		this.segmentCount = 0;
+		this.pageDataLength = 0;
+		this.pageStartGranule = this.granulePosition;
+	}
+
+	private static int putAscii( byte[] buffer, int offset, String text )
+	{
+		for ( int i = 0; i < text.length(); i++ )
+		{
+			buffer[offset++] = ( byte ) text.charAt( i );
+		}
+		return offset;
+	}
+
+	private static int putLittleEndian( byte[] buffer, int offset, long value, int bytes )
+	{
+		for ( int i = 0; i < bytes; i++ )
+		{
+			buffer[offset++] = ( byte ) ( value >>> ( 8 * i ) );
+		}
+		return offset;
+	}
+}
@@ -25,6 +25,9 @@ package de.stuttgart.hdm.opuswalkietalkie;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 
 import android.util.Log;
 
@@ -35,6 +38,15 @@ import android.util.Log;
  *	OpusDecoder class extending FilterOutputStream
  *
  *	Uses native c code via JNI to read and decode bytes from an input stream and write them into an array.
+ *	Every instance owns its own native decoder state, so several decoders can run in parallel,
+ *	each one used from its own thread.
+ *
+ *	Besides the stream interface, {@link #decode(ByteBuffer, ShortBuffer)} decodes between caller-owned
+ *	direct buffers without allocating anything per packet, and {@link #decodeFrames(byte[], int[], int, short[])}
+ *	decodes a whole block of packets in a single JNI call. Lost packets are handled with
+ *	{@link #decodeLost(ShortBuffer, int)} and {@link #decodeFec(ByteBuffer, ShortBuffer, int)}.
+ *
+ *	Created with a {@link ChannelMapping}, the decoder is an Opus multistream decoder for the packets of a multistream encoder.
  *
  *	Native resource: de_stuttgart_hdm_opuswalkietalkie_OpusDecoder.h, e_stuttgart_hdm_opuswalkietalkie_OpusDecoder.c
  */
@@ -43,12 +55,18 @@ public class OpusDecoder extends FilterInputStream
 	private static String	TAG	= "OpusDecoder";
 
 	//Native methods
-	private native boolean nativeInitDecoder( int samplingRate, int numberOfChannels, int frameSize );
-	private native int nativeDecodeBytes( byte[] in , short[] out);
-	private native boolean nativeReleaseDecoder();
+	private native long nativeInitDecoder( int samplingRate, int numberOfChannels, int frameSize );
+	private native long nativeInitMultistreamDecoder( int samplingRate, int numberOfChannels, int streams, int coupledStreams, byte[] mapping, int frameSize );
+	private native int nativeDecodeBytes( long handle, byte[] in, int length, short[] out);
+	private native int nativeDecodeDirect( long handle, ByteBuffer in, int inOffset, int inLength, ShortBuffer out, int outOffset, int maxFrameSize, boolean decodeFec );
+	private native int nativeDecodeFrames( long handle, byte[] in, int[] lengths, int packetCount, short[] out );
+	private native boolean nativeReleaseDecoder( long handle );
 
 	//Fields
-	private InputStream	in;
+	private InputStream		in;
+	private long			nativeHandle;	// Pointer to the native decoder state, 0 once released
+	private final int		numberOfChannels;
+	private final byte[]	encodedBuffer;	// Reused for every packet read from the stream
 
 	static
 	{
@@ -69,14 +87,14 @@ public class OpusDecoder extends FilterInputStream
 	 */
 	protected OpusDecoder( InputStream in )
 	{
-		this(in, 8000, 1, 20);
+		this(in, 8000, 1, FrameDuration.getFrameSize( FrameDuration.LIVE, 8000 ));
 	}
 
 	/**
 	 * The passed frame_size must an opus frame size for the encoder's sampling rate.
 	 * For example, at 48kHz the permitted values are 120, 240, 480, 960, 1920, and 2880.
 	 * 
-	 * @param in InputStream to write to
+	 * @param in InputStream to write to, may be null if only the buffer methods are used
 	 * @param frequency Configured sampling rate or frequency
 	 * @param numberOfChannels Number of channels in the audio signal ( 1 = mono)
 	 * @param frameSize Number of samples per frame of input signal
@@ -85,8 +103,37 @@ public class OpusDecoder extends FilterInputStream
 	{
 		super( in );
 		this.in = in;
+		this.numberOfChannels = numberOfChannels;
+		this.encodedBuffer = new byte[OpusEncoder.MAX_PACKET_SIZE];
 
-		this.nativeInitDecoder(frequency, numberOfChannels, frameSize);
+		this.nativeHandle = this.nativeInitDecoder(frequency, numberOfChannels, frameSize);
+		if ( this.nativeHandle == 0 )
+		{
+			throw new IllegalStateException( "Could not initialize native decoder" );
+		}
+	}
+
+	/**
+	 * Creates a multistream decoder for the packets of a multistream {@link OpusEncoder} with the same channel mapping.
+	 * All streams of a packet are decoded into one interleaved frame in a single native call.
+	 * 
+	 * @param in InputStream to read from, may be null if only the buffer methods are used
+	 * @param frequency Configured sampling rate or frequency
+	 * @param channelMapping Channels of the signal and the streams they are coded in
+	 * @param frameSize Number of samples per channel and frame of output signal
+	 */
+	public OpusDecoder( InputStream in, int frequency, ChannelMapping channelMapping, int frameSize )
+	{
+		super( in );
+		this.in = in;
+		this.numberOfChannels = channelMapping.getNumberOfChannels();
+		this.encodedBuffer = new byte[channelMapping.getMaxPacketSize()];
+
+		this.nativeHandle = this.nativeInitMultistreamDecoder( frequency, this.numberOfChannels, channelMapping.getStreams(), channelMapping.getCoupledStreams(), channelMapping.getMapping(), frameSize );
+		if ( this.nativeHandle == 0 )
+		{
+			throw new IllegalStateException( "Could not initialize native multistream decoder for " + channelMapping );
+		}
 	}
 	@Override
 	public int read() throws IOException
@@ -101,29 +148,184 @@ public class OpusDecoder extends FilterInputStream
 	}
 
 	/**
-	 * Reads bytes from the InputStream, decodes them an writes them into the given buffer.
+	 * Reads one packet from the InputStream, decodes it an writes it into the given buffer.
+	 * The stream has to return exactly one packet per read, like {@link OggOpusReader}.
 	 * 
 	 * @param buffer The buffer to write the decoded data to.
-	 * @return Amount of bytes read.
+	 * @return Amount of bytes read, -1 at the end of the stream.
 	 * @throws IOException
 	 */
-	public int read( short[] buffer ) throws IOException
+	public synchronized int read( short[] buffer ) throws IOException
 	{
-		Log.d( TAG, "Buffer Size: " + buffer.length );
-		
-		byte[] encodedBuffer = new byte[buffer.length / 5];
+		if ( this.nativeHandle == 0 )
+		{
+			throw new IOException( "Decoder already closed" );
+		}
 
-		int bytesRead = this.in.read( encodedBuffer );
-		Log.d( TAG, bytesRead + " bytes read from input stream" );
-		if ( bytesRead >= 0 )
+		int bytesRead = this.in.read( this.encodedBuffer, 0, this.encodedBuffer.length );
+		if ( bytesRead > 0 )
 		{
-			int bytesEncoded = nativeDecodeBytes( encodedBuffer , buffer);
-			Log.d( TAG, bytesEncoded + " bytes encoded" );
+			long start = System.nanoTime();
+			int samplesDecoded = nativeDecodeBytes( this.nativeHandle, this.encodedBuffer, bytesRead, buffer);
+			if ( samplesDecoded >= 0 )
+			{
+				this.framesDecoded( 1, System.nanoTime() - start, bytesRead, samplesDecoded );
+			}
+			if ( BuildConfig.DEBUG )
+			{
+				Log.d( TAG, bytesRead + " bytes read from input stream, " + samplesDecoded + " samples decoded into a buffer of " + buffer.length );
+			}
 		}
 
 		return bytesRead;
 	}
 
+	/**
+	 * Decodes one packet from a direct buffer into a caller-owned direct buffer. Nothing is allocated
+	 * on either side of JNI and nothing is read from the input stream.
+	 * 
+	 * All remaining bytes of packet are decoded as one packet. The samples are written at the position of pcm,
+	 * both positions are advanced.
+	 * 
+	 * @param packet Direct buffer holding exactly one encoded packet between position and limit
+	 * @param pcm Direct buffer in native byte order receiving the decoded signal (interleaved if 2 channels)
+	 * @return Number of decoded samples per channel
+	 * @throws IOException
+	 */
+	public synchronized int decode( ByteBuffer packet, ShortBuffer pcm ) throws IOException
+	{
+		if ( this.nativeHandle == 0 )
+		{
+			throw new IOException( "Decoder already closed" );
+		}
+		if ( !packet.isDirect() || !pcm.isDirect() || pcm.order() != ByteOrder.nativeOrder() )
+		{
+			throw new IllegalArgumentException( "Only direct buffers in native byte order are supported" );
+		}
+
+		long start = System.nanoTime();
+		int samplesDecoded = this.nativeDecodeDirect( this.nativeHandle, packet, packet.position(), packet.remaining(), pcm, pcm.position(), pcm.remaining() / this.numberOfChannels, false );
+		if ( samplesDecoded < 0 )
+		{
+			throw new IOException( "Error during Decoding. Error Code: " + samplesDecoded );
+		}
+		this.framesDecoded( 1, System.nanoTime() - start, packet.remaining(), samplesDecoded );
+
+		packet.position( packet.limit() );
+		pcm.position( pcm.position() + samplesDecoded * this.numberOfChannels );
+
+		return samplesDecoded;
+	}
+
+	/**
+	 * Conceals a lost packet with the opus packet loss concealment and writes the estimated signal
+	 * at the position of pcm, which is advanced.
+	 * 
+	 * @param pcm Direct buffer in native byte order receiving the concealed signal
+	 * @param frameSize Duration of the lost frame in samples per channel
+	 * @return Number of concealed samples per channel
+	 * @throws IOException
+	 */
+	public synchronized int decodeLost( ShortBuffer pcm, int frameSize ) throws IOException
+	{
+		return this.decodeMissing( null, pcm, frameSize );
+	}
+
+	/**
+	 * Restores a lost packet from the in-band forward error correction data of the packet that follows it,
+	 * and writes the signal at the position of pcm, which is advanced. The position of packet is left unchanged,
+	 * as the packet still has to be decoded normally afterwards. If the packet carries no FEC data, opus falls back
+	 * to packet loss concealment.
+	 * 
+	 * @param packet Direct buffer holding the packet after the lost one between position and limit
+	 * @param pcm Direct buffer in native byte order receiving the restored signal
+	 * @param frameSize Duration of the lost frame in samples per channel
+	 * @return Number of restored samples per channel
+	 * @throws IOException
+	 */
+	public synchronized int decodeFec( ByteBuffer packet, ShortBuffer pcm, int frameSize ) throws IOException
+	{
+		if ( !packet.isDirect() )
+		{
+			throw new IllegalArgumentException( "Only direct buffers are supported" );
+		}
+		return this.decodeMissing( packet, pcm, frameSize );
+	}
+
+	/**
+	 * Common part of {@link #decodeLost(ShortBuffer, int)} and {@link #decodeFec(ByteBuffer, ShortBuffer, int)}.
+	 */
+	private int decodeMissing( ByteBuffer packet, ShortBuffer pcm, int frameSize ) throws IOException
+	{
+		if ( this.nativeHandle == 0 )
+		{
+			throw new IOException( "Decoder already closed" );
+		}
+		if ( !pcm.isDirect() || pcm.order() != ByteOrder.nativeOrder() )
+		{
+			throw new IllegalArgumentException( "Only direct buffers in native byte order are supported" );
+		}
+		if ( pcm.remaining() < frameSize * this.numberOfChannels )
+		{
+			throw new IllegalArgumentException( "Output buffer holds less than one frame" );
+		}
+
+		long start = System.nanoTime();
+		int samplesDecoded = packet == null
+				? this.nativeDecodeDirect( this.nativeHandle, null, 0, 0, pcm, pcm.position(), frameSize, false )
+				: this.nativeDecodeDirect( this.nativeHandle, packet, packet.position(), packet.remaining(), pcm, pcm.position(), frameSize, true );
+		if ( samplesDecoded < 0 )
+		{
+			throw new IOException( "Error during Decoding. Error Code: " + samplesDecoded );
+		}
+		this.framesDecoded( 1, System.nanoTime() - start, 0, samplesDecoded );
+
+		pcm.position( pcm.position() + samplesDecoded * this.numberOfChannels );
+
+		return samplesDecoded;
+	}
+
+	/**
+	 * Decodes several consecutive packets in a single JNI call. Nothing is read from the input stream.
+	 * 
+	 * @param packets Encoded packets back-to-back, as produced by {@link OpusEncoder#encodeFrames(short[], int, byte[], int[])}
+	 * @param packetLengths Length of each packet
+	 * @param packetCount Number of packets to decode
+	 * @param pcm Receives the decoded signal of all packets back-to-back (interleaved if 2 channels)
+	 * @return Total number of decoded samples per channel
+	 * @throws IOException
+	 */
+	public synchronized int decodeFrames( byte[] packets, int[] packetLengths, int packetCount, short[] pcm ) throws IOException
+	{
+		if ( this.nativeHandle == 0 )
+		{
+			throw new IOException( "Decoder already closed" );
+		}
+
+		long start = System.nanoTime();
+		int samplesDecoded = this.nativeDecodeFrames( this.nativeHandle, packets, packetLengths, packetCount, pcm );
+		if ( samplesDecoded < 0 )
+		{
+			throw new IOException( "Error during Decoding. Error Code: " + samplesDecoded );
+		}
+		int packetBytes = 0;
+		for ( int i = 0; i < packetCount; i++ )
+		{
+			packetBytes += packetLengths[i];
+		}
+		this.framesDecoded( packetCount, System.nanoTime() - start, packetBytes, samplesDecoded );
+
+		return samplesDecoded;
+	}
+
+	/**
+	 * Reports decoded frames to the metrics.
+	 */
+	private void framesDecoded( int frames, long decodeTime, int packetBytes, int samplesDecoded )
+	{
+		Metrics.get().framesDecoded( frames, decodeTime, packetBytes, samplesDecoded * this.numberOfChannels * ( Short.SIZE / Byte.SIZE ) );
+	}
+
 	@Override
 	public int read( byte[] buffer, int offset, int count ) throws IOException
 	{
@@ -131,10 +333,17 @@ public class OpusDecoder extends FilterInputStream
 	}
 
 	@Override
-	public void close() throws IOException
+	public synchronized void close() throws IOException
 	{
-		this.in.close();
-		this.nativeReleaseDecoder();
+		if ( this.in != null )
+		{
+			this.in.close();
+		}
+		if ( this.nativeHandle != 0 )
+		{
+			this.nativeReleaseDecoder( this.nativeHandle );
+			this.nativeHandle = 0;
+		}
 	}
 
 }
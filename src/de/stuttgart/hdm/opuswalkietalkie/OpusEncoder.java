@@ -25,8 +25,10 @@ package de.stuttgart.hdm.opuswalkietalkie;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 
-import android.R.bool;
 import android.util.Log;
 
 /**
@@ -36,6 +38,15 @@ import android.util.Log;
  *	OpusEncoder class extending FilterOutputStream
  *
  *	Uses native c code via JNI to encode bytes and write them to an output stream.
+ *	Every instance owns its own native encoder state, so several encoders can run in parallel,
+ *	each one used from its own thread.
+ *
+ *	Besides the stream interface, {@link #encode(ShortBuffer, ByteBuffer)} encodes between caller-owned
+ *	direct buffers without allocating anything per frame, and {@link #encodeFrames(short[], int, byte[], int[])}
+ *	encodes a whole block of frames in a single JNI call.
+ *
+ *	Created with a {@link ChannelMapping}, the encoder is an Opus multistream encoder: all channels of a frame, for
+ *	example several microphones, are coded into one packet in a single native call instead of one encoder per channel.
  *
  *	Native resource: de_stuttgart_hdm_opuswalkietalkie_OpusEncoder.h, e_stuttgart_hdm_opuswalkietalkie_OpusEncoder.c
  */
@@ -44,13 +55,48 @@ public class OpusEncoder extends FilterOutputStream
 	
 	private static String	TAG	= "OpusEncoder";
 
+	public static final int	MAX_PACKET_SIZE	= 4000;	// Size of the native packet buffer, no encoded frame gets bigger
+
+	// opus_encoder_ctl requests of opus_defines.h
+	private static final int	SET_APPLICATION			= 4000;
+	private static final int	SET_BITRATE				= 4002;
+	private static final int	GET_BITRATE				= 4003;
+	private static final int	SET_MAX_BANDWIDTH		= 4004;
+	private static final int	SET_VBR					= 4006;
+	private static final int	SET_COMPLEXITY			= 4010;
+	private static final int	SET_INBAND_FEC			= 4012;
+	private static final int	SET_PACKET_LOSS_PERC	= 4014;
+	private static final int	SET_DTX					= 4016;
+	private static final int	SET_VBR_CONSTRAINT		= 4020;
+	private static final int	SET_SIGNAL				= 4024;
+	private static final int	GET_LOOKAHEAD			= 4027;
+
 	//Native methods
-	private native bool nativeInitEncoder( int samplingRate, int numberOfChannels, int frameSize);
-	private native int nativeEncodeBytes( short[] in, byte[] out );
-	private native boolean nativeReleaseEncoder();
+	private native long nativeInitEncoder( int samplingRate, int numberOfChannels, int frameSize);
+	private native long nativeInitMultistreamEncoder( int samplingRate, int numberOfChannels, int streams, int coupledStreams, byte[] mapping, int frameSize );
+	private native int nativeEncodeBytes( long handle, short[] in, byte[] out );
+	private native int nativeEncodeDirect( long handle, ShortBuffer in, int inOffset, ByteBuffer out, int outOffset, int outLength );
+	private native int nativeEncodeFrames( long handle, short[] in, int frameCount, byte[] out, int[] lengths );
+	private native int nativeSetOption( long handle, int request, int value );
+	private native int nativeGetOption( long handle, int request, int[] value );
+	private native int nativeResetEncoder( long handle );
+	private native boolean nativeReleaseEncoder( long handle );
 
 	//Fields
 	private OutputStream	out;
+	private long			nativeHandle;	// Pointer to the native encoder state, 0 once released
+	private final int		samplingRate;
+	private final int		frameSize;
+	private final int		numberOfChannels;
+	private final ChannelMapping	channelMapping;	// Streams of a multistream encoder, null for a plain one
+	private final byte[]	encodedBuffer;	// Reused for every frame written to the stream
+	private final int[]		optionValue		= new int[1];	// Receives the value of nativeGetOption
+	private EncoderConfig	config			= new EncoderConfig();	// Settings applied to the native encoder
+	private EncoderGovernor	governor		= null;	// Is told the encode time and size of every frame if set
+
+	//Statistics
+	private long			framesEncoded	= 0;
+	private long			bytesEncoded	= 0;
 
 	static
 	{
@@ -71,25 +117,84 @@ public class OpusEncoder extends FilterOutputStream
 	 */
 	public OpusEncoder( OutputStream out )
 	{
-		this( out, 8000, 1, 20 );
+		this( out, 8000, 1, FrameDuration.getFrameSize( FrameDuration.LIVE, 8000 ) );
 	}
 
 	
 	/**
 	 * The passed frame_size must an opus frame size for the encoder's sampling rate.
 	 * For example, at 48kHz the permitted values are 120, 240, 480, 960, 1920, and 2880.
+	 * See {@link FrameDuration} to choose one.
 	 * 
-	 * @param out OutputStream to write to
+	 * @param out OutputStream to write to, may be null if only the buffer methods are used
 	 * @param frequency Configured sampling rate or frequency
 	 * @param numberOfChannels Number of channels in the audio signal ( 1 = mono)
 	 * @param frameSize Number of samples per frame of input signal
+	 * @throws IllegalArgumentException If frameSize is no opus frame size at the sampling rate
 	 */
 	public OpusEncoder( OutputStream out, int samplingRate, int numberOfChannels, int frameSize)
 	{
 		super( out );
 		this.out = out;
+		this.samplingRate = samplingRate;
+		this.frameSize = frameSize;
+		this.numberOfChannels = numberOfChannels;
+		this.channelMapping = null;
+		this.encodedBuffer = new byte[MAX_PACKET_SIZE];
+		FrameDuration.check( samplingRate, frameSize );
 		
-		this.nativeInitEncoder( samplingRate, numberOfChannels, frameSize );
+		this.nativeHandle = this.nativeInitEncoder( samplingRate, numberOfChannels, frameSize );
+		if ( this.nativeHandle == 0 )
+		{
+			throw new IllegalStateException( "Could not initialize native encoder" );
+		}
+	}
+
+	/**
+	 * Creates a multistream encoder, which codes all channels of a frame into one packet of several Opus streams in a
+	 * single native call. The frames are interleaved over all channels like those of a plain encoder.
+	 * 
+	 * @param out OutputStream to write to, may be null if only the buffer methods are used
+	 * @param samplingRate Configured sampling rate or frequency
+	 * @param channelMapping Channels of the signal and the streams they are coded in
+	 * @param frameSize Number of samples per channel and frame of input signal
+	 */
+	public OpusEncoder( OutputStream out, int samplingRate, ChannelMapping channelMapping, int frameSize )
+	{
+		super( out );
+		this.out = out;
+		this.samplingRate = samplingRate;
+		this.frameSize = frameSize;
+		this.numberOfChannels = channelMapping.getNumberOfChannels();
+		this.channelMapping = channelMapping;
+		this.encodedBuffer = new byte[channelMapping.getMaxPacketSize()];
+		FrameDuration.check( samplingRate, frameSize );
+
+		this.nativeHandle = this.nativeInitMultistreamEncoder( samplingRate, this.numberOfChannels, channelMapping.getStreams(), channelMapping.getCoupledStreams(), channelMapping.getMapping(), frameSize );
+		if ( this.nativeHandle == 0 )
+		{
+			throw new IllegalStateException( "Could not initialize native multistream encoder for " + channelMapping );
+		}
+	}
+
+	/**
+	 * Like {@link #OpusEncoder(OutputStream, int, int, int)}, then applies the given configuration.
+	 * 
+	 * @param config Encoder settings, including the application which can only be set before the first frame
+	 * @throws IOException If a setting is rejected by libopus
+	 */
+	public OpusEncoder( OutputStream out, int samplingRate, int numberOfChannels, int frameSize, EncoderConfig config ) throws IOException
+	{
+		this( out, samplingRate, numberOfChannels, frameSize );
+		try
+		{
+			this.configure( config );
+		}
+		catch ( IOException e )
+		{
+			this.close();
+			throw e;
+		}
 	}
 	
 	@Override
@@ -104,13 +209,19 @@ public class OpusEncoder extends FilterOutputStream
 	 * @param buffer Input signal (interleaved if 2 channels). Length needs to be frame_size*channels*sizeof(opus_int16)
 	 * @throws IOException
 	 */
-	public void write( short[] buffer ) throws IOException
+	public synchronized void write( short[] buffer ) throws IOException
 	{
-		byte[] encodedBuffer = new byte[buffer.length];
-		int lenEncodedBytes = this.nativeEncodeBytes( buffer , encodedBuffer);
+		if ( this.nativeHandle == 0 )
+		{
+			throw new IOException( "Encoder already closed" );
+		}
+
+		long start = System.nanoTime();
+		int lenEncodedBytes = this.nativeEncodeBytes( this.nativeHandle, buffer , this.encodedBuffer);
 		if (lenEncodedBytes > 0)
 		{
-			this.out.write( encodedBuffer, 0, lenEncodedBytes );
+			this.frameEncoded( 1, System.nanoTime() - start, lenEncodedBytes );
+			this.out.write( this.encodedBuffer, 0, lenEncodedBytes );
 		}
 		else
 		{
@@ -120,6 +231,282 @@ public class OpusEncoder extends FilterOutputStream
 		}
 	}
 
+	/**
+	 * Encodes one frame from a direct buffer into a caller-owned direct buffer. Nothing is allocated
+	 * on either side of JNI and the packet is not written to the output stream.
+	 * 
+	 * Reads frame_size*channels samples at the position of pcm and writes the packet at the position of packet,
+	 * both positions are advanced.
+	 * 
+	 * @param pcm Direct buffer in native byte order holding the input signal (interleaved if 2 channels)
+	 * @param packet Direct buffer receiving the encoded packet
+	 * @return Length of the encoded packet in bytes
+	 * @throws IOException
+	 */
+	public synchronized int encode( ShortBuffer pcm, ByteBuffer packet ) throws IOException
+	{
+		if ( this.nativeHandle == 0 )
+		{
+			throw new IOException( "Encoder already closed" );
+		}
+		if ( !pcm.isDirect() || !packet.isDirect() || pcm.order() != ByteOrder.nativeOrder() )
+		{
+			throw new IllegalArgumentException( "Only direct buffers in native byte order are supported" );
+		}
+
+		int samples = this.frameSize * this.numberOfChannels;
+		if ( pcm.remaining() < samples )
+		{
+			throw new IllegalArgumentException( "Input buffer holds less than one frame" );
+		}
+
+		long start = System.nanoTime();
+		int lenEncodedBytes = this.nativeEncodeDirect( this.nativeHandle, pcm, pcm.position(), packet, packet.position(), packet.remaining() );
+		if ( lenEncodedBytes < 0 )
+		{
+			throw new IOException( "Error during Encoding. Error Code: " + lenEncodedBytes );
+		}
+		this.frameEncoded( 1, System.nanoTime() - start, lenEncodedBytes );
+
+		pcm.position( pcm.position() + samples );
+		packet.position( packet.position() + lenEncodedBytes );
+
+		return lenEncodedBytes;
+	}
+
+	/**
+	 * Encodes several consecutive frames in a single JNI call. The packets are not written to the output stream.
+	 * 
+	 * @param pcm Input signal of frameCount frames back-to-back, each frame_size*channels samples long
+	 * @param frameCount Number of frames to encode
+	 * @param packets Receives the encoded packets back-to-back
+	 * @param packetLengths Receives the length of each packet, needs at least frameCount entries
+	 * @return Total number of bytes written to packets
+	 * @throws IOException
+	 */
+	public synchronized int encodeFrames( short[] pcm, int frameCount, byte[] packets, int[] packetLengths ) throws IOException
+	{
+		if ( this.nativeHandle == 0 )
+		{
+			throw new IOException( "Encoder already closed" );
+		}
+
+		long start = System.nanoTime();
+		int lenEncodedBytes = this.nativeEncodeFrames( this.nativeHandle, pcm, frameCount, packets, packetLengths );
+		if ( lenEncodedBytes < 0 )
+		{
+			throw new IOException( "Error during Encoding. Error Code: " + lenEncodedBytes );
+		}
+		this.frameEncoded( frameCount, System.nanoTime() - start, lenEncodedBytes );
+
+		return lenEncodedBytes;
+	}
+
+	/**
+	 * Counts encoded frames and reports them to the governor and the metrics.
+	 */
+	private void frameEncoded( int frames, long encodeTime, int bytes ) throws IOException
+	{
+		this.framesEncoded += frames;
+		this.bytesEncoded += bytes;
+		if ( this.governor != null )
+		{
+			this.governor.framesEncoded( frames, encodeTime, bytes );
+		}
+		Metrics.get().framesEncoded( frames, encodeTime, frames * this.frameSize * this.numberOfChannels * ( Short.SIZE / Byte.SIZE ), bytes );
+	}
+
+	/**
+	 * Applies every setting that differs from the current configuration to the native encoder. Safe to call while another
+	 * thread is encoding, the new settings take effect with the next frame.
+	 * 
+	 * @param config New settings, copied
+	 * @throws IOException If a setting is rejected by libopus, the settings applied before it stay in effect
+	 */
+	public synchronized void configure( EncoderConfig config ) throws IOException
+	{
+		if ( this.nativeHandle == 0 )
+		{
+			throw new IOException( "Encoder already closed" );
+		}
+
+		EncoderConfig current = this.config;
+		if ( config.getApplication() != current.getApplication() )
+		{
+			this.setOption( SET_APPLICATION, config.getApplication() );
+			current.setApplication( config.getApplication() );
+		}
+		if ( config.getBitrate() != current.getBitrate() )
+		{
+			this.setOption( SET_BITRATE, config.getBitrate() );
+			current.setBitrate( config.getBitrate() );
+		}
+		if ( config.getComplexity() != current.getComplexity() )
+		{
+			this.setOption( SET_COMPLEXITY, config.getComplexity() );
+			current.setComplexity( config.getComplexity() );
+		}
+		if ( config.isVbr() != current.isVbr() )
+		{
+			this.setOption( SET_VBR, config.isVbr() ? 1 : 0 );
+			current.setVbr( config.isVbr() );
+		}
+		if ( config.isVbrConstrained() != current.isVbrConstrained() )
+		{
+			this.setOption( SET_VBR_CONSTRAINT, config.isVbrConstrained() ? 1 : 0 );
+			current.setVbrConstrained( config.isVbrConstrained() );
+		}
+		if ( config.isDtx() != current.isDtx() )
+		{
+			this.setOption( SET_DTX, config.isDtx() ? 1 : 0 );
+			current.setDtx( config.isDtx() );
+		}
+		if ( config.isInbandFec() != current.isInbandFec() )
+		{
+			this.setOption( SET_INBAND_FEC, config.isInbandFec() ? 1 : 0 );
+			current.setInbandFec( config.isInbandFec() );
+		}
+		if ( config.getPacketLossPercentage() != current.getPacketLossPercentage() )
+		{
+			this.setOption( SET_PACKET_LOSS_PERC, config.getPacketLossPercentage() );
+			current.setPacketLossPercentage( config.getPacketLossPercentage() );
+		}
+		if ( config.getSignal() != current.getSignal() )
+		{
+			this.setOption( SET_SIGNAL, config.getSignal() );
+			current.setSignal( config.getSignal() );
+		}
+		if ( config.getMaxBandwidth() != current.getMaxBandwidth() )
+		{
+			this.setOption( SET_MAX_BANDWIDTH, config.getMaxBandwidth() );
+			current.setMaxBandwidth( config.getMaxBandwidth() );
+		}
+	}
+
+	private void setOption( int request, int value ) throws IOException
+	{
+		int error = this.nativeSetOption( this.nativeHandle, request, value );
+		if ( error < 0 )
+		{
+			throw new IOException( "Encoder rejected option " + request + " = " + value + ". Error Code: " + error );
+		}
+	}
+
+	/**
+	 * @return Copy of the current settings
+	 */
+	public synchronized EncoderConfig getConfig()
+	{
+		return new EncoderConfig( this.config );
+	}
+
+	/**
+	 * @return The bitrate the encoder currently aims for in bits per second, also when the configured bitrate is AUTO
+	 * @throws IOException
+	 */
+	public synchronized int getTargetBitrate() throws IOException
+	{
+		return this.getOption( GET_BITRATE );
+	}
+
+	/**
+	 * @return Delay of the encoder in samples per channel at its sampling rate, what a player has to skip at the start
+	 * @throws IOException
+	 */
+	public synchronized int getLookahead() throws IOException
+	{
+		return this.getOption( GET_LOOKAHEAD );
+	}
+
+	private int getOption( int request ) throws IOException
+	{
+		if ( this.nativeHandle == 0 )
+		{
+			throw new IOException( "Encoder already closed" );
+		}
+
+		int error = this.nativeGetOption( this.nativeHandle, request, this.optionValue );
+		if ( error < 0 )
+		{
+			throw new IOException( "Could not read option " + request + ". Error Code: " + error );
+		}
+		return this.optionValue[0];
+	}
+
+	/**
+	 * Lets a governor watch the encode time and size of every frame, null to remove it.
+	 */
+	public synchronized void setGovernor( EncoderGovernor governor )
+	{
+		this.governor = governor;
+	}
+
+	/**
+	 * @return Number of frames encoded since the encoder was created
+	 */
+	public synchronized long getFramesEncoded()
+	{
+		return this.framesEncoded;
+	}
+
+	/**
+	 * @return Total size of all packets encoded since the encoder was created
+	 */
+	public synchronized long getBytesEncoded()
+	{
+		return this.bytesEncoded;
+	}
+
+	public int getSamplingRate()
+	{
+		return this.samplingRate;
+	}
+
+	public int getFrameSize()
+	{
+		return this.frameSize;
+	}
+
+	public int getNumberOfChannels()
+	{
+		return this.numberOfChannels;
+	}
+
+	/**
+	 * @return Streams of a multistream encoder, null for a plain one
+	 */
+	public ChannelMapping getChannelMapping()
+	{
+		return this.channelMapping;
+	}
+
+	/**
+	 * @return Largest packet one frame may be encoded to
+	 */
+	public int getMaxPacketSize()
+	{
+		return this.encodedBuffer.length;
+	}
+
+	/**
+	 * Resets the encoder state as if it was just created, so the next frame is encoded without any history.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void reset() throws IOException
+	{
+		if ( this.nativeHandle == 0 )
+		{
+			throw new IOException( "Encoder already closed" );
+		}
+
+		int error = this.nativeResetEncoder( this.nativeHandle );
+		if ( error < 0 )
+		{
+			throw new IOException( "Could not reset encoder. Error Code: " + error );
+		}
+	}
+
 	@Override
 	public void write( byte[] buffer, int offset, int length ) throws IOException
 	{
@@ -133,10 +520,17 @@ public class OpusEncoder extends FilterOutputStream
 	}
 
 	@Override
-	public void close() throws IOException
+	public synchronized void close() throws IOException
 	{
-		this.out.close();
-		this.nativeReleaseEncoder();
+		if ( this.out != null )
+		{
+			this.out.close();
+		}
+		if ( this.nativeHandle != 0 )
+		{
+			this.nativeReleaseEncoder( this.nativeHandle );
+			this.nativeHandle = 0;
+		}
 	}
 
 }
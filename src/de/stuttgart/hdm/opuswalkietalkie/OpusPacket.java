@@ -0,0 +1,163 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Reads the table-of-contents byte of an Opus packet (RFC 6716, section 3.1), to get the duration of a packet
+ *	without decoding it, and builds packets of empty frames that stand in for suppressed silence.
+ */
+public final class OpusPacket
+{
+	private static final int[]	SILK_FRAME_SIZES	= { 480, 960, 1920, 2880 };	// At 48kHz
+	private static final int[]	HYBRID_FRAME_SIZES	= { 480, 960 };
+	private static final int[]	CELT_FRAME_SIZES	= { 120, 240, 480, 960 };
+
+	public static final int		MAX_SAMPLES			= 5760;	// 120ms at 48kHz, the longest a packet may last
+	public static final int		MAX_FRAMES			= 48;	// Most frames a code 3 packet can hold
+
+	private OpusPacket()
+	{
+	}
+
+	/**
+	 * @return Number of frames in the packet, -1 if the packet is invalid
+	 */
+	public static int getFrameCount( byte[] packet, int offset, int length )
+	{
+		return length < 1 ? -1 : getFrameCount( packet[offset], length < 2 ? 0 : packet[offset + 1], length );
+	}
+
+	/**
+	 * @return Samples per channel of one frame of the packet at 48kHz
+	 */
+	public static int getSamplesPerFrame( byte[] packet, int offset )
+	{
+		return getSamplesPerFrame( packet[offset] );
+	}
+
+	/**
+	 * @return Duration of the packet in samples per channel at 48kHz, -1 if the packet is invalid
+	 */
+	public static int getSamples( byte[] packet, int offset, int length )
+	{
+		int frames = getFrameCount( packet, offset, length );
+		return frames < 0 ? -1 : frames * getSamplesPerFrame( packet, offset );
+	}
+
+	/**
+	 * @param packet Packet between position and limit, neither is changed
+	 * @return Duration of the packet in samples per channel at 48kHz, -1 if the packet is invalid
+	 */
+	public static int getSamples( ByteBuffer packet )
+	{
+		int length = packet.remaining();
+		if ( length < 1 )
+		{
+			return -1;
+		}
+		byte toc = packet.get( packet.position() );
+		int frames = getFrameCount( toc, length < 2 ? 0 : packet.get( packet.position() + 1 ), length );
+		return frames < 0 ? -1 : frames * getSamplesPerFrame( toc );
+	}
+
+	private static int getFrameCount( byte toc, byte second, int length )
+	{
+		switch ( toc & 0x03 )
+		{
+			case 0:
+				return 1;
+			case 1:
+			case 2:
+				return 2;
+			default:
+				return length < 2 ? -1 : second & 0x3F;
+		}
+	}
+
+	private static int getSamplesPerFrame( byte toc )
+	{
+		int config = ( toc & 0xFF ) >> 3;
+		if ( config < 12 )
+		{
+			return SILK_FRAME_SIZES[config & 0x03];
+		}
+		if ( config < 16 )
+		{
+			return HYBRID_FRAME_SIZES[config & 0x01];
+		}
+		return CELT_FRAME_SIZES[config & 0x03];
+	}
+
+	/**
+	 * Writes a packet of empty frames, like the discontinuous transmission (DTX) packets of the encoder. A decoder
+	 * conceals empty frames, which fades the last signal out over a few frames and then plays silence, so a silent stretch
+	 * can be skipped by the encoder while the stream keeps its timing. A single frame is written as a 1 byte packet,
+	 * several frames as a 2 byte code 3 packet.
+	 * 
+	 * @param packet Receives the packet, needs 2 bytes at offset
+	 * @param samplesPerFrame Samples per channel of one frame at 48kHz, a valid Opus frame size
+	 * @param frames Number of frames, frames * samplesPerFrame must not exceed MAX_SAMPLES
+	 * @return Length of the packet in bytes
+	 */
+	public static int writeEmptyFrames( byte[] packet, int offset, int samplesPerFrame, int frames )
+	{
+		int config = indexOf( CELT_FRAME_SIZES, samplesPerFrame );
+		if ( config >= 0 )
+		{
+			config += 16;	// CELT narrowband
+		}
+		else
+		{
+			config = indexOf( SILK_FRAME_SIZES, samplesPerFrame );	// SILK narrowband for 40ms and 60ms
+		}
+		if ( config < 0 || frames < 1 || frames > MAX_FRAMES || frames * samplesPerFrame > MAX_SAMPLES )
+		{
+			throw new IllegalArgumentException( frames + " frames of " + samplesPerFrame + " samples can not form a packet" );
+		}
+
+		if ( frames == 1 )
+		{
+			packet[offset] = ( byte ) ( config << 3 );
+			return 1;
+		}
+		packet[offset] = ( byte ) ( config << 3 | 3 );
+		packet[offset + 1] = ( byte ) frames;	// Constant bitrate, no padding: every frame is ( length - 2 ) / frames = 0 bytes
+		return 2;
+	}
+
+	private static int indexOf( int[] values, int value )
+	{
+		for ( int i = 0; i < values.length; i++ )
+		{
+			if ( values[i] == value )
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.util.Log;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Merges consecutive Opus packets into longer packets with opus_repacketizer, for storage and bulk transfer.
+ *
+ *	Every packet written is collected until the collected ones last packetSamples, then they are written to the
+ *	underlying stream as one packet. The frames are copied as they are, nothing is decoded or encoded again.
+ *	A merged packet saves the TOC byte of every packet but the first, and the container pays its per-packet cost
+ *	once: an Ogg lacing value, an RTP, UDP and IP header. A packet that can not join the collected ones, because it
+ *	has another mode, bandwidth, frame size or channel count or the result would last more than 120ms, ends the
+ *	merged packet early and starts the next one, so the output always holds the same frames in the same order.
+ *
+ *	Only makes sense where latency does not matter: a merged packet is written when its last frame arrives.
+ *
+ *	Native resource: de_stuttgart_hdm_opuswalkietalkie_OpusRepacketizer.h, de_stuttgart_hdm_opuswalkietalkie_OpusRepacketizer.c
+ */
+public class OpusRepacketizer extends FilterOutputStream
+{
+	private static String		TAG				= "OpusRepacketizer";
+
+	private static final int	OPUS_OK			= 0;
+	private static final int	FRAMING_BYTES	= 2;	// Most bytes a code 3 packet spends on the length of one frame, and on its own header
+
+	//Native methods
+	private native long nativeInitRepacketizer();
+	private native int nativeCat( long handle, byte[] packet, int offset, int length );
+	private native int nativeOut( long handle, byte[] out );
+	private native boolean nativeReleaseRepacketizer( long handle );
+
+	//Fields
+	private long				nativeHandle;	// Pointer to the native repacketizer state, 0 once released
+	private final int			packetSamples;	// Duration of a merged packet in 48kHz samples
+	private final byte[]		mergedBuffer	= new byte[OpusEncoder.MAX_PACKET_SIZE];
+	private int					collectedSamples	= 0;
+	private int					collectedFrames		= 0;
+	private int					collectedBytes		= 0;
+
+	//Statistics
+	private long				packetsIn		= 0;
+	private long				packetsOut		= 0;
+	private long				bytesIn			= 0;
+	private long				bytesOut		= 0;
+
+	static
+	{
+		try
+		{
+			System.loadLibrary( "OpusRepacketizer" );
+		}
+		catch ( Exception e )
+		{
+			Log.e( TAG, "Could not load Systemlibrary 'OpusRepacketizer'" );
+		}
+	}
+
+	/**
+	 * @param out Stream to write the merged packets to, e.g. an {@link OggOpusWriter}
+	 * @param packetSamples Duration of a merged packet in samples per channel at 48kHz, at most {@link OpusPacket#MAX_SAMPLES}
+	 */
+	public OpusRepacketizer( OutputStream out, int packetSamples )
+	{
+		super( out );
+		if ( packetSamples <= 0 || packetSamples > OpusPacket.MAX_SAMPLES )
+		{
+			throw new IllegalArgumentException( "Packets can last 1 to " + OpusPacket.MAX_SAMPLES + " samples, not " + packetSamples );
+		}
+		this.packetSamples = packetSamples;
+		this.nativeHandle = this.nativeInitRepacketizer();
+		if ( this.nativeHandle == 0 )
+		{
+			throw new IllegalStateException( "Could not initialize native repacketizer" );
+		}
+	}
+
+	/**
+	 * Adds one Opus packet, and writes the merged packet once the collected packets last packetSamples.
+	 */
+	@Override
+	public void write( byte[] packet, int offset, int length ) throws IOException
+	{
+		if ( this.nativeHandle == 0 )
+		{
+			throw new IOException( "Repacketizer already closed" );
+		}
+		int frames = OpusPacket.getFrameCount( packet, offset, length );
+		int samples = OpusPacket.getSamples( packet, offset, length );
+		if ( frames < 0 || samples < 0 )
+		{
+			throw new IOException( "Invalid opus packet of " + length + " bytes" );
+		}
+		this.packetsIn++;
+		this.bytesIn += length;
+
+		if ( this.collectedSamples + samples > this.packetSamples || !this.fits( frames, length ) )
+		{
+			this.writeMerged();
+		}
+		int error = this.nativeCat( this.nativeHandle, packet, offset, length );
+		if ( error != OPUS_OK && this.collectedFrames > 0 )
+		{
+			// Another TOC than the collected packets, start a new merged packet with this one
+			this.writeMerged();
+			error = this.nativeCat( this.nativeHandle, packet, offset, length );
+		}
+		if ( error != OPUS_OK )
+		{
+			this.out.write( packet, offset, length );
+			this.packetsOut++;
+			this.bytesOut += length;
+			return;
+		}
+
+		this.collectedSamples += samples;
+		this.collectedFrames += frames;
+		this.collectedBytes += length;
+		if ( this.collectedSamples >= this.packetSamples )
+		{
+			this.writeMerged();
+		}
+	}
+
+	@Override
+	public void write( int oneByte ) throws IOException
+	{
+		throw new UnsupportedOperationException( "Single bytes can not be written as a packet" );
+	}
+
+	/**
+	 * @return Whether the merged packet stays within the packet buffer if a packet of frames and length bytes is added
+	 */
+	private boolean fits( int frames, int length )
+	{
+		return this.collectedBytes + length + FRAMING_BYTES * ( this.collectedFrames + frames + 1 ) <= this.mergedBuffer.length;
+	}
+
+	/**
+	 * Writes the collected packets as one packet, if there are any.
+	 */
+	private void writeMerged() throws IOException
+	{
+		if ( this.collectedFrames == 0 )
+		{
+			return;
+		}
+		int length = this.nativeOut( this.nativeHandle, this.mergedBuffer );
+		this.collectedSamples = 0;
+		this.collectedFrames = 0;
+		this.collectedBytes = 0;
+		if ( length < 0 )
+		{
+			throw new IOException( "Could not merge packets, opus error " + length );
+		}
+		this.out.write( this.mergedBuffer, 0, length );
+		this.packetsOut++;
+		this.bytesOut += length;
+	}
+
+	/**
+	 * Writes the packets collected so far as one shorter packet and flushes the underlying stream.
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		this.writeMerged();
+		this.out.flush();
+	}
+
+	/**
+	 * Writes the remaining packets, releases the native repacketizer and closes the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if ( this.nativeHandle == 0 )
+		{
+			return;
+		}
+		try
+		{
+			this.writeMerged();
+		}
+		finally
+		{
+			this.nativeReleaseRepacketizer( this.nativeHandle );
+			this.nativeHandle = 0;
+			this.out.close();
+		}
+	}
+
+	/**
+	 * @return Packets written to the repacketizer
+	 */
+	public long getPacketsIn()
+	{
+		return this.packetsIn;
+	}
+
+	/**
+	 * @return Packets written to the underlying stream
+	 */
+	public long getPacketsOut()
+	{
+		return this.packetsOut;
+	}
+
+	/**
+	 * @return Bytes of all packets written to the repacketizer
+	 */
+	public long getBytesIn()
+	{
+		return this.bytesIn;
+	}
+
+	/**
+	 * @return Bytes of all packets written to the underlying stream
+	 */
+	public long getBytesOut()
+	{
+		return this.bytesOut;
+	}
+
+	@Override
+	public String toString()
+	{
+		return this.packetsIn + " packets of " + this.bytesIn + " bytes merged into " + this.packetsOut + " packets of " + this.bytesOut + " bytes";
+	}
+}
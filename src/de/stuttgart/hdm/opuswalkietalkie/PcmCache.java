@@ -0,0 +1,248 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Least recently used cache of decoded PCM blocks, so replaying or scrubbing through a recent clip needs no decoding.
+ *
+ *	A recording is cut into blocks of a fixed number of samples, a block is identified by a key of the recording and
+ *	its index from the start. The samples live in direct buffers outside the Java heap, which keeps several minutes of
+ *	audio away from the garbage collector. The number of blocks is bounded by a byte budget: once it is used up, the
+ *	least recently used block is evicted and its buffer is reused for the new one, so the cache never allocates more
+ *	than the budget. Only the last block of a recording may be shorter than the block size.
+ *
+ *	Blocks are copied in and out under the lock of the cache, so it can be shared by all playback threads.
+ */
+public class PcmCache
+{
+	/**
+	 * Identifies one block of a recording.
+	 */
+	private static final class Key
+	{
+		private final String	recording;
+		private final long		block;
+
+		Key( String recording, long block )
+		{
+			this.recording = recording;
+			this.block = block;
+		}
+
+		@Override
+		public boolean equals( Object object )
+		{
+			if ( !( object instanceof Key ) )
+			{
+				return false;
+			}
+			Key key = ( Key ) object;
+			return this.block == key.block && this.recording.equals( key.recording );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return this.recording.hashCode() * 31 + ( int ) ( this.block ^ ( this.block >>> 32 ) );
+		}
+	}
+
+	//Config
+	private final int						blockSamples;	// Samples per block over all channels
+	private final int						maxBlocks;
+
+	//Fields
+	private final LinkedHashMap<Key, ShortBuffer>	blocks		= new LinkedHashMap<Key, ShortBuffer>( 16, 0.75f, true );	// In access order, eldest first
+	private int								allocated		= 0;	// Direct buffers allocated so far, at most maxBlocks
+
+	//Statistics
+	private long							hits			= 0;
+	private long							misses			= 0;
+	private long							evictions		= 0;
+
+	/**
+	 * @param blockSamples Samples per block over all channels
+	 * @param maxBytes Budget for the decoded samples, rounded down to whole blocks
+	 */
+	public PcmCache( int blockSamples, long maxBytes )
+	{
+		if ( blockSamples <= 0 || maxBytes < 0 )
+		{
+			throw new IllegalArgumentException( "Invalid block size " + blockSamples + " or budget " + maxBytes );
+		}
+		this.blockSamples = blockSamples;
+		this.maxBlocks = ( int ) Math.min( Integer.MAX_VALUE, maxBytes / ( ( long ) blockSamples * ( Short.SIZE / Byte.SIZE ) ) );
+	}
+
+	/**
+	 * Copies a cached block and marks it as most recently used.
+	 *
+	 * @param recording Key of the recording, see {@link #put(String, long, short[], int)}
+	 * @param block Index of the block from the start of the recording
+	 * @param out Receives the block, needs room for the block size
+	 * @return Number of samples copied, or -1 if the block is not cached
+	 */
+	public synchronized int get( String recording, long block, short[] out )
+	{
+		ShortBuffer samples = this.blocks.get( new Key( recording, block ) );
+		if ( samples == null )
+		{
+			this.misses++;
+			return -1;
+		}
+		this.hits++;
+		samples.rewind();
+		int length = samples.remaining();
+		samples.get( out, 0, length );
+		return length;
+	}
+
+	/**
+	 * Stores a decoded block, evicting the least recently used ones if the budget is used up.
+	 *
+	 * @param recording Key of the recording, must change whenever its contents change
+	 * @param block Index of the block from the start of the recording
+	 * @param samples Decoded block
+	 * @param length Samples in the block, at most the block size
+	 */
+	public synchronized void put( String recording, long block, short[] samples, int length )
+	{
+		if ( length > this.blockSamples )
+		{
+			throw new IllegalArgumentException( length + " samples exceed the block size of " + this.blockSamples );
+		}
+		if ( this.maxBlocks == 0 )
+		{
+			return;
+		}
+
+		Key key = new Key( recording, block );
+		ShortBuffer buffer = this.blocks.remove( key );
+		if ( buffer == null && this.allocated < this.maxBlocks )
+		{
+			buffer = ByteBuffer.allocateDirect( this.blockSamples * ( Short.SIZE / Byte.SIZE ) ).order( ByteOrder.nativeOrder() ).asShortBuffer();
+			this.allocated++;
+		}
+		if ( buffer == null )
+		{
+			Iterator<ShortBuffer> eldest = this.blocks.values().iterator();
+			buffer = eldest.next();
+			eldest.remove();
+			this.evictions++;
+		}
+
+		buffer.clear();
+		buffer.put( samples, 0, length );
+		buffer.flip();
+		this.blocks.put( key, buffer );
+	}
+
+	/**
+	 * Drops all blocks of a recording, for example after it was deleted. Their buffers are released.
+	 */
+	public synchronized void remove( String recording )
+	{
+		Iterator<Map.Entry<Key, ShortBuffer>> entries = this.blocks.entrySet().iterator();
+		while ( entries.hasNext() )
+		{
+			Map.Entry<Key, ShortBuffer> entry = entries.next();
+			if ( entry.getKey().recording.equals( recording ) )
+			{
+				entries.remove();
+				this.allocated--;	// Released to the garbage collector, allocated again when needed
+			}
+		}
+	}
+
+	/**
+	 * @return Samples per block over all channels
+	 */
+	public int getBlockSamples()
+	{
+		return this.blockSamples;
+	}
+
+	/**
+	 * @return Most bytes the cache will ever hold
+	 */
+	public long getMaxBytes()
+	{
+		return ( long ) this.maxBlocks * this.blockSamples * ( Short.SIZE / Byte.SIZE );
+	}
+
+	/**
+	 * @return Bytes of direct memory currently allocated for blocks
+	 */
+	public synchronized long getBytes()
+	{
+		return ( long ) this.allocated * this.blockSamples * ( Short.SIZE / Byte.SIZE );
+	}
+
+	public synchronized int getBlocks()
+	{
+		return this.blocks.size();
+	}
+
+	public synchronized long getHits()
+	{
+		return this.hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return this.misses;
+	}
+
+	/**
+	 * @return Blocks evicted to make room for newer ones
+	 */
+	public synchronized long getEvictions()
+	{
+		return this.evictions;
+	}
+
+	/**
+	 * @return Share of lookups served from the cache, 0 before the first lookup
+	 */
+	public synchronized float getHitRate()
+	{
+		long lookups = this.hits + this.misses;
+		return lookups > 0 ? ( float ) this.hits / lookups : 0f;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return this.blocks.size() + " blocks - " + this.getBytes() / 1024 + " of " + this.getMaxBytes() / 1024 + " KiB - hit rate "
+				+ Math.round( this.getHitRate() * 100 ) + "% - " + this.evictions + " evictions";
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Lock-free single-producer/single-consumer ring of preallocated short[] frame slots.
+ *
+ *	The capture thread fills slots with {@link #writeSlot()} and {@link #publish(int)}, the encoder thread drains them
+ *	with {@link #awaitReadSlot()}, {@link #readLength()} and {@link #release()}. Nothing is allocated after construction.
+ *	When the ring is full the producer gets no slot and an overrun is counted, so the capture thread can keep draining
+ *	the audio hardware instead of blocking. Overruns and the high-water mark show how large the ring has to be.
+ *
+ *	A producer that must not lose frames, like the decoder of a {@link PlayoutEngine}, takes its slots with
+ *	{@link #awaitWriteSlot()} instead and is parked while the ring is full.
+ */
+public class PcmRingBuffer
+{
+	//Fields
+	private final short[][]		slots;
+	private final int[]			lengths;		// Number of valid samples per slot
+	private final int			mask;
+	private final AtomicLong	head			= new AtomicLong();	// Next slot to read, only advanced by the consumer
+	private final AtomicLong	tail			= new AtomicLong();	// Next slot to write, only advanced by the producer
+	private volatile Thread		consumer		= null;				// Parked consumer waiting for data
+	private volatile Thread		producer		= null;				// Parked producer waiting for a free slot
+	private volatile boolean	isClosed		= false;
+
+	//Statistics
+	private final AtomicLong	overruns		= new AtomicLong();
+	private volatile int		highWaterMark	= 0;
+
+	/**
+	 * @param numberOfSlots Capacity of the ring in frames, rounded up to the next power of two
+	 * @param slotSize Number of samples per frame slot
+	 */
+	public PcmRingBuffer( int numberOfSlots, int slotSize )
+	{
+		int capacity = Integer.highestOneBit( Math.max( numberOfSlots - 1, 1 ) ) << 1;
+		this.slots = new short[capacity][slotSize];
+		this.lengths = new int[capacity];
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * Producer side: returns the next free slot to fill. Does not block.
+	 * 
+	 * @return The free slot, or null if the ring is full. In that case an overrun is counted and the frame should be dropped.
+	 */
+	public short[] writeSlot()
+	{
+		long currentTail = this.tail.get();
+		if ( currentTail - this.head.get() > this.mask )
+		{
+			this.overruns.incrementAndGet();
+			Metrics.get().captureOverrun();
+			return null;
+		}
+		return this.slots[( int ) currentTail & this.mask];
+	}
+
+	/**
+	 * Producer side: returns the next free slot to fill, parking the calling thread while the ring is full. No overrun is counted.
+	 * 
+	 * @return The free slot, or null once the ring is closed
+	 */
+	public short[] awaitWriteSlot()
+	{
+		long currentTail = this.tail.get();
+		while ( currentTail - this.head.get() > this.mask && !this.isClosed )
+		{
+			this.producer = Thread.currentThread();
+			if ( currentTail - this.head.get() > this.mask && !this.isClosed )
+			{
+				LockSupport.park( this );
+			}
+			this.producer = null;
+		}
+		return this.isClosed ? null : this.slots[( int ) currentTail & this.mask];
+	}
+
+	/**
+	 * Producer side: hands the slot returned by {@link #writeSlot()} or {@link #awaitWriteSlot()} to the consumer.
+	 * 
+	 * @param length Number of valid samples in the slot
+	 */
+	public void publish( int length )
+	{
+		long currentTail = this.tail.get();
+		this.lengths[( int ) currentTail & this.mask] = length;
+		this.tail.set( currentTail + 1 );	// Volatile write, so the consumer check below cannot miss a parked consumer
+
+		int size = ( int ) ( currentTail + 1 - this.head.get() );
+		if ( size > this.highWaterMark )
+		{
+			this.highWaterMark = size;
+		}
+
+		Thread waiting = this.consumer;
+		if ( waiting != null )
+		{
+			LockSupport.unpark( waiting );
+		}
+	}
+
+	/**
+	 * Consumer side: returns the oldest filled slot, parking the calling thread while the ring is empty.
+	 * 
+	 * @return The slot to read, or null once the ring is closed and drained
+	 */
+	public short[] awaitReadSlot()
+	{
+		long currentHead = this.head.get();
+		while ( currentHead == this.tail.get() )
+		{
+			if ( this.isClosed )
+			{
+				// Producer may have published right before closing
+				if ( currentHead == this.tail.get() )
+				{
+					return null;
+				}
+				break;
+			}
+			this.consumer = Thread.currentThread();
+			if ( currentHead == this.tail.get() && !this.isClosed )
+			{
+				LockSupport.park( this );
+			}
+			this.consumer = null;
+		}
+		return this.slots[( int ) currentHead & this.mask];
+	}
+
+	/**
+	 * Consumer side: number of valid samples in the slot returned by {@link #awaitReadSlot()}.
+	 */
+	public int readLength()
+	{
+		return this.lengths[( int ) this.head.get() & this.mask];
+	}
+
+	/**
+	 * Consumer side: gives the slot returned by {@link #awaitReadSlot()} back to the producer.
+	 */
+	public void release()
+	{
+		this.head.set( this.head.get() + 1 );	// Volatile write, so the producer check below cannot miss a parked producer
+
+		Thread waiting = this.producer;
+		if ( waiting != null )
+		{
+			LockSupport.unpark( waiting );
+		}
+	}
+
+	/**
+	 * Tells the consumer that no more frames will be published. Frames already in the ring are still delivered.
+	 * A consumer that stops early closes the ring as well, a producer waiting in {@link #awaitWriteSlot()} then gets no slot.
+	 */
+	public void close()
+	{
+		this.isClosed = true;
+		Thread waiting = this.consumer;
+		if ( waiting != null )
+		{
+			LockSupport.unpark( waiting );
+		}
+		waiting = this.producer;
+		if ( waiting != null )
+		{
+			LockSupport.unpark( waiting );
+		}
+	}
+
+	/**
+	 * @return Number of frames currently waiting for the consumer
+	 */
+	public int size()
+	{
+		return ( int ) ( this.tail.get() - this.head.get() );
+	}
+
+	/**
+	 * @return Capacity of the ring in frames
+	 */
+	public int capacity()
+	{
+		return this.slots.length;
+	}
+
+	/**
+	 * @return Number of frames dropped because the ring was full
+	 */
+	public long getOverruns()
+	{
+		return this.overruns.get();
+	}
+
+	/**
+	 * @return Highest number of frames that were waiting for the consumer at the same time
+	 */
+	public int getHighWaterMark()
+	{
+		return this.highWaterMark;
+	}
+}
@@ -23,13 +23,14 @@
 package de.stuttgart.hdm.opuswalkietalkie;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
 
 import android.media.AudioFormat;
 import android.media.AudioManager;
-import android.media.AudioRecord;
 import android.media.AudioTrack;
 import android.util.Log;
 
@@ -37,27 +38,42 @@ import android.util.Log;
  * @author Manuel Beuttler
  *
  *	Class implements methods to play a audio file.
+ *
+ *	Opus decodes at 48kHz at most and never at 44.1kHz, while many devices only mix at 44.1kHz. The AudioTrack is
+ *	therefore opened at the native output rate of the device and the decoded signal is resampled, so the mixer of the
+ *	platform neither resamples nor adds its own buffering on top.
  */
 public class Playback
 {
 	private static String	TAG						= "Playback";
+	private static final int BLOCK_MILLIS			= 1000;	// Duration of a block in the PCM cache
 	
 	// status flags
-	public boolean				isPlaying				= false;
-	public boolean				isStopped				= false;
-	private boolean				shoudStopPlaying		= false;
+	public volatile boolean		isPlaying				= false;
+	public volatile boolean		isStopped				= false;
+	private volatile boolean	shoudStopPlaying		= false;
 	
 	//Audio config
 	private boolean			isOpusEncoded			= true; //Toggles opus decoding
-	private int				frequency				= 8000;	// Capture mono data at 8kHz
+	public boolean			isNativeRateEnabled		= true;	// Play at the native rate of the device and resample the decoded signal to it
+	private int				frequency				= 48000;	// Decode mono data at 48kHz
 	private int				channelConfiguration	= AudioFormat.CHANNEL_CONFIGURATION_MONO; // The AudioRecord constructor only allows the deprecated configuration value.
 	private int				numberOfChannels		= 1;	// Mono
 	private int				audioEncoding			= AudioFormat.ENCODING_PCM_16BIT; // raw encoding
-	private int 			frameSize				= 20;	// The frame_size must an opus frame size for the encoder's sampling rate.
-															// For example, at 48kHz the permitted values are 120, 240, 480, 960, 1920, and 2880.
-	private final int		audioRecBufferSize				= 2 * AudioRecord.getMinBufferSize( frequency, channelConfiguration, audioEncoding ); // Buffer for audio output.
+	private int 			frameSize				= FrameDuration.getFrameSize( FrameDuration.LIVE, frequency );	// 20ms, the frames of a live stream.
+															// Files may hold longer packets, the decoder takes up to 120ms per packet.
+	private final int		maxPacketSamples		= frequency * 120 / 1000 * numberOfChannels;	// Longest opus packet: 120ms
+	private int				decodeAheadChunks		= 16;	// Packets decoded ahead of the output of a file, 320ms with 20ms packets
+	private boolean			isPcmCacheEnabled		= true;	// Keep recently decoded blocks of files for replay and scrubbing
+	private long			pcmCacheBytes			= 8 * 1024 * 1024;	// About 87s of mono audio at 48kHz
 
-	
+	//Fields
+	private AudioDevice		audioDevice				= null;	// Native rate and burst size, queried on the first playback if not set
+	private int				playoutRate;					// Sample rate of the current or last AudioTrack
+	private int				playoutBufferSize;				// Buffer of the current or last AudioTrack in bytes
+	private volatile PlayoutEngine engine				= null;	// Engine of the file currently playing
+	private volatile long	firstSampleTime			= -1;	// System.nanoTime() the first samples of the current or last file were written to the track at
+	private final PcmCache	pcmCache				= isPcmCacheEnabled ? new PcmCache( frequency * BLOCK_MILLIS / 1000 * numberOfChannels, pcmCacheBytes ) : null;	// Decoded blocks of recent files, shared by all playbacks
 
 	/**
 	 * Plays a given file.
@@ -65,87 +81,515 @@ public class Playback
 	 * @param file The file to play
 	 */
 	public void playFile( File file)
+	{
+		this.playFile( file, 0 );
+	}
+
+	/**
+	 * Plays a given file from the given time on. Encoded files are Ogg Opus files, the start is found by bisection
+	 * in a few page reads, so playback starts right away even in long recordings.
+	 * 
+	 * @param file The file to play
+	 * @param startMillis Time in milliseconds from the start of the recording to begin playback at
+	 */
+	public void playFile( File file, long startMillis )
 	{	
-		this.shoudStopPlaying = false;
 		this.isPlaying = true;
 
-		FileInputStream	inputStream = this.initInputStreamForFile( file );
+		AudioTrack atrack = this.openTrack( false );
+		Resampler resampler = new Resampler( frequency, this.playoutRate, numberOfChannels, maxPacketSamples / numberOfChannels );
 
-		AudioTrack atrack = new AudioTrack( AudioManager.STREAM_MUSIC, frequency, channelConfiguration, audioEncoding, audioRecBufferSize, AudioTrack.MODE_STREAM );
-		atrack.play();
+		if ( this.isOpusEncoded && !file.getName().endsWith( ".wav" ) )
+		{
+			try
+			{
+				this.playOpus( OggOpusReader.map( file ), file.getAbsolutePath() + "@" + file.lastModified() + "+" + file.length(), startMillis, atrack, resampler );
+			}
+			catch ( IOException e )
+			{
+				Log.e( TAG, e.getLocalizedMessage(),e );
+			}
+		}
+		else //no encoding, WAV file
+		{
+			this.playRawFile( file, startMillis, atrack, resampler );
+		}
+		atrack.stop();
+		atrack.release();
+
+		this.shoudStopPlaying = false;	// Consumed, the next playback runs until it is stopped
+		this.isPlaying = false;
+	}
+
+	/**
+	 * Plays a recording of a store from the given time on, see {@link #playFile(File, long)}.
+	 * 
+	 * @param store Store holding the recording
+	 * @param entry The recording to play
+	 * @param startMillis Time in milliseconds from the start of the recording to begin playback at
+	 */
+	public void playRecording( RecordingStore store, RecordingStore.Entry entry, long startMillis )
+	{
+		this.isPlaying = true;
 
-		int bytesRead = 0;
-		if (this.isOpusEncoded)
+		AudioTrack atrack = this.openTrack( false );
+		Resampler resampler = new Resampler( frequency, this.playoutRate, numberOfChannels, maxPacketSamples / numberOfChannels );
+		try
 		{
-			short[] buffer = new short[audioRecBufferSize];
+			this.playOpus( store.openReader( entry ), "recording " + entry.getId() + "@" + entry.getStartTime(), startMillis, atrack, resampler );
+		}
+		catch ( IOException e )
+		{
+			Log.e( TAG, e.getLocalizedMessage(),e );
+		}
+		atrack.stop();
+		atrack.release();
+
+		this.shoudStopPlaying = false;	// Consumed, the next playback runs until it is stopped
+		this.isPlaying = false;
+	}
 
-			OpusDecoder decoder = new OpusDecoder( inputStream, frequency, numberOfChannels, frameSize);
+	/**
+	 * Plays a source through a {@link PlayoutEngine}, unless playback was stopped already.
+	 * 
+	 * @param resampler Resampler the source uses, determines the largest chunk
+	 */
+	private void play( PlayoutEngine.Source source, AudioTrack atrack, Resampler resampler )
+	{
+		PlayoutEngine engine = new PlayoutEngine( source, resampler.getMaxOutputFrames( maxPacketSamples / numberOfChannels ) * numberOfChannels, decodeAheadChunks );
+		this.engine = engine;
+		this.firstSampleTime = -1;
+		if ( !this.shoudStopPlaying )
+		{
+			atrack.play();
+			engine.play( atrack );
+		}
+		this.firstSampleTime = engine.getFirstChunkTime();
+		this.engine = null;
+	}
 
-			while ( !shoudStopPlaying && bytesRead < file.length() )
+	/**
+	 * Plays a WAV file, read in chunks of the longest opus packet on the decoder thread of the engine. The samples go
+	 * from the direct buffer of the reader straight into the resampler, a file at another rate than the decoder's
+	 * gets a resampler of its own.
+	 */
+	private void playRawFile( File file, long startMillis, AudioTrack atrack, Resampler resampler )
+	{
+		final WavReader reader;
+		try
+		{
+			reader = new WavReader( file );
+		}
+		catch ( IOException e )
+		{
+			Log.e( TAG, e.getLocalizedMessage(),e );
+			return;
+		}
+		try
+		{
+			if ( reader.getNumberOfChannels() != numberOfChannels )
 			{
-				try
+				throw new IOException( "WAV file has " + reader.getNumberOfChannels() + " channels, playback needs " + numberOfChannels );
+			}
+			if ( reader.getSamplingRate() != frequency )
+			{
+				resampler = new Resampler( reader.getSamplingRate(), this.playoutRate, numberOfChannels, maxPacketSamples / numberOfChannels );
+			}
+			reader.seek( startMillis * reader.getSamplingRate() / 1000 );
+			final Resampler fileResampler = resampler;
+			this.play( new PlayoutEngine.Source()
+			{
+				private final short[]		buffer			= new short[maxPacketSamples];
+
+				@Override
+				public int read( short[] chunk ) throws IOException
 				{
-					// Read from the InputStream                
-					bytesRead += decoder.read( buffer );
-					atrack.write( buffer, 0, buffer.length );
-					atrack.flush();
+					int samplesRead = reader.read( this.buffer, 0, maxPacketSamples );
+					if ( samplesRead <= 0 )
+					{
+						return -1;
+					}
+					return fileResampler.process( this.buffer, 0, samplesRead / numberOfChannels, chunk, 0 ) * numberOfChannels;
 				}
-				catch ( IOException e )
+			}, atrack, resampler );
+		}
+		catch ( IOException e )
+		{
+			Log.e( TAG, e.getLocalizedMessage(),e );
+		}
+		finally
+		{
+			try
+			{
+				reader.close();
+			}
+			catch ( IOException e )
+			{
+				Log.e( TAG, e.getLocalizedMessage(),e );
+			}
+		}
+	}
+
+	/**
+	 * Plays an Ogg Opus stream and closes the reader. The decoder thread of the engine decodes the packets straight
+	 * from the mapping of the reader, or takes them from the PCM cache if the blocks were decoded recently.
+	 *
+	 * @param key Key of the recording in the PCM cache
+	 */
+	private void playOpus( OggOpusReader reader, String key, long startMillis, AudioTrack atrack, Resampler resampler )
+	{
+		BlockSource source = new BlockSource( reader, key, startMillis, resampler );
+		try
+		{
+			this.play( source, atrack, resampler );
+		}
+		finally
+		{
+			try
+			{
+				source.close();
+			}
+			catch ( IOException e )
+			{
+				Log.e( TAG, e.getLocalizedMessage(),e );
+			}
+		}
+		if ( this.pcmCache != null )
+		{
+			Log.d( TAG, "PCM cache: " + this.pcmCache );
+		}
+	}
+
+	/**
+	 * Source of an Ogg Opus stream that works in blocks of the PCM cache. Each block is taken from the cache or decoded
+	 * and put into it. A block is decoded one packet per read while its samples are already handed out, so playback of
+	 * an uncached file starts after the first packet and not after a whole block. The block goes into the cache once
+	 * it is complete. The decoder keeps running as long as blocks are decoded in sequence, after a cached block it
+	 * starts again PRE_ROLL ahead of the next block.
+	 */
+	class BlockSource implements PlayoutEngine.Source
+	{
+		private final OggOpusReader	reader;
+		private final String		key;
+		private final Resampler		resampler;
+		private final long			startMillis;
+		private final int			blockSamples	= frequency * BLOCK_MILLIS / 1000 * numberOfChannels;
+		private final short[]		block			= new short[this.blockSamples];
+		private final ShortBuffer	pcm				= ByteBuffer.allocateDirect( maxPacketSamples * ( Short.SIZE / Byte.SIZE ) ).order( ByteOrder.nativeOrder() ).asShortBuffer();
+		private OpusDecoder			decoder			= null;
+		private long				blockIndex		= -1;	// Block in block, -1 before the first read
+		private int					blockLength		= 0;	// Samples of block cached or decoded so far
+		private int					blockPosition	= 0;	// Next sample of block to play
+		private boolean				isDecoding		= false;	// The rest of block is still to be decoded
+		private boolean				isCacheable		= false;	// Block is decoded from its start and goes into the cache when complete
+		private long				nextDecoded		= -1;	// Block the decoder continues with without seeking
+		private long				discard			= 0;	// Decoded samples before the block start, including the pre-skip of the encoder
+
+		BlockSource( OggOpusReader reader, String key, long startMillis, Resampler resampler )
+		{
+			this.reader = reader;
+			this.key = key;
+			this.startMillis = startMillis;
+			this.resampler = resampler;
+			this.pcm.limit( 0 );
+		}
+
+		@Override
+		public int read( short[] chunk ) throws IOException
+		{
+			if ( this.blockIndex < 0 )
+			{
+				this.load( this.startMillis / BLOCK_MILLIS, this.startMillis % BLOCK_MILLIS );
+			}
+			while ( this.blockPosition == this.blockLength )
+			{
+				if ( this.isDecoding )
+				{
+					this.decodePacket();
+				}
+				else if ( this.blockLength == this.blockSamples )
+				{
+					this.load( this.blockIndex + 1, 0 );
+				}
+				else
 				{
-					Log.e( TAG, e.getLocalizedMessage(),e );
-					break;
+					return -1;
 				}
 			}
+
+			int frames = Math.min( this.blockLength - this.blockPosition, maxPacketSamples ) / numberOfChannels;
+			int samples = this.resampler.process( this.block, this.blockPosition, frames, chunk, 0 ) * numberOfChannels;
+			this.blockPosition += frames * numberOfChannels;
+			return samples;
+		}
+
+		/**
+		 * Takes a block from the cache, or starts decoding it at the given time within the block. A block decoded from
+		 * the middle is played but not cached.
+		 */
+		private void load( long index, long offsetMillis ) throws IOException
+		{
+			int offset = ( int ) ( offsetMillis * frequency / 1000 * numberOfChannels );
+			int length = pcmCache != null ? pcmCache.get( this.key, index, this.block ) : -1;
+			this.blockIndex = index;
+			if ( length >= 0 )
+			{
+				this.blockLength = length;
+				this.blockPosition = Math.min( length, offset );
+				this.isDecoding = false;
+				return;
+			}
+
+			if ( offset != 0 || index != this.nextDecoded )
+			{
+				if ( this.decoder != null )
+				{
+					this.decoder.close();
+				}
+				this.decoder = new OpusDecoder( null, frequency, numberOfChannels, frameSize );
+				this.discard = this.reader.seek( index * BLOCK_MILLIS + offsetMillis ) * frequency / 48000 * numberOfChannels;
+				this.pcm.limit( 0 );
+			}
+			this.blockLength = offset;
+			this.blockPosition = offset;
+			this.isDecoding = true;
+			this.isCacheable = offset == 0;
+			this.nextDecoded = -1;
+		}
+
+		/**
+		 * Appends the samples of the next packet to the block, or of the rest of the last packet that did not fit
+		 * into the previous block. Completes the block once it is full or the stream ends.
+		 */
+		private void decodePacket() throws IOException
+		{
+			if ( !this.pcm.hasRemaining() )
+			{
+				ByteBuffer packet = this.reader.readPacket();
+				if ( packet == null )
+				{
+					this.completeBlock();
+					return;
+				}
+				this.pcm.clear();
+				int samples = this.decoder.decode( packet, this.pcm ) * numberOfChannels;
+				this.pcm.flip();
+
+				int skipped = ( int ) Math.min( this.discard, samples );
+				this.discard -= skipped;
+				this.pcm.position( skipped );
+			}
+			int count = Math.min( this.pcm.remaining(), this.blockSamples - this.blockLength );
+			this.pcm.get( this.block, this.blockLength, count );
+			this.blockLength += count;
+			if ( this.blockLength == this.blockSamples )
+			{
+				this.completeBlock();
+			}
+		}
+
+		private void completeBlock()
+		{
+			this.isDecoding = false;
+			this.nextDecoded = this.blockIndex + 1;
+			if ( pcmCache != null && this.isCacheable && this.blockLength > 0 )
+			{
+				pcmCache.put( this.key, this.blockIndex, this.block, this.blockLength );
+			}
+		}
+
+		void close() throws IOException
+		{
+			try
+			{
+				if ( this.decoder != null )
+				{
+					this.decoder.close();
+				}
+			}
+			finally
+			{
+				this.reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Plays the live stream of a receiver until {@link #stopPlaying()} is called.
+	 *
+	 * The AudioTrack only gets its minimum buffer rounded up to whole bursts of the device, the jitter buffer of the receiver holds everything else. Together with
+	 * one frame of capture and the network this keeps mouth-to-ear latency below 100ms on a local network.
+	 * Writing to the AudioTrack blocks while its buffer is full and thereby paces the loop to one frame per frame period.
+	 * While the receiver waits for a talker, silence is written to keep that pace.
+	 * If the receiver follows several talkers, each one gets its own decoder and the talkers are mixed.
+	 *
+	 * @param receiver Started receiver of a sender with the same audio configuration
+	 */
+	public void playStream( RtpReceiver receiver )
+	{
+		this.isPlaying = true;
+
+		AudioTrack atrack = this.openTrack( true );
+		atrack.play();
+
+		int frameSamples = frameSize * numberOfChannels;
+		ShortBuffer pcm = ByteBuffer.allocateDirect( frameSamples * ( Short.SIZE / Byte.SIZE ) ).order( ByteOrder.nativeOrder() ).asShortBuffer();
+		short[] buffer = new short[frameSamples];
+		Resampler resampler = new Resampler( frequency, this.playoutRate, numberOfChannels, frameSize );
+		short[] resampled = new short[resampler.getMaxOutputFrames( frameSize ) * numberOfChannels];
+		OpusDecoder[] decoders = new OpusDecoder[receiver.getMaxTalkers()];
+		for ( int talker = 0; talker < decoders.length; talker++ )
+		{
+			decoders[talker] = new OpusDecoder( null, frequency, numberOfChannels, frameSize );
+		}
+		Mixer mixer = decoders.length > 1 ? new Mixer( decoders.length, frameSamples ) : null;
+
+		try
+		{
+			while ( !shoudStopPlaying )
+			{
+				if ( mixer != null )
+				{
+					receiver.mixNext( decoders, mixer, buffer );
+				}
+				else
+				{
+					pcm.clear();
+					int samples = receiver.decodeNext( decoders[0], pcm ) * numberOfChannels;
+					pcm.flip();
+					pcm.get( buffer, 0, samples );
+					Arrays.fill( buffer, samples, frameSamples, ( short ) 0 );
+				}
+				this.write( atrack, resampler, buffer, frameSamples, resampled );
+			}
+		}
+		catch ( IOException e )
+		{
+			Log.e( TAG, e.getLocalizedMessage(), e );
 		}
-		else //no encoding
+		finally
 		{
-			byte[] directBuffer = new byte[audioRecBufferSize];
-			while ( !shoudStopPlaying && bytesRead < file.length() )
+			atrack.stop();
+			atrack.release();
+			for ( OpusDecoder decoder : decoders )
 			{
 				try
 				{
-					// Read from the InputStream                
-					bytesRead += inputStream.read( directBuffer );
-					atrack.write( directBuffer, 0, directBuffer.length );
-					atrack.flush();
+					decoder.close();
 				}
 				catch ( IOException e )
 				{
-					Log.e( TAG, e.getLocalizedMessage(),e );
-					break;
+					Log.e( TAG, e.getLocalizedMessage(), e );
 				}
 			}
 		}
-		atrack.stop();
 
+		this.shoudStopPlaying = false;	// Consumed, the next playback runs until it is stopped
 		this.isPlaying = false;
 	}
 
 	/**
-	 * Opens a FileInputStream for a file
-	 * 
-	 * @param file The file to open
-	 * @return InputStream for file
+	 * Opens an AudioTrack at the native rate of the device, or at the decoder rate if the native rate is disabled or not supported.
+	 *
+	 * @param isLowLatency Whether to use the minimum buffer rounded up to whole bursts, or a conservative buffer of twice the minimum
+	 * @return The track, its rate and buffer size are kept in playoutRate and playoutBufferSize
 	 */
-	private FileInputStream initInputStreamForFile( File file )
+	private AudioTrack openTrack( boolean isLowLatency )
 	{
-		try
+		this.playoutRate = frequency;
+		this.playoutBufferSize = -1;
+		if ( this.isNativeRateEnabled )
+		{
+			if ( this.audioDevice == null )
+			{
+				this.audioDevice = new AudioDevice( null );
+			}
+			int nativeRate = this.audioDevice.getSampleRate();
+			this.playoutBufferSize = this.audioDevice.getPlayoutBufferSize( nativeRate, channelConfiguration, numberOfChannels );
+			if ( this.playoutBufferSize > 0 )
+			{
+				this.playoutRate = nativeRate;
+			}
+		}
+		if ( this.playoutBufferSize <= 0 )
 		{
-			return new FileInputStream( file );
+			this.playoutBufferSize = AudioTrack.getMinBufferSize( frequency, channelConfiguration, audioEncoding );
 		}
-		catch ( FileNotFoundException e )
+		if ( !isLowLatency )
 		{
-			Log.e( TAG,e.getLocalizedMessage(), e );
-			
-			return null;
+			this.playoutBufferSize *= 2;
 		}
+		Log.d( TAG, "Play at " + this.playoutRate + "Hz - AudioTrack buffer: " + this.playoutBufferSize + " bytes" );
+		return new AudioTrack( AudioManager.STREAM_MUSIC, this.playoutRate, channelConfiguration, audioEncoding, this.playoutBufferSize, AudioTrack.MODE_STREAM );
 	}
 
 	/**
-	 * Sets the flag to stop the playing thread.
+	 * Resamples decoded samples to the rate of the track and writes them, blocking while the track is full.
+	 *
+	 * @param resampled Scratch array for the resampled signal, large enough for the given number of samples
+	 */
+	private void write( AudioTrack atrack, Resampler resampler, short[] buffer, int samples, short[] resampled )
+	{
+		if ( resampler.isPassThrough() )
+		{
+			atrack.write( buffer, 0, samples );
+			return;
+		}
+		int frames = resampler.process( buffer, 0, samples / numberOfChannels, resampled, 0 );
+		atrack.write( resampled, 0, frames * numberOfChannels );
+	}
+
+	/**
+	 * @param audioDevice Native rate and burst size of the device, see {@link AudioDevice#AudioDevice(android.content.Context)}
+	 */
+	public void setAudioDevice( AudioDevice audioDevice )
+	{
+		this.audioDevice = audioDevice;
+	}
+
+	/**
+	 * @return Cache of decoded blocks with its hit rate and memory ceiling, null if disabled
+	 */
+	public PcmCache getPcmCache()
+	{
+		return this.pcmCache;
+	}
+
+	/**
+	 * @return System.nanoTime() the first samples of the current or last file were written to the track at, -1 if none
+	 */
+	public long getFirstSampleTime()
+	{
+		return this.firstSampleTime;
+	}
+
+	/**
+	 * @return Sample rate of the current or last AudioTrack
+	 */
+	public int getPlayoutRate()
+	{
+		return this.playoutRate;
+	}
+
+	/**
+	 * Clears a stop request that arrived after the last playback had ended already, so the next one runs.
+	 * A stop requested after this call ends the next playback as soon as it starts.
+	 */
+	public void resetStop()
+	{
+		this.shoudStopPlaying = false;
+	}
+
+	/**
+	 * Sets the flag to stop the playing thread, or the next playback if none has started yet.
 	 */
 	public void stopPlaying()
 	{
 		this.shoudStopPlaying = true;
+		PlayoutEngine playing = this.engine;
+		if ( playing != null )
+		{
+			playing.stop();
+		}
 	}
 }
@@ -0,0 +1,211 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.IOException;
+
+import android.media.AudioTrack;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Plays a stream through an AudioTrack with a decoder thread running ahead of the output.
+ *
+ *	The decoder thread reads chunks from a {@link Source} into a bounded {@link PcmRingBuffer} and is parked while
+ *	the ring is full. The calling thread only moves the decoded chunks into the track, writing exactly the samples
+ *	that were decoded. File reads and decoding hiccups are absorbed by the ring instead of starving the track.
+ *
+ *	Output starts with the first decoded chunk, so playback begins after a single decode instead of a full buffer.
+ *	Whenever the output finds the ring empty after that, an underrun is counted.
+ */
+public class PlayoutEngine
+{
+	private static String		TAG				= "PlayoutEngine";
+
+	/**
+	 * Produces the signal for the engine, called on the decoder thread only.
+	 */
+	public interface Source
+	{
+		/**
+		 * Decodes the next chunk of the stream.
+		 * 
+		 * @param buffer Receives the samples, interleaved at the rate of the track
+		 * @return Number of samples written, 0 if the chunk produced no output, or -1 at the end of the stream
+		 * @throws IOException
+		 */
+		int read( short[] buffer ) throws IOException;
+	}
+
+	//Fields
+	private final Source		source;
+	private final PcmRingBuffer	queue;
+	private volatile boolean	shouldStop		= false;
+
+	//Statistics
+	private volatile long		underruns		= 0;
+	private volatile long		chunksPlayed	= 0;
+	private volatile long		startupNanos	= -1;
+	private volatile long		firstChunkTime	= -1;	// System.nanoTime() of the first write to the track
+
+	/**
+	 * @param source Decodes the stream
+	 * @param chunkSamples Most samples the source writes per read
+	 * @param queueChunks Chunks the decoder may run ahead of the output, rounded up to the next power of two
+	 */
+	public PlayoutEngine( Source source, int chunkSamples, int queueChunks )
+	{
+		this.source = source;
+		this.queue = new PcmRingBuffer( queueChunks, chunkSamples );
+	}
+
+	/**
+	 * Plays the source until its end or until {@link #stop()} is called. The calling thread becomes the output thread
+	 * and is raised to urgent audio priority, the decoder thread runs at audio priority.
+	 * 
+	 * @param atrack Playing track at the rate and channel count of the source
+	 */
+	public void play( AudioTrack atrack )
+	{
+		long startTime = System.nanoTime();
+		Process.setThreadPriority( Process.THREAD_PRIORITY_URGENT_AUDIO );
+		Thread decoderThread = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				Process.setThreadPriority( Process.THREAD_PRIORITY_AUDIO );
+				decode();
+			}
+		}, "Playout decoder" );
+		decoderThread.start();
+
+		short[] chunk;
+		while ( !this.shouldStop )
+		{
+			boolean wasEmpty = this.chunksPlayed > 0 && this.queue.size() == 0;
+			if ( ( chunk = this.queue.awaitReadSlot() ) == null )
+			{
+				break;
+			}
+			if ( wasEmpty )
+			{
+				this.underruns++;
+				Metrics.get().playbackUnderrun();
+			}
+			if ( this.chunksPlayed == 0 )
+			{
+				this.firstChunkTime = System.nanoTime();
+				this.startupNanos = this.firstChunkTime - startTime;
+			}
+			atrack.write( chunk, 0, this.queue.readLength() );
+			this.queue.release();
+			this.chunksPlayed++;
+		}
+		this.queue.close();	// Releases the decoder if playback was stopped early
+
+		try
+		{
+			decoderThread.join();
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		Log.d( TAG, "Playout: " + this.chunksPlayed + " chunks - " + this.underruns + " underruns - started after " + this.startupNanos / 1000 + "us - queue high-water mark: " + this.queue.getHighWaterMark() + "/" + this.queue.capacity() );
+	}
+
+	/**
+	 * Decoder thread: fills the ring until the source ends or the output closes the ring.
+	 */
+	private void decode()
+	{
+		try
+		{
+			short[] slot;
+			while ( ( slot = this.queue.awaitWriteSlot() ) != null )
+			{
+				int samples = this.source.read( slot );
+				if ( samples < 0 )
+				{
+					break;
+				}
+				if ( samples > 0 )
+				{
+					this.queue.publish( samples );
+				}
+			}
+		}
+		catch ( IOException e )
+		{
+			Log.e( TAG, e.getLocalizedMessage(), e );
+		}
+		finally
+		{
+			this.queue.close();
+		}
+	}
+
+	/**
+	 * Stops playback after the chunk that is currently written.
+	 */
+	public void stop()
+	{
+		this.shouldStop = true;
+		this.queue.close();
+	}
+
+	/**
+	 * @return Times the output found no decoded chunk after playback had started
+	 */
+	public long getUnderruns()
+	{
+		return this.underruns;
+	}
+
+	/**
+	 * @return Chunks written to the track
+	 */
+	public long getChunksPlayed()
+	{
+		return this.chunksPlayed;
+	}
+
+	/**
+	 * @return Nanoseconds from the call to play() to the first write to the track, -1 before that
+	 */
+	public long getStartupNanos()
+	{
+		return this.startupNanos;
+	}
+
+	/**
+	 * @return System.nanoTime() the first chunk was written to the track at, -1 if nothing was played
+	 */
+	public long getFirstChunkTime()
+	{
+		return this.firstChunkTime;
+	}
+}
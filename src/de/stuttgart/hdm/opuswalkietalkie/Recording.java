@@ -26,6 +26,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
 
 import android.media.AudioFormat;
 import android.media.AudioRecord;
@@ -45,99 +47,511 @@ public class Recording
 	
 	//Config
 	public boolean isOpusEncodingEnabled 				= true; 	// Toggle opus encoding.
+	public boolean isGovernorEnabled					= true;		// Lower complexity and bitrate when encoding falls behind real time.
+	public boolean isSilenceSuppressionEnabled			= true;		// Skip encoding silent frames between phrases, only with opus encoding.
+	public boolean isNativeRateEnabled					= true;		// Capture at the native rate of the device with minimal buffers and resample to the encoder rate.
+	public boolean isLevelSummaryEnabled				= true;		// Keep the levels of recorded files in a summary next to them, for waveforms without decoding.
+	public boolean isArchiveModeEnabled					= true;		// Encode files in 60ms frames merged into 120ms packets, streams always use 20ms frames.
+	private EncoderConfig encoderConfig					= new EncoderConfig();	// Encoder settings of the next recording.
 	private String audioFolder					=  "/audioTest";	// Folder in which the audio file is written.
 	private String audioFile					= "testAudio.opus";	// Name of the audio file.
+	private String rawAudioFile					= "testAudio.wav";	// Name of the audio file without opus encoding.
 	
 	//Status flags
-	public boolean				isRecording				= false;
-	public boolean				isRecordFinished		= false;
+	public volatile boolean		isRecording				= false;
+	public volatile boolean		isRecordFinished		= false;
 	
 	//Fields
 	public File					recordedFile			= null;
+	public RecordingStore.Entry	recordedEntry			= null;	// Recording the last recordToFile() added to the store, null if it recorded nothing or into recordedFile
+	private RecordingStore		recordingStore			= null;	// Keeps all recordings, null to overwrite a single file
+	private PcmRingBuffer		ringBuffer				= null;	// Hands captured frames from the capture thread to the writer thread
+	private VoiceActivityDetector voiceActivityDetector	= null;	// Finds the silent frames, null if silence is not suppressed
+	private volatile LevelSummary levelSummary			= null;	// Levels of the current or last recorded file, null if not summarized
+	private long				silenceBytes			= 0;	// Bytes written in place of suppressed frames
+	private AudioDevice			audioDevice				= null;	// Native rate and burst size, queried on the first recording if not set
+	private int					captureRate;					// Sample rate of the current or last recording
+	private int					captureBufferSize;				// AudioRecord buffer of the current or last recording in bytes
+	private volatile long		firstSampleTime			= -1;	// System.nanoTime() the first samples of the current or last recording were captured at
+
+	//Writer thread state
+	private Resampler			resampler;
+	private short[]				frame;							// Frame at the encoder rate, assembled from resampled chunks
+	private int					frameFill				= 0;	// Samples in frame
+	private int					silentFrames			= 0;	// Suppressed frames not yet written or sent
 
 	//Audio config
-	private int					frequency				= 8000; // Capture mono data at 8kHz
+	private int					frequency				= 48000; // Encode mono data at 48kHz, the rate opus works at internally
 	private int					channelConfiguration	= AudioFormat.CHANNEL_CONFIGURATION_MONO; // The AudioRecord constructor only allows the deprecated configuration value.
 	private int					audioEncoding			= AudioFormat.ENCODING_PCM_16BIT;
 	private int					numberOfChannels		= 1;	// Mono
-	private int 				frameSize				= 20;	// The frame_size must an opus frame size for the encoder's sampling rate.
-																// For example, at 48kHz the permitted values are 120, 240, 480, 960, 1920, and 2880.
-	private final int			bufferSize				= frameSize * numberOfChannels * (Short.SIZE / Byte.SIZE);	// Defines the length of the byte array that is passed to the encoder.
-																													// (Short.SIZE / Byte.SIZE) equals sizeof(opus_int16) 
-	private final int			audioRecBufferSize		= 2 * AudioRecord.getMinBufferSize( frequency, channelConfiguration, audioEncoding ); // Buffer for audio output.
+	private int 				frameSize;						// Samples per channel of one encoder frame, chosen per recording by chooseFrameSize()
+	private int					frameSamples;					// Samples per frame, the length of the short array that is passed to the encoder.
+	private int					framesPerPacket;				// Encoded frames merged into one packet of a file
+	private int					ringBufferFrames		= 128;	// Capture chunks the ring between capture and writer thread can hold, 2.56s of 20ms chunks
 	
-	private boolean				shouldStopRecording		= false;
+	private volatile boolean	shouldStopRecording		= false;
 
 	/**
 	 *	Starts audio recording and writes the recorded data into a file.
+	 *
+	 *	The calling thread only drains the AudioRecord into a ring of frame slots, a separate writer thread
+	 *	encodes the frames and writes them to the file. A slow encoder or slow storage therefore fills the ring
+	 *	instead of overrunning the AudioRecord.
+	 *
+	 *	Encoded recordings are written as Ogg Opus, raw recordings as 16 bit PCM WAV files, see {@link WavWriter}.
+	 *	If a {@link RecordingStore} is set, encoded recordings are added to the store instead of replacing the last one,
+	 *	see {@link #recordedEntry}.
+	 *	With silence suppression the silent frames between phrases are not encoded, see {@link #writeFrames(PcmRingBuffer, int, OpusEncoder, OutputStream)}.
+	 *	The levels of every frame are kept in a {@link LevelSummary}, saved next to the file or as the level file of the
+	 *	store entry when the recording ends.
+	 *	In archive mode encoded files get 60ms frames merged into 120ms packets by an {@link OpusRepacketizer}, which
+	 *	saves CPU and the per-packet overhead, as nobody listens while the file is written.
 	 */
 	public void recordToFile()
 	{
-		this.shouldStopRecording = false;
+		this.chooseFrameSize( this.isOpusEncodingEnabled && this.isArchiveModeEnabled ? FrameDuration.ARCHIVE : FrameDuration.LIVE );
+		this.levelSummary = this.isLevelSummaryEnabled ? new LevelSummary( frequency, frameSize ) : null;
+		this.recordedEntry = null;	// Set again only if this recording goes into the store
+		if ( this.isOpusEncodingEnabled && this.recordingStore != null )
+		{
+			try
+			{
+				RecordingStore.Writer sink = this.recordingStore.openRecording( System.currentTimeMillis() );
+				this.record( new OggOpusWriter( sink, frequency, numberOfChannels ) );
+				this.recordedEntry = sink.getEntry();	// Null if nothing was recorded, the last recording is not played again
+				Log.d( TAG, "Write-behind: " + sink );
+				if ( this.recordedEntry != null )
+				{
+					this.saveLevelSummary( this.recordingStore.getLevelFile( this.recordedEntry ) );
+				}
+			}
+			catch ( IOException e )
+			{
+				Log.e( TAG, "Could not start a recording in the store", e );
+			}
+			return;
+		}
+
+		FileOutputStream fileOutputStream = this.initOutputStream();
+		if ( fileOutputStream == null )
+		{
+			return;
+		}
+		if ( !this.isOpusEncodingEnabled )
+		{
+			WavWriter wavWriter = new WavWriter( fileOutputStream.getChannel(), frequency, numberOfChannels );
+			this.record( wavWriter );
+			Log.d( TAG, "WAV: " + wavWriter.getDataBytes() + " bytes of samples" );
+		}
+		else
+		{
+			WriteBehindSink sink = new WriteBehindSink( fileOutputStream.getChannel(), 0, true );
+			this.record( new OggOpusWriter( sink, frequency, numberOfChannels ) );
+			Log.d( TAG, "Write-behind: " + sink );
+		}
+		this.saveLevelSummary( new File( this.recordedFile.getPath() + LevelSummary.FILE_SUFFIX ) );
+	}
+
+	/**
+	 * Saves the levels of the recording, or deletes the levels of an earlier recording to the same file if there are none.
+	 */
+	private void saveLevelSummary( File file )
+	{
+		if ( this.levelSummary == null )
+		{
+			file.delete();
+			return;
+		}
+		try
+		{
+			this.levelSummary.save( file );
+		}
+		catch ( IOException e )
+		{
+			Log.e( TAG, "Could not save the level summary", e );
+		}
+	}
+
+	/**
+	 *	Starts audio recording and sends the encoded frames to another device until {@link #stopRecording()} is called.
+	 *	Closes the sender at the end, use a new one for the next talk spurt.
+	 *
+	 * @param sender Sender connected to the receiving device
+	 * @throws IllegalStateException If opus encoding is disabled, a sender only carries opus packets. The sender is not closed then.
+	 */
+	public void recordToSender( RtpSender sender )
+	{
+		if ( !this.isOpusEncodingEnabled )
+		{
+			throw new IllegalStateException( "Streaming needs opus encoding" );
+		}
+		this.chooseFrameSize( FrameDuration.LIVE );
+		this.levelSummary = null;
+		this.record( sender );
+	}
+
+	/**
+	 *	Records into the given stream, see {@link #recordToFile()}. A {@link WavWriter} takes the frames as they are,
+	 *	no encoder is created for it.
+	 *
+	 * @param outputStream Stream the encoder writes its packets to, one write per packet, or a WavWriter
+	 */
+	private void record( final OutputStream outputStream )
+	{
 		this.isRecording = true;
-		AudioRecord arec = new AudioRecord( MediaRecorder.AudioSource.MIC, frequency, channelConfiguration, audioEncoding, audioRecBufferSize );
+		this.firstSampleTime = -1;
+		this.chooseCaptureRate();
+		final int captureFrames = FrameDuration.getFrameSize( FrameDuration.LIVE, frequency ) * this.captureRate / frequency;	// Frames per channel of one ring slot, 20ms at the capture rate
+		AudioRecord arec = new AudioRecord( MediaRecorder.AudioSource.MIC, this.captureRate, channelConfiguration, audioEncoding, this.captureBufferSize );
 		arec.startRecording();
 		Log.d( TAG, "Start Recording" );
-		Log.d( TAG, "Buffer Configuration - Buffersize: " + bufferSize + " Channelconfiguration: " + channelConfiguration );
-		
-		FileOutputStream	outputStream = this.initOutputStream();
-		final OpusEncoder encoder = new OpusEncoder( outputStream , frequency, numberOfChannels, frameSize);
+		Log.d( TAG, "Capture at " + this.captureRate + "Hz - AudioRecord buffer: " + this.captureBufferSize + " bytes - Channelconfiguration: " + channelConfiguration );
 		
+		OpusRepacketizer repacketizer = null;
+		if ( framesPerPacket > 1 && outputStream instanceof OggOpusWriter )
+		{
+			repacketizer = new OpusRepacketizer( outputStream, framesPerPacket * frameSize * 48000 / frequency );
+		}
+		final OutputStream packetStream = repacketizer != null ? repacketizer : outputStream;	// Takes the encoded and the silence packets
+		final OpusEncoder encoder = outputStream instanceof WavWriter ? null : this.createEncoder( packetStream, outputStream );
+		final PcmRingBuffer ringBuffer = new PcmRingBuffer( ringBufferFrames, captureFrames * numberOfChannels );
+		this.ringBuffer = ringBuffer;
+		this.resampler = new Resampler( this.captureRate, frequency, numberOfChannels, captureFrames );
+		this.frame = new short[frameSamples];
+		this.frameFill = 0;
+		this.silentFrames = 0;
+		this.voiceActivityDetector = this.isOpusEncodingEnabled && this.isSilenceSuppressionEnabled ? new VoiceActivityDetector( frequency, numberOfChannels ) : null;
+		this.silenceBytes = 0;
 
-		if (this.isOpusEncodingEnabled)
+		Thread writerThread = new Thread( new Runnable()
 		{
-			short[] buffer 		= new short[bufferSize];
-			
-			while ( !this.shouldStopRecording )
+			@Override
+			public void run()
 			{
-				arec.read( buffer, 0, bufferSize );
+				writeFrames( ringBuffer, captureFrames, encoder, packetStream );
+			}
+		}, "Recording writer" );
+		writerThread.start();
 
-				Log.d( TAG, "Calling native code" );
-				try
-				{
-					encoder.write( buffer );
-				}
-				catch ( IOException e )
+		int slotSamples = captureFrames * numberOfChannels;
+		short[] overrunBuffer = new short[slotSamples];	// Keeps draining the AudioRecord while the ring is full
+		while ( !this.shouldStopRecording )
+		{
+			short[] slot = ringBuffer.writeSlot();
+			int samplesRead = arec.read( slot != null ? slot : overrunBuffer, 0, slotSamples );
+			if ( samplesRead > 0 && this.firstSampleTime < 0 )
+			{
+				this.firstSampleTime = System.nanoTime();
+			}
+			if ( slot != null && samplesRead > 0 )
+			{
+				ringBuffer.publish( samplesRead );
+			}
+		}
+
+		arec.stop();
+		arec.release();
+		ringBuffer.close();
+
+		try
+		{
+			writerThread.join();
+		}
+		catch ( InterruptedException e )
+		{
+			Log.e( TAG, "Interrupted while waiting for the writer thread", e );
+			Thread.currentThread().interrupt();
+		}
+		Log.d( TAG, "Capture overruns: " + ringBuffer.getOverruns() + " - Ring high-water mark: " + ringBuffer.getHighWaterMark() + "/" + ringBuffer.capacity() + " frames" );
+		if ( this.voiceActivityDetector != null )
+		{
+			long silentFrames = this.voiceActivityDetector.getSilentFrames();
+			long encodedFrames = encoder.getFramesEncoded();
+			long bytesSaved = encodedFrames > 0 ? silentFrames * encoder.getBytesEncoded() / encodedFrames - this.silenceBytes : 0;
+			Log.d( TAG, "Silence suppression: " + silentFrames + " of " + ( silentFrames + encodedFrames ) + " frames not encoded - about " + bytesSaved + " bytes saved" );
+		}
+
+		try
+		{
+			if ( encoder == null )
+			{
+				outputStream.close();
+			}
+			else
+			{
+				Log.d( TAG, "flush encoder" );
+				encoder.flush();
+				Log.d( TAG, "close encoder" );
+				encoder.close();
+				Log.d(TAG, "flushed and closed");
+			}
+			if ( repacketizer != null )
+			{
+				Log.d( TAG, "Repacketizer: " + repacketizer );
+			}
+		}
+		catch ( IOException e )
+		{
+			Log.e( TAG,"Could not close or flush stream", e );
+		}
+		this.shouldStopRecording = false;	// Consumed, the next recording runs until it is stopped
+		this.isRecording = false;
+		this.isRecordFinished = true;
+	}
+
+	/**
+	 * Creates the encoder of a recording with the encoder configuration and, if enabled, a governor.
+	 *
+	 * @param packetStream Stream the encoder writes its packets to
+	 * @param outputStream Stream at the end of the chain, an OggOpusWriter gets the pre-skip of the encoder
+	 */
+	private OpusEncoder createEncoder( OutputStream packetStream, OutputStream outputStream )
+	{
+		OpusEncoder encoder = new OpusEncoder( packetStream , frequency, numberOfChannels, frameSize);
+		try
+		{
+			encoder.configure( this.encoderConfig );
+		}
+		catch ( IOException e )
+		{
+			Log.e( TAG, "Invalid encoder configuration, recording with defaults", e );
+		}
+		if ( outputStream instanceof OggOpusWriter )
+		{
+			try
+			{
+				( ( OggOpusWriter ) outputStream ).setPreSkip( encoder.getLookahead() * 48000 / frequency );
+			}
+			catch ( IOException e )
+			{
+				Log.e( TAG, "Could not read the encoder lookahead", e );
+			}
+		}
+		if ( this.isGovernorEnabled )
+		{
+			encoder.setGovernor( new EncoderGovernor( encoder ) );
+		}
+		return encoder;
+	}
+
+	/**
+	 * Writer thread: takes captured chunks from the ring, resamples them to the encoder rate and encodes the frames
+	 * or writes them to a WAV file, until the ring is closed and drained.
+	 * 
+	 * Frames the voice activity detector finds silent are not encoded. In a file they are replaced by packets of empty
+	 * frames, a few bytes per 120ms, so playback keeps the timing of the recording. A sender skips them and starts
+	 * a new talk spurt when speech resumes, the receiver conceals the gap.
+	 * 
+	 * @param ringBuffer The ring filled by the capture thread
+	 * @param captureFrames Frames per channel of one ring slot
+	 * @param encoder Encoder wrapping the output stream, null for a {@link WavWriter}
+	 * @param outputStream The stream at the end of the chain, a {@link WavWriter} takes the frames without a copy to bytes
+	 */
+	private void writeFrames( PcmRingBuffer ringBuffer, int captureFrames, OpusEncoder encoder, OutputStream outputStream )
+	{
+		byte[] silencePacket = new byte[2];
+		short[] resampled = new short[this.resampler.getMaxOutputFrames( captureFrames ) * numberOfChannels];
+		short[] frame = this.frame;
+
+		short[] chunk;
+		while ( ( chunk = ringBuffer.awaitReadSlot() ) != null )
+		{
+			Metrics.get().captureQueueDepth( ringBuffer.size() );
+			int resampledSamples = this.resampler.process( chunk, 0, ringBuffer.readLength() / numberOfChannels, resampled, 0 ) * numberOfChannels;
+			ringBuffer.release();
+
+			for ( int offset = 0; offset < resampledSamples; )
+			{
+				int samples = Math.min( frameSamples - this.frameFill, resampledSamples - offset );
+				System.arraycopy( resampled, offset, frame, this.frameFill, samples );
+				this.frameFill += samples;
+				offset += samples;
+				if ( this.frameFill == frameSamples )
 				{
-					Log.e( TAG, e.getLocalizedMessage(), e );
+					this.writeFrame( encoder, outputStream, silencePacket );
 				}
 			}
 		}
-		else // Record raw audio
+
+		if ( this.frameFill > 0 )
+		{
+			Arrays.fill( frame, this.frameFill, frameSamples, ( short ) 0 );	// Pad the rest of the last frame
+			this.frameFill = frameSamples;
+			this.writeFrame( encoder, outputStream, silencePacket );
+		}
+		if ( this.silentFrames > 0 && !( outputStream instanceof RtpSender ) )
+		{
+			try
+			{
+				this.writeSilence( outputStream, silencePacket, this.silentFrames );
+			}
+			catch ( IOException e )
+			{
+				Log.e( TAG, e.getLocalizedMessage(), e );
+			}
+		}
+	}
+
+	/**
+	 * Encodes or writes the assembled frame, or suppresses it if it is silent.
+	 */
+	private void writeFrame( OpusEncoder encoder, OutputStream outputStream, byte[] silencePacket )
+	{
+		short[] frame = this.frame;
+		this.frameFill = 0;
+		if ( this.levelSummary != null )
 		{
-			while (!this.shouldStopRecording)
+			this.levelSummary.add( frame, 0, frameSamples );
+		}
+		try
+		{
+			if ( encoder != null )
 			{
-				byte[] directBuffer = new byte[bufferSize];
-				
-				arec.read( directBuffer, 0, bufferSize );
-				try
+				if ( this.voiceActivityDetector != null && !this.voiceActivityDetector.isSpeech( frame, 0, frameSamples ) )
 				{
-					Log.d( TAG, "Writing to stream" );
-					outputStream.write( directBuffer );
+					int maxSilentFrames = Math.min( OpusPacket.MAX_FRAMES, OpusPacket.MAX_SAMPLES / ( frameSize * 48000 / frequency ) );
+					if ( ++this.silentFrames == maxSilentFrames && !( outputStream instanceof RtpSender ) )
+					{
+						this.writeSilence( outputStream, silencePacket, this.silentFrames );
+						this.silentFrames = 0;
+					}
+					return;
 				}
-				catch ( IOException e )
+				if ( this.silentFrames > 0 )
 				{
-					Log.e( TAG, e.getLocalizedMessage(), e );
+					this.writeSilence( outputStream, silencePacket, this.silentFrames );
+					this.silentFrames = 0;
 				}
+				encoder.write( frame );
 			}
+			else // Write raw audio
+			{
+				( ( WavWriter ) outputStream ).write( frame, 0, frameSamples );
+			}
+		}
+		catch ( IOException e )
+		{
+			Log.e( TAG, e.getLocalizedMessage(), e );
 		}
+	}
 
-		arec.stop();
+	/**
+	 * Sets the frame size for the latency the next recording needs, see {@link FrameDuration}.
+	 *
+	 * @param latencyMode FrameDuration.LIVE or FrameDuration.ARCHIVE
+	 */
+	private void chooseFrameSize( int latencyMode )
+	{
+		this.frameSize = FrameDuration.getFrameSize( latencyMode, frequency );
+		this.frameSamples = frameSize * numberOfChannels;
+		this.framesPerPacket = FrameDuration.getFramesPerPacket( latencyMode );
+	}
 
-		try
+	/**
+	 * Picks the native rate of the device with its smallest capture buffer, or the encoder rate with the
+	 * conservative buffer of twice the minimum if the native rate is disabled or not supported for capture.
+	 */
+	private void chooseCaptureRate()
+	{
+		if ( this.isNativeRateEnabled )
 		{
-			Log.d( TAG, "flush encoder" );
-			encoder.flush();
-			Log.d( TAG, "close encoder" );
-			encoder.close();
-			Log.d(TAG, "flushed and closed");
+			if ( this.audioDevice == null )
+			{
+				this.audioDevice = new AudioDevice( null );
+			}
+			int nativeRate = this.audioDevice.getSampleRate();
+			int nativeBufferSize = this.audioDevice.getCaptureBufferSize( nativeRate, channelConfiguration, numberOfChannels );
+			if ( nativeBufferSize > 0 )
+			{
+				this.captureRate = nativeRate;
+				this.captureBufferSize = nativeBufferSize;
+				return;
+			}
 		}
-		catch ( IOException e )
+		this.captureRate = frequency;
+		this.captureBufferSize = 2 * AudioRecord.getMinBufferSize( frequency, channelConfiguration, audioEncoding );
+	}
+
+	/**
+	 * Stands in for suppressed frames: writes a packet of empty frames to a file, or lets a sender mark the pause.
+	 */
+	private void writeSilence( OutputStream outputStream, byte[] silencePacket, int frames ) throws IOException
+	{
+		if ( outputStream instanceof RtpSender )
 		{
-			Log.e( TAG,"Could not close or flush stream", e );
+			( ( RtpSender ) outputStream ).startTalkSpurt( frames * frameSize );
+			return;
 		}
-		this.isRecording = false;
-		this.isRecordFinished = true;
+		int length = OpusPacket.writeEmptyFrames( silencePacket, 0, frameSize * 48000 / frequency, frames );
+		outputStream.write( silencePacket, 0, length );
+		this.silenceBytes += length;
+	}
+
+	/**
+	 * @param recordingStore Store new encoded recordings are added to, null to overwrite a single file with every recording
+	 */
+	public void setRecordingStore( RecordingStore recordingStore )
+	{
+		this.recordingStore = recordingStore;
+	}
+
+	/**
+	 * @param audioDevice Native rate and burst size of the device, see {@link AudioDevice#AudioDevice(android.content.Context)}
+	 */
+	public void setAudioDevice( AudioDevice audioDevice )
+	{
+		this.audioDevice = audioDevice;
+	}
+
+	/**
+	 * @return Sample rate the current or last recording was captured at
+	 */
+	public int getCaptureRate()
+	{
+		return this.captureRate;
+	}
+
+	/**
+	 * @return AudioRecord buffer of the current or last recording in bytes
+	 */
+	public int getCaptureBufferSize()
+	{
+		return this.captureBufferSize;
+	}
+
+	/**
+	 * @param encoderConfig Encoder settings for the next recording, copied
+	 */
+	public void setEncoderConfig( EncoderConfig encoderConfig )
+	{
+		this.encoderConfig = new EncoderConfig( encoderConfig );
+	}
+
+	/**
+	 * @return The ring buffer of the current or last recording, to read its overrun counter and high-water mark. Null before the first recording.
+	 */
+	public PcmRingBuffer getRingBuffer()
+	{
+		return this.ringBuffer;
+	}
+
+	/**
+	 * @return The level summary of the current or last recorded file, for a level meter while recording. Null if the
+	 * 			levels were not summarized.
+	 */
+	public LevelSummary getLevelSummary()
+	{
+		return this.levelSummary;
+	}
+
+	/**
+	 * @return The voice activity detector of the current or last recording, to read how many frames were suppressed.
+	 * 			Null if silence was not suppressed.
+	 */
+	public VoiceActivityDetector getVoiceActivityDetector()
+	{
+		return this.voiceActivityDetector;
 	}
 
 	/**
@@ -151,17 +565,18 @@ public class Recording
 		File sdCard = Environment.getExternalStorageDirectory();
 		File dir = new File( sdCard.getAbsolutePath() + this.audioFolder );
 		dir.mkdirs();
-		File audioFile = new File( dir, this.audioFile );
+		String name = this.isOpusEncodingEnabled ? this.audioFile : this.rawAudioFile;
+		File audioFile = new File( dir, name );
 
 		if ( audioFile.length() > 0 )
 		{
 			audioFile.delete();
-			audioFile = new File( dir, this.audioFile );
+			audioFile = new File( dir, name );
 		}
 
 		try
 		{
-			fileOutputStream = new FileOutputStream( audioFile, true );
+			fileOutputStream = new FileOutputStream( audioFile );
 		}
 		catch ( FileNotFoundException e )
 		{
@@ -175,7 +590,24 @@ public class Recording
 
 	
 	/**
-	 * Sets the flag for the recording thread to stop.
+	 * @return System.nanoTime() the first samples of the current or last recording were captured at, -1 if none yet
+	 */
+	public long getFirstSampleTime()
+	{
+		return this.firstSampleTime;
+	}
+
+	/**
+	 * Clears a stop request that arrived after the last recording had ended already, so the next one runs.
+	 * A stop requested after this call ends the next recording as soon as it starts.
+	 */
+	public void resetStop()
+	{
+		this.shouldStopRecording = false;
+	}
+
+	/**
+	 * Sets the flag for the recording thread to stop, or the next recording if none has started yet.
 	 */
 	public void stopRecording()
 	{
@@ -0,0 +1,793 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Keeps recordings as Ogg Opus streams appended to segment files, with a compact index of all recordings.
+ *
+ *	Recordings are appended back-to-back to the tail segment. A new recording starts a new segment once the tail
+ *	segment has reached the segment size, so a recording never spans two segments and can be played straight from a
+ *	mapping of its region, see {@link OggOpusReader#map(File, long, long)}. Segments are numbered and never rewritten,
+ *	retention deletes whole segments, oldest first.
+ *
+ *	The index is an append-only file of fixed-size records, one per recording with id, start time, duration, segment,
+ *	offset and length, each protected by a CRC. It is read completely on open, so no directory is ever listed, and
+ *	compacted when most of its records belong to deleted segments.
+ *
+ *	Every recording may have a level file next to the segments, see {@link #getLevelFile(Entry)}. It is deleted with
+ *	the segment of the recording.
+ *
+ *	Writes are not synced one by one, a timer syncs the tail segment and the index every SYNC_PERIOD. After a crash only
+ *	the tail segment is scanned behind its last indexed recording: the valid pages of an interrupted recording are
+ *	indexed, anything behind them is cut off.
+ */
+public class RecordingStore
+{
+	private static String		TAG					= "RecordingStore";
+
+	public static final long	DEFAULT_SEGMENT_SIZE	= 4 * 1024 * 1024;
+	private static final long	SYNC_PERIOD			= 1000;	// Milliseconds between two syncs of written data
+	private static final String	INDEX_FILE			= "index";
+	private static final int	RECORD_SIZE			= 44;	// id, start time, duration, segment, offset, length, CRC
+	private static final int	MAX_PAGE_SIZE		= 27 + 255 + 255 * 255;
+	private static final int	OGG_MAGIC			= 0x5367674F;	// "OggS" read little endian
+	private static final byte[]	CRC_FIELD			= new byte[4];
+
+	/**
+	 * A stored recording.
+	 */
+	public static class Entry
+	{
+		private final long	id;
+		private final long	startTime;
+		private final long	duration;
+		private final int	segment;
+		private final long	offset;
+		private final long	length;
+
+		Entry( long id, long startTime, long duration, int segment, long offset, long length )
+		{
+			this.id = id;
+			this.startTime = startTime;
+			this.duration = duration;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public long getId()
+		{
+			return this.id;
+		}
+
+		/**
+		 * @return Wall clock time the recording started at, in milliseconds since the epoch
+		 */
+		public long getStartTime()
+		{
+			return this.startTime;
+		}
+
+		/**
+		 * @return Duration in milliseconds
+		 */
+		public long getDuration()
+		{
+			return this.duration;
+		}
+
+		public int getSegment()
+		{
+			return this.segment;
+		}
+
+		/**
+		 * @return Start of the recording in its segment
+		 */
+		public long getOffset()
+		{
+			return this.offset;
+		}
+
+		/**
+		 * @return Length of the recording in bytes
+		 */
+		public long getLength()
+		{
+			return this.length;
+		}
+
+		long getEnd()
+		{
+			return this.offset + this.length;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Recording " + this.id + " of " + this.duration + "ms in segment " + this.segment + " at " + this.offset;
+		}
+	}
+
+	//Config
+	private final File				directory;
+	private final long				segmentSize;
+	private long					maxBytes			= 64 * 1024 * 1024;	// Retention: size of all segments
+	private long					maxAge				= 30L * 24 * 60 * 60 * 1000;	// Retention: age of the newest recording of a segment
+
+	//Fields
+	private final List<Entry>		entries				= new ArrayList<Entry>();	// Ordered by id, which is also the order in the segments
+	private RandomAccessFile		indexFile;
+	private FileChannel				indexChannel;
+	private final ByteBuffer		record				= ByteBuffer.allocate( RECORD_SIZE );
+	private final CRC32				recordCrc			= new CRC32();
+	private int						deadRecords			= 0;	// Index records of deleted segments
+	private RandomAccessFile		tailFile;
+	private FileChannel				tailChannel;
+	private int						tailSegment;
+	private long					tailSize;
+	private long					totalBytes			= 0;	// Bytes of all indexed recordings
+	private long					nextId				= 1;
+	private Writer					writer				= null;	// Open recording
+	private boolean					isClosed			= false;
+	private volatile boolean		isDirty				= false;	// Written since the last sync
+	private final Timer				syncTimer;
+
+	//Statistics
+	private long					recovered			= 0;
+
+	/**
+	 * Opens the store in the given directory, recovers an interrupted recording and starts the sync timer.
+	 *
+	 * @param directory Directory of the store, created if needed
+	 * @param segmentSize Size a segment grows to before the next recording starts a new one
+	 * @throws IOException
+	 */
+	public RecordingStore( File directory, long segmentSize ) throws IOException
+	{
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		directory.mkdirs();
+
+		this.reopenIndex();
+		this.readIndex();
+
+		this.tailSegment = this.entries.isEmpty() ? 0 : this.entries.get( this.entries.size() - 1 ).segment;
+		while ( this.segmentFile( this.tailSegment + 1 ).exists() )
+		{
+			this.tailSegment++;
+		}
+		this.openTail();
+		this.recover();
+		this.applyRetention();
+
+		this.syncTimer = new Timer( "RecordingStore sync", true );
+		this.syncTimer.scheduleAtFixedRate( new TimerTask()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					sync();
+				}
+				catch ( IOException e )
+				{
+					Log.e( TAG, "Sync failed", e );
+				}
+			}
+		}, SYNC_PERIOD, SYNC_PERIOD );
+	}
+
+	/**
+	 * Reads all index records. Records of deleted segments are skipped, a torn record at the end is cut off.
+	 */
+	private void readIndex() throws IOException
+	{
+		long size = this.indexChannel.size();
+		ByteBuffer records = ByteBuffer.allocate( ( int ) ( size - size % RECORD_SIZE ) );
+		while ( records.hasRemaining() && this.indexChannel.read( records, records.position() ) >= 0 )
+		{
+		}
+		records.flip();
+
+		int checkedSegment = -1;
+		boolean segmentExists = false;
+		long validSize = 0;
+		byte[] record = new byte[RECORD_SIZE];
+		while ( records.remaining() >= RECORD_SIZE )
+		{
+			records.get( record );
+			Entry entry = this.parseRecord( record );
+			if ( entry == null )
+			{
+				break;
+			}
+			validSize += RECORD_SIZE;
+			this.nextId = entry.id + 1;
+
+			if ( entry.segment != checkedSegment )
+			{
+				checkedSegment = entry.segment;
+				segmentExists = this.segmentFile( entry.segment ).exists();
+			}
+			if ( segmentExists )
+			{
+				this.entries.add( entry );
+				this.totalBytes += entry.length;
+			}
+			else
+			{
+				this.deadRecords++;
+			}
+		}
+
+		if ( validSize < size )
+		{
+			Log.w( TAG, "Index cut off at " + validSize + " of " + size + " bytes" );
+			this.indexChannel.truncate( validSize );
+		}
+		this.indexChannel.position( validSize );
+	}
+
+	/**
+	 * @return The entry of the record, null if its CRC does not match
+	 */
+	private Entry parseRecord( byte[] record )
+	{
+		this.recordCrc.reset();
+		this.recordCrc.update( record, 0, RECORD_SIZE - 4 );
+		ByteBuffer buffer = ByteBuffer.wrap( record );
+		if ( buffer.getInt( RECORD_SIZE - 4 ) != ( int ) this.recordCrc.getValue() )
+		{
+			return null;
+		}
+		return new Entry( buffer.getLong(), buffer.getLong(), buffer.getInt(), buffer.getInt(), buffer.getLong(), buffer.getLong() );
+	}
+
+	/**
+	 * @return The record of the entry in the reused record buffer
+	 */
+	private ByteBuffer toRecord( Entry entry )
+	{
+		ByteBuffer record = this.record;
+		record.clear();
+		record.putLong( entry.id ).putLong( entry.startTime ).putInt( ( int ) entry.duration ).putInt( entry.segment ).putLong( entry.offset ).putLong( entry.length );
+		this.recordCrc.reset();
+		this.recordCrc.update( record.array(), 0, RECORD_SIZE - 4 );
+		record.putInt( ( int ) this.recordCrc.getValue() );
+		record.flip();
+		return record;
+	}
+
+	private void appendRecord( Entry entry ) throws IOException
+	{
+		ByteBuffer record = this.toRecord( entry );
+		while ( record.hasRemaining() )
+		{
+			this.indexChannel.write( record );
+		}
+	}
+
+	private void openTail() throws IOException
+	{
+		this.tailFile = new RandomAccessFile( this.segmentFile( this.tailSegment ), "rw" );
+		this.tailChannel = this.tailFile.getChannel();
+		this.tailSize = this.tailChannel.size();
+	}
+
+	/**
+	 * Scans the tail segment behind its last indexed recording. A recording with its headers and at least one audio page
+	 * is indexed, bytes behind the last valid page are cut off.
+	 */
+	private void recover() throws IOException
+	{
+		long start = 0;
+		if ( !this.entries.isEmpty() && this.entries.get( this.entries.size() - 1 ).segment == this.tailSegment )
+		{
+			start = this.entries.get( this.entries.size() - 1 ).getEnd();
+		}
+		if ( this.tailSize <= start )
+		{
+			return;
+		}
+
+		ByteBuffer page = ByteBuffer.allocate( MAX_PAGE_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+		long end = start;
+		int pages = 0;
+		int length;
+		while ( ( length = this.readPage( page, end ) ) > 0 )
+		{
+			end += length;
+			pages++;
+		}
+
+		Log.w( TAG, "Recovering " + ( this.tailSize - start ) + " unindexed bytes of segment " + this.tailSegment + ": " + pages + " valid pages" );
+		if ( pages >= 3 )	// Identification header, comment header and audio
+		{
+			try
+			{
+				long duration = OggOpusReader.map( this.segmentFile( this.tailSegment ), start, end - start ).getDuration();
+				long startTime = this.segmentFile( this.tailSegment ).lastModified() - duration;
+				this.commit( new Entry( this.nextId++, startTime, duration, this.tailSegment, start, end - start ) );
+				this.recovered++;
+			}
+			catch ( IOException e )
+			{
+				Log.w( TAG, "Interrupted recording is no Ogg Opus stream", e );
+				end = start;
+			}
+		}
+		else
+		{
+			end = start;
+		}
+		this.tailChannel.truncate( end );
+		this.tailSize = end;
+		this.isDirty = true;
+	}
+
+	/**
+	 * Reads and checks the page at offset of the tail segment.
+	 *
+	 * @return Length of the page, -1 if there is no complete and valid page
+	 */
+	private int readPage( ByteBuffer page, long offset ) throws IOException
+	{
+		if ( offset > this.tailSize - 27 )
+		{
+			return -1;
+		}
+		page.clear();
+		page.limit( 27 );
+		this.readFully( page, offset );
+		if ( page.getInt( 0 ) != OGG_MAGIC )
+		{
+			return -1;
+		}
+		int segments = page.get( 26 ) & 0xFF;
+		page.limit( 27 + segments );
+		int length = 27 + segments;
+		if ( offset + length > this.tailSize )
+		{
+			return -1;
+		}
+		this.readFully( page, offset );
+		for ( int i = 0; i < segments; i++ )
+		{
+			length += page.get( 27 + i ) & 0xFF;
+		}
+		if ( offset + length > this.tailSize )
+		{
+			return -1;
+		}
+		page.limit( length );
+		this.readFully( page, offset );
+
+		int crc = OggCrc.update( 0, page, 0, 22 );
+		crc = OggCrc.update( crc, CRC_FIELD, 0, 4 );
+		crc = OggCrc.update( crc, page, 26, length - 26 );
+		return crc == page.getInt( 22 ) ? length : -1;
+	}
+
+	private void readFully( ByteBuffer buffer, long offset ) throws IOException
+	{
+		while ( buffer.hasRemaining() && this.tailChannel.read( buffer, offset + buffer.position() ) >= 0 )
+		{
+		}
+	}
+
+	/**
+	 * Starts a new recording, in a new segment if the tail segment is full. Only one recording can be written at a time.
+	 *
+	 * @param startTime Wall clock time the recording starts at, in milliseconds since the epoch
+	 * @return Sink taking the Ogg Opus stream of the recording, closing it adds the recording to the index
+	 * @throws IOException
+	 */
+	public synchronized Writer openRecording( long startTime ) throws IOException
+	{
+		if ( this.isClosed )
+		{
+			throw new IllegalStateException( "Store already closed" );
+		}
+		if ( this.writer != null )
+		{
+			throw new IllegalStateException( "Another recording is still open" );
+		}
+		if ( this.tailSize >= this.segmentSize )
+		{
+			this.sync();
+			this.tailFile.close();
+			this.tailSegment++;
+			this.openTail();
+		}
+		this.writer = new Writer( startTime, this.tailChannel, this.tailSize );
+		return this.writer;
+	}
+
+	/**
+	 * Called by the writer when it is closed.
+	 *
+	 * @return The indexed recording, null if nothing was written
+	 */
+	private synchronized Entry closeRecording( Writer writer ) throws IOException
+	{
+		this.writer = null;
+		this.tailSize = writer.offset + writer.length;
+		this.isDirty = true;
+		if ( writer.length == 0 )
+		{
+			return null;
+		}
+
+		long duration = OggOpusReader.map( this.segmentFile( this.tailSegment ), writer.offset, writer.length ).getDuration();
+		Entry entry = new Entry( this.nextId++, writer.startTime, duration, this.tailSegment, writer.offset, writer.length );
+		this.commit( entry );
+		this.applyRetention();
+		return entry;
+	}
+
+	private void commit( Entry entry ) throws IOException
+	{
+		this.appendRecord( entry );
+		this.entries.add( entry );
+		this.totalBytes += entry.length;
+		this.isDirty = true;
+	}
+
+	/**
+	 * Deletes the oldest segments while the store is larger than the maximum size or their newest recording is older
+	 * than the maximum age. The tail segment is never deleted.
+	 */
+	private void applyRetention() throws IOException
+	{
+		long now = System.currentTimeMillis();
+		while ( !this.entries.isEmpty() )
+		{
+			int segment = this.entries.get( 0 ).segment;
+			if ( segment == this.tailSegment )
+			{
+				break;
+			}
+			int count = 0;
+			long segmentBytes = 0;
+			long newest = 0;
+			while ( count < this.entries.size() && this.entries.get( count ).segment == segment )
+			{
+				Entry entry = this.entries.get( count++ );
+				segmentBytes += entry.length;
+				newest = Math.max( newest, entry.startTime + entry.duration );
+			}
+			if ( this.totalBytes <= this.maxBytes && now - newest <= this.maxAge )
+			{
+				break;
+			}
+
+			if ( !this.segmentFile( segment ).delete() )
+			{
+				Log.w( TAG, "Could not delete segment " + segment );
+				break;
+			}
+			for ( int i = 0; i < count; i++ )
+			{
+				this.getLevelFile( this.entries.get( i ) ).delete();
+			}
+			this.entries.subList( 0, count ).clear();
+			this.totalBytes -= segmentBytes;
+			this.deadRecords += count;
+			Log.d( TAG, "Deleted segment " + segment + " with " + count + " recordings" );
+		}
+
+		if ( this.deadRecords > Math.max( 64, this.entries.size() ) )
+		{
+			this.compactIndex();
+		}
+	}
+
+	/**
+	 * Rewrites the index without the records of deleted segments. The new index replaces the old one by a rename,
+	 * so a crash leaves one of the two.
+	 */
+	private void compactIndex() throws IOException
+	{
+		File compacted = new File( this.directory, INDEX_FILE + ".new" );
+		RandomAccessFile file = new RandomAccessFile( compacted, "rw" );
+		try
+		{
+			file.setLength( 0 );
+			ByteBuffer records = ByteBuffer.allocate( this.entries.size() * RECORD_SIZE );
+			for ( Entry entry : this.entries )
+			{
+				records.put( this.toRecord( entry ) );
+			}
+			records.flip();
+			FileChannel channel = file.getChannel();
+			while ( records.hasRemaining() )
+			{
+				channel.write( records );
+			}
+			channel.force( false );
+		}
+		finally
+		{
+			file.close();
+		}
+
+		if ( !compacted.renameTo( new File( this.directory, INDEX_FILE ) ) )
+		{
+			Log.w( TAG, "Could not replace the index" );
+			return;
+		}
+		// The open channel still refers to the old index, continue appending to the new one
+		this.indexChannel.close();
+		this.indexFile.close();
+		this.reopenIndex();
+		this.deadRecords = 0;
+	}
+
+	private void reopenIndex() throws IOException
+	{
+		this.indexFile = new RandomAccessFile( new File( this.directory, INDEX_FILE ), "rw" );
+		this.indexChannel = this.indexFile.getChannel();
+		this.indexChannel.position( this.indexChannel.size() );
+	}
+
+	/**
+	 * Syncs everything written to the tail segment and the index since the last sync. Called by the timer.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void sync() throws IOException
+	{
+		if ( !this.isDirty )
+		{
+			return;
+		}
+		this.isDirty = false;
+		this.tailChannel.force( false );
+		this.indexChannel.force( false );
+	}
+
+	/**
+	 * @param maxBytes Size of all segments above which the oldest segments are deleted
+	 * @param maxAge Milliseconds after which a segment is deleted, counted from the end of its newest recording
+	 * @throws IOException
+	 */
+	public synchronized void setRetention( long maxBytes, long maxAge ) throws IOException
+	{
+		this.maxBytes = maxBytes;
+		this.maxAge = maxAge;
+		this.applyRetention();
+	}
+
+	/**
+	 * @return All recordings, oldest first
+	 */
+	public synchronized List<Entry> getRecordings()
+	{
+		return Collections.unmodifiableList( new ArrayList<Entry>( this.entries ) );
+	}
+
+	/**
+	 * @return The recording with the given id, null if it does not exist (any more)
+	 */
+	public synchronized Entry getRecording( long id )
+	{
+		int low = 0;
+		int high = this.entries.size() - 1;
+		while ( low <= high )
+		{
+			int middle = ( low + high ) >>> 1;
+			long middleId = this.entries.get( middle ).id;
+			if ( middleId < id )
+			{
+				low = middle + 1;
+			}
+			else if ( middleId > id )
+			{
+				high = middle - 1;
+			}
+			else
+			{
+				return this.entries.get( middle );
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The newest recording, null if the store is empty
+	 */
+	public synchronized Entry getLatestRecording()
+	{
+		return this.entries.isEmpty() ? null : this.entries.get( this.entries.size() - 1 );
+	}
+
+	/**
+	 * Maps a recording for playback.
+	 *
+	 * @param entry A recording of this store
+	 * @return A mapped reader of the recording
+	 * @throws IOException If the segment of the recording has been deleted meanwhile
+	 */
+	public OggOpusReader openReader( Entry entry ) throws IOException
+	{
+		return OggOpusReader.map( this.segmentFile( entry.segment ), entry.offset, entry.length );
+	}
+
+	/**
+	 * @param entry A recording of this store
+	 * @return File for the {@link LevelSummary} of the recording, it may not exist
+	 */
+	public File getLevelFile( Entry entry )
+	{
+		return new File( this.directory, String.format( "levels-%08d", entry.id ) );
+	}
+
+	private File segmentFile( int segment )
+	{
+		return new File( this.directory, String.format( "segment-%08d", segment ) );
+	}
+
+	/**
+	 * @return Bytes of all recordings in the store
+	 */
+	public synchronized long getTotalBytes()
+	{
+		return this.totalBytes;
+	}
+
+	/**
+	 * @return Number of the segment new recordings are appended to
+	 */
+	public synchronized int getTailSegment()
+	{
+		return this.tailSegment;
+	}
+
+	/**
+	 * @return Interrupted recordings indexed when the store was opened
+	 */
+	public long getRecovered()
+	{
+		return this.recovered;
+	}
+
+	/**
+	 * Finishes a recording still open, then stops the sync timer, syncs and closes the files. Later writes of the
+	 * recorder to the finished recording fail.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException
+	{
+		Writer writer;
+		synchronized ( this )
+		{
+			this.isClosed = true;
+			writer = this.writer;
+		}
+		if ( writer != null )
+		{
+			writer.close();	// Outside the lock of the store, the writer locks itself first and then the store
+		}
+		synchronized ( this )
+		{
+			this.syncTimer.cancel();
+			this.isDirty = true;
+			this.sync();
+			this.tailFile.close();
+			this.indexFile.close();
+		}
+	}
+
+	/**
+	 * Appends one recording to the tail segment through a write-behind I/O thread. The bytes are synced by the timer only.
+	 */
+	public class Writer extends WriteBehindSink
+	{
+		private final long			startTime;
+		private final long			offset;		// Start of the recording in the segment
+		private long				length		= 0;
+		private boolean				isClosed	= false;
+		private Entry				entry		= null;	// Set by close()
+
+		private Writer( long startTime, FileChannel channel, long offset )
+		{
+			super( channel, offset, false );
+			this.startTime = startTime;
+			this.offset = offset;
+		}
+
+		@Override
+		public synchronized void write( byte[] buffer, int offset, int count ) throws IOException
+		{
+			super.write( buffer, offset, count );
+			isDirty = true;
+		}
+
+		@Override
+		public synchronized void flush() throws IOException
+		{
+			super.flush();
+		}
+
+		/**
+		 * Writes the rest of the recording and adds it to the index. Called by the recorder, or by
+		 * {@link RecordingStore#close()} from another thread.
+		 */
+		@Override
+		public synchronized void close() throws IOException
+		{
+			if ( this.isClosed )
+			{
+				return;
+			}
+			this.isClosed = true;
+			try
+			{
+				super.close();
+			}
+			finally
+			{
+				this.length = this.getPosition() - this.offset;
+				this.entry = closeRecording( this );
+			}
+		}
+
+		/**
+		 * @return The recording added to the index by close(), null while open or if nothing was written
+		 */
+		public synchronized Entry getEntry()
+		{
+			return this.entry;
+		}
+
+		/**
+		 * Test hook for a crash: writes everything written so far to the segment and stops the I/O thread, but leaves
+		 * the recording out of the index, so the store recovers it when opened again.
+		 */
+		synchronized void simulateCrash() throws IOException
+		{
+			this.isClosed = true;
+			super.close();
+		}
+	}
+}
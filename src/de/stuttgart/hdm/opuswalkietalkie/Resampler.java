@@ -0,0 +1,209 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.util.Arrays;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Streaming polyphase resampler for a fixed ratio of two sample rates, for example 44.1kHz to 48kHz.
+ *
+ *	The ratio is reduced to outRate/inRate = L/M. A windowed-sinc low-pass designed for the L-fold upsampled rate is split
+ *	into L phases of TAPS coefficients each, every output sample is one dot product of TAPS input samples with the phase
+ *	at its position, so nothing is upsampled for real. The filter cuts at 90% of the lower Nyquist frequency.
+ *
+ *	All buffers are allocated in the constructor, {@link #process(short[], int, int, short[], int)} allocates nothing.
+ *	The last TAPS - 1 input frames are kept between calls, so a stream can be fed in chunks of any size up to the
+ *	maximum given to the constructor. Equal rates are passed through unchanged.
+ */
+public class Resampler
+{
+	private static final int	TAPS		= 16;	// Coefficients per phase, input frames each output frame depends on
+	private static final double	CUTOFF		= 0.9;	// Cutoff relative to the lower Nyquist frequency
+
+	//Config
+	private final int			upFactor;			// L
+	private final int			downFactor;			// M
+	private final int			numberOfChannels;
+	private final int			maxInputFrames;
+
+	//Fields
+	private final float[]		coefficients;		// TAPS coefficients per phase, ordered oldest input first
+	private final short[]		buffer;				// TAPS - 1 frames of history followed by the current input
+	private int					position;			// Position of the next output frame in buffer, in units of 1/L input frames
+
+	/**
+	 * @param inRate Sample rate of the input in Hz
+	 * @param outRate Sample rate of the output in Hz
+	 * @param numberOfChannels Number of interleaved channels
+	 * @param maxInputFrames Most frames per channel passed to a single call of process()
+	 */
+	public Resampler( int inRate, int outRate, int numberOfChannels, int maxInputFrames )
+	{
+		int divisor = gcd( inRate, outRate );
+		this.upFactor = outRate / divisor;
+		this.downFactor = inRate / divisor;
+		this.numberOfChannels = numberOfChannels;
+		this.maxInputFrames = maxInputFrames;
+		this.buffer = new short[( TAPS - 1 + maxInputFrames ) * numberOfChannels];
+		this.position = ( TAPS - 1 ) * this.upFactor;
+		this.coefficients = this.isPassThrough() ? new float[0] : designFilter( this.upFactor, this.downFactor );
+	}
+
+	/**
+	 * Windowed-sinc low-pass at the upsampled rate, split into phases. Every phase is scaled to a DC gain of 1.
+	 */
+	private static float[] designFilter( int upFactor, int downFactor )
+	{
+		int length = upFactor * TAPS;
+		double cutoff = CUTOFF * 0.5 / Math.max( upFactor, downFactor );	// Cycles per upsampled sample
+		double center = ( length - 1 ) / 2.0;
+		double[] prototype = new double[length];
+		for ( int i = 0; i < length; i++ )
+		{
+			double x = i - center;
+			double sinc = x == 0 ? 2 * cutoff : Math.sin( 2 * Math.PI * cutoff * x ) / ( Math.PI * x );
+			double window = 0.42 - 0.5 * Math.cos( 2 * Math.PI * i / ( length - 1 ) ) + 0.08 * Math.cos( 4 * Math.PI * i / ( length - 1 ) );	// Blackman
+			prototype[i] = sinc * window;
+		}
+
+		float[] coefficients = new float[length];
+		for ( int phase = 0; phase < upFactor; phase++ )
+		{
+			double sum = 0;
+			for ( int tap = 0; tap < TAPS; tap++ )
+			{
+				sum += prototype[phase + tap * upFactor];
+			}
+			for ( int tap = 0; tap < TAPS; tap++ )
+			{
+				// Tap 0 weighs the newest input frame, stored last so the dot product runs forward through the input
+				coefficients[phase * TAPS + TAPS - 1 - tap] = ( float ) ( prototype[phase + tap * upFactor] / sum );
+			}
+		}
+		return coefficients;
+	}
+
+	/**
+	 * Resamples the next chunk of the stream.
+	 *
+	 * @param in Input signal, interleaved if there are several channels
+	 * @param inOffset Index of the first input sample
+	 * @param inFrames Number of input frames (samples per channel), at most the maximum given to the constructor
+	 * @param out Receives the output, needs room for {@link #getMaxOutputFrames(int)} frames
+	 * @param outOffset Index of the first output sample
+	 * @return Number of output frames written
+	 */
+	public int process( short[] in, int inOffset, int inFrames, short[] out, int outOffset )
+	{
+		int channels = this.numberOfChannels;
+		if ( inFrames > this.maxInputFrames )
+		{
+			throw new IllegalArgumentException( inFrames + " frames exceed the maximum of " + this.maxInputFrames );
+		}
+		if ( this.isPassThrough() )
+		{
+			System.arraycopy( in, inOffset, out, outOffset, inFrames * channels );
+			return inFrames;
+		}
+
+		short[] buffer = this.buffer;
+		float[] coefficients = this.coefficients;
+		int history = ( TAPS - 1 ) * channels;
+		System.arraycopy( in, inOffset, buffer, history, inFrames * channels );
+
+		int lastFrame = TAPS - 2 + inFrames;	// Newest input frame in buffer
+		int outFrames = 0;
+		int position = this.position;
+		int outIndex = outOffset;
+		while ( position / this.upFactor <= lastFrame )
+		{
+			int newest = position / this.upFactor;
+			int phaseStart = ( position % this.upFactor ) * TAPS;
+			int inStart = ( newest - TAPS + 1 ) * channels;
+			for ( int channel = 0; channel < channels; channel++ )
+			{
+				float sum = 0;
+				int inIndex = inStart + channel;
+				for ( int tap = 0; tap < TAPS; tap++ )
+				{
+					sum += coefficients[phaseStart + tap] * buffer[inIndex];
+					inIndex += channels;
+				}
+				int sample = Math.round( sum );
+				out[outIndex++] = ( short ) ( sample > Short.MAX_VALUE ? Short.MAX_VALUE : sample < Short.MIN_VALUE ? Short.MIN_VALUE : sample );
+			}
+			outFrames++;
+			position += this.downFactor;
+		}
+
+		this.position = position - inFrames * this.upFactor;
+		System.arraycopy( buffer, inFrames * channels, buffer, 0, history );
+		return outFrames;
+	}
+
+	/**
+	 * @return Most output frames a call of process() with inFrames input frames can write
+	 */
+	public int getMaxOutputFrames( int inFrames )
+	{
+		return this.isPassThrough() ? inFrames : ( inFrames * this.upFactor + this.downFactor - 1 ) / this.downFactor + 1;
+	}
+
+	/**
+	 * @return True if both rates are equal and the input is copied unchanged
+	 */
+	public boolean isPassThrough()
+	{
+		return this.upFactor == this.downFactor;
+	}
+
+	/**
+	 * @return Delay the filter adds, in output frames
+	 */
+	public int getDelay()
+	{
+		return this.isPassThrough() ? 0 : ( TAPS / 2 ) * this.upFactor / this.downFactor;
+	}
+
+	/**
+	 * Forgets the history, for a new stream.
+	 */
+	public void reset()
+	{
+		Arrays.fill( this.buffer, ( short ) 0 );
+		this.position = ( TAPS - 1 ) * this.upFactor;
+	}
+
+	private static int gcd( int a, int b )
+	{
+		while ( b != 0 )
+		{
+			int rest = a % b;
+			a = b;
+			b = rest;
+		}
+		return a;
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Reads and writes the fixed 12 byte RTP header (RFC 3550) in front of an Opus packet.
+ *
+ *	All methods work on the buffer contents relative to its position and never change position or limit,
+ *	so a received datagram can be inspected in place. Multi-byte fields are big endian, the default order of a ByteBuffer.
+ */
+public final class RtpPacket
+{
+	public static final int	HEADER_SIZE		= 12;
+	public static final int	VERSION			= 2;
+	public static final int	PAYLOAD_TYPE	= 111;	// Dynamic payload type commonly used for Opus
+	public static final int	MAX_SIZE		= HEADER_SIZE + OpusEncoder.MAX_PACKET_SIZE;
+
+	private RtpPacket()
+	{
+	}
+
+	/**
+	 * Writes a header at the position of buffer and advances it, the payload can be put right behind it.
+	 *
+	 * @param buffer Buffer with at least HEADER_SIZE bytes remaining
+	 * @param marker Marker bit, set on the first packet of a talk spurt
+	 * @param sequenceNumber 16 bit sequence number, incremented by one per packet
+	 * @param timestamp Sampling instant of the first sample in the packet, in samples
+	 * @param ssrc Random identifier of the sending stream
+	 */
+	public static void writeHeader( ByteBuffer buffer, boolean marker, int sequenceNumber, int timestamp, int ssrc )
+	{
+		buffer.put( ( byte ) ( VERSION << 6 ) );
+		buffer.put( ( byte ) ( ( marker ? 0x80 : 0 ) | PAYLOAD_TYPE ) );
+		buffer.putShort( ( short ) sequenceNumber );
+		buffer.putInt( timestamp );
+		buffer.putInt( ssrc );
+	}
+
+	/**
+	 * @param packet Received datagram between position and limit
+	 * @return Length of the header including CSRC list and extension, or -1 if the datagram is no valid RTP packet of our payload type
+	 */
+	public static int getHeaderLength( ByteBuffer packet )
+	{
+		int start = packet.position();
+		if ( packet.remaining() < HEADER_SIZE )
+		{
+			return -1;
+		}
+
+		int first = packet.get( start ) & 0xFF;
+		if ( first >> 6 != VERSION || ( packet.get( start + 1 ) & 0x7F ) != PAYLOAD_TYPE )
+		{
+			return -1;
+		}
+
+		int length = HEADER_SIZE + 4 * ( first & 0x0F );	// CSRC list
+		if ( ( first & 0x10 ) != 0 )						// Header extension
+		{
+			if ( packet.remaining() < length + 4 )
+			{
+				return -1;
+			}
+			length += 4 + 4 * ( packet.getShort( start + length + 2 ) & 0xFFFF );
+		}
+
+		int padding = ( first & 0x20 ) != 0 ? packet.get( packet.limit() - 1 ) & 0xFF : 0;
+		return length + padding < packet.remaining() ? length : -1;	// Empty payloads are invalid as well
+	}
+
+	/**
+	 * @return Length of the padding at the end of a valid packet
+	 */
+	public static int getPaddingLength( ByteBuffer packet )
+	{
+		return ( packet.get( packet.position() ) & 0x20 ) != 0 ? packet.get( packet.limit() - 1 ) & 0xFF : 0;
+	}
+
+	public static boolean getMarker( ByteBuffer packet )
+	{
+		return ( packet.get( packet.position() + 1 ) & 0x80 ) != 0;
+	}
+
+	public static int getSequenceNumber( ByteBuffer packet )
+	{
+		return packet.getShort( packet.position() + 2 ) & 0xFFFF;
+	}
+
+	public static int getTimestamp( ByteBuffer packet )
+	{
+		return packet.getInt( packet.position() + 4 );
+	}
+
+	public static int getSsrc( ByteBuffer packet )
+	{
+		return packet.getInt( packet.position() + 8 );
+	}
+}
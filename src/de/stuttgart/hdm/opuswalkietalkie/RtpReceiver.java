@@ -0,0 +1,359 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.util.Log;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Receives RTP datagrams sent by an {@link RtpSender} and feeds them into a JitterBuffer.
+ *
+ *	A receive thread waits on a selector for the non-blocking channel and drains every datagram that arrived into one
+ *	reused direct buffer, the payload is copied into the jitter buffer from there. The playout thread pulls one frame
+ *	per frame period with {@link #decodeNext(OpusDecoder, ShortBuffer)}.
+ *
+ *	The receiver follows one talker per jitter buffer, identified by the SSRC. Packets of another talker are ignored
+ *	until one of the current talkers has been silent for TALKER_TIMEOUT, then that jitter buffer is reset for the new
+ *	stream. With several jitter buffers the talkers are decoded separately and mixed with
+ *	{@link #mixNext(OpusDecoder[], Mixer, short[])}.
+ */
+public class RtpReceiver
+{
+	private static String		TAG				= "RtpReceiver";
+
+	private static final long	TALKER_TIMEOUT	= 200;	// Milliseconds of silence before another talker is accepted, longer than any playout delay
+	private static final long	SELECT_TIMEOUT	= 100;	// Milliseconds, bounds the time close() waits for the receive thread
+	private static final long	NO_PACKET		= Long.MIN_VALUE;	// Last packet time of a jitter buffer without talker
+
+	//Fields
+	private final DatagramChannel	channel;
+	private final Selector			selector;
+	private final JitterBuffer[]	jitterBuffers;	// One per simultaneous talker
+	private final ByteBuffer		datagram		= ByteBuffer.allocateDirect( RtpPacket.MAX_SIZE );	// Reused for every datagram
+	private Thread					receiveThread;
+	private volatile boolean		isRunning		= false;
+
+	//Current talkers, only touched by the receive thread
+	private final boolean[]			hasTalker;
+	private final int[]				talkerSsrcs;
+	private final AtomicLongArray	lastPacketTimes;	// Also read by the playout thread to skip silent talkers
+
+	//Playout thread
+	private final ShortBuffer		pcm;				// Decoded frame of one talker for mixNext(), empty for a single talker
+	private final short[]			frame;
+
+	//Statistics
+	private volatile long			packetsReceived	= 0;
+	private volatile long			packetsInvalid	= 0;
+	private volatile long			packetsIgnored	= 0;
+
+	/**
+	 * Binds the channel. Call {@link #start()} to begin receiving.
+	 *
+	 * @param port Local UDP port, 0 for any free port
+	 * @param jitterBuffer Jitter buffer configured for the frame size of the sender
+	 * @throws IOException
+	 */
+	public RtpReceiver( int port, JitterBuffer jitterBuffer ) throws IOException
+	{
+		this( port, new JitterBuffer[] { jitterBuffer }, 0 );
+	}
+
+	/**
+	 * Binds the channel for a talk group where several people may talk at once. Call {@link #start()} to begin receiving.
+	 *
+	 * @param port Local UDP port, 0 for any free port
+	 * @param jitterBuffers One jitter buffer per simultaneous talker, configured for the frame size of the senders
+	 * @param frameSamples Samples per frame over all channels, for {@link #mixNext(OpusDecoder[], Mixer, short[])}
+	 * @throws IOException
+	 */
+	public RtpReceiver( int port, JitterBuffer[] jitterBuffers, int frameSamples ) throws IOException
+	{
+		this.jitterBuffers = jitterBuffers;
+		this.hasTalker = new boolean[jitterBuffers.length];
+		this.talkerSsrcs = new int[jitterBuffers.length];
+		this.lastPacketTimes = new AtomicLongArray( jitterBuffers.length );
+		for ( int talker = 0; talker < jitterBuffers.length; talker++ )
+		{
+			this.lastPacketTimes.set( talker, NO_PACKET );
+		}
+		this.pcm = ByteBuffer.allocateDirect( frameSamples * ( Short.SIZE / Byte.SIZE ) ).order( ByteOrder.nativeOrder() ).asShortBuffer();
+		this.frame = new short[frameSamples];
+		this.channel = DatagramChannel.open();
+		this.channel.configureBlocking( false );
+		this.channel.socket().bind( new InetSocketAddress( port ) );
+		this.selector = Selector.open();
+		this.channel.register( this.selector, SelectionKey.OP_READ );
+	}
+
+	/**
+	 * Starts the receive thread.
+	 */
+	public synchronized void start()
+	{
+		if ( this.isRunning )
+		{
+			return;
+		}
+		this.isRunning = true;
+		this.receiveThread = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				receive();
+			}
+		}, "RTP receiver" );
+		this.receiveThread.start();
+	}
+
+	/**
+	 * Receive thread: waits for datagrams and hands them to the jitter buffer until the receiver is closed.
+	 */
+	private void receive()
+	{
+		try
+		{
+			while ( this.isRunning )
+			{
+				if ( this.selector.select( SELECT_TIMEOUT ) == 0 )
+				{
+					continue;
+				}
+				this.selector.selectedKeys().clear();
+
+				this.datagram.clear();
+				while ( this.channel.receive( this.datagram ) != null )
+				{
+					this.datagram.flip();
+					this.handleDatagram( this.datagram, now() );
+					this.datagram.clear();
+				}
+			}
+		}
+		catch ( IOException e )
+		{
+			if ( this.isRunning )
+			{
+				Log.e( TAG, e.getLocalizedMessage(), e );
+			}
+		}
+	}
+
+	private void handleDatagram( ByteBuffer packet, long arrivalTime )
+	{
+		int headerLength = RtpPacket.getHeaderLength( packet );
+		if ( headerLength < 0 )
+		{
+			this.packetsInvalid++;
+			return;
+		}
+
+		int talker = this.findTalker( RtpPacket.getSsrc( packet ), arrivalTime );
+		if ( talker < 0 )
+		{
+			this.packetsIgnored++;
+			return;
+		}
+		this.lastPacketTimes.set( talker, arrivalTime );
+
+		int sequenceNumber = RtpPacket.getSequenceNumber( packet );
+		int timestamp = RtpPacket.getTimestamp( packet );
+		boolean marker = RtpPacket.getMarker( packet );
+		packet.limit( packet.limit() - RtpPacket.getPaddingLength( packet ) );
+		packet.position( packet.position() + headerLength );
+		this.jitterBuffers[talker].put( sequenceNumber, timestamp, marker, packet, arrivalTime );
+		this.packetsReceived++;
+	}
+
+	/**
+	 * @return Index of the jitter buffer of the talker, or -1 if all jitter buffers are taken by other talkers
+	 */
+	private int findTalker( int ssrc, long arrivalTime )
+	{
+		int free = -1;
+		for ( int talker = 0; talker < this.jitterBuffers.length; talker++ )
+		{
+			if ( this.hasTalker[talker] && this.talkerSsrcs[talker] == ssrc )
+			{
+				return talker;
+			}
+			if ( free < 0 && ( !this.hasTalker[talker] || arrivalTime - this.lastPacketTimes.get( talker ) > TALKER_TIMEOUT ) )
+			{
+				free = talker;
+			}
+		}
+		if ( free >= 0 )
+		{
+			if ( this.hasTalker[free] )
+			{
+				this.jitterBuffers[free].reset();
+			}
+			this.hasTalker[free] = true;
+			this.talkerSsrcs[free] = ssrc;
+		}
+		return free;
+	}
+
+	/**
+	 * Plays the next frame period of the current talker through the given decoder. Called by the playout thread once per frame.
+	 *
+	 * @param decoder Decoder matching the sender's encoder configuration
+	 * @param pcm Direct buffer receiving the signal at its position, which is advanced
+	 * @return Number of samples per channel written to pcm, 0 while no stream is playing
+	 * @throws IOException
+	 */
+	public int decodeNext( OpusDecoder decoder, ShortBuffer pcm ) throws IOException
+	{
+		return this.jitterBuffers[0].decodeNext( decoder, pcm, now() );
+	}
+
+	/**
+	 * Plays the next frame period of all current talkers mixed into one frame. Called by the playout thread once per frame.
+	 * Talkers that have been silent for TALKER_TIMEOUT are not decoded any more.
+	 *
+	 * @param decoders One decoder per jitter buffer, matching the senders' encoder configuration
+	 * @param mixer Mixer with one input per jitter buffer
+	 * @param out Receives one frame, silence while nobody talks
+	 * @return Number of talkers in the frame
+	 * @throws IOException
+	 */
+	public int mixNext( OpusDecoder[] decoders, Mixer mixer, short[] out ) throws IOException
+	{
+		long now = now();
+		for ( int talker = 0; talker < this.jitterBuffers.length; talker++ )
+		{
+			long lastPacketTime = this.lastPacketTimes.get( talker );
+			if ( lastPacketTime == NO_PACKET || now - lastPacketTime > TALKER_TIMEOUT + this.jitterBuffers[talker].getTargetDelay() )
+			{
+				continue;
+			}
+			this.pcm.clear();
+			if ( this.jitterBuffers[talker].decodeNext( decoders[talker], this.pcm, now ) > 0 )
+			{
+				this.pcm.flip();
+				int samples = this.pcm.remaining();
+				this.pcm.get( this.frame, 0, samples );
+				mixer.add( talker, this.frame, samples );
+			}
+		}
+		return mixer.mix( out );
+	}
+
+	/**
+	 * @return The clock used for arrival and playout times, in milliseconds
+	 */
+	public static long now()
+	{
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * @return The local UDP port the receiver is bound to
+	 */
+	public int getLocalPort()
+	{
+		return this.channel.socket().getLocalPort();
+	}
+
+	/**
+	 * @return The jitter buffer of the first talker
+	 */
+	public JitterBuffer getJitterBuffer()
+	{
+		return this.jitterBuffers[0];
+	}
+
+	/**
+	 * @return Number of talkers that can be followed at the same time
+	 */
+	public int getMaxTalkers()
+	{
+		return this.jitterBuffers.length;
+	}
+
+	/**
+	 * @return Datagrams of the current talker handed to the jitter buffer
+	 */
+	public long getPacketsReceived()
+	{
+		return this.packetsReceived;
+	}
+
+	/**
+	 * @return Datagrams that were no RTP packets of our payload type
+	 */
+	public long getPacketsInvalid()
+	{
+		return this.packetsInvalid;
+	}
+
+	/**
+	 * @return Packets of other talkers ignored while the current one was talking
+	 */
+	public long getPacketsIgnored()
+	{
+		return this.packetsIgnored;
+	}
+
+	/**
+	 * Stops the receive thread and closes the channel.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException
+	{
+		Thread thread;
+		synchronized ( this )
+		{
+			this.isRunning = false;
+			thread = this.receiveThread;
+			this.receiveThread = null;
+		}
+		this.selector.wakeup();
+		if ( thread != null )
+		{
+			try
+			{
+				thread.join();
+			}
+			catch ( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		this.selector.close();
+		this.channel.close();
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Sends Opus packets as RTP datagrams over a non-blocking DatagramChannel.
+ *
+ *	Every packet written with {@link #write(byte[], int, int)} becomes one datagram, so an OpusEncoder can write
+ *	straight into a sender. {@link #send(OpusEncoder, ShortBuffer)} encodes directly behind the header in the
+ *	datagram buffer and avoids that copy.
+ *
+ *	The channel never blocks: a packet the socket cannot take right now is dropped and counted, as a late packet
+ *	is worth nothing to the receiver anyway.
+ */
+public class RtpSender extends OutputStream
+{
+	//Fields
+	private final DatagramChannel	channel;
+	private final ByteBuffer		datagram		= ByteBuffer.allocateDirect( RtpPacket.MAX_SIZE );	// Reused for every packet
+	private final int				samplesPerPacket;	// Timestamp increment per packet
+	private final int				ssrc;
+	private int						sequenceNumber;
+	private int						timestamp;
+	private boolean					marker			= true;
+
+	//Statistics
+	private volatile long			packetsSent		= 0;
+	private volatile long			packetsDropped	= 0;
+
+	/**
+	 * Opens a channel connected to the receiver. Sequence number, timestamp and SSRC start at random values as RFC 3550 asks for.
+	 *
+	 * @param remote Address of the receiving device
+	 * @param samplesPerPacket Samples per channel in every packet, the frame size of the encoder
+	 * @throws IOException
+	 */
+	public RtpSender( SocketAddress remote, int samplesPerPacket ) throws IOException
+	{
+		Random random = new Random();
+		this.samplesPerPacket = samplesPerPacket;
+		this.ssrc = random.nextInt();
+		this.sequenceNumber = random.nextInt( 0x10000 );
+		this.timestamp = random.nextInt();
+
+		this.channel = DatagramChannel.open();
+		this.channel.configureBlocking( false );
+		this.channel.connect( remote );
+	}
+
+	/**
+	 * Marks the next packet as the first one of a talk spurt, call it whenever the push-to-talk button is pressed again.
+	 * The timestamp keeps running, so the receiver can tell how long the pause was.
+	 *
+	 * @param pausedSamples Samples per channel that were not sent since the last packet
+	 */
+	public synchronized void startTalkSpurt( int pausedSamples )
+	{
+		this.marker = true;
+		this.timestamp += pausedSamples;
+	}
+
+	/**
+	 * Sends one encoded packet.
+	 */
+	@Override
+	public synchronized void write( byte[] buffer, int offset, int length ) throws IOException
+	{
+		this.writeHeader();
+		this.datagram.put( buffer, offset, length );
+		this.sendDatagram();
+	}
+
+	/**
+	 * Sends the remaining bytes of packet as one encoded packet and advances its position.
+	 *
+	 * @param packet Encoded packet between position and limit
+	 * @throws IOException
+	 */
+	public synchronized void send( ByteBuffer packet ) throws IOException
+	{
+		this.writeHeader();
+		this.datagram.put( packet );
+		this.sendDatagram();
+	}
+
+	/**
+	 * Encodes one frame straight into the datagram buffer and sends it. Allocates nothing.
+	 *
+	 * @param encoder Encoder of the stream
+	 * @param pcm Direct buffer in native byte order holding one frame at its position, which is advanced
+	 * @return Length of the encoded packet in bytes
+	 * @throws IOException
+	 */
+	public synchronized int send( OpusEncoder encoder, ShortBuffer pcm ) throws IOException
+	{
+		this.writeHeader();
+		int length = encoder.encode( pcm, this.datagram );
+		this.sendDatagram();
+		return length;
+	}
+
+	@Override
+	public void write( int oneByte ) throws IOException
+	{
+		throw new UnsupportedOperationException( "Single bytes can not be sent as a packet" );
+	}
+
+	private void writeHeader()
+	{
+		this.datagram.clear();
+		RtpPacket.writeHeader( this.datagram, this.marker, this.sequenceNumber, this.timestamp, this.ssrc );
+	}
+
+	private void sendDatagram() throws IOException
+	{
+		this.datagram.flip();
+		this.marker = false;
+		this.sequenceNumber = ( this.sequenceNumber + 1 ) & 0xFFFF;
+		this.timestamp += this.samplesPerPacket;
+
+		try
+		{
+			if ( this.channel.write( this.datagram ) > 0 )
+			{
+				this.packetsSent++;
+				return;
+			}
+		}
+		catch ( PortUnreachableException e )
+		{
+			// Nobody listening on the other side yet, the next packet may get through
+		}
+		this.packetsDropped++;
+	}
+
+	/**
+	 * @return Packets handed to the socket
+	 */
+	public long getPacketsSent()
+	{
+		return this.packetsSent;
+	}
+
+	/**
+	 * @return Packets dropped because the socket buffer was full or the receiver was unreachable
+	 */
+	public long getPacketsDropped()
+	{
+		return this.packetsDropped;
+	}
+
+	public int getSsrc()
+	{
+		return this.ssrc;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		this.channel.close();
+	}
+}
@@ -0,0 +1,431 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Encodes 16 bit PCM WAV files, as written by Recording with opus encoding disabled, on several threads.
+ *
+ *	The input is split into segments of segmentFrames frames. Every worker thread owns one OpusEncoder and keeps
+ *	claiming the next unclaimed segment until none is left, so fast workers take over the work of slow ones.
+ *	Each segment starts from a reset encoder that first encodes prerollFrames frames before the segment and throws
+ *	their packets away, which brings the encoder state close to the one a single continuous pass would have at the
+ *	segment edge. The calling thread writes the packets of the finished segments to the output stream in order,
+ *	one write per packet like OpusEncoder does.
+ *
+ *	The header is parsed by a {@link WavReader}, the samples of the data chunk are then read with positional reads into
+ *	direct buffers and encoded over the direct buffer path.
+ *	At most two segments per thread are in flight, so memory use does not depend on the length of the input.
+ */
+public class Transcoder
+{
+	private static String		TAG				= "Transcoder";
+
+	//Config
+	private final int			samplingRate;
+	private final int			numberOfChannels;
+	private final int			frameSize;
+	private final int			threads;
+	private int					segmentFrames	= 500;	// 10s at 48kHz with 20ms frames
+	private int					prerollFrames	= 5;	// Frames encoded and discarded before each segment but the first
+
+	//Statistics of the last run
+	private long				framesEncoded	= 0;
+	private long				bytesEncoded	= 0;
+	private long				elapsedTime		= 0;	// Milliseconds
+
+	/**
+	 * @param samplingRate Sampling rate of the input
+	 * @param numberOfChannels Number of interleaved channels of the input
+	 * @param frameSize Samples per channel and frame, must be an opus frame size for the sampling rate
+	 * @param threads Number of worker threads, usually the number of cores
+	 */
+	public Transcoder( int samplingRate, int numberOfChannels, int frameSize, int threads )
+	{
+		this.samplingRate = samplingRate;
+		this.numberOfChannels = numberOfChannels;
+		this.frameSize = frameSize;
+		this.threads = threads;
+	}
+
+	/**
+	 * @param segmentFrames Frames per segment, the unit of work of a worker thread
+	 */
+	public void setSegmentFrames( int segmentFrames )
+	{
+		this.segmentFrames = segmentFrames;
+	}
+
+	/**
+	 * @param prerollFrames Frames encoded and discarded in front of every segment to warm up the encoder
+	 */
+	public void setPrerollFrames( int prerollFrames )
+	{
+		this.prerollFrames = prerollFrames;
+	}
+
+	/**
+	 * Encodes a WAV file, see {@link #transcode(FileChannel, long, long, OutputStream)}.
+	 *
+	 * @throws IOException If the file is no 16 bit PCM WAV file with the sampling rate and channels of the transcoder
+	 */
+	public long transcode( File wavFile, OutputStream out ) throws IOException
+	{
+		long dataStart;
+		long sampleFrames;
+		WavReader reader = new WavReader( wavFile );
+		try
+		{
+			if ( reader.getSamplingRate() != this.samplingRate || reader.getNumberOfChannels() != this.numberOfChannels )
+			{
+				throw new IOException( "WAV file has " + reader.getNumberOfChannels() + " channels at " + reader.getSamplingRate() + "Hz, transcoder expects "
+						+ this.numberOfChannels + " at " + this.samplingRate + "Hz" );
+			}
+			dataStart = reader.getDataStart();
+			sampleFrames = reader.getFrames();
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		FileInputStream in = new FileInputStream( wavFile );
+		try
+		{
+			return this.transcode( in.getChannel(), dataStart, sampleFrames, out );
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Encodes the samples of a data chunk and writes the packets in order to the output stream, one write per packet.
+	 * A last incomplete frame is padded with silence.
+	 *
+	 * @param in Input, read with positional reads, its position is not changed
+	 * @param dataStart Position of the first sample, interleaved 16 bit little endian samples follow
+	 * @param sampleFrames Number of samples per channel
+	 * @param out Receives the packets
+	 * @return Number of encoded frames
+	 * @throws IOException If reading, encoding or writing failed
+	 */
+	public long transcode( FileChannel in, long dataStart, long sampleFrames, OutputStream out ) throws IOException
+	{
+		long start = System.currentTimeMillis();
+		long totalFrames = ( sampleFrames + this.frameSize - 1 ) / this.frameSize;
+		long dataEnd = dataStart + sampleFrames * this.numberOfChannels * ( Short.SIZE / Byte.SIZE );
+
+		Segment[] segments = new Segment[( int ) ( ( totalFrames + this.segmentFrames - 1 ) / this.segmentFrames )];
+		for ( int i = 0; i < segments.length; i++ )
+		{
+			long firstFrame = ( long ) i * this.segmentFrames;
+			segments[i] = new Segment( firstFrame, ( int ) Math.min( this.segmentFrames, totalFrames - firstFrame ) );
+		}
+
+		AtomicInteger nextSegment = new AtomicInteger();
+		Semaphore inFlight = new Semaphore( 2 * this.threads );
+		ExecutorService pool = Executors.newFixedThreadPool( this.threads );
+		for ( int i = 0; i < this.threads; i++ )
+		{
+			pool.execute( new Worker( in, dataStart, dataEnd, segments, nextSegment, inFlight ) );
+		}
+
+		long bytes = 0;
+		try
+		{
+			for ( int i = 0; i < segments.length; i++ )
+			{
+				Segment segment = segments[i];
+				segment.done.await();
+				if ( segment.error != null )
+				{
+					throw new IOException( "Could not encode segment " + i + ": " + segment.error.getMessage() );
+				}
+
+				int offset = 0;
+				for ( int frame = 0; frame < segment.frameCount; frame++ )
+				{
+					out.write( segment.packets, offset, segment.packetLengths[frame] );
+					offset += segment.packetLengths[frame];
+				}
+				bytes += offset;
+				segments[i] = null;
+				inFlight.release();
+			}
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( "Interrupted while waiting for the encoder threads" );
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+
+		this.framesEncoded = totalFrames;
+		this.bytesEncoded = bytes;
+		this.elapsedTime = System.currentTimeMillis() - start;
+		Log.d( TAG, totalFrames + " frames in " + segments.length + " segments encoded on " + this.threads + " threads in " + this.elapsedTime + "ms, "
+				+ this.getRealtimeFactor() + "x realtime" );
+
+		return totalFrames;
+	}
+
+	/**
+	 * @return Frames encoded by the last run
+	 */
+	public long getFramesEncoded()
+	{
+		return this.framesEncoded;
+	}
+
+	/**
+	 * @return Bytes of all packets of the last run
+	 */
+	public long getBytesEncoded()
+	{
+		return this.bytesEncoded;
+	}
+
+	/**
+	 * @return Duration of the last run in milliseconds
+	 */
+	public long getElapsedTime()
+	{
+		return this.elapsedTime;
+	}
+
+	/**
+	 * @return Seconds of audio encoded per second in the last run
+	 */
+	public double getRealtimeFactor()
+	{
+		double audioMillis = this.framesEncoded * this.frameSize * 1000.0 / this.samplingRate;
+		return audioMillis / Math.max( 1, this.elapsedTime );
+	}
+
+	/**
+	 * A segment of the input and, once encoded, its packets.
+	 */
+	private static class Segment
+	{
+		final long				firstFrame;
+		final int				frameCount;
+		final CountDownLatch	done			= new CountDownLatch( 1 );
+		byte[]					packets;		// Packets back-to-back, written by the worker before done is counted down
+		int[]					packetLengths;
+		Exception				error;
+
+		Segment( long firstFrame, int frameCount )
+		{
+			this.firstFrame = firstFrame;
+			this.frameCount = frameCount;
+		}
+	}
+
+	/**
+	 * Worker thread with its own encoder and buffers, encodes segments until all are claimed.
+	 */
+	private class Worker implements Runnable
+	{
+		private static final int	READ_FRAMES	= 50;	// Frames read from the file at once
+
+		private final FileChannel	in;
+		private final long			dataStart;
+		private final long			dataEnd;
+		private final Segment[]		segments;
+		private final AtomicInteger	nextSegment;
+		private final Semaphore		inFlight;
+
+		private final int			frameSamples	= frameSize * numberOfChannels;
+		private final ByteBuffer	readBuffer		= ByteBuffer.allocateDirect( READ_FRAMES * frameSamples * ( Short.SIZE / Byte.SIZE ) ).order( ByteOrder.LITTLE_ENDIAN );
+		private final ShortBuffer	pcm				= ByteOrder.LITTLE_ENDIAN == ByteOrder.nativeOrder()
+															? readBuffer.asShortBuffer()
+															: ByteBuffer.allocateDirect( readBuffer.capacity() ).order( ByteOrder.nativeOrder() ).asShortBuffer();
+		private final ByteBuffer	packet			= ByteBuffer.allocateDirect( OpusEncoder.MAX_PACKET_SIZE );
+		private OpusEncoder			encoder;
+
+		Worker( FileChannel in, long dataStart, long dataEnd, Segment[] segments, AtomicInteger nextSegment, Semaphore inFlight )
+		{
+			this.in = in;
+			this.dataStart = dataStart;
+			this.dataEnd = dataEnd;
+			this.segments = segments;
+			this.nextSegment = nextSegment;
+			this.inFlight = inFlight;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while ( true )
+				{
+					this.inFlight.acquire();
+					int index = this.nextSegment.getAndIncrement();
+					if ( index >= this.segments.length )
+					{
+						return;
+					}
+
+					Segment segment = this.segments[index];
+					try
+					{
+						this.encode( segment );
+					}
+					catch ( Exception e )
+					{
+						segment.error = e;
+					}
+					finally
+					{
+						segment.done.countDown();
+					}
+				}
+			}
+			catch ( InterruptedException e )
+			{
+				// The pool was shut down
+			}
+			finally
+			{
+				if ( this.encoder != null )
+				{
+					try
+					{
+						this.encoder.close();
+					}
+					catch ( IOException e )
+					{
+						Log.e( TAG, e.getLocalizedMessage(), e );
+					}
+				}
+			}
+		}
+
+		private void encode( Segment segment ) throws IOException
+		{
+			if ( this.encoder == null )
+			{
+				this.encoder = new OpusEncoder( null, samplingRate, numberOfChannels, frameSize );
+			}
+			else
+			{
+				this.encoder.reset();
+			}
+
+			byte[] packets = new byte[segment.frameCount * 128];
+			int[] packetLengths = new int[segment.frameCount];
+			int size = 0;
+
+			long frame = Math.max( 0, segment.firstFrame - prerollFrames );
+			long end = segment.firstFrame + segment.frameCount;
+			while ( frame < end )
+			{
+				int frames = this.read( frame, ( int ) Math.min( READ_FRAMES, end - frame ) );
+				for ( int i = 0; i < frames; i++, frame++ )
+				{
+					this.packet.clear();
+					int length = this.encoder.encode( this.pcm, this.packet );
+					if ( frame < segment.firstFrame )
+					{
+						continue;	// Pre-roll
+					}
+
+					if ( size + length > packets.length )
+					{
+						packets = Arrays.copyOf( packets, Math.max( 2 * packets.length, size + length ) );
+					}
+					this.packet.flip();
+					this.packet.get( packets, size, length );
+					packetLengths[( int ) ( frame - segment.firstFrame )] = length;
+					size += length;
+				}
+			}
+
+			segment.packets = packets;
+			segment.packetLengths = packetLengths;
+		}
+
+		/**
+		 * Reads frames from the input into pcm, padding with silence after the end of the data chunk.
+		 *
+		 * @return Number of frames in pcm
+		 */
+		private int read( long firstFrame, int frames ) throws IOException
+		{
+			long position = this.dataStart + firstFrame * this.frameSamples * ( Short.SIZE / Byte.SIZE );
+			this.readBuffer.clear();
+			this.readBuffer.limit( ( int ) Math.max( 0, Math.min( frames * this.frameSamples * ( Short.SIZE / Byte.SIZE ), this.dataEnd - position ) ) );
+			while ( this.readBuffer.hasRemaining() )
+			{
+				int bytesRead = this.in.read( this.readBuffer, position + this.readBuffer.position() );
+				if ( bytesRead < 0 )
+				{
+					break;
+				}
+			}
+			this.readBuffer.limit( frames * this.frameSamples * ( Short.SIZE / Byte.SIZE ) );
+			while ( this.readBuffer.hasRemaining() )
+			{
+				this.readBuffer.put( ( byte ) 0 );
+			}
+
+			this.pcm.clear();
+			if ( ByteOrder.LITTLE_ENDIAN != ByteOrder.nativeOrder() )
+			{
+				this.readBuffer.flip();
+				this.pcm.put( this.readBuffer.asShortBuffer() );
+				this.pcm.flip();
+			}
+			else
+			{
+				this.pcm.limit( frames * this.frameSamples );
+			}
+
+			return frames;
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Classifies captured frames as speech or silence from their energy and zero-crossing rate.
+ *
+ *	A frame is speech if its energy is well above the tracked noise floor, or moderately above it with many zero
+ *	crossings, which catches unvoiced sounds like "s" and "f" that carry little energy. After the last speech frame
+ *	the detector keeps reporting speech for a hangover, so word endings and short pauses between words are not cut off.
+ *
+ *	The noise floor follows falling energy within about a second and rising energy by at most NOISE_RISE per second, so a louder
+ *	background is learned within seconds while speech barely moves it. The cost is one pass over the samples per frame.
+ */
+public class VoiceActivityDetector
+{
+	private static final double	SPEECH_RATIO		= 8;		// Energy above the noise floor that is speech for sure, 9dB
+	private static final double	UNVOICED_RATIO		= 4;		// Energy above the noise floor that is speech if the zero-crossing rate is high, 6dB
+	private static final int	UNVOICED_CROSSINGS	= 3000;		// Zero crossings per second of fricatives
+	private static final double	MIN_NOISE_FLOOR		= 100;		// Mean square of the quietest noise floor, an amplitude of 10
+	private static final double	MIN_SPEECH_ENERGY	= 40000;	// Mean square below which nothing is speech, an amplitude of 200
+	private static final double	NOISE_RISE			= 2;		// Factor the noise floor may rise by per second, 3dB
+	private static final double	NOISE_FALL_TIME		= 0.5;		// Time constant of a falling noise floor in seconds
+	private static final int	HANGOVER			= 200;		// Milliseconds of speech reported after the last speech frame
+
+	//Config
+	private final int			samplingRate;
+	private final int			numberOfChannels;
+
+	//Fields
+	private double				noiseFloor			= MIN_NOISE_FLOOR;
+	private int					hangoverSamples		= 0;	// Samples per channel left in the current hangover
+	private int					frameLength			= -1;	// Samples per channel the factors below were computed for
+	private double				noiseRise;					// Noise floor factor per frame
+	private double				noiseFall;					// Smoothing factor per frame
+
+	//Statistics
+	private volatile long		speechFrames		= 0;
+	private volatile long		silentFrames		= 0;
+
+	/**
+	 * @param samplingRate Sampling rate of the analyzed signal in Hz
+	 * @param numberOfChannels Number of interleaved channels, all channels are analyzed together
+	 */
+	public VoiceActivityDetector( int samplingRate, int numberOfChannels )
+	{
+		this.samplingRate = samplingRate;
+		this.numberOfChannels = numberOfChannels;
+	}
+
+	/**
+	 * Analyzes the next frame of the signal. Frames may have any length, but must be passed in order.
+	 * 
+	 * @param pcm Signal, interleaved if there are several channels
+	 * @param offset Index of the first sample of the frame
+	 * @param length Number of samples in the frame, all channels
+	 * @return True if the frame is speech or in the hangover after speech
+	 */
+	public boolean isSpeech( short[] pcm, int offset, int length )
+	{
+		int samples = length / this.numberOfChannels;	// Per channel
+		if ( samples == 0 )
+		{
+			return this.hangoverSamples > 0;
+		}
+		if ( samples != this.frameLength )
+		{
+			double frameSeconds = ( double ) samples / this.samplingRate;
+			this.noiseRise = Math.pow( NOISE_RISE, frameSeconds );
+			this.noiseFall = 1 - Math.exp( -frameSeconds / NOISE_FALL_TIME );
+			this.frameLength = samples;
+		}
+
+		long sum = 0;
+		int crossings = 0;
+		int previous = pcm[offset];
+		int end = offset + length;
+		for ( int i = offset; i < end; i++ )
+		{
+			int sample = pcm[i];
+			sum += sample * sample;
+			if ( ( sample ^ previous ) < 0 )
+			{
+				crossings++;
+			}
+			previous = sample;
+		}
+		double energy = ( double ) sum / length;
+		int crossingRate = ( int ) ( ( long ) crossings * this.samplingRate * this.numberOfChannels / length );
+
+		boolean isActive = energy > MIN_SPEECH_ENERGY
+				&& ( energy > this.noiseFloor * SPEECH_RATIO || energy > this.noiseFloor * UNVOICED_RATIO && crossingRate > UNVOICED_CROSSINGS );
+
+		if ( energy < this.noiseFloor )
+		{
+			this.noiseFloor += ( energy - this.noiseFloor ) * this.noiseFall;
+		}
+		else
+		{
+			this.noiseFloor = Math.min( energy, this.noiseFloor * this.noiseRise );
+		}
+		this.noiseFloor = Math.max( this.noiseFloor, MIN_NOISE_FLOOR );
+
+		if ( isActive )
+		{
+			this.hangoverSamples = HANGOVER * this.samplingRate / 1000;
+		}
+		else if ( this.hangoverSamples > 0 )
+		{
+			this.hangoverSamples = Math.max( this.hangoverSamples - samples, 0 );
+			isActive = true;
+		}
+
+		if ( isActive )
+		{
+			this.speechFrames++;
+		}
+		else
+		{
+			this.silentFrames++;
+		}
+		return isActive;
+	}
+
+	/**
+	 * Forgets the noise floor and the hangover, for a new recording in possibly different surroundings.
+	 */
+	public void reset()
+	{
+		this.noiseFloor = MIN_NOISE_FLOOR;
+		this.hangoverSamples = 0;
+	}
+
+	/**
+	 * @return Current estimate of the background noise as mean square of the samples
+	 */
+	public double getNoiseFloor()
+	{
+		return this.noiseFloor;
+	}
+
+	/**
+	 * @return Frames reported as speech, hangover included
+	 */
+	public long getSpeechFrames()
+	{
+		return this.speechFrames;
+	}
+
+	/**
+	 * @return Frames reported as silence
+	 */
+	public long getSilentFrames()
+	{
+		return this.silentFrames;
+	}
+}
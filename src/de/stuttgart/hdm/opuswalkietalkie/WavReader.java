@@ -0,0 +1,246 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Reads the samples of a 16 bit PCM WAV file as written by {@link WavWriter}, and seeks to any frame.
+ *
+ *	The chunks in front of the data chunk are walked once on opening, unknown ones are skipped. The samples are read
+ *	with positional reads into one reused direct buffer in little endian order and copied from there into the caller's
+ *	array, nothing is allocated after construction. A data chunk with the size 0, left by a recording that was never
+ *	closed, is taken to reach up to the end of the file. A reader is not thread-safe.
+ */
+public class WavReader implements Closeable
+{
+	private static final int	FORMAT_PCM			= 1;
+	private static final int	FORMAT_EXTENSIBLE	= 0xFFFE;
+	private static final int	CHUNK_HEADER_SIZE	= 8;
+
+	//Fields
+	private final RandomAccessFile	file;
+	private final FileChannel		channel;
+	private final ByteBuffer		buffer;		// Samples read from the channel and not returned yet
+	private final ShortBuffer		samples;	// View of buffer from its start, sample i is at byte 2 * i
+	private final int				samplingRate;
+	private final int				numberOfChannels;
+	private final long				dataStart;	// File position of the first sample
+	private final long				dataEnd;
+	private long					position;	// File position of the end of buffer
+
+	/**
+	 * Reads with a buffer of WavWriter.DEFAULT_BUFFER_SIZE.
+	 *
+	 * @param file WAV file with 16 bit PCM samples
+	 * @throws IOException If the file can not be read or is no 16 bit PCM WAV file
+	 */
+	public WavReader( File file ) throws IOException
+	{
+		this( file, WavWriter.DEFAULT_BUFFER_SIZE );
+	}
+
+	/**
+	 * @param file WAV file with 16 bit PCM samples
+	 * @param bufferSize Bytes read from the file at once
+	 * @throws IOException If the file can not be read or is no 16 bit PCM WAV file
+	 */
+	public WavReader( File file, int bufferSize ) throws IOException
+	{
+		this.file = new RandomAccessFile( file, "r" );
+		this.channel = this.file.getChannel();
+		this.buffer = ByteBuffer.allocateDirect( Math.max( bufferSize & ~1, WavWriter.HEADER_SIZE ) ).order( ByteOrder.LITTLE_ENDIAN );
+		this.samples = this.buffer.asShortBuffer();
+		try
+		{
+			this.readFully( 0, 12 );
+			if ( this.buffer.getInt( 0 ) != fourCc( "RIFF" ) || this.buffer.getInt( 8 ) != fourCc( "WAVE" ) )
+			{
+				throw new IOException( "No WAV file: " + file );
+			}
+
+			int samplingRate = 0;
+			int numberOfChannels = 0;
+			long chunkStart = 12;
+			while ( true )
+			{
+				this.readFully( chunkStart, CHUNK_HEADER_SIZE );
+				int id = this.buffer.getInt( 0 );
+				long size = this.buffer.getInt( 4 ) & 0xFFFFFFFFL;
+				if ( id == fourCc( "fmt " ) )
+				{
+					this.readFully( chunkStart + CHUNK_HEADER_SIZE, 16 );
+					int format = this.buffer.getShort( 0 ) & 0xFFFF;
+					numberOfChannels = this.buffer.getShort( 2 );
+					samplingRate = this.buffer.getInt( 4 );
+					if ( format != FORMAT_PCM && format != FORMAT_EXTENSIBLE || this.buffer.getShort( 14 ) != Short.SIZE || numberOfChannels <= 0 )
+					{
+						throw new IOException( "Only 16 bit PCM is supported: " + file );
+					}
+				}
+				else if ( id == fourCc( "data" ) )
+				{
+					if ( numberOfChannels == 0 )
+					{
+						throw new IOException( "Data chunk in front of the format chunk: " + file );
+					}
+					long available = this.channel.size() - chunkStart - CHUNK_HEADER_SIZE;
+					long dataBytes = size == 0 || size > available ? available : size;
+					int blockAlign = numberOfChannels * ( Short.SIZE / Byte.SIZE );
+					this.dataStart = chunkStart + CHUNK_HEADER_SIZE;
+					this.dataEnd = this.dataStart + dataBytes / blockAlign * blockAlign;
+					break;
+				}
+				chunkStart += CHUNK_HEADER_SIZE + size + ( size & 1 );	// Chunks are padded to an even size
+			}
+			this.samplingRate = samplingRate;
+			this.numberOfChannels = numberOfChannels;
+		}
+		catch ( IOException e )
+		{
+			this.file.close();
+			throw e;
+		}
+		this.seek( 0 );
+	}
+
+	private static int fourCc( String id )
+	{
+		return id.charAt( 0 ) | id.charAt( 1 ) << 8 | id.charAt( 2 ) << 16 | id.charAt( 3 ) << 24;
+	}
+
+	/**
+	 * Reads length bytes at the given position to the start of buffer.
+	 */
+	private void readFully( long position, int length ) throws IOException
+	{
+		this.buffer.clear();
+		this.buffer.limit( length );
+		while ( this.buffer.hasRemaining() )
+		{
+			if ( this.channel.read( this.buffer, position + this.buffer.position() ) < 0 )
+			{
+				throw new IOException( "Unexpected end of WAV file" );
+			}
+		}
+	}
+
+	/**
+	 * Reads interleaved samples.
+	 *
+	 * @param pcm Receives the samples
+	 * @param offset Index in pcm of the first sample
+	 * @param length Largest number of samples over all channels to read
+	 * @return Number of samples read, -1 at the end of the data
+	 * @throws IOException
+	 */
+	public int read( short[] pcm, int offset, int length ) throws IOException
+	{
+		if ( !this.buffer.hasRemaining() )
+		{
+			long remaining = this.dataEnd - this.position;
+			if ( remaining <= 0 )
+			{
+				return -1;
+			}
+			this.buffer.clear();
+			this.buffer.limit( ( int ) Math.min( this.buffer.capacity(), remaining ) );
+			while ( this.buffer.hasRemaining() )
+			{
+				if ( this.channel.read( this.buffer, this.position + this.buffer.position() ) < 0 )
+				{
+					break;	// Truncated while reading
+				}
+			}
+			this.buffer.flip();
+			this.buffer.limit( this.buffer.limit() & ~1 );
+			this.position += this.buffer.limit();
+			if ( !this.buffer.hasRemaining() )
+			{
+				return -1;
+			}
+		}
+
+		int count = Math.min( length, this.buffer.remaining() / ( Short.SIZE / Byte.SIZE ) );
+		this.samples.limit( this.buffer.limit() / ( Short.SIZE / Byte.SIZE ) );
+		this.samples.position( this.buffer.position() / ( Short.SIZE / Byte.SIZE ) );
+		this.samples.get( pcm, offset, count );
+		this.buffer.position( this.buffer.position() + count * ( Short.SIZE / Byte.SIZE ) );
+		return count;
+	}
+
+	/**
+	 * Continues reading at the given frame.
+	 *
+	 * @param frame Frame to read next, one sample of every channel, past the end to read nothing
+	 * @throws IOException
+	 */
+	public void seek( long frame ) throws IOException
+	{
+		long blockAlign = this.numberOfChannels * ( Short.SIZE / Byte.SIZE );
+		this.position = Math.min( this.dataStart + Math.max( frame, 0 ) * blockAlign, this.dataEnd );
+		this.buffer.clear();
+		this.buffer.limit( 0 );
+	}
+
+	public int getSamplingRate()
+	{
+		return this.samplingRate;
+	}
+
+	public int getNumberOfChannels()
+	{
+		return this.numberOfChannels;
+	}
+
+	/**
+	 * @return File position of the first sample, the samples are little endian and interleaved from there on
+	 */
+	public long getDataStart()
+	{
+		return this.dataStart;
+	}
+
+	/**
+	 * @return Number of frames in the file, one sample of every channel each
+	 */
+	public long getFrames()
+	{
+		return ( this.dataEnd - this.dataStart ) / ( this.numberOfChannels * ( Short.SIZE / Byte.SIZE ) );
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		this.file.close();
+	}
+}
@@ -0,0 +1,260 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Writes 16 bit PCM as a WAV file, the lossless archival format of the raw recording path.
+ *
+ *	The header goes in front of the samples with both size fields set to 0, {@link #close()} patches them with two
+ *	positional writes. A file that was never closed therefore still has a valid header, and {@link WavReader} takes
+ *	the rest of the file as data. Samples are copied from the frame straight into one reused direct buffer in little
+ *	endian order, which on the usual little endian devices is a plain memory copy, and the full buffer is written to
+ *	the channel in one call. Nothing is allocated after construction.
+ */
+public class WavWriter extends OutputStream
+{
+	public static final int		HEADER_SIZE			= 44;
+	public static final int		DEFAULT_BUFFER_SIZE	= 64 * 1024;	// About 340ms at 48kHz stereo
+	static final int			RIFF_SIZE_OFFSET	= 4;
+	static final int			DATA_SIZE_OFFSET	= 40;
+	static final long			MAX_DATA_SIZE		= 0xFFFFFFFFL - ( HEADER_SIZE - 8 );	// Largest data chunk the 32 bit RIFF size can describe
+
+	//Fields
+	private final FileChannel	channel;
+	private final ByteBuffer	buffer;			// Header and samples not yet written
+	private final ShortBuffer	samples;		// View of buffer from its start, sample i is at byte 2 * i
+	private final ByteBuffer	sizeField		= ByteBuffer.allocateDirect( 4 ).order( ByteOrder.LITTLE_ENDIAN );
+	private final int			samplingRate;
+	private final int			numberOfChannels;
+	private long				position		= 0;	// File position of the start of buffer
+	private long				dataBytes		= 0;
+	private boolean				isClosed		= false;
+
+	/**
+	 * Writes with a buffer of DEFAULT_BUFFER_SIZE.
+	 *
+	 * @param channel Empty channel to write the file to, closed by {@link #close()}
+	 * @param samplingRate Sampling rate of the samples
+	 * @param numberOfChannels Number of interleaved channels
+	 */
+	public WavWriter( FileChannel channel, int samplingRate, int numberOfChannels )
+	{
+		this( channel, samplingRate, numberOfChannels, DEFAULT_BUFFER_SIZE );
+	}
+
+	/**
+	 * @param channel Empty channel to write the file to, closed by {@link #close()}
+	 * @param samplingRate Sampling rate of the samples
+	 * @param numberOfChannels Number of interleaved channels
+	 * @param bufferSize Bytes collected before they are written to the channel, at least HEADER_SIZE
+	 */
+	public WavWriter( FileChannel channel, int samplingRate, int numberOfChannels, int bufferSize )
+	{
+		this.channel = channel;
+		this.samplingRate = samplingRate;
+		this.numberOfChannels = numberOfChannels;
+		this.buffer = ByteBuffer.allocateDirect( Math.max( bufferSize & ~1, HEADER_SIZE ) ).order( ByteOrder.LITTLE_ENDIAN );
+		this.samples = this.buffer.asShortBuffer();
+		writeHeader( this.buffer, samplingRate, numberOfChannels, 0 );
+	}
+
+	/**
+	 * Writes the canonical 44 byte header of a 16 bit PCM WAV file at the position of buffer and advances it.
+	 *
+	 * @param buffer Little endian buffer with at least HEADER_SIZE bytes remaining
+	 * @param dataBytes Size of the data chunk, 0 if not known yet
+	 */
+	static void writeHeader( ByteBuffer buffer, int samplingRate, int numberOfChannels, long dataBytes )
+	{
+		int blockAlign = numberOfChannels * ( Short.SIZE / Byte.SIZE );
+		buffer.put( ( byte ) 'R' ).put( ( byte ) 'I' ).put( ( byte ) 'F' ).put( ( byte ) 'F' );
+		buffer.putInt( ( int ) ( HEADER_SIZE - 8 + dataBytes ) );
+		buffer.put( ( byte ) 'W' ).put( ( byte ) 'A' ).put( ( byte ) 'V' ).put( ( byte ) 'E' );
+		buffer.put( ( byte ) 'f' ).put( ( byte ) 'm' ).put( ( byte ) 't' ).put( ( byte ) ' ' );
+		buffer.putInt( 16 );							// Size of the fmt chunk
+		buffer.putShort( ( short ) 1 );					// PCM
+		buffer.putShort( ( short ) numberOfChannels );
+		buffer.putInt( samplingRate );
+		buffer.putInt( samplingRate * blockAlign );		// Bytes per second
+		buffer.putShort( ( short ) blockAlign );
+		buffer.putShort( ( short ) Short.SIZE );		// Bits per sample
+		buffer.put( ( byte ) 'd' ).put( ( byte ) 'a' ).put( ( byte ) 't' ).put( ( byte ) 'a' );
+		buffer.putInt( ( int ) dataBytes );
+	}
+
+	/**
+	 * Appends interleaved samples.
+	 *
+	 * @param pcm Samples to write
+	 * @param offset Index of the first sample in pcm
+	 * @param length Number of samples over all channels
+	 * @throws IOException
+	 */
+	public void write( short[] pcm, int offset, int length ) throws IOException
+	{
+		this.checkState();
+		while ( length > 0 )
+		{
+			if ( this.buffer.remaining() < Short.SIZE / Byte.SIZE )
+			{
+				this.writeBuffer();
+			}
+			int count = Math.min( length, this.buffer.remaining() / ( Short.SIZE / Byte.SIZE ) );
+			if ( ( this.buffer.position() & 1 ) == 0 )
+			{
+				this.samples.limit( this.samples.capacity() );
+				this.samples.position( this.buffer.position() / ( Short.SIZE / Byte.SIZE ) );
+				this.samples.put( pcm, offset, count );
+				this.buffer.position( this.buffer.position() + count * ( Short.SIZE / Byte.SIZE ) );
+			}
+			else
+			{
+				for ( int i = 0; i < count; i++ )	// Only after byte writes of odd length
+				{
+					this.buffer.putShort( pcm[offset + i] );
+				}
+			}
+			offset += count;
+			length -= count;
+			this.dataBytes += count * ( Short.SIZE / Byte.SIZE );
+		}
+	}
+
+	/**
+	 * Appends samples given as 16 bit little endian bytes.
+	 */
+	@Override
+	public void write( byte[] buffer, int offset, int count ) throws IOException
+	{
+		this.checkState();
+		while ( count > 0 )
+		{
+			if ( !this.buffer.hasRemaining() )
+			{
+				this.writeBuffer();
+			}
+			int length = Math.min( count, this.buffer.remaining() );
+			this.buffer.put( buffer, offset, length );
+			offset += length;
+			count -= length;
+			this.dataBytes += length;
+		}
+	}
+
+	@Override
+	public void write( int oneByte ) throws IOException
+	{
+		throw new UnsupportedOperationException( "Write whole samples" );
+	}
+
+	private void writeBuffer() throws IOException
+	{
+		this.buffer.flip();
+		while ( this.buffer.hasRemaining() )
+		{
+			this.position += this.channel.write( this.buffer, this.position );
+		}
+		this.buffer.clear();
+	}
+
+	private void checkState() throws IOException
+	{
+		if ( this.isClosed )
+		{
+			throw new IOException( "WAV writer already closed" );
+		}
+	}
+
+	/**
+	 * Writes the buffered samples to the channel.
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		this.checkState();
+		this.writeBuffer();
+	}
+
+	/**
+	 * Writes the buffered samples, patches the size fields of the header and closes the channel. Data beyond
+	 * MAX_DATA_SIZE is kept but not counted in the header.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if ( this.isClosed )
+		{
+			return;
+		}
+		this.isClosed = true;
+		try
+		{
+			this.writeBuffer();
+			long dataSize = Math.min( this.dataBytes, MAX_DATA_SIZE );
+			this.patchSize( RIFF_SIZE_OFFSET, HEADER_SIZE - 8 + dataSize );
+			this.patchSize( DATA_SIZE_OFFSET, dataSize );
+		}
+		finally
+		{
+			this.channel.close();
+		}
+	}
+
+	private void patchSize( long offset, long size ) throws IOException
+	{
+		this.sizeField.clear();
+		this.sizeField.putInt( ( int ) size );
+		this.sizeField.flip();
+		while ( this.sizeField.hasRemaining() )
+		{
+			this.channel.write( this.sizeField, offset + this.sizeField.position() );
+		}
+	}
+
+	public int getSamplingRate()
+	{
+		return this.samplingRate;
+	}
+
+	public int getNumberOfChannels()
+	{
+		return this.numberOfChannels;
+	}
+
+	/**
+	 * @return Bytes of samples written so far
+	 */
+	public long getDataBytes()
+	{
+		return this.dataBytes;
+	}
+}
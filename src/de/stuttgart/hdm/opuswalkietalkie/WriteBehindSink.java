@@ -0,0 +1,336 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Collects the small writes of an encoder, a few dozen bytes per packet, in a pool of direct buffers and lets an I/O
+ *	thread write them to a FileChannel in large chunks.
+ *
+ *	The writing thread fills one chunk at a time and hands it over when it is full. Chunk boundaries are aligned to
+ *	multiples of the chunk size in the file, so every write but the first and the last covers whole file system blocks.
+ *	When all chunks are waiting for the I/O thread, the writing thread blocks until one is free again, so a slow
+ *	storage slows the encoder down instead of growing the memory. Errors of the I/O thread are thrown by the next call.
+ *
+ *	{@link #flush()} waits until everything written so far is in the channel, {@link #close()} does the same and stops
+ *	the I/O thread. The latency of every write is recorded, including the waits for a free chunk.
+ */
+public class WriteBehindSink extends OutputStream
+{
+	public static final int		DEFAULT_CHUNK_SIZE	= 64 * 1024;
+	public static final int		DEFAULT_CHUNKS		= 4;
+
+	private static final ByteBuffer	END			= ByteBuffer.allocate( 0 );	// Stops the I/O thread
+
+	//Fields
+	private final FileChannel				channel;
+	private final boolean					isClosingChannel;
+	private final int						chunkSize;
+	private final int						chunks;
+	private final BlockingQueue<ByteBuffer>	freeChunks;
+	private final BlockingQueue<ByteBuffer>	fullChunks;
+	private final Thread					ioThread;
+	private ByteBuffer						current;			// Chunk filled by the writing thread
+	private long							position;			// File position of the start of current
+	private volatile IOException			failure			= null;
+	private boolean							isClosed		= false;
+
+	//Statistics
+	private final Histogram					writeLatency	= new Histogram();	// Nanoseconds per write
+	private long							writes			= 0;
+	private long							stalls			= 0;	// Writes that waited for a free chunk
+	private volatile long					channelWrites	= 0;
+
+	/**
+	 * Writes in chunks of DEFAULT_CHUNK_SIZE with DEFAULT_CHUNKS chunks in the pool.
+	 *
+	 * @param channel Channel to write to with positional writes
+	 * @param position Position of the first byte in the channel
+	 * @param isClosingChannel Whether closing the sink closes the channel as well
+	 */
+	public WriteBehindSink( FileChannel channel, long position, boolean isClosingChannel )
+	{
+		this( channel, position, isClosingChannel, DEFAULT_CHUNK_SIZE, DEFAULT_CHUNKS );
+	}
+
+	/**
+	 * @param channel Channel to write to with positional writes
+	 * @param position Position of the first byte in the channel
+	 * @param isClosingChannel Whether closing the sink closes the channel as well
+	 * @param chunkSize Size of a chunk, a power of two of at least the file system block size
+	 * @param chunks Number of chunks in the pool, at least 2
+	 */
+	public WriteBehindSink( FileChannel channel, long position, boolean isClosingChannel, int chunkSize, int chunks )
+	{
+		this.channel = channel;
+		this.isClosingChannel = isClosingChannel;
+		this.chunkSize = chunkSize;
+		this.chunks = chunks;
+		this.freeChunks = new ArrayBlockingQueue<ByteBuffer>( chunks );
+		this.fullChunks = new ArrayBlockingQueue<ByteBuffer>( chunks + 1 );
+		for ( int i = 1; i < chunks; i++ )
+		{
+			this.freeChunks.add( ByteBuffer.allocateDirect( chunkSize ) );
+		}
+		this.position = position;
+		this.current = ByteBuffer.allocateDirect( chunkSize );
+		this.current.limit( this.alignedLimit() );
+
+		final long start = position;
+		this.ioThread = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				writeChunks( start );
+			}
+		}, "Write-behind" );
+		this.ioThread.setDaemon( true );	// A sink that is never closed must not keep the process alive
+		this.ioThread.start();
+	}
+
+	/**
+	 * I/O thread: writes the full chunks in order and returns them to the pool, until END is handed over.
+	 */
+	private void writeChunks( long position )
+	{
+		try
+		{
+			ByteBuffer chunk;
+			while ( ( chunk = this.fullChunks.take() ) != END )
+			{
+				if ( this.failure == null )
+				{
+					try
+					{
+						while ( chunk.hasRemaining() )
+						{
+							position += this.channel.write( chunk, position );
+							this.channelWrites++;
+						}
+					}
+					catch ( IOException e )
+					{
+						this.failure = e;
+					}
+				}
+				chunk.clear();
+				this.freeChunks.put( chunk );
+			}
+		}
+		catch ( InterruptedException e )
+		{
+			this.failure = new InterruptedIOException( "Write-behind thread interrupted" );
+		}
+	}
+
+	@Override
+	public void write( byte[] buffer, int offset, int count ) throws IOException
+	{
+		long start = System.nanoTime();
+		this.checkState();
+		while ( count > 0 )
+		{
+			int length = Math.min( count, this.current.remaining() );
+			this.current.put( buffer, offset, length );
+			offset += length;
+			count -= length;
+			if ( !this.current.hasRemaining() )
+			{
+				this.handOver();
+			}
+		}
+		this.writes++;
+		this.writeLatency.record( System.nanoTime() - start );
+	}
+
+	@Override
+	public void write( int oneByte ) throws IOException
+	{
+		this.write( new byte[] { ( byte ) oneByte }, 0, 1 );
+	}
+
+	/**
+	 * Hands the current chunk to the I/O thread and takes a free one, waiting if there is none.
+	 */
+	private void handOver() throws IOException
+	{
+		this.current.flip();
+		this.position += this.current.remaining();
+		try
+		{
+			this.fullChunks.put( this.current );
+			ByteBuffer next = this.freeChunks.poll();
+			if ( next == null )
+			{
+				this.stalls++;
+				next = this.freeChunks.take();
+			}
+			this.current = next;
+		}
+		catch ( InterruptedException e )
+		{
+			throw new InterruptedIOException( "Interrupted while waiting for a free chunk" );
+		}
+		this.current.limit( this.alignedLimit() );
+	}
+
+	/**
+	 * @return Limit of a chunk starting at position, so it ends at the next multiple of the chunk size
+	 */
+	private int alignedLimit()
+	{
+		return this.chunkSize - ( int ) ( this.position & ( this.chunkSize - 1 ) );
+	}
+
+	/**
+	 * Waits until everything written so far is written to the channel.
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		this.checkState();
+		if ( this.current.position() > 0 )
+		{
+			this.handOver();
+		}
+		try
+		{
+			// All chunks but the current one are free once the I/O thread is done
+			ByteBuffer[] written = new ByteBuffer[this.chunks - 1];
+			for ( int i = 0; i < written.length; i++ )
+			{
+				written[i] = this.freeChunks.take();
+			}
+			for ( ByteBuffer chunk : written )
+			{
+				this.freeChunks.put( chunk );
+			}
+		}
+		catch ( InterruptedException e )
+		{
+			throw new InterruptedIOException( "Interrupted while flushing" );
+		}
+		this.checkState();
+	}
+
+	private void checkState() throws IOException
+	{
+		if ( this.isClosed )
+		{
+			throw new IOException( "Sink already closed" );
+		}
+		if ( this.failure != null )
+		{
+			throw this.failure;
+		}
+	}
+
+	/**
+	 * Writes the rest, stops the I/O thread and closes the channel if asked to.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if ( this.isClosed )
+		{
+			return;
+		}
+		try
+		{
+			this.flush();
+		}
+		finally
+		{
+			this.isClosed = true;
+			this.fullChunks.add( END );
+			try
+			{
+				this.ioThread.join();
+			}
+			catch ( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+			if ( this.isClosingChannel )
+			{
+				this.channel.close();
+			}
+		}
+	}
+
+	/**
+	 * @return Channel position behind the last byte written to the sink
+	 */
+	public long getPosition()
+	{
+		return this.position + this.current.position();
+	}
+
+	/**
+	 * @return Calls of write()
+	 */
+	public long getWrites()
+	{
+		return this.writes;
+	}
+
+	/**
+	 * @return Writes to the channel, the system calls made by the I/O thread
+	 */
+	public long getChannelWrites()
+	{
+		return this.channelWrites;
+	}
+
+	/**
+	 * @return Writes that waited for the I/O thread because all chunks were full
+	 */
+	public long getStalls()
+	{
+		return this.stalls;
+	}
+
+	/**
+	 * @return Latency of the calls of write() in nanoseconds
+	 */
+	public Histogram getWriteLatency()
+	{
+		return this.writeLatency;
+	}
+
+	@Override
+	public String toString()
+	{
+		return this.writes + " writes in " + this.channelWrites + " channel writes - " + this.stalls + " stalls - write latency ns: " + this.writeLatency;
+	}
+}
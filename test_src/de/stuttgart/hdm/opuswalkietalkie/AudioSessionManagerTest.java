@@ -0,0 +1,152 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.test.AndroidTestCase;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Tests the state transitions of the session manager with a recording and a playback that only wait for their stop.
+ */
+public class AudioSessionManagerTest extends AndroidTestCase
+{
+	private static class FakeRecording extends Recording
+	{
+		private final CountDownLatch	started		= new CountDownLatch( 1 );
+		private final CountDownLatch	stopped		= new CountDownLatch( 1 );
+		private volatile boolean		shouldStop	= false;
+		private volatile long			firstSample	= -1;
+
+		@Override
+		public void recordToFile()
+		{
+			this.firstSample = System.nanoTime();
+			this.started.countDown();
+			while ( !this.shouldStop )
+			{
+				Thread.yield();
+			}
+			this.recordedFile = new File( "recorded" );
+			this.isRecordFinished = true;
+			this.stopped.countDown();
+		}
+
+		@Override
+		public long getFirstSampleTime()
+		{
+			return this.firstSample;
+		}
+
+		@Override
+		public void resetStop()
+		{
+			this.shouldStop = false;
+		}
+
+		@Override
+		public void stopRecording()
+		{
+			this.shouldStop = true;
+		}
+	}
+
+	private static class FakePlayback extends Playback
+	{
+		private final CountDownLatch	played		= new CountDownLatch( 1 );
+		private volatile File			file		= null;
+		private volatile boolean		wasRecordingStopped;
+		private volatile long			firstSample	= -1;
+		private FakeRecording			recording;
+
+		@Override
+		public void playFile( File file )
+		{
+			this.wasRecordingStopped = this.recording.stopped.getCount() == 0;
+			this.file = file;
+			this.firstSample = System.nanoTime();
+			this.played.countDown();
+		}
+
+		@Override
+		public long getFirstSampleTime()
+		{
+			return this.firstSample;
+		}
+	}
+
+	public void testPlayWaitsForTheRecordingToEnd() throws Exception
+	{
+		FakeRecording recording = new FakeRecording();
+		FakePlayback playback = new FakePlayback();
+		playback.recording = recording;
+		AudioSessionManager manager = new AudioSessionManager( recording, playback, null );
+		try
+		{
+			manager.startRecording();
+			assertEquals( AudioSessionManager.RECORDING, manager.getRequestedState() );
+			assertTrue( recording.started.await( 1, TimeUnit.SECONDS ) );
+			assertEquals( AudioSessionManager.RECORDING, manager.getState() );
+
+			manager.startPlaying();	// Stops the recording, plays once it is finished
+			assertTrue( playback.played.await( 1, TimeUnit.SECONDS ) );
+			assertTrue( playback.wasRecordingStopped );
+			assertEquals( "recorded", playback.file.getName() );
+		}
+		finally
+		{
+			manager.shutdown();
+		}
+		assertEquals( AudioSessionManager.IDLE, manager.getState() );
+		assertEquals( AudioSessionManager.IDLE, manager.getRequestedState() );
+		assertEquals( 1, manager.getRecordStartLatency().getCount() );
+		assertEquals( 1, manager.getPlayStartLatency().getCount() );
+	}
+
+	public void testOnlyLatestRequestStarts() throws Exception
+	{
+		FakeRecording recording = new FakeRecording();
+		FakePlayback playback = new FakePlayback();
+		playback.recording = recording;
+		AudioSessionManager manager = new AudioSessionManager( recording, playback, null );
+		try
+		{
+			manager.startRecording();
+			assertTrue( recording.started.await( 1, TimeUnit.SECONDS ) );
+			manager.startPlaying();
+			manager.startRecording();	// Supersedes the play request still waiting for the recording to end
+			Thread.sleep( 100 );
+			assertEquals( 1, playback.played.getCount() );
+			assertEquals( AudioSessionManager.RECORDING, manager.getRequestedState() );
+		}
+		finally
+		{
+			manager.shutdown();
+		}
+		assertEquals( 1, playback.played.getCount() );
+	}
+}
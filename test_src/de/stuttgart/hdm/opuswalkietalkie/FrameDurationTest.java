@@ -0,0 +1,63 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import android.test.AndroidTestCase;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Tests the frame sizes chosen for the latency modes and the validation against the sampling rate.
+ */
+public class FrameDurationTest extends AndroidTestCase
+{
+	public void testLatencyModes()
+	{
+		assertEquals( 160, FrameDuration.getFrameSize( FrameDuration.LIVE, 8000 ) );
+		assertEquals( 960, FrameDuration.getFrameSize( FrameDuration.LIVE, 48000 ) );
+		assertEquals( 2880, FrameDuration.getFrameSize( FrameDuration.ARCHIVE, 48000 ) );
+		assertEquals( 1, FrameDuration.getFramesPerPacket( FrameDuration.LIVE ) );
+
+		// An archive packet must not exceed the 120ms of the longest Opus packet
+		int archiveSamples = FrameDuration.getFramesPerPacket( FrameDuration.ARCHIVE ) * FrameDuration.getFrameSize( FrameDuration.ARCHIVE, 48000 );
+		assertEquals( OpusPacket.MAX_SAMPLES, archiveSamples );
+	}
+
+	public void testValidation()
+	{
+		assertTrue( FrameDuration.isValid( 8000, 20 ) );		// 2.5ms, legal but the most expensive
+		assertTrue( FrameDuration.isValid( 12000, 720 ) );		// 60ms
+		assertFalse( FrameDuration.isValid( 48000, 1000 ) );
+		assertFalse( FrameDuration.isValid( 44100, 882 ) );		// 20ms, but no Opus sampling rate
+
+		try
+		{
+			FrameDuration.check( 16000, 200 );
+			fail( "12.5ms frames accepted" );
+		}
+		catch ( IllegalArgumentException e )
+		{
+			assertTrue( e.getMessage(), e.getMessage().contains( "40, 80, 160, 320, 640, 960" ) );
+		}
+	}
+}
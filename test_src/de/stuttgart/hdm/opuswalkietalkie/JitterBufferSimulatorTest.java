@@ -0,0 +1,196 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Deterministic simulator for the JitterBuffer. Replays loss/jitter traces against a simulated playout clock
+ *	and reports the latency added by the buffer and the fraction of concealed frames.
+ *
+ *	A trace holds the network delay of every packet in milliseconds, -1 marks a lost packet.
+ *	Packets are sent every 20ms, random traces use fixed seeds so every run gives the same result. A trace may have one
+ *	talk pause of suppressed silence, the sender then skips frames but not sequence numbers and marks the next packet.
+ */
+public class JitterBufferSimulatorTest extends AndroidTestCase
+{
+	private static String		TAG				= "JitterBufferSimulator";
+
+	private static final int	FRAME_DURATION	= 20;		// Milliseconds
+	private static final int	FIRST_SEQUENCE	= 65000;	// Makes the sequence numbers wrap around during the trace
+	private static final int	NO_PAUSE		= Integer.MAX_VALUE;
+
+	public void testConstantDelay()
+	{
+		int[] trace = new int[1000];
+		Arrays.fill( trace, 40 );
+
+		JitterBuffer buffer = simulate( "constant delay", trace, NO_PAUSE, 0 );
+
+		assertEquals( 0, buffer.getFramesConcealed() );
+		assertEquals( 0, buffer.getFramesRecovered() );
+		assertEquals( 1000, buffer.getFramesPlayed() );
+		assertTrue( buffer.getAverageDelay() <= FRAME_DURATION );
+	}
+
+	public void testIsolatedLossesAreRecoveredFromFec()
+	{
+		int[] trace = new int[1000];
+		Arrays.fill( trace, 40 );
+		for ( int i = 10; i < trace.length; i += 20 )
+		{
+			trace[i] = -1;
+		}
+
+		JitterBuffer buffer = simulate( "5% isolated loss", trace, NO_PAUSE, 0 );
+
+		assertEquals( 50, buffer.getFramesRecovered() );
+		assertEquals( 0, buffer.getFramesConcealed() );
+	}
+
+	public void testDelayAdaptsToJitter()
+	{
+		Random random = new Random( 1 );
+		int[] trace = new int[3000];
+		for ( int i = 0; i < trace.length; i++ )
+		{
+			trace[i] = 20 + random.nextInt( 100 );
+		}
+
+		JitterBuffer buffer = simulate( "uniform jitter 20-120ms", trace, NO_PAUSE, 0 );
+
+		assertTrue( "Target delay did not grow with the jitter", buffer.getTargetDelayFrames() > 1 );
+		assertTrue( "Too many frames concealed", concealedFraction( buffer ) < 0.05 );
+	}
+
+	public void testBurstyLossAndJitter()
+	{
+		Random random = new Random( 2 );
+		int[] trace = new int[3000];
+		boolean isBadState = false;
+		for ( int i = 0; i < trace.length; i++ )
+		{
+			// Gilbert-Elliott model: 2% chance to enter a loss burst, 30% chance to leave it
+			isBadState = isBadState ? random.nextDouble() > 0.3 : random.nextDouble() < 0.02;
+			trace[i] = isBadState && random.nextDouble() < 0.5 ? -1 : 30 + ( int ) Math.abs( random.nextGaussian() * 25 );
+		}
+
+		JitterBuffer buffer = simulate( "bursty loss and jitter", trace, NO_PAUSE, 0 );
+
+		assertTrue( buffer.getFramesPlayed() + buffer.getFramesRecovered() > 0.9 * trace.length );
+	}
+
+	public void testTalkPauseIsNoLoss()
+	{
+		int[] trace = new int[1000];
+		Arrays.fill( trace, 40 );
+
+		JitterBuffer buffer = simulate( "2s talk pause", trace, 500, 100 );
+
+		assertEquals( 0, buffer.getFramesConcealed() );
+		assertEquals( 1000, buffer.getFramesPlayed() );
+		assertEquals( "Pause taken for jitter", 1, buffer.getTargetDelayFrames() );
+		assertTrue( buffer.getAverageDelay() <= FRAME_DURATION );
+	}
+
+	/**
+	 * Replays a trace. Every simulated frame period first delivers all packets that arrived by then and then plays one frame,
+	 * until all packets are delivered and the buffer is empty.
+	 * 
+	 * @param pauseAt Sequence number of the first packet after a talk pause, NO_PAUSE for none
+	 * @param pauseFrames Frames suppressed in the pause
+	 * @return The buffer, holding the statistics of the run
+	 */
+	private static JitterBuffer simulate( String name, final int[] trace, final int pauseAt, final int pauseFrames )
+	{
+		JitterBuffer buffer = new JitterBuffer( 64, 48000, 960, 16 );
+		ByteBuffer packet = ByteBuffer.allocateDirect( 16 );
+
+		Integer[] arrivalOrder = new Integer[trace.length];
+		for ( int i = 0; i < trace.length; i++ )
+		{
+			arrivalOrder[i] = i;
+		}
+		Arrays.sort( arrivalOrder, new Comparator<Integer>()
+		{
+			@Override
+			public int compare( Integer a, Integer b )
+			{
+				long difference = arrivalTime( trace, a, pauseAt, pauseFrames ) - arrivalTime( trace, b, pauseAt, pauseFrames );
+				return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+			}
+		} );
+
+		int delivered = 0;
+		for ( long now = 0; delivered < trace.length || buffer.getBufferedFrames() > 0; now += FRAME_DURATION )
+		{
+			while ( delivered < trace.length && arrivalTime( trace, arrivalOrder[delivered], pauseAt, pauseFrames ) <= now )
+			{
+				int sequence = arrivalOrder[delivered++];
+				if ( trace[sequence] >= 0 )
+				{
+					int timestamp = sendFrame( sequence, pauseAt, pauseFrames ) * 960;
+					buffer.put( ( FIRST_SEQUENCE + sequence ) & 0xFFFF, timestamp, sequence == pauseAt, packet, arrivalTime( trace, sequence, pauseAt, pauseFrames ) );
+				}
+			}
+			buffer.next( now );
+		}
+
+		Log.i( TAG, name + ": " + trace.length + " packets, " + buffer.getFramesPlayed() + " played, " + buffer.getFramesRecovered() + " recovered by FEC, "
+				+ buffer.getFramesConcealed() + " concealed (" + Math.round( 1000 * concealedFraction( buffer ) ) / 10.0 + "%), "
+				+ buffer.getPacketsLate() + " late, " + buffer.getPacketsDropped() + " dropped, added latency " + Math.round( buffer.getAverageDelay() )
+				+ "ms, final target delay " + buffer.getTargetDelay() + "ms" );
+
+		return buffer;
+	}
+
+	/**
+	 * @return Arrival time of a packet in milliseconds, Long.MIN_VALUE for lost packets so they are skipped right away
+	 */
+	private static long arrivalTime( int[] trace, int sequence, int pauseAt, int pauseFrames )
+	{
+		return trace[sequence] < 0 ? Long.MIN_VALUE : ( long ) sendFrame( sequence, pauseAt, pauseFrames ) * FRAME_DURATION + trace[sequence];
+	}
+
+	/**
+	 * @return Number of the frame period the packet is sent in, behind the pause for the packets after it
+	 */
+	private static int sendFrame( int sequence, int pauseAt, int pauseFrames )
+	{
+		return sequence >= pauseAt ? sequence + pauseFrames : sequence;
+	}
+
+	private static double concealedFraction( JitterBuffer buffer )
+	{
+		long frames = buffer.getFramesPlayed() + buffer.getFramesRecovered() + buffer.getFramesConcealed();
+		return frames == 0 ? 0 : ( double ) buffer.getFramesConcealed() / frames;
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.File;
+import java.util.Arrays;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Tests the level summary while recording, after saving and for an hour-long recording.
+ */
+public class LevelSummaryTest extends AndroidTestCase
+{
+	private static String		TAG			= "LevelSummaryTest";
+
+	private static final int	RATE		= 48000;
+	private static final int	FRAME_SIZE	= 960;	// 20ms
+
+	private File				file;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		this.file = new File( getContext().getCacheDir(), "levelSummaryTest" + LevelSummary.FILE_SUFFIX );
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		this.file.delete();
+		super.tearDown();
+	}
+
+	public void testLevelsWhileRecordingAndSaved() throws Exception
+	{
+		int frames = 1003;	// No multiple of FAN_OUT, the last groups are incomplete
+		LevelSummary summary = new LevelSummary( RATE, FRAME_SIZE );
+		short[] frame = new short[FRAME_SIZE];
+		for ( int i = 0; i < frames; i++ )
+		{
+			fill( frame, level( i ) );
+			summary.add( frame, 0, FRAME_SIZE );
+		}
+		assertEquals( frames, summary.getFrames() );
+		assertEquals( frames * 20, summary.getDuration() );
+
+		// One pixel per frame uses level 0 and gives the exact levels
+		short[] peaks = new short[frames + 10];
+		short[] rms = new short[frames + 10];
+		assertEquals( frames, summary.getLevels( 0, ( frames + 10 ) * 20, frames + 10, peaks, rms ) );
+		for ( int i = 0; i < frames; i++ )
+		{
+			assertEquals( "Peak of frame " + i, level( i ), peaks[i] );
+			assertEquals( "RMS of frame " + i, level( i ), rms[i] );
+		}
+		assertEquals( 0, peaks[frames] );
+
+		// Coarse pixels cover at least the frames of the pixel, the incomplete groups at the end included
+		int width = 7;
+		assertEquals( width, summary.getLevels( 0, frames * 20, width, peaks, rms ) );
+		for ( int pixel = 0; pixel < width; pixel++ )
+		{
+			int max = 0;
+			for ( int i = pixel * frames / width; i < ( pixel + 1 ) * frames / width; i++ )
+			{
+				max = Math.max( max, level( i ) );
+			}
+			assertTrue( "Pixel " + pixel + " peak " + peaks[pixel] + " below " + max, peaks[pixel] >= max );
+			assertTrue( rms[pixel] > 0 && rms[pixel] <= peaks[pixel] );
+		}
+		summary.getLevels( ( frames - 1 ) * 20, frames * 20, 1, peaks, rms );
+		assertEquals( level( frames - 1 ), peaks[0] );
+
+		// The saved summary answers every query the same way
+		summary.save( this.file );
+		LevelSummary opened = LevelSummary.open( this.file );
+		assertEquals( summary.getLevelCount(), opened.getLevelCount() );
+		short[] openedPeaks = new short[peaks.length];
+		short[] openedRms = new short[rms.length];
+		for ( int pixels = 1; pixels < 300; pixels += 37 )
+		{
+			summary.getLevels( 1234, 19000, pixels, peaks, rms );
+			opened.getLevels( 1234, 19000, pixels, openedPeaks, openedRms );
+			assertTrue( Arrays.equals( Arrays.copyOf( peaks, pixels ), Arrays.copyOf( openedPeaks, pixels ) ) );
+			assertTrue( Arrays.equals( Arrays.copyOf( rms, pixels ), Arrays.copyOf( openedRms, pixels ) ) );
+		}
+	}
+
+	public void testHourRendersInMilliseconds() throws Exception
+	{
+		int frames = 3600 * 50;
+		LevelSummary summary = new LevelSummary( RATE, FRAME_SIZE );
+		short[] frame = new short[FRAME_SIZE];
+		for ( int i = 0; i < frames; i++ )
+		{
+			fill( frame, level( i ) );
+			summary.add( frame, 0, FRAME_SIZE );
+		}
+		summary.save( this.file );
+		Log.d( TAG, "Summary of one hour: " + this.file.length() + " bytes in " + summary.getLevelCount() + " levels" );
+
+		short[] peaks = new short[1080];
+		short[] rms = new short[1080];
+		long best = Long.MAX_VALUE;
+		for ( int run = 0; run < 5; run++ )
+		{
+			long start = System.nanoTime();
+			LevelSummary opened = LevelSummary.open( this.file );
+			assertEquals( peaks.length, opened.getLevels( 0, opened.getDuration(), peaks.length, peaks, rms ) );
+			best = Math.min( best, System.nanoTime() - start );
+		}
+		Log.d( TAG, "Opened and rendered one hour at " + peaks.length + " pixels in " + best / 1000 + "us" );
+		assertTrue( "Rendering took " + best / 1000 + "us", best < 20000000 );
+		for ( int pixel = 0; pixel < peaks.length; pixel++ )
+		{
+			assertTrue( peaks[pixel] > 0 );
+		}
+	}
+
+	private static int level( int frame )
+	{
+		return 1 + frame * 37 % 30000;
+	}
+
+	/**
+	 * Fills a frame with a square wave of the given level, so peak and RMS are both the level.
+	 */
+	private static void fill( short[] frame, int level )
+	{
+		for ( int i = 0; i < frame.length; i++ )
+		{
+			frame[i] = ( short ) ( ( i & 1 ) == 0 ? level : -level );
+		}
+	}
+}
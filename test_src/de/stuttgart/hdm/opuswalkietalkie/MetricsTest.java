@@ -0,0 +1,119 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.test.AndroidTestCase;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Tests the lock-free histogram and the periodic export of the metrics, no native codec is needed.
+ */
+public class MetricsTest extends AndroidTestCase
+{
+	public void testPercentilesWithinFactorOfTwo()
+	{
+		Histogram histogram = new Histogram();
+		for ( int value = 1; value <= 1000; value++ )
+		{
+			histogram.record( value );
+		}
+
+		assertEquals( 1000, histogram.getCount() );
+		assertEquals( 1000, histogram.getMax() );
+		assertEquals( 500.5, histogram.getMean(), 0.001 );
+		long median = histogram.getPercentile( 0.5 );
+		assertTrue( "Median " + median, median >= 500 && median < 1000 );
+		assertEquals( 1000, histogram.getPercentile( 0.99 ) );	// Capped at the maximum
+		assertEquals( 0, Histogram.bucketOf( 0 ) );
+		assertEquals( 10, Histogram.bucketOf( 1024 ) );
+		assertEquals( 2047, Histogram.bucketLimit( 10 ) );
+	}
+
+	public void testConcurrentRecordingLosesNothing() throws Exception
+	{
+		final Histogram histogram = new Histogram();
+		Thread[] threads = new Thread[4];
+		for ( int t = 0; t < threads.length; t++ )
+		{
+			final int offset = t;
+			threads[t] = new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for ( int i = 0; i < 100000; i++ )
+					{
+						histogram.record( i % 1000 + offset );
+					}
+				}
+			} );
+			threads[t].start();
+		}
+		for ( Thread thread : threads )
+		{
+			thread.join();
+		}
+
+		Histogram copy = new Histogram( histogram );
+		assertEquals( 400000, copy.getCount() );
+		assertEquals( 1002, copy.getMax() );
+		long bucketTotal = 0;
+		for ( int i = 0; i < Histogram.BUCKETS; i++ )
+		{
+			bucketTotal += copy.getBucketCount( i );
+		}
+		assertEquals( 400000, bucketTotal );
+	}
+
+	public void testExportDeliversSnapshots() throws Exception
+	{
+		Metrics metrics = Metrics.get();
+		metrics.reset();
+		metrics.captureOverrun();
+		metrics.framesEncoded( 2, 400000, 80, 30 );
+
+		final CountDownLatch exported = new CountDownLatch( 2 );
+		final Metrics.Snapshot[] last = new Metrics.Snapshot[1];
+		metrics.startExport( 10, new Metrics.Exporter()
+		{
+			@Override
+			public void export( Metrics.Snapshot snapshot )
+			{
+				last[0] = snapshot;
+				exported.countDown();
+			}
+		} );
+		assertTrue( exported.await( 5, TimeUnit.SECONDS ) );
+		metrics.stopExport();
+
+		assertEquals( 1, last[0].getCaptureOverruns() );
+		assertEquals( 2, last[0].getEncodeTime().getCount() );
+		assertEquals( 200000, last[0].getEncodeTime().getMax() );
+		assertEquals( 30, last[0].getPacketBytesEncoded() );
+		metrics.reset();
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import android.test.AndroidTestCase;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Tests gain, saturation and automatic attenuation of the mixer, no native codec is needed.
+ */
+public class MixerTest extends AndroidTestCase
+{
+	private static final int	FRAME_SAMPLES	= 960;
+
+	public void testSingleInputPassesUnchanged()
+	{
+		Mixer mixer = new Mixer( 4, FRAME_SAMPLES );
+		short[] in = sine( 20000, 440 );
+		short[] out = new short[FRAME_SAMPLES];
+
+		mixer.add( 2, in, FRAME_SAMPLES );
+		assertEquals( 1, mixer.mix( out ) );
+		for ( int i = 0; i < FRAME_SAMPLES; i++ )
+		{
+			assertEquals( in[i], out[i] );
+		}
+
+		assertEquals( 0, mixer.mix( out ) );	// Nothing added: silence
+		for ( int i = 0; i < FRAME_SAMPLES; i++ )
+		{
+			assertEquals( 0, out[i] );
+		}
+	}
+
+	public void testLoudTalkersAreAttenuatedNotWrapped()
+	{
+		Mixer mixer = new Mixer( 8, FRAME_SAMPLES );
+		short[] in = sine( 30000, 440 );
+		short[] out = new short[FRAME_SAMPLES];
+
+		for ( int frame = 0; frame < 10; frame++ )
+		{
+			for ( int input = 0; input < 8; input++ )
+			{
+				mixer.add( input, in, FRAME_SAMPLES );
+			}
+			mixer.mix( out );
+			for ( int i = 1; i < FRAME_SAMPLES; i++ )
+			{
+				// A wrapped sum would jump across the range between neighbouring samples of a 440Hz sine
+				assertTrue( "Wrapped at " + i, Math.abs( out[i] - out[i - 1] ) < 16384 );
+			}
+		}
+		assertEquals( 32767f / ( 8 * 30000 ), mixer.getAttenuation(), 0.001 );
+
+		int peak = 0;
+		for ( int i = 0; i < FRAME_SAMPLES; i++ )
+		{
+			peak = Math.max( peak, Math.abs( out[i] ) );
+		}
+		assertTrue( "Peak " + peak, peak > 32000 );		// Attenuated to just fit
+
+		// The attenuation is released once the talkers are quieter
+		for ( int frame = 0; frame < 100; frame++ )
+		{
+			mixer.add( 0, in, FRAME_SAMPLES );
+			mixer.mix( out );
+		}
+		assertTrue( mixer.getAttenuation() > 0.99f );
+		assertTrue( mixer.getFramesAttenuated() > 0 );
+	}
+
+	public void testGain()
+	{
+		Mixer mixer = new Mixer( 2, FRAME_SAMPLES );
+		short[] in = sine( 10000, 440 );
+		short[] out = new short[FRAME_SAMPLES];
+
+		mixer.setGain( 0, 0.5f );
+		mixer.setGain( 1, 0f );
+		mixer.add( 0, in, FRAME_SAMPLES );
+		mixer.add( 1, in, FRAME_SAMPLES );
+		mixer.mix( out );
+		for ( int i = 0; i < FRAME_SAMPLES; i++ )
+		{
+			assertEquals( in[i] >> 1, out[i] );
+		}
+
+		try
+		{
+			mixer.setGain( 0, Mixer.MAX_GAIN + 1 );
+			fail( "Gain above the maximum accepted" );
+		}
+		catch ( IllegalArgumentException e )
+		{
+		}
+	}
+
+	private static short[] sine( int amplitude, int frequency )
+	{
+		short[] frame = new short[FRAME_SAMPLES];
+		for ( int i = 0; i < FRAME_SAMPLES; i++ )
+		{
+			frame[i] = ( short ) ( amplitude * Math.sin( 2 * Math.PI * frequency * i / 48000.0 ) );
+		}
+		return frame;
+	}
+}
@@ -0,0 +1,297 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Tests the Ogg Opus writer and the positional and mapped readers with synthetic 20ms packets that carry their own index,
+ *	so no native codec is needed.
+ */
+public class OggOpusTest extends AndroidTestCase
+{
+	private static String		TAG			= "OggOpusTest";
+
+	private static final int	PRE_SKIP	= 312;
+	private static final int	FRAME_SIZE	= 960;	// 20ms at 48kHz, the duration encoded in the TOC byte below
+	private static final byte	TOC			= ( byte ) 0xF8;	// CELT fullband 20ms, one frame
+
+	private File				file;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		this.file = new File( getContext().getCacheDir(), "test.opus" );
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		this.file.delete();
+		super.tearDown();
+	}
+
+	public void testRoundTrip() throws Exception
+	{
+		int packets = 5000;
+		writePackets( packets, 700 );
+
+		OggOpusReader reader = new OggOpusReader( this.file );
+		assertEquals( 1, reader.getNumberOfChannels() );
+		assertEquals( PRE_SKIP, reader.getPreSkip() );
+		assertEquals( 8000, reader.getInputSampleRate() );
+		assertEquals( ( packets * FRAME_SIZE - PRE_SKIP ) / 48, reader.getDuration() );
+
+		byte[] buffer = new byte[OpusEncoder.MAX_PACKET_SIZE];
+		try
+		{
+			reader.read( buffer, 0, 1 );
+			fail( "Packet read into a buffer of one byte" );
+		}
+		catch ( IOException e )
+		{
+			assertEquals( 0, reader.getPosition() );	// The packet stays the next one
+		}
+		for ( int i = 0; i < packets; i++ )
+		{
+			int length = reader.read( buffer, 0, buffer.length );
+			assertEquals( "Length of packet " + i, packetLength( i, 700 ), length );
+			assertEquals( i, packetIndex( buffer ) );
+			assertEquals( buffer[length - 1], ( byte ) i );
+		}
+		assertEquals( -1, reader.read( buffer, 0, buffer.length ) );
+		assertEquals( reader.getDuration(), reader.getPosition() );
+		reader.close();
+	}
+
+	/**
+	 * Seeks to random points of a one hour recording and checks where reading continues and how many pages were read.
+	 */
+	public void testSeekIsLogarithmic() throws Exception
+	{
+		int packets = 3 * 60 * 50 * 20;	// 1 hour
+		writePackets( packets, 60 );
+
+		OggOpusReader reader = new OggOpusReader( this.file );
+		byte[] buffer = new byte[OpusEncoder.MAX_PACKET_SIZE];
+		Random random = new Random( 1 );
+		long maxPageReads = 0;
+		for ( int i = 0; i < 200; i++ )
+		{
+			long millis = i == 0 ? 0 : ( long ) ( random.nextDouble() * reader.getDuration() );
+			long pageReads = reader.getPageReads();
+			long discard = reader.seek( millis );
+			assertTrue( reader.read( buffer, 0, buffer.length ) > 0 );
+			maxPageReads = Math.max( maxPageReads, reader.getPageReads() - pageReads );
+
+			long firstSample = PRE_SKIP + millis * 48 - discard;	// Granule position of the start of the packet read after the seek
+			assertEquals( "Seek to " + millis + "ms", firstSample / FRAME_SIZE, packetIndex( buffer ) );
+			assertTrue( "Seek to " + millis + "ms started too late", discard >= Math.min( 3840, PRE_SKIP + millis * 48 ) );
+			assertTrue( "Seek to " + millis + "ms started too early", discard < 3840 + 48000 );
+		}
+		reader.close();
+
+		Log.i( TAG, "Seeking in " + this.file.length() / 1024 + "kB: at most " + maxPageReads + " page reads" );
+		assertTrue( "Seeking read " + maxPageReads + " pages", maxPageReads < 100 );
+	}
+
+	/**
+	 * A page with a broken CRC is skipped and reading continues with the next page.
+	 */
+	public void testDamagedPageIsSkipped() throws Exception
+	{
+		int packets = 500;
+		writePackets( packets, 100 );
+
+		RandomAccessFile damaged = new RandomAccessFile( this.file, "rw" );
+		damaged.seek( damaged.length() / 2 );
+		damaged.write( damaged.read() ^ 0xFF );
+		damaged.close();
+
+		OggOpusReader reader = new OggOpusReader( this.file );
+		byte[] buffer = new byte[OpusEncoder.MAX_PACKET_SIZE];
+		int packetsRead = 0;
+		int lastIndex = -1;
+		while ( reader.read( buffer, 0, buffer.length ) > 0 )
+		{
+			assertTrue( packetIndex( buffer ) > lastIndex );
+			lastIndex = packetIndex( buffer );
+			packetsRead++;
+		}
+		reader.close();
+
+		assertEquals( packets - 1, lastIndex );
+		assertTrue( "Nothing skipped", packetsRead < packets );
+		assertTrue( "More than one page lost", packetsRead > packets - 20 );
+	}
+
+	/**
+	 * Several readers of one mapping read the whole file concurrently, and return the packets of the positional reader.
+	 * The time of both readers is logged.
+	 */
+	public void testMappedReadersShareFile() throws Exception
+	{
+		final int packets = 3 * 60 * 50 * 10;	// 30 minutes
+		writePackets( packets, 60 );
+
+		final OggOpusReader mappedReader = OggOpusReader.map( this.file );
+		assertTrue( mappedReader.isMapped() );
+		assertEquals( ( packets * FRAME_SIZE - PRE_SKIP ) / 48, mappedReader.getDuration() );
+		int packetsRead = 0;
+		ByteBuffer packet;
+		while ( ( packet = mappedReader.readPacket() ) != null )
+		{
+			assertTrue( packet.isDirect() );
+			assertEquals( packetIndex( packet ), packetsRead++ );
+		}
+		assertEquals( packets, packetsRead );
+
+		OggOpusReader fileReader = new OggOpusReader( this.file );
+		long fileTime = Long.MAX_VALUE;
+		long mappedTime = Long.MAX_VALUE;
+		for ( int i = 0; i < 3; i++ )
+		{
+			fileTime = Math.min( fileTime, timeReading( fileReader ) );
+			mappedTime = Math.min( mappedTime, timeReading( mappedReader ) );
+		}
+		Log.i( TAG, "Reading " + packets + " packets: " + fileTime / 1000000 + "ms with positional reads, " + mappedTime / 1000000 + "ms mapped" );
+
+		// Timing depends on the device and its load, only the packets are compared
+		fileReader.rewind();
+		mappedReader.rewind();
+		ByteBuffer filePacket;
+		while ( ( filePacket = fileReader.readPacket() ) != null )
+		{
+			assertEquals( filePacket, mappedReader.readPacket() );
+		}
+		assertNull( mappedReader.readPacket() );
+		fileReader.close();
+
+		final AtomicInteger failures = new AtomicInteger();
+		Thread[] threads = new Thread[4];
+		for ( int t = 0; t < threads.length; t++ )
+		{
+			final OggOpusReader reader = mappedReader.duplicate();
+			final int seekTarget = t * 60000;	// Every reader starts at another minute
+			threads[t] = new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						long discard = reader.seek( seekTarget );
+						int index = ( int ) ( ( PRE_SKIP + seekTarget * 48L - discard ) / FRAME_SIZE );
+						ByteBuffer packet;
+						while ( ( packet = reader.readPacket() ) != null )
+						{
+							if ( packetIndex( packet ) != index++ )
+							{
+								failures.incrementAndGet();
+							}
+						}
+						if ( index != packets )
+						{
+							failures.incrementAndGet();
+						}
+					}
+					catch ( IOException e )
+					{
+						failures.incrementAndGet();
+					}
+				}
+			} );
+			threads[t].start();
+		}
+		for ( Thread thread : threads )
+		{
+			thread.join();
+		}
+		mappedReader.close();
+		assertEquals( 0, failures.get() );
+	}
+
+	/**
+	 * @return Nanoseconds to read all packets from the start
+	 */
+	private static long timeReading( OggOpusReader reader ) throws IOException
+	{
+		long start = System.nanoTime();
+		reader.rewind();
+		while ( reader.readPacket() != null )
+		{
+		}
+		return System.nanoTime() - start;
+	}
+
+	private void writePackets( int packets, int maxLength ) throws IOException
+	{
+		OggOpusWriter writer = new OggOpusWriter( new BufferedOutputStream( new FileOutputStream( this.file ) ), 8000, 1 );
+		writer.setPreSkip( PRE_SKIP );
+		byte[] packet = new byte[maxLength];
+		for ( int i = 0; i < packets; i++ )
+		{
+			int length = packetLength( i, maxLength );
+			packet[0] = TOC;
+			packet[1] = ( byte ) ( i >> 24 );
+			packet[2] = ( byte ) ( i >> 16 );
+			packet[3] = ( byte ) ( i >> 8 );
+			packet[4] = ( byte ) i;
+			packet[length - 1] = ( byte ) i;
+			writer.write( packet, 0, length );
+		}
+		assertEquals( ( long ) packets * FRAME_SIZE, writer.getGranulePosition() );
+		writer.close();
+	}
+
+	/**
+	 * @return Length of packet i, varying so some packets span several segments
+	 */
+	private static int packetLength( int i, int maxLength )
+	{
+		return 6 + ( i * 37 ) % ( maxLength - 6 );
+	}
+
+	private static int packetIndex( byte[] packet )
+	{
+		return ( packet[1] & 0xFF ) << 24 | ( packet[2] & 0xFF ) << 16 | ( packet[3] & 0xFF ) << 8 | packet[4] & 0xFF;
+	}
+
+	private static int packetIndex( ByteBuffer packet )
+	{
+		return packet.getInt( packet.position() + 1 );
+	}
+}
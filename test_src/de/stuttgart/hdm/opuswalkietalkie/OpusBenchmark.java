@@ -0,0 +1,376 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	On-device benchmarks for the codec classes. Results are written to the log with tag "OpusBenchmark".
+ */
+public class OpusBenchmark extends AndroidTestCase
+{
+	private static String	TAG				= "OpusBenchmark";
+
+	//Audio config
+	private int				frequency		= 48000;
+	private int				numberOfChannels	= 1;
+	private int				frameSize		= 960;	// 20ms at 48kHz
+
+	/**
+	 * Measures encoded and decoded frames per second of the batch API at batch sizes of 1, 8, 64 and 512 frames.
+	 * Every batch size codes the same 2048 frames, so the results only differ in the number of JNI crossings.
+	 */
+	public void testBatchSizes() throws Exception
+	{
+		final int totalFrames = 2048;
+		short[] pcm = new short[totalFrames * frameSize * numberOfChannels];
+		for ( int i = 0; i < pcm.length; i++ )
+		{
+			pcm[i] = ( short ) ( 8000 * Math.sin( 2 * Math.PI * 440 * i / ( double ) frequency ) );
+		}
+
+		int[] batchSizes = { 1, 8, 64, 512 };
+		for ( int batchSize : batchSizes )
+		{
+			OpusEncoder encoder = new OpusEncoder( new ByteArrayOutputStream(), frequency, numberOfChannels, frameSize );
+			OpusDecoder decoder = new OpusDecoder( new ByteArrayInputStream( new byte[0] ), frequency, numberOfChannels, frameSize );
+
+			short[] batchIn = new short[batchSize * frameSize * numberOfChannels];
+			short[] batchOut = new short[batchSize * frameSize * numberOfChannels];
+			byte[] packets = new byte[batchSize * OpusEncoder.MAX_PACKET_SIZE];
+			int[] packetLengths = new int[batchSize];
+
+			long encodeTime = 0;
+			long decodeTime = 0;
+			for ( int frame = 0; frame < totalFrames; frame += batchSize )
+			{
+				System.arraycopy( pcm, frame * frameSize * numberOfChannels, batchIn, 0, batchIn.length );
+
+				long start = System.nanoTime();
+				encoder.encodeFrames( batchIn, batchSize, packets, packetLengths );
+				long encoded = System.nanoTime();
+				decoder.decodeFrames( packets, packetLengths, batchSize, batchOut );
+				decodeTime += System.nanoTime() - encoded;
+				encodeTime += encoded - start;
+			}
+
+			decoder.close();
+			encoder.close();
+
+			Log.i( TAG, "Batch size " + batchSize + ": " + ( long ) ( totalFrames * 1e9 / encodeTime ) + " frames/s encoded, "
+					+ ( long ) ( totalFrames * 1e9 / decodeTime ) + " frames/s decoded" );
+		}
+	}
+
+	/**
+	 * Transcodes a 10 minute WAV file with 1, 2, 4, ... threads up to the number of cores and logs the speedup.
+	 * Every run has to produce the same number of frames.
+	 */
+	public void testTranscoderScaling() throws Exception
+	{
+		File wavFile = new File( getContext().getCacheDir(), "transcoder.wav" );
+		writeSine( wavFile, 30000 );
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		long singleThreaded = 0;
+		try
+		{
+			for ( int threads = 1; threads <= cores; threads *= 2 )
+			{
+				Transcoder transcoder = new Transcoder( frequency, numberOfChannels, frameSize, threads );
+				long frames = transcoder.transcode( wavFile, new NullOutputStream() );
+				assertEquals( 30000, frames );
+
+				if ( threads == 1 )
+				{
+					singleThreaded = transcoder.getElapsedTime();
+				}
+				Log.i( TAG, "Transcoder with " + threads + " threads: " + transcoder.getElapsedTime() + "ms, " + ( long ) transcoder.getRealtimeFactor()
+						+ "x realtime, speedup " + ( double ) singleThreaded / Math.max( 1, transcoder.getElapsedTime() ) );
+			}
+		}
+		finally
+		{
+			wavFile.delete();
+		}
+	}
+
+	/**
+	 * Measures the cost of one 20ms playout frame for 2, 8, 32 and 128 talkers, once for mixing alone and once for
+	 * decoding with one decoder per talker. The mixing cost tells how many talkers a relay node can mix, both together
+	 * how many talkers a device can play.
+	 */
+	public void testMixingCost() throws Exception
+	{
+		final int frames = 50;	// One second
+		int frameSamples = frameSize * numberOfChannels;
+		short[] pcm = new short[frames * frameSamples];
+		for ( int i = 0; i < pcm.length; i++ )
+		{
+			pcm[i] = ( short ) ( 8000 * Math.sin( 2 * Math.PI * 440 * ( i / numberOfChannels ) / ( double ) frequency ) );
+		}
+		OpusEncoder encoder = new OpusEncoder( new ByteArrayOutputStream(), frequency, numberOfChannels, frameSize );
+		byte[] packets = new byte[frames * OpusEncoder.MAX_PACKET_SIZE];
+		int[] packetLengths = new int[frames];
+		int bytes = encoder.encodeFrames( pcm, frames, packets, packetLengths );
+		encoder.close();
+		ByteBuffer encoded = ByteBuffer.allocateDirect( bytes );
+		encoded.put( packets, 0, bytes );
+
+		ShortBuffer decoded = ByteBuffer.allocateDirect( frameSamples * ( Short.SIZE / Byte.SIZE ) ).order( ByteOrder.nativeOrder() ).asShortBuffer();
+		short[] out = new short[frameSamples];
+		int[] talkerCounts = { 2, 8, 32, 128 };
+		for ( int talkers : talkerCounts )
+		{
+			Mixer mixer = new Mixer( talkers, frameSamples );
+			OpusDecoder[] decoders = new OpusDecoder[talkers];
+			short[][] talkerFrames = new short[talkers][frameSamples];
+			for ( int talker = 0; talker < talkers; talker++ )
+			{
+				decoders[talker] = new OpusDecoder( null, frequency, numberOfChannels, frameSize );
+			}
+
+			long decodeTime = 0;
+			long mixTime = 0;
+			int packetOffset = 0;
+			for ( int frame = 0; frame < frames; frame++ )
+			{
+				long start = System.nanoTime();
+				for ( int talker = 0; talker < talkers; talker++ )
+				{
+					ByteBuffer packet = encoded.duplicate();
+					packet.limit( packetOffset + packetLengths[frame] ).position( packetOffset );
+					decoded.clear();
+					decoders[talker].decode( packet, decoded );
+					decoded.flip();
+					decoded.get( talkerFrames[talker] );
+				}
+				long mixStart = System.nanoTime();
+				for ( int talker = 0; talker < talkers; talker++ )
+				{
+					mixer.add( talker, talkerFrames[talker], frameSamples );
+				}
+				mixer.mix( out );
+				mixTime += System.nanoTime() - mixStart;
+				decodeTime += mixStart - start;
+				packetOffset += packetLengths[frame];
+			}
+
+			for ( OpusDecoder decoder : decoders )
+			{
+				decoder.close();
+			}
+
+			long frameBudget = frameSize * 1000000000L / frequency;
+			Log.i( TAG, talkers + " talkers: mixing " + mixTime / frames / 1000 + "us, decoding " + decodeTime / frames / 1000 + "us per frame - "
+					+ talkers * frameBudget * frames / Math.max( 1, mixTime ) + " talkers mixable, "
+					+ talkers * frameBudget * frames / Math.max( 1, mixTime + decodeTime ) + " playable in realtime on one core" );
+		}
+	}
+
+	/**
+	 * Measures the cost of one 20ms frame of 2, 4 and 8 channels, once with one multistream encoder coding all channels
+	 * in one native call and once with one mono encoder per channel. The multistream packets have to decode to the
+	 * full frame of all channels.
+	 */
+	public void testMultistreamCost() throws Exception
+	{
+		final int frames = 250;	// 5 seconds
+		int[] channelCounts = { 2, 4, 8 };
+		for ( int channels : channelCounts )
+		{
+			int frameSamples = frameSize * channels;
+			ShortBuffer pcm = ByteBuffer.allocateDirect( frameSamples * ( Short.SIZE / Byte.SIZE ) ).order( ByteOrder.nativeOrder() ).asShortBuffer();
+			ShortBuffer[] channelPcm = new ShortBuffer[channels];
+			ByteBuffer packet = ByteBuffer.allocateDirect( channels * OpusEncoder.MAX_PACKET_SIZE );
+			ChannelMapping mapping = ChannelMapping.independent( channels );
+			OpusEncoder multistreamEncoder = new OpusEncoder( null, frequency, mapping, frameSize );
+			OpusDecoder multistreamDecoder = new OpusDecoder( null, frequency, mapping, frameSize );
+			OpusEncoder[] monoEncoders = new OpusEncoder[channels];
+			for ( int channel = 0; channel < channels; channel++ )
+			{
+				channelPcm[channel] = ByteBuffer.allocateDirect( frameSize * ( Short.SIZE / Byte.SIZE ) ).order( ByteOrder.nativeOrder() ).asShortBuffer();
+				monoEncoders[channel] = new OpusEncoder( null, frequency, 1, frameSize );
+			}
+			ShortBuffer decoded = ByteBuffer.allocateDirect( frameSamples * ( Short.SIZE / Byte.SIZE ) ).order( ByteOrder.nativeOrder() ).asShortBuffer();
+
+			long multistreamTime = 0;
+			long monoTime = 0;
+			int sample = 0;
+			for ( int frame = 0; frame < frames; frame++ )
+			{
+				pcm.clear();
+				for ( int i = 0; i < frameSize; i++, sample++ )
+				{
+					for ( int channel = 0; channel < channels; channel++ )
+					{
+						pcm.put( ( short ) ( 8000 * Math.sin( 2 * Math.PI * 220 * ( channel + 1 ) * sample / ( double ) frequency ) ) );
+					}
+				}
+
+				long start = System.nanoTime();
+				pcm.clear();
+				packet.clear();
+				multistreamEncoder.encode( pcm, packet );
+				long multistreamEnd = System.nanoTime();
+				for ( int channel = 0; channel < channels; channel++ )
+				{
+					ShortBuffer mono = channelPcm[channel];
+					mono.clear();
+					for ( int i = 0; i < frameSize; i++ )
+					{
+						mono.put( i, pcm.get( i * channels + channel ) );
+					}
+					ByteBuffer monoPacket = packet.duplicate();
+					monoPacket.clear();
+					monoEncoders[channel].encode( mono, monoPacket );
+				}
+				monoTime += System.nanoTime() - multistreamEnd;
+				multistreamTime += multistreamEnd - start;
+			}
+
+			pcm.clear();
+			packet.clear();
+			multistreamEncoder.encode( pcm, packet );
+			packet.flip();
+			assertEquals( frameSize, multistreamDecoder.decode( packet, decoded ) );
+			assertEquals( frameSamples, decoded.position() );
+
+			multistreamDecoder.close();
+			multistreamEncoder.close();
+			for ( OpusEncoder encoder : monoEncoders )
+			{
+				encoder.close();
+			}
+
+			Log.i( TAG, channels + " channels: multistream " + multistreamTime / frames / 1000 + "us, " + channels + " mono encoders "
+					+ monoTime / frames / 1000 + "us per frame" );
+		}
+	}
+
+	/**
+	 * Records one minute into Ogg Opus files the way Recording does, once with the 20ms frames of a live stream and
+	 * once in archive mode with 60ms frames merged into 120ms packets, and logs the size and encoding time of both.
+	 */
+	public void testFrameDurations() throws Exception
+	{
+		final int seconds = 60;
+		short[] pcm = new short[seconds * frequency * numberOfChannels];
+		for ( int i = 0; i < pcm.length; i++ )
+		{
+			double envelope = Math.max( 0, Math.sin( 2 * Math.PI * 3 * i / ( double ) frequency ) );	// Syllables with pauses
+			pcm[i] = ( short ) ( 8000 * envelope * Math.sin( 2 * Math.PI * 220 * ( i / numberOfChannels ) / ( double ) frequency ) );
+		}
+
+		int[] latencyModes = { FrameDuration.LIVE, FrameDuration.ARCHIVE };
+		long liveBytes = 0;
+		long liveTime = 0;
+		for ( int latencyMode : latencyModes )
+		{
+			int modeFrameSize = FrameDuration.getFrameSize( latencyMode, frequency );
+			int framesPerPacket = FrameDuration.getFramesPerPacket( latencyMode );
+			ByteArrayOutputStream file = new ByteArrayOutputStream();
+			OggOpusWriter writer = new OggOpusWriter( file, frequency, numberOfChannels );
+			OpusRepacketizer repacketizer = framesPerPacket > 1 ? new OpusRepacketizer( writer, framesPerPacket * modeFrameSize * 48000 / frequency ) : null;
+			OpusEncoder encoder = new OpusEncoder( repacketizer != null ? repacketizer : writer, frequency, numberOfChannels, modeFrameSize );
+
+			short[] frame = new short[modeFrameSize * numberOfChannels];
+			long start = System.nanoTime();
+			for ( int offset = 0; offset + frame.length <= pcm.length; offset += frame.length )
+			{
+				System.arraycopy( pcm, offset, frame, 0, frame.length );
+				encoder.write( frame );
+			}
+			encoder.close();
+			long time = System.nanoTime() - start;
+
+			if ( latencyMode == FrameDuration.LIVE )
+			{
+				liveBytes = file.size();
+				liveTime = time;
+			}
+			else
+			{
+				assertEquals( repacketizer.getPacketsIn(), framesPerPacket * repacketizer.getPacketsOut() );
+			}
+			Log.i( TAG, modeFrameSize * 1000 / frequency + "ms frames, " + framesPerPacket + " per packet: " + file.size() + " bytes, "
+					+ time / 1000000 + "ms - " + ( 100 - 100 * file.size() / liveBytes ) + "% smaller, "
+					+ ( 100 - 100 * time / liveTime ) + "% less time than 20ms frames"
+					+ ( repacketizer != null ? " - " + repacketizer : "" ) );
+		}
+	}
+
+	/**
+	 * Writes frames of a 440Hz sine as raw PCM in native byte order, the format of Recording.
+	 */
+	private void writeSine( File file, int frames ) throws IOException
+	{
+		short[] frame = new short[frameSize * numberOfChannels];
+		WavWriter writer = new WavWriter( new FileOutputStream( file ).getChannel(), frequency, numberOfChannels );
+		try
+		{
+			int sample = 0;
+			for ( int i = 0; i < frames; i++ )
+			{
+				for ( int j = 0; j < frame.length; j++ )
+				{
+					frame[j] = ( short ) ( 8000 * Math.sin( 2 * Math.PI * 440 * ( sample++ / numberOfChannels ) / ( double ) frequency ) );
+				}
+				writer.write( frame, 0, frame.length );
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	/**
+	 * Discards all packets, so only encoding is measured.
+	 */
+	private static class NullOutputStream extends OutputStream
+	{
+		@Override
+		public void write( int oneByte )
+		{
+		}
+
+		@Override
+		public void write( byte[] buffer, int offset, int count )
+		{
+		}
+	}
+}
@@ -29,10 +29,24 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import android.media.AudioFormat;
+import android.os.Debug;
 import android.os.Environment;
 import android.test.AndroidTestCase;
+import android.util.Log;
 
 /**
  * @author manuelbeuttler
@@ -112,4 +126,321 @@ public class OpusTest extends AndroidTestCase
 			e.printStackTrace();
 		}
 	}
+
+	/**
+	 * Runs one independent encode/decode stream per thread and checks that every stream produces
+	 * exactly the packets and samples of a single-threaded reference run. Also logs the aggregate
+	 * throughput for one thread and for one thread per core.
+	 */
+	public void testConcurrentStreams() throws Exception
+	{
+		final int streams = 16;
+		final int frames = 250; // 5 seconds of 20ms frames per stream
+
+		List<List<byte[]>> referencePackets = new ArrayList<List<byte[]>>();
+		List<short[]> referencePcm = new ArrayList<short[]>();
+		for ( int i = 0; i < streams; i++ )
+		{
+			List<byte[]> packets = encodeStream( i, frames );
+			referencePackets.add( packets );
+			referencePcm.add( decodeStream( packets ) );
+		}
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		double singleThreaded = runStreams( 1, streams, frames, referencePackets, referencePcm );
+		double multiThreaded = runStreams( cores, streams, frames, referencePackets, referencePcm );
+
+		Log.i( "OpusTest", "Frames/s with 1 thread: " + singleThreaded + ", with " + cores + " threads: " + multiThreaded );
+		if ( cores > 1 )
+		{
+			assertTrue( "Throughput did not grow with thread count", multiThreaded > singleThreaded );
+		}
+	}
+
+	/**
+	 * Encodes and decodes through the direct buffer API and checks with the VM allocation counter
+	 * that the steady-state loop does not allocate any Java objects.
+	 */
+	public void testDirectBufferPathDoesNotAllocate() throws Exception
+	{
+		final int frameSize = 960;
+		OpusEncoder encoder = new OpusEncoder( new PacketOutputStream(), 48000, 1, frameSize );
+		OpusDecoder decoder = new OpusDecoder( new PacketInputStream( new ArrayList<byte[]>() ), 48000, 1, frameSize );
+
+		ShortBuffer pcmIn = ByteBuffer.allocateDirect( 2 * frameSize ).order( ByteOrder.nativeOrder() ).asShortBuffer();
+		ShortBuffer pcmOut = ByteBuffer.allocateDirect( 2 * frameSize ).order( ByteOrder.nativeOrder() ).asShortBuffer();
+		ByteBuffer packet = ByteBuffer.allocateDirect( OpusEncoder.MAX_PACKET_SIZE );
+		for ( int i = 0; i < frameSize; i++ )
+		{
+			pcmIn.put( i, ( short ) ( 8000 * Math.sin( 2 * Math.PI * 440 * i / 48000.0 ) ) );
+		}
+
+		// Warm up, so that lazily initialized VM and library state is not counted
+		codeFrames( encoder, decoder, pcmIn, pcmOut, packet, 50 );
+
+		Debug.startAllocCounting();
+		Debug.resetThreadAllocCount();
+		int samples = codeFrames( encoder, decoder, pcmIn, pcmOut, packet, 500 );
+		int allocations = Debug.getThreadAllocCount();
+		Debug.stopAllocCounting();
+
+		encoder.close();
+		decoder.close();
+
+		assertEquals( 500 * frameSize, samples );
+		assertEquals( "Allocations in the direct buffer encode/decode loop", 0, allocations );
+	}
+
+	/**
+	 * Encodes and decodes the same frame several times through the direct buffer API.
+	 * 
+	 * @return Total number of decoded samples
+	 */
+	private static int codeFrames( OpusEncoder encoder, OpusDecoder decoder, ShortBuffer pcmIn, ShortBuffer pcmOut, ByteBuffer packet, int frames ) throws IOException
+	{
+		int samples = 0;
+		for ( int frame = 0; frame < frames; frame++ )
+		{
+			pcmIn.clear();
+			packet.clear();
+			encoder.encode( pcmIn, packet );
+
+			packet.flip();
+			pcmOut.clear();
+			samples += decoder.decode( packet, pcmOut );
+		}
+		return samples;
+	}
+
+	/**
+	 * Checks that the batch API produces the same packets and samples as encoding and decoding frame by frame.
+	 */
+	public void testBatchMatchesSingleFrames() throws Exception
+	{
+		final int frames = 64;
+		List<byte[]> expectedPackets = encodeStream( 0, frames );
+		short[] expectedPcm = decodeStream( expectedPackets );
+
+		short[] pcm = new short[frames * 960];
+		for ( int i = 0; i < pcm.length; i++ )
+		{
+			pcm[i] = ( short ) ( 8000 * Math.sin( 2 * Math.PI * 200 * i / 48000.0 ) );
+		}
+
+		OpusEncoder encoder = new OpusEncoder( new PacketOutputStream(), 48000, 1, 960 );
+		byte[] packets = new byte[frames * OpusEncoder.MAX_PACKET_SIZE];
+		int[] packetLengths = new int[frames];
+		int bytesEncoded = encoder.encodeFrames( pcm, frames, packets, packetLengths );
+		encoder.close();
+
+		int offset = 0;
+		for ( int i = 0; i < frames; i++ )
+		{
+			assertTrue( "Packet " + i + " differs", Arrays.equals( expectedPackets.get( i ), Arrays.copyOfRange( packets, offset, offset + packetLengths[i] ) ) );
+			offset += packetLengths[i];
+		}
+		assertEquals( offset, bytesEncoded );
+
+		OpusDecoder decoder = new OpusDecoder( new PacketInputStream( new ArrayList<byte[]>() ), 48000, 1, 960 );
+		short[] decoded = new short[frames * 960];
+		int samplesDecoded = decoder.decodeFrames( packets, packetLengths, frames, decoded );
+		decoder.close();
+
+		assertEquals( frames * 960, samplesDecoded );
+		assertTrue( Arrays.equals( expectedPcm, decoded ) );
+	}
+
+	/**
+	 * Checks that configuration changes reach the native encoder while encoding: a lower bitrate gives smaller packets
+	 * and settings libopus rejects are reported.
+	 */
+	public void testConfigureWhileEncoding() throws Exception
+	{
+		short[] pcm = new short[960];
+		for ( int i = 0; i < pcm.length; i++ )
+		{
+			pcm[i] = ( short ) ( 8000 * Math.sin( 2 * Math.PI * 440 * i / 48000.0 ) );
+		}
+
+		EncoderConfig config = new EncoderConfig();
+		config.setBitrate( 64000 );
+		config.setVbr( false );
+		OpusEncoder encoder = new OpusEncoder( new PacketOutputStream(), 48000, 1, 960, config );
+		byte[] packets = new byte[10 * OpusEncoder.MAX_PACKET_SIZE];
+		int[] packetLengths = new int[10];
+		short[] frames = new short[10 * 960];
+		for ( int i = 0; i < 10; i++ )
+		{
+			System.arraycopy( pcm, 0, frames, i * 960, 960 );
+		}
+
+		int highBitrateBytes = encoder.encodeFrames( frames, 10, packets, packetLengths );
+		config = encoder.getConfig();
+		config.setBitrate( 16000 );
+		config.setComplexity( 2 );
+		encoder.configure( config );
+		int lowBitrateBytes = encoder.encodeFrames( frames, 10, packets, packetLengths );
+
+		assertEquals( 16000, encoder.getTargetBitrate() );
+		assertTrue( "Lower bitrate did not shrink the packets", lowBitrateBytes * 2 < highBitrateBytes );
+
+		config.setComplexity( 42 );
+		try
+		{
+			encoder.configure( config );
+			fail( "Complexity 42 was accepted" );
+		}
+		catch ( IOException e )
+		{
+			assertEquals( 2, encoder.getConfig().getComplexity() );
+		}
+		encoder.close();
+	}
+
+	/**
+	 * Encodes and decodes all streams on a pool of the given size and compares them against the reference.
+	 * 
+	 * @return Encoded and decoded frames per second over all streams
+	 */
+	private double runStreams( int threads, int streams, final int frames, final List<List<byte[]>> referencePackets, final List<short[]> referencePcm ) throws Exception
+	{
+		ExecutorService pool = Executors.newFixedThreadPool( threads );
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+
+		long start = System.nanoTime();
+		for ( int i = 0; i < streams; i++ )
+		{
+			final int stream = i;
+			results.add( pool.submit( new Callable<Boolean>()
+			{
+				@Override
+				public Boolean call() throws Exception
+				{
+					List<byte[]> packets = encodeStream( stream, frames );
+					short[] pcm = decodeStream( packets );
+
+					List<byte[]> expectedPackets = referencePackets.get( stream );
+					if ( packets.size() != expectedPackets.size() )
+					{
+						return false;
+					}
+					for ( int p = 0; p < packets.size(); p++ )
+					{
+						if ( !Arrays.equals( packets.get( p ), expectedPackets.get( p ) ) )
+						{
+							return false;
+						}
+					}
+					return Arrays.equals( pcm, referencePcm.get( stream ) );
+				}
+			} ) );
+		}
+
+		for ( int i = 0; i < streams; i++ )
+		{
+			assertTrue( "Stream " + i + " was disturbed by a concurrent stream", results.get( i ).get() );
+		}
+		long elapsed = System.nanoTime() - start;
+		pool.shutdown();
+
+		return streams * frames * 1e9 / elapsed;
+	}
+
+	/**
+	 * Encodes a sine tone whose pitch depends on the stream number, so that streams differ from each other.
+	 * 
+	 * @return One byte array per encoded frame
+	 */
+	private static List<byte[]> encodeStream( int stream, int frames ) throws IOException
+	{
+		PacketOutputStream out = new PacketOutputStream();
+		OpusEncoder encoder = new OpusEncoder( out, 48000, 1, 960 );
+		short[] buffer = new short[960];
+
+		for ( int frame = 0; frame < frames; frame++ )
+		{
+			for ( int i = 0; i < buffer.length; i++ )
+			{
+				long sample = ( long ) frame * buffer.length + i;
+				buffer[i] = ( short ) ( 8000 * Math.sin( 2 * Math.PI * ( 200 + 50 * stream ) * sample / 48000.0 ) );
+			}
+			encoder.write( buffer );
+		}
+		encoder.close();
+
+		return out.packets;
+	}
+
+	/**
+	 * Decodes the packets of one stream.
+	 * 
+	 * @return The decoded signal of all frames
+	 */
+	private static short[] decodeStream( List<byte[]> packets ) throws IOException
+	{
+		OpusDecoder decoder = new OpusDecoder( new PacketInputStream( packets ), 48000, 1, 960 );
+		short[] buffer = new short[2 * 960];
+		short[] pcm = new short[packets.size() * 960];
+
+		for ( int i = 0; i < packets.size(); i++ )
+		{
+			decoder.read( buffer );
+			System.arraycopy( buffer, 0, pcm, i * 960, 960 );
+		}
+		decoder.close();
+
+		return pcm;
+	}
+
+	/**
+	 * Keeps every write call of the encoder as a separate packet.
+	 */
+	private static class PacketOutputStream extends OutputStream
+	{
+		final List<byte[]>	packets	= new ArrayList<byte[]>();
+
+		@Override
+		public void write( byte[] buffer, int offset, int count )
+		{
+			this.packets.add( Arrays.copyOfRange( buffer, offset, offset + count ) );
+		}
+
+		@Override
+		public void write( int oneByte )
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Returns exactly one packet per read call.
+	 */
+	private static class PacketInputStream extends InputStream
+	{
+		private final List<byte[]>	packets;
+		private int					next	= 0;
+
+		PacketInputStream( List<byte[]> packets )
+		{
+			this.packets = packets;
+		}
+
+		@Override
+		public int read( byte[] buffer, int offset, int count )
+		{
+			if ( this.next == this.packets.size() )
+			{
+				return -1;
+			}
+			byte[] packet = this.packets.get( this.next++ );
+			System.arraycopy( packet, 0, buffer, offset, packet.length );
+			return packet.length;
+		}
+
+		@Override
+		public int read()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
 }
@@ -0,0 +1,85 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import android.test.AndroidTestCase;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Tests the eviction order, the byte budget and the statistics of the PCM cache.
+ */
+public class PcmCacheTest extends AndroidTestCase
+{
+	private static final int	BLOCK	= 480;
+
+	public void testLeastRecentlyUsedIsEvicted()
+	{
+		PcmCache cache = new PcmCache( BLOCK, 3 * BLOCK * 2 + 100 );	// Three blocks
+		short[] block = new short[BLOCK];
+		assertEquals( 3 * BLOCK * 2, cache.getMaxBytes() );
+
+		for ( int i = 0; i < 3; i++ )
+		{
+			cache.put( "a", i, fill( block, i ), BLOCK );
+		}
+		assertEquals( BLOCK, cache.get( "a", 0, block ) );	// Block 1 is now the eldest
+		cache.put( "b", 0, fill( block, 10 ), BLOCK / 2 );
+
+		assertEquals( 1, cache.getEvictions() );
+		assertEquals( -1, cache.get( "a", 1, block ) );
+		assertEquals( BLOCK, cache.get( "a", 2, block ) );
+		assertEquals( 2, block[0] );
+		assertEquals( BLOCK / 2, cache.get( "b", 0, block ) );
+		assertEquals( 10, block[BLOCK / 2 - 1] );
+		assertEquals( 3, cache.getBlocks() );
+		assertEquals( cache.getMaxBytes(), cache.getBytes() );	// The evicted buffer was reused
+		assertEquals( 0.75f, cache.getHitRate(), 0.001f );
+	}
+
+	public void testRemoveAndEmptyBudget()
+	{
+		PcmCache cache = new PcmCache( BLOCK, 4 * BLOCK * 2 );
+		short[] block = new short[BLOCK];
+		cache.put( "a", 0, block, BLOCK );
+		cache.put( "b", 0, block, BLOCK );
+		cache.remove( "a" );
+		assertEquals( -1, cache.get( "a", 0, block ) );
+		assertEquals( BLOCK, cache.get( "b", 0, block ) );
+		assertEquals( BLOCK * 2, cache.getBytes() );
+
+		PcmCache disabled = new PcmCache( BLOCK, BLOCK );
+		disabled.put( "a", 0, block, BLOCK );
+		assertEquals( 0, disabled.getMaxBytes() );
+		assertEquals( -1, disabled.get( "a", 0, block ) );
+	}
+
+	private static short[] fill( short[] block, int value )
+	{
+		for ( int i = 0; i < block.length; i++ )
+		{
+			block[i] = ( short ) value;
+		}
+		return block;
+	}
+}
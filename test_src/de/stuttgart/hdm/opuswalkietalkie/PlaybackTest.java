@@ -0,0 +1,118 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Tests how much of an uncached Ogg Opus file the block source of the playback decodes before the first chunk, and
+ *	which of its blocks end up in the PCM cache.
+ */
+public class PlaybackTest extends AndroidTestCase
+{
+	private static String		TAG			= "PlaybackTest";
+
+	private static final int	FRAME_SIZE	= 960;	// 20ms at 48kHz, the duration encoded in the TOC byte below
+	private static final byte	TOC			= ( byte ) 0xF8;	// CELT fullband 20ms, one frame
+	private static final int	PACKETS		= 150;	// 3 seconds
+
+	private File				file;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		this.file = new File( getContext().getCacheDir(), "playback.opus" );
+		OggOpusWriter writer = new OggOpusWriter( new BufferedOutputStream( new FileOutputStream( this.file ) ), 48000, 1 );
+		byte[] packet = new byte[40];
+		packet[0] = TOC;
+		for ( int i = 0; i < PACKETS; i++ )
+		{
+			writer.write( packet, 0, packet.length );
+		}
+		writer.close();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		this.file.delete();
+		super.tearDown();
+	}
+
+	/**
+	 * The first chunk of an uncached file must come after decoding about one packet, not a whole block of the cache.
+	 */
+	public void testUncachedFileStartsAfterFirstPacket() throws Exception
+	{
+		Playback playback = new Playback();
+		OggOpusReader reader = OggOpusReader.map( this.file );
+		Playback.BlockSource source = playback.new BlockSource( reader, "uncached", 0, new Resampler( 48000, 48000, 1, 6 * FRAME_SIZE ) );
+		short[] chunk = new short[6 * FRAME_SIZE];
+
+		long start = System.nanoTime();
+		int samples = source.read( chunk );
+		Log.i( TAG, "First chunk of " + samples + " samples after " + ( System.nanoTime() - start ) / 1000 + "us, reader at " + reader.getPosition() + "ms" );
+
+		assertTrue( samples > 0 );
+		assertTrue( "Decoded up to " + reader.getPosition() + "ms before the first chunk", reader.getPosition() <= 2 * FRAME_SIZE / 48 );
+		assertEquals( -1, playback.getPcmCache().get( "uncached", 0, new short[48000] ) );
+
+		int total = samples;
+		while ( ( samples = source.read( chunk ) ) >= 0 )
+		{
+			total += samples;
+		}
+		source.close();
+		assertEquals( PACKETS * FRAME_SIZE - reader.getPreSkip(), total );
+		assertEquals( 48000, playback.getPcmCache().get( "uncached", 0, new short[48000] ) );
+		assertEquals( 48000, playback.getPcmCache().get( "uncached", 2, new short[48000] ) );
+	}
+
+	/**
+	 * A start in the middle of a block decodes from there on, and only the blocks decoded from their start are cached.
+	 */
+	public void testStartWithinBlockIsNotCached() throws Exception
+	{
+		Playback playback = new Playback();
+		OggOpusReader reader = OggOpusReader.map( this.file );
+		Playback.BlockSource source = playback.new BlockSource( reader, "scrubbed", 1500, new Resampler( 48000, 48000, 1, 6 * FRAME_SIZE ) );
+		short[] chunk = new short[6 * FRAME_SIZE];
+
+		assertTrue( source.read( chunk ) > 0 );
+		assertTrue( "Reader at " + reader.getPosition() + "ms", reader.getPosition() <= 1500 + 2 * FRAME_SIZE / 48 );
+		while ( source.read( chunk ) >= 0 )
+		{
+		}
+		source.close();
+		assertEquals( -1, playback.getPcmCache().get( "scrubbed", 1, new short[48000] ) );
+		assertEquals( 48000, playback.getPcmCache().get( "scrubbed", 2, new short[48000] ) );
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.IOException;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Tests the decode-ahead playout engine with a source that stalls now and then, as a decoder does under CPU contention,
+ *	and a track that consumes one chunk per chunk period. No native codec is needed.
+ */
+public class PlayoutEngineTest extends AndroidTestCase
+{
+	private static String		TAG				= "PlayoutEngineTest";
+
+	private static final int	CHUNK_SAMPLES	= 480;	// 10ms at 48kHz
+	private static final long	CHUNK_MILLIS	= 10;
+	private static final int	CHUNKS			= 60;
+	private static final int	STALL_PERIOD	= 20;	// Every 20th chunk the source stalls
+	private static final long	STALL_MILLIS	= 50;	// for five chunk periods
+
+	public void testQueueAbsorbsStalls()
+	{
+		PacedTrack track = new PacedTrack();
+		PlayoutEngine engine = new PlayoutEngine( new StallingSource(), CHUNK_SAMPLES, 16 );
+		engine.play( track );
+		Log.i( TAG, "Queue of 16: " + engine.getUnderruns() + " underruns - started after " + engine.getStartupNanos() / 1000 + "us" );
+
+		assertEquals( CHUNKS * CHUNK_SAMPLES, track.samplesWritten );
+		assertTrue( "Samples out of order", track.isContinuous );
+		assertEquals( CHUNKS, engine.getChunksPlayed() );
+		assertEquals( 0, engine.getUnderruns() );
+		assertTrue( "Started after " + engine.getStartupNanos() + "ns", engine.getStartupNanos() < CHUNK_MILLIS * 1000000 );
+	}
+
+	public void testShortQueueUnderruns()
+	{
+		PacedTrack track = new PacedTrack();
+		PlayoutEngine engine = new PlayoutEngine( new StallingSource(), CHUNK_SAMPLES, 2 );
+		engine.play( track );
+		Log.i( TAG, "Queue of 2: " + engine.getUnderruns() + " underruns" );
+
+		assertEquals( CHUNKS * CHUNK_SAMPLES, track.samplesWritten );
+		assertTrue( "Samples out of order", track.isContinuous );
+		assertTrue( engine.getUnderruns() > 0 );
+	}
+
+	public void testStopReleasesDecoder() throws Exception
+	{
+		final PlayoutEngine engine = new PlayoutEngine( new StallingSource(), CHUNK_SAMPLES, 4 );
+		Thread output = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				engine.play( new PacedTrack() );
+			}
+		} );
+		output.start();
+		Thread.sleep( 5 * CHUNK_MILLIS );
+		engine.stop();
+		output.join( 1000 );
+
+		assertFalse( output.isAlive() );
+		assertTrue( engine.getChunksPlayed() < CHUNKS );
+	}
+
+	/**
+	 * Counts up from 0, stalls before every STALL_PERIOD-th chunk after the first.
+	 */
+	private static class StallingSource implements PlayoutEngine.Source
+	{
+		private int	chunks	= 0;
+		private int	value	= 0;
+
+		@Override
+		public int read( short[] buffer ) throws IOException
+		{
+			if ( this.chunks == CHUNKS )
+			{
+				return -1;
+			}
+			if ( this.chunks > 0 && this.chunks % STALL_PERIOD == 0 )
+			{
+				try
+				{
+					Thread.sleep( STALL_MILLIS );
+				}
+				catch ( InterruptedException e )
+				{
+					throw new IOException( e.getMessage() );
+				}
+			}
+			this.chunks++;
+			for ( int i = 0; i < CHUNK_SAMPLES; i++ )
+			{
+				buffer[i] = ( short ) this.value++;
+			}
+			return CHUNK_SAMPLES;
+		}
+	}
+
+	/**
+	 * Blocks one chunk period per chunk like a track with a full buffer, and checks that the samples arrive in order.
+	 */
+	private static class PacedTrack extends AudioTrack
+	{
+		int		samplesWritten	= 0;
+		boolean	isContinuous	= true;
+
+		PacedTrack()
+		{
+			super( AudioManager.STREAM_MUSIC, 48000, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT, 4 * CHUNK_SAMPLES, AudioTrack.MODE_STREAM );
+		}
+
+		@Override
+		public int write( short[] audioData, int offsetInShorts, int sizeInShorts )
+		{
+			for ( int i = 0; i < sizeInShorts; i++ )
+			{
+				this.isContinuous &= audioData[offsetInShorts + i] == ( short ) ( this.samplesWritten + i );
+			}
+			this.samplesWritten += sizeInShorts;
+			try
+			{
+				Thread.sleep( CHUNK_MILLIS * sizeInShorts / CHUNK_SAMPLES );
+			}
+			catch ( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+			return sizeInShorts;
+		}
+	}
+}
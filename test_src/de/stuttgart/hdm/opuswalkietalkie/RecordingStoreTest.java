@@ -0,0 +1,226 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Tests the segmented recording store with synthetic Ogg Opus recordings, no native codec is needed.
+ */
+public class RecordingStoreTest extends AndroidTestCase
+{
+	private static String		TAG				= "RecordingStoreTest";
+
+	private static final int	SEGMENT_SIZE	= 64 * 1024;
+	private static final byte	TOC				= ( byte ) 0xF8;	// CELT fullband 20ms, one frame
+
+	private File				directory;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		this.directory = new File( getContext().getCacheDir(), "recordingStoreTest" );
+		deleteStore();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		deleteStore();
+		super.tearDown();
+	}
+
+	public void testThousandsOfRecordings() throws Exception
+	{
+		RecordingStore store = new RecordingStore( this.directory, SEGMENT_SIZE );
+		long now = System.currentTimeMillis();
+		for ( int i = 0; i < 2000; i++ )
+		{
+			writeRecording( store.openRecording( now + 1000L * i ), i, 5 + i % 10 );
+		}
+		int tailSegment = store.getTailSegment();
+		store.close();
+		assertTrue( "Segments: " + tailSegment, tailSegment > 10 );
+
+		long start = System.nanoTime();
+		store = new RecordingStore( this.directory, SEGMENT_SIZE );
+		long openTime = System.nanoTime() - start;
+		Log.i( TAG, "Opened a store of 2000 recordings in " + tailSegment + " segments in " + openTime / 1000 + "us" );
+
+		List<RecordingStore.Entry> recordings = store.getRecordings();
+		assertEquals( 2000, recordings.size() );
+		assertEquals( 0, store.getRecovered() );
+		for ( int i = 0; i < 2000; i++ )
+		{
+			RecordingStore.Entry entry = recordings.get( i );
+			assertEquals( now + 1000L * i, entry.getStartTime() );
+			assertEquals( 20 * ( 5 + i % 10 ), entry.getDuration() );
+		}
+
+		RecordingStore.Entry entry = store.getRecording( recordings.get( 1234 ).getId() );
+		assertEquals( now + 1234000, entry.getStartTime() );
+		OggOpusReader reader = store.openReader( entry );
+		ByteBuffer packet;
+		int packets = 0;
+		while ( ( packet = reader.readPacket() ) != null )
+		{
+			assertEquals( 1234, packet.getInt( packet.position() + 1 ) );
+			packets++;
+		}
+		assertEquals( 5 + 1234 % 10, packets );
+		store.close();
+	}
+
+	public void testInterruptedRecordingIsRecovered() throws Exception
+	{
+		RecordingStore store = new RecordingStore( this.directory, SEGMENT_SIZE );
+		writeRecording( store.openRecording( 0 ), 0, 10 );
+
+		// Crash in the middle of the second recording: two complete pages and a torn one, all of them on disk
+		RecordingStore.Writer segment = store.openRecording( 1000 );
+		OggOpusWriter writer = new OggOpusWriter( segment, 48000, 1 );
+		writePackets( writer, 1, 5 );
+		writer.flush();
+		writePackets( writer, 1, 5 );
+		writer.flush();
+		segment.write( new byte[] { 'O', 'g', 'g', 'S', 0, 0, 0 } );
+		long tornEnd = segment.getPosition();
+		segment.simulateCrash();
+		store.close();
+		File segmentFile = new File( this.directory, String.format( "segment-%08d", 0 ) );
+		assertEquals( tornEnd, segmentFile.length() );
+
+		store = new RecordingStore( this.directory, SEGMENT_SIZE );
+		assertEquals( 1, store.getRecovered() );
+		assertEquals( 2, store.getRecordings().size() );
+		RecordingStore.Entry recovered = store.getLatestRecording();
+		assertEquals( 200, recovered.getDuration() );
+		long recoveredEnd = recovered.getOffset() + recovered.getLength();
+		assertEquals( tornEnd - 7, recoveredEnd );
+		assertEquals( recoveredEnd, segmentFile.length() );
+
+		// The torn page is gone, the next recording follows the recovered one
+		writeRecording( store.openRecording( 2000 ), 2, 3 );
+		assertEquals( recoveredEnd, store.getLatestRecording().getOffset() );
+		store.close();
+
+		store = new RecordingStore( this.directory, SEGMENT_SIZE );
+		assertEquals( 0, store.getRecovered() );
+		assertEquals( 3, store.getRecordings().size() );
+		assertEquals( 60, store.getLatestRecording().getDuration() );
+
+		// Closing the store finishes a recording still open, later writes of the recorder fail
+		RecordingStore.Writer open = store.openRecording( 3000 );
+		writer = new OggOpusWriter( open, 48000, 1 );
+		writePackets( writer, 3, 4 );
+		writer.flush();
+		store.close();
+		assertEquals( 80, open.getEntry().getDuration() );
+		try
+		{
+			writePackets( writer, 3, 1 );
+			writer.flush();
+			fail( "Wrote to a closed store" );
+		}
+		catch ( IOException e )
+		{
+			// Expected
+		}
+
+		store = new RecordingStore( this.directory, SEGMENT_SIZE );
+		assertEquals( 0, store.getRecovered() );
+		assertEquals( 4, store.getRecordings().size() );
+		store.close();
+	}
+
+	public void testRetentionDeletesOldestSegments() throws Exception
+	{
+		RecordingStore store = new RecordingStore( this.directory, SEGMENT_SIZE );
+		long now = System.currentTimeMillis();
+		for ( int i = 0; i < 500; i++ )
+		{
+			writeRecording( store.openRecording( now ), i, 20 );
+		}
+		assertTrue( store.getTotalBytes() > 4 * SEGMENT_SIZE );
+
+		store.setRetention( 4 * SEGMENT_SIZE, Long.MAX_VALUE );
+		assertTrue( store.getTotalBytes() <= 4 * SEGMENT_SIZE );
+		RecordingStore.Entry oldest = store.getRecordings().get( 0 );
+		assertTrue( oldest.getId() > 1 );
+		assertNull( store.getRecording( 1 ) );
+		int remaining = store.getRecordings().size();
+		store.close();
+
+		store = new RecordingStore( this.directory, SEGMENT_SIZE );
+		assertEquals( remaining, store.getRecordings().size() );
+		assertEquals( oldest.getId(), store.getRecordings().get( 0 ).getId() );
+		store.close();
+	}
+
+	/**
+	 * Writes a complete recording of the given number of 20ms packets, each tagged with the recording number.
+	 */
+	private static void writeRecording( OutputStream segment, int recording, int packets ) throws IOException
+	{
+		OggOpusWriter writer = new OggOpusWriter( segment, 48000, 1 );
+		writePackets( writer, recording, packets );
+		writer.close();
+	}
+
+	private static void writePackets( OggOpusWriter writer, int recording, int packets ) throws IOException
+	{
+		byte[] packet = new byte[40];
+		packet[0] = TOC;
+		packet[1] = ( byte ) ( recording >> 24 );
+		packet[2] = ( byte ) ( recording >> 16 );
+		packet[3] = ( byte ) ( recording >> 8 );
+		packet[4] = ( byte ) recording;
+		for ( int i = 0; i < packets; i++ )
+		{
+			writer.write( packet, 0, packet.length );
+		}
+	}
+
+	private void deleteStore()
+	{
+		File[] files = this.directory.listFiles();
+		if ( files != null )
+		{
+			for ( File file : files )
+			{
+				file.delete();
+			}
+		}
+		this.directory.delete();
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Resamples sine tones between the common device rates and checks the output against the exact tone at the output rate.
+ */
+public class ResamplerTest extends AndroidTestCase
+{
+	private static String	TAG	= "ResamplerTest";
+
+	public void test44100To48000() throws Exception
+	{
+		checkSine( 44100, 48000, 1000, 1 );
+	}
+
+	public void test48000To44100Stereo() throws Exception
+	{
+		checkSine( 48000, 44100, 3000, 2 );
+	}
+
+	public void testEqualRatesPassThrough()
+	{
+		Resampler resampler = new Resampler( 48000, 48000, 1, 960 );
+		short[] in = new short[960];
+		short[] out = new short[960];
+		for ( int i = 0; i < in.length; i++ )
+		{
+			in[i] = ( short ) i;
+		}
+		assertTrue( resampler.isPassThrough() );
+		assertEquals( 960, resampler.process( in, 0, 960, out, 0 ) );
+		assertEquals( 959, out[959] );
+	}
+
+	/**
+	 * Feeds one second of a tone in uneven chunks and compares the output, after the filter delay, with the tone
+	 * generated at the output rate.
+	 */
+	private static void checkSine( int inRate, int outRate, double frequency, int channels )
+	{
+		int chunk = 441;
+		Resampler resampler = new Resampler( inRate, outRate, channels, chunk );
+		short[] in = new short[inRate * channels];
+		for ( int i = 0; i < inRate; i++ )
+		{
+			for ( int channel = 0; channel < channels; channel++ )
+			{
+				in[i * channels + channel] = ( short ) ( 10000 * Math.sin( 2 * Math.PI * frequency * i / inRate + channel ) );
+			}
+		}
+
+		short[] out = new short[( outRate + 100 ) * channels];
+		int outFrames = 0;
+		for ( int offset = 0; offset < inRate; )
+		{
+			int frames = Math.min( chunk - offset % 7, inRate - offset );	// Varying chunk sizes
+			assertTrue( resampler.getMaxOutputFrames( frames ) * channels <= out.length - outFrames * channels );
+			outFrames += resampler.process( in, offset * channels, frames, out, outFrames * channels );
+			offset += frames;
+		}
+		assertTrue( "Produced " + outFrames + " frames", Math.abs( outFrames - outRate ) <= 1 );
+
+		// Delay in output frames, found by the best match around the nominal delay
+		double bestError = Double.MAX_VALUE;
+		for ( double delay = resampler.getDelay() - 2; delay <= resampler.getDelay() + 2; delay += 0.05 )
+		{
+			double error = 0;
+			double signal = 0;
+			for ( int i = 1000; i < outFrames - 1000; i++ )
+			{
+				for ( int channel = 0; channel < channels; channel++ )
+				{
+					double expected = 10000 * Math.sin( 2 * Math.PI * frequency * ( i - delay ) / outRate + channel );
+					double difference = out[i * channels + channel] - expected;
+					error += difference * difference;
+					signal += expected * expected;
+				}
+			}
+			bestError = Math.min( bestError, error / signal );
+		}
+		double snr = -10 * Math.log10( bestError );
+		Log.i( TAG, inRate + "Hz to " + outRate + "Hz: SNR " + ( int ) snr + "dB" );
+		assertTrue( "SNR " + snr + "dB", snr > 50 );
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Load test of the RTP transport over the loopback interface. Uses dummy payloads instead of encoded frames,
+ *	so only the transport is measured.
+ */
+public class RtpLoopbackTest extends AndroidTestCase
+{
+	private static String		TAG				= "RtpLoopback";
+
+	private static final int	FRAME_SIZE		= 960;	// 20ms at 48kHz
+	private static final int	PAYLOAD_SIZE	= 80;	// Typical packet of a 32kbit/s stream
+
+	private RtpReceiver			receiver;
+	private RtpSender			sender;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		this.receiver = new RtpReceiver( 0, new JitterBuffer( 64, 48000, FRAME_SIZE, OpusEncoder.MAX_PACKET_SIZE ) );
+		this.receiver.start();
+		this.sender = new RtpSender( new InetSocketAddress( "127.0.0.1", this.receiver.getLocalPort() ), FRAME_SIZE );
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		this.sender.close();
+		this.receiver.close();
+		super.tearDown();
+	}
+
+	/**
+	 * Sends 20000 packets paced at 10000 packets/s, far more than the 50 packets/s of one stream.
+	 */
+	public void testThroughput() throws Exception
+	{
+		int packets = 20000;
+		int packetsPerMillisecond = 10;
+		ByteBuffer payload = ByteBuffer.allocateDirect( PAYLOAD_SIZE );
+
+		long start = System.nanoTime();
+		for ( int i = 0; i < packets; i++ )
+		{
+			payload.clear();
+			this.sender.send( payload );
+			if ( i % packetsPerMillisecond == packetsPerMillisecond - 1 )
+			{
+				long due = start + ( i + 1 ) / packetsPerMillisecond * 1000000L;
+				while ( System.nanoTime() < due )
+				{
+					Thread.yield();
+				}
+			}
+		}
+		awaitReceived( packets, 1000 );
+		long duration = System.nanoTime() - start;
+
+		long received = this.receiver.getPacketsReceived();
+		Log.i( TAG, "Sent " + this.sender.getPacketsSent() + ", dropped by sender " + this.sender.getPacketsDropped() + ", received " + received
+				+ " - " + received * 1000000000L / duration + " packets/s" );
+		assertEquals( 0, this.receiver.getPacketsInvalid() );
+		assertTrue( "More than 1% of the packets lost on loopback", received >= packets * 99 / 100 );
+	}
+
+	/**
+	 * Measures the time from handing a packet to the sender until the receive thread has stored it in the jitter buffer.
+	 */
+	public void testLatency() throws Exception
+	{
+		int pings = 500;
+		long[] latencies = new long[pings];
+		ByteBuffer payload = ByteBuffer.allocateDirect( PAYLOAD_SIZE );
+
+		for ( int i = 0; i < pings; i++ )
+		{
+			payload.clear();
+			long start = System.nanoTime();
+			this.sender.send( payload );
+			assertTrue( "Packet " + i + " not received", awaitReceived( i + 1, 100 ) );
+			latencies[i] = System.nanoTime() - start;
+		}
+
+		Arrays.sort( latencies );
+		long p50 = latencies[pings / 2] / 1000;
+		long p99 = latencies[pings * 99 / 100] / 1000;
+		Log.i( TAG, "Transport latency p50: " + p50 + "us, p99: " + p99 + "us, max: " + latencies[pings - 1] / 1000 + "us" );
+		assertTrue( "Transport alone takes a large part of the 100ms budget", p99 < 10000 );
+	}
+
+	/**
+	 * A second talker is ignored while the first one is talking.
+	 */
+	public void testSecondTalkerIsIgnored() throws Exception
+	{
+		RtpSender otherSender = new RtpSender( new InetSocketAddress( "127.0.0.1", this.receiver.getLocalPort() ), FRAME_SIZE );
+		ByteBuffer payload = ByteBuffer.allocateDirect( PAYLOAD_SIZE );
+		try
+		{
+			this.sender.send( payload );
+			assertTrue( awaitReceived( 1, 100 ) );
+
+			payload.clear();
+			otherSender.send( payload );
+			otherSender.write( new byte[] { 1, 2, 3 }, 0, 3 );
+			long deadline = System.nanoTime() + 100000000L;
+			while ( this.receiver.getPacketsIgnored() < 2 && System.nanoTime() < deadline )
+			{
+				Thread.sleep( 1 );
+			}
+			assertEquals( 2, this.receiver.getPacketsIgnored() );
+			assertEquals( 1, this.receiver.getPacketsReceived() );
+		}
+		finally
+		{
+			otherSender.close();
+		}
+	}
+
+	/**
+	 * Waits until the receiver has got the given number of packets.
+	 *
+	 * @return False on timeout
+	 */
+	private boolean awaitReceived( long packets, long timeoutMillis ) throws IOException, InterruptedException
+	{
+		long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+		while ( this.receiver.getPacketsReceived() < packets )
+		{
+			if ( System.nanoTime() > deadline )
+			{
+				return false;
+			}
+			Thread.yield();
+		}
+		return true;
+	}
+}
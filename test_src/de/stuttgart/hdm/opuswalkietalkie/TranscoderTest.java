@@ -0,0 +1,188 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Checks that the Transcoder with several threads and small segments produces the stream of a single-threaded run.
+ *
+ *	Every frame of the input is a sine with a level of its own, so a segment written out of order or encoded from the
+ *	wrong samples shows up in the levels of the decoded frames.
+ */
+public class TranscoderTest extends AndroidTestCase
+{
+	private static String		TAG				= "TranscoderTest";
+
+	private static final int	FREQUENCY		= 48000;
+	private static final int	FRAME_SIZE		= 960;	// 20ms at 48kHz
+	private static final int	FRAMES			= 203;	// Not a multiple of the segment size, the last segment is shorter
+	private static final int	SEGMENT_FRAMES	= 8;
+
+	private File				file;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		this.file = new File( getContext().getCacheDir(), "transcoder.wav" );
+		short[] frame = new short[FRAME_SIZE];
+		WavWriter writer = new WavWriter( new FileOutputStream( this.file ).getChannel(), FREQUENCY, 1 );
+		try
+		{
+			for ( int i = 0; i < FRAMES; i++ )
+			{
+				for ( int j = 0; j < FRAME_SIZE; j++ )
+				{
+					frame[j] = ( short ) ( level( i ) * Math.sin( 2 * Math.PI * 440 * ( i * FRAME_SIZE + j ) / FREQUENCY ) );
+				}
+				writer.write( frame, 0, FRAME_SIZE );
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		this.file.delete();
+		super.tearDown();
+	}
+
+	public void testThreadsMatchSingleThread() throws Exception
+	{
+		List<byte[]> reference = this.transcode( 1 );
+		List<byte[]> packets = this.transcode( 4 );
+		assertEquals( FRAMES, reference.size() );
+		assertEquals( FRAMES, packets.size() );
+
+		// The first segment starts from a reset encoder in both runs
+		for ( int i = 0; i < SEGMENT_FRAMES; i++ )
+		{
+			assertTrue( "Packet " + i + " differs", Arrays.equals( reference.get( i ), packets.get( i ) ) );
+		}
+
+		double[] referenceLevels = decodeLevels( reference );
+		double[] levels = decodeLevels( packets );
+		int lookaheadFrames = 1;	// The codec delay moves every level by a part of a frame, the first frame is skipped
+		double maxDeviation = 0;
+		for ( int i = lookaheadFrames; i < FRAMES; i++ )
+		{
+			double deviation = Math.abs( levels[i] - referenceLevels[i] ) / referenceLevels[i];
+			maxDeviation = Math.max( maxDeviation, deviation );
+			assertTrue( "Frame " + i + " has level " + levels[i] + " instead of " + referenceLevels[i], deviation < 0.2 );
+		}
+		Log.i( TAG, "Largest level deviation of a frame from the single-threaded run: " + Math.round( maxDeviation * 1000 ) / 10.0 + "%" );
+	}
+
+	/**
+	 * Transcodes the file into a list of packets.
+	 */
+	private List<byte[]> transcode( int threads ) throws IOException
+	{
+		Transcoder transcoder = new Transcoder( FREQUENCY, 1, FRAME_SIZE, threads );
+		transcoder.setSegmentFrames( SEGMENT_FRAMES );
+		PacketOutputStream out = new PacketOutputStream();
+		assertEquals( FRAMES, transcoder.transcode( this.file, out ) );
+		return out.packets;
+	}
+
+	/**
+	 * @return RMS of every decoded frame
+	 */
+	private static double[] decodeLevels( List<byte[]> packets ) throws IOException
+	{
+		ByteArrayOutputStream packetBytes = new ByteArrayOutputStream();
+		int[] packetLengths = new int[packets.size()];
+		for ( int i = 0; i < packets.size(); i++ )
+		{
+			packetBytes.write( packets.get( i ) );
+			packetLengths[i] = packets.get( i ).length;
+		}
+		short[] pcm = new short[packets.size() * FRAME_SIZE];
+		OpusDecoder decoder = new OpusDecoder( null, FREQUENCY, 1, FRAME_SIZE );
+		try
+		{
+			assertEquals( pcm.length, decoder.decodeFrames( packetBytes.toByteArray(), packetLengths, packets.size(), pcm ) );
+		}
+		finally
+		{
+			decoder.close();
+		}
+
+		double[] levels = new double[packets.size()];
+		for ( int i = 0; i < levels.length; i++ )
+		{
+			double sum = 0;
+			for ( int j = i * FRAME_SIZE; j < ( i + 1 ) * FRAME_SIZE; j++ )
+			{
+				sum += ( double ) pcm[j] * pcm[j];
+			}
+			levels[i] = Math.sqrt( sum / FRAME_SIZE );
+		}
+		return levels;
+	}
+
+	/**
+	 * @return Amplitude of frame i, a sequence that does not repeat within a few segments
+	 */
+	private static int level( int i )
+	{
+		return 1000 + 1500 * ( i * 7 % 11 );
+	}
+
+	/**
+	 * Keeps every write as one packet.
+	 */
+	private static class PacketOutputStream extends OutputStream
+	{
+		final List<byte[]>	packets	= new ArrayList<byte[]>();
+
+		@Override
+		public void write( byte[] buffer, int offset, int count )
+		{
+			this.packets.add( Arrays.copyOfRange( buffer, offset, offset + count ) );
+		}
+
+		@Override
+		public void write( int oneByte )
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+}
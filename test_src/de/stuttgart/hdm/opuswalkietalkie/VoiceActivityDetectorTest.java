@@ -0,0 +1,197 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Runs the VoiceActivityDetector over a synthetic walkie-talkie conversation: phrases of voiced syllables and
+ *	fricatives, separated by pauses of background noise. Reports how many encode calls silence suppression saves
+ *	and checks that no speech is lost on the way.
+ *
+ *	The signal is generated with fixed seeds at 8kHz and analyzed in the 20 sample frames Recording uses.
+ */
+public class VoiceActivityDetectorTest extends AndroidTestCase
+{
+	private static String		TAG				= "VoiceActivityDetectorTest";
+
+	private static final int	SAMPLING_RATE	= 8000;
+	private static final int	FRAME_SIZE		= 20;
+	private static final int	HANGOVER		= 250 * SAMPLING_RATE / 1000;	// Hangover of the detector with some margin
+
+	// Kinds of synthetic signal
+	private static final int	PAUSE			= 0;
+	private static final int	VOICED			= 1;
+	private static final int	UNVOICED		= 2;
+	private static final int	WORD_GAP		= 3;
+
+	public void testConversation()
+	{
+		Random random = new Random( 7 );
+		int[] kinds = new int[120 * SAMPLING_RATE];	// Two minutes
+		short[] pcm = conversation( random, kinds, 60 );
+
+		int[] frames = new int[4];
+		int[] detected = new int[4];
+		int pauseFrames = 0;
+		int pauseDetected = 0;
+		int sinceSpeech = Integer.MAX_VALUE / 2;
+		VoiceActivityDetector detector = new VoiceActivityDetector( SAMPLING_RATE, 1 );
+		for ( int offset = 0; offset < pcm.length; offset += FRAME_SIZE )
+		{
+			int kind = kinds[offset];
+			boolean isSpeech = detector.isSpeech( pcm, offset, FRAME_SIZE );
+			frames[kind]++;
+			detected[kind] += isSpeech ? 1 : 0;
+
+			sinceSpeech = kind == VOICED || kind == UNVOICED ? 0 : sinceSpeech + FRAME_SIZE;
+			if ( kind == PAUSE && sinceSpeech > HANGOVER )
+			{
+				pauseFrames++;
+				pauseDetected += isSpeech ? 1 : 0;
+			}
+		}
+
+		long total = detector.getSpeechFrames() + detector.getSilentFrames();
+		long silenceBytes = 0;
+		for ( long remaining = detector.getSilentFrames(); remaining > 0; remaining -= OpusPacket.MAX_FRAMES )
+		{
+			silenceBytes += remaining > 1 ? 2 : 1;	// Upper bound, pauses are usually split into more packets
+		}
+		Log.i( TAG, "Conversation of " + total + " frames: " + detector.getSilentFrames() + " encode calls saved (" + 100 * detector.getSilentFrames() / total + "%), "
+				+ "voiced " + detected[VOICED] + "/" + frames[VOICED] + ", unvoiced " + detected[UNVOICED] + "/" + frames[UNVOICED]
+				+ ", word gaps " + detected[WORD_GAP] + "/" + frames[WORD_GAP] + ", pauses " + pauseDetected + "/" + pauseFrames + " kept as speech, "
+				+ "about " + silenceBytes + " bytes written for the suppressed frames" );
+
+		assertTrue( "Voiced frames lost", detected[VOICED] >= frames[VOICED] * 999 / 1000 );	// At most the silent start of a syllable
+		assertTrue( "Unvoiced frames lost", detected[UNVOICED] >= frames[UNVOICED] * 95 / 100 );
+		assertEquals( "Word gaps must be bridged by the hangover", frames[WORD_GAP], detected[WORD_GAP] );
+		assertTrue( "Pauses not suppressed", pauseDetected <= pauseFrames / 20 );
+		assertTrue( detector.getSilentFrames() > total / 3 );
+	}
+
+	public void testLouderBackgroundIsLearned()
+	{
+		Random random = new Random( 3 );
+		short[] pcm = new short[20 * SAMPLING_RATE];
+		for ( int i = 0; i < pcm.length; i++ )
+		{
+			pcm[i] = clip( random.nextGaussian() * ( i < pcm.length / 2 ? 60 : 600 ) );	// Background 20dB louder after 10s
+		}
+
+		VoiceActivityDetector detector = new VoiceActivityDetector( SAMPLING_RATE, 1 );
+		int lastSpeech = -1;
+		for ( int offset = 0; offset < pcm.length; offset += FRAME_SIZE )
+		{
+			if ( detector.isSpeech( pcm, offset, FRAME_SIZE ) )
+			{
+				lastSpeech = offset;
+			}
+		}
+		Log.i( TAG, "Louder background learned after " + ( lastSpeech - pcm.length / 2 ) * 1000 / SAMPLING_RATE + "ms" );
+		assertTrue( lastSpeech < pcm.length / 2 + 8 * SAMPLING_RATE );
+	}
+
+	public void testEmptyFramePackets()
+	{
+		byte[] packet = new byte[2];
+		int length = OpusPacket.writeEmptyFrames( packet, 0, 120, 48 );
+		assertEquals( 2, length );
+		assertEquals( OpusPacket.MAX_SAMPLES, OpusPacket.getSamples( packet, 0, length ) );
+
+		length = OpusPacket.writeEmptyFrames( packet, 0, 960, 1 );
+		assertEquals( 1, length );
+		assertEquals( 960, OpusPacket.getSamples( packet, 0, length ) );
+
+		length = OpusPacket.writeEmptyFrames( packet, 0, 2880, 2 );
+		assertEquals( 5760, OpusPacket.getSamples( packet, 0, length ) );
+	}
+
+	/**
+	 * Generates phrases of 1 to 4 seconds separated by pauses of 1 to 5 seconds. A phrase consists of voiced syllables
+	 * with a pitch between 100 and 220Hz and some harmonics, fricatives of high-pass noise and short gaps between words.
+	 * 
+	 * @param kinds Receives the kind of signal of every sample, its length is the length of the conversation
+	 * @param noise Standard deviation of the background noise
+	 */
+	private static short[] conversation( Random random, int[] kinds, double noise )
+	{
+		short[] pcm = new short[kinds.length];
+		int position = SAMPLING_RATE;	// Starts with a pause
+		while ( position < kinds.length )
+		{
+			int phraseEnd = Math.min( position + SAMPLING_RATE + random.nextInt( 3 * SAMPLING_RATE ), kinds.length );
+			while ( position < phraseEnd )
+			{
+				int kind = random.nextInt( 4 ) == 0 ? UNVOICED : VOICED;
+				int length = Math.min( ( kind == VOICED ? 150 + random.nextInt( 250 ) : 60 + random.nextInt( 60 ) ) * SAMPLING_RATE / 1000, phraseEnd - position );
+				double pitch = 100 + random.nextInt( 120 );
+				double amplitude = kind == VOICED ? 1500 + random.nextInt( 4000 ) : 500 + random.nextInt( 500 );
+				double previous = 0;
+				for ( int i = 0; i < length; i++ )
+				{
+					double envelope = Math.sin( Math.PI * ( i + 0.5 ) / length );
+					double value;
+					if ( kind == VOICED )
+					{
+						double phase = 2 * Math.PI * pitch * i / SAMPLING_RATE;
+						value = Math.sin( phase ) + 0.5 * Math.sin( 2 * phase ) + 0.3 * Math.sin( 3 * phase );
+					}
+					else
+					{
+						double white = random.nextGaussian();
+						value = white - previous;	// First difference, most energy at high frequencies
+						previous = white;
+					}
+					pcm[position + i] = clip( amplitude * Math.sqrt( envelope ) * value );
+					kinds[position + i] = kind;
+				}
+				position += length;
+
+				int gap = Math.min( ( 30 + random.nextInt( 120 ) ) * SAMPLING_RATE / 1000, phraseEnd - position );
+				for ( int i = 0; i < gap; i++ )
+				{
+					kinds[position + i] = WORD_GAP;
+				}
+				position += gap;
+			}
+			position += SAMPLING_RATE + random.nextInt( 4 * SAMPLING_RATE );
+		}
+
+		for ( int i = 0; i < pcm.length; i++ )
+		{
+			pcm[i] = clip( pcm[i] + random.nextGaussian() * noise );
+		}
+		return pcm;
+	}
+
+	private static short clip( double value )
+	{
+		return ( short ) Math.max( Short.MIN_VALUE, Math.min( Short.MAX_VALUE, Math.round( value ) ) );
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Tests the WAV writer and reader with 48kHz stereo, the most demanding format of the raw recording path.
+ */
+public class WavTest extends AndroidTestCase
+{
+	private static String		TAG				= "WavTest";
+
+	private static final int	RATE			= 48000;
+	private static final int	CHANNELS		= 2;
+	private static final int	FRAME_SAMPLES	= 960 * CHANNELS;	// 20ms
+	private static final int	FRAMES			= 3000;				// 60s
+
+	private File				file;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		this.file = new File( getContext().getCacheDir(), "wavTest.wav" );
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		this.file.delete();
+		super.tearDown();
+	}
+
+	public void testRoundTripAndSeek() throws Exception
+	{
+		short[] frame = new short[FRAME_SAMPLES];
+		WavWriter writer = new WavWriter( new RandomAccessFile( this.file, "rw" ).getChannel(), RATE, CHANNELS );
+		long start = System.nanoTime();
+		for ( int i = 0; i < FRAMES; i++ )
+		{
+			fill( frame, i * FRAME_SAMPLES );
+			writer.write( frame, 0, FRAME_SAMPLES );
+		}
+		writer.close();
+		long elapsed = System.nanoTime() - start;
+		Log.d( TAG, FRAMES * 20 / 1000 + "s of 48kHz stereo written in " + elapsed / 1000000 + "ms" );
+
+		long dataBytes = ( long ) FRAMES * FRAME_SAMPLES * 2;
+		assertEquals( WavWriter.HEADER_SIZE + dataBytes, this.file.length() );
+		ByteBuffer header = ByteBuffer.allocate( WavWriter.HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+		RandomAccessFile randomAccessFile = new RandomAccessFile( this.file, "r" );
+		randomAccessFile.readFully( header.array() );
+		randomAccessFile.close();
+		assertEquals( WavWriter.HEADER_SIZE - 8 + dataBytes, header.getInt( WavWriter.RIFF_SIZE_OFFSET ) );
+		assertEquals( dataBytes, header.getInt( WavWriter.DATA_SIZE_OFFSET ) );
+		assertEquals( RATE * CHANNELS * 2, header.getInt( 28 ) );
+
+		WavReader reader = new WavReader( this.file );
+		assertEquals( RATE, reader.getSamplingRate() );
+		assertEquals( CHANNELS, reader.getNumberOfChannels() );
+		assertEquals( ( long ) FRAMES * FRAME_SAMPLES / CHANNELS, reader.getFrames() );
+
+		short[] read = new short[FRAME_SAMPLES + 7];	// Reads that do not match the frames of the writer
+		long samples = 0;
+		int samplesRead;
+		while ( ( samplesRead = reader.read( read, 0, read.length ) ) > 0 )
+		{
+			for ( int i = 0; i < samplesRead; i++ )
+			{
+				assertEquals( "Sample " + ( samples + i ), sample( samples + i ), read[i] );
+			}
+			samples += samplesRead;
+		}
+		assertEquals( ( long ) FRAMES * FRAME_SAMPLES, samples );
+
+		long seekFrame = RATE * 42 + 123;
+		reader.seek( seekFrame );
+		assertEquals( 10, reader.read( read, 0, 10 ) );
+		assertEquals( sample( seekFrame * CHANNELS ), read[0] );
+		assertEquals( sample( seekFrame * CHANNELS + 9 ), read[9] );
+		reader.seek( reader.getFrames() );
+		assertEquals( -1, reader.read( read, 0, read.length ) );
+		reader.close();
+	}
+
+	public void testUnclosedRecordingIsReadable() throws Exception
+	{
+		short[] frame = new short[FRAME_SAMPLES];
+		RandomAccessFile randomAccessFile = new RandomAccessFile( this.file, "rw" );
+		WavWriter writer = new WavWriter( randomAccessFile.getChannel(), RATE, CHANNELS, 4096 );
+		for ( int i = 0; i < 10; i++ )
+		{
+			fill( frame, i * FRAME_SAMPLES );
+			writer.write( frame, 0, FRAME_SAMPLES );
+		}
+		writer.flush();
+		randomAccessFile.close();	// As if the app died, the size fields are still 0
+
+		WavReader reader = new WavReader( this.file );
+		assertEquals( 10 * FRAME_SAMPLES / CHANNELS, reader.getFrames() );
+		short[] read = new short[10 * FRAME_SAMPLES];
+		int samples = 0;
+		int samplesRead;
+		while ( ( samplesRead = reader.read( read, samples, read.length - samples ) ) > 0 )
+		{
+			samples += samplesRead;
+		}
+		assertEquals( read.length, samples );
+		assertEquals( sample( read.length - 1 ), read[read.length - 1] );
+		reader.close();
+	}
+
+	private static short sample( long index )
+	{
+		return ( short ) ( index * 7919 );
+	}
+
+	private static void fill( short[] frame, long first )
+	{
+		for ( int i = 0; i < frame.length; i++ )
+		{
+			frame[i] = sample( first + i );
+		}
+	}
+}
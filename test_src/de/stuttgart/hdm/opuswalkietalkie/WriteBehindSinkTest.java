@@ -0,0 +1,159 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Manuel Beuttler
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in the
+ * Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE
+ * OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package de.stuttgart.hdm.opuswalkietalkie;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * @author Manuel Beuttler
+ *
+ *	Tests the write-behind sink and compares it with a plain FileOutputStream taking one write per packet.
+ */
+public class WriteBehindSinkTest extends AndroidTestCase
+{
+	private static String		TAG			= "WriteBehindSinkTest";
+
+	private static final int	PACKETS		= 50000;
+	private static final int	OFFSET		= 1000;	// Start of the data in the file, not aligned
+
+	private File				file;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		this.file = new File( getContext().getCacheDir(), "writeBehind.dat" );
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		this.file.delete();
+		super.tearDown();
+	}
+
+	public void testFewerSystemCallsSameBytes() throws Exception
+	{
+		byte[] packet = new byte[80];
+
+		// One write per packet, as an encoder writing to the file directly
+		Histogram directLatency = new Histogram();
+		FileOutputStream direct = new FileOutputStream( this.file );
+		for ( int i = 0; i < PACKETS; i++ )
+		{
+			long start = System.nanoTime();
+			direct.write( fillPacket( packet, i ), 0, packetLength( i ) );
+			directLatency.record( System.nanoTime() - start );
+		}
+		direct.close();
+
+		RandomAccessFile randomAccessFile = new RandomAccessFile( this.file, "rw" );
+		randomAccessFile.setLength( 0 );
+		FileChannel channel = randomAccessFile.getChannel();
+		WriteBehindSink sink = new WriteBehindSink( channel, OFFSET, true, 4096, 4 );
+		long bytes = 0;
+		for ( int i = 0; i < PACKETS; i++ )
+		{
+			sink.write( fillPacket( packet, i ), 0, packetLength( i ) );
+			bytes += packetLength( i );
+		}
+		sink.close();
+		Log.i( TAG, "Direct: " + PACKETS + " system calls - write latency ns: " + directLatency );
+		Log.i( TAG, "Write-behind: " + sink );
+
+		assertEquals( PACKETS, sink.getWrites() );
+		assertEquals( OFFSET + bytes, sink.getPosition() );
+		assertEquals( ( bytes + OFFSET ) / 4096 + 1, sink.getChannelWrites() );	// Aligned chunks
+
+		randomAccessFile = new RandomAccessFile( this.file, "r" );
+		try
+		{
+			assertEquals( OFFSET + bytes, randomAccessFile.length() );
+			randomAccessFile.seek( OFFSET );
+			byte[] read = new byte[80];
+			for ( int i = 0; i < PACKETS; i++ )
+			{
+				int length = packetLength( i );
+				randomAccessFile.readFully( read, 0, length );
+				fillPacket( packet, i );
+				for ( int j = 0; j < length; j++ )
+				{
+					assertEquals( packet[j], read[j] );
+				}
+			}
+		}
+		finally
+		{
+			randomAccessFile.close();
+		}
+	}
+
+	public void testFailureIsThrown() throws Exception
+	{
+		RandomAccessFile randomAccessFile = new RandomAccessFile( this.file, "rw" );
+		FileChannel channel = randomAccessFile.getChannel();
+		WriteBehindSink sink = new WriteBehindSink( channel, 0, true, 4096, 2 );
+		sink.write( new byte[100] );
+		sink.flush();
+		channel.close();
+
+		try
+		{
+			sink.write( new byte[10000] );	// Hands over two chunks, the first fails
+			sink.flush();
+			fail( "Failed write not reported" );
+		}
+		catch ( IOException e )
+		{
+		}
+		try
+		{
+			sink.close();
+			fail( "Failed write not reported on close" );
+		}
+		catch ( IOException e )
+		{
+		}
+	}
+
+	private static byte[] fillPacket( byte[] packet, int i )
+	{
+		for ( int j = 0; j < packetLength( i ); j++ )
+		{
+			packet[j] = ( byte ) ( i + j );
+		}
+		return packet;
+	}
+
+	private static int packetLength( int i )
+	{
+		return 20 + i % 60;
+	}
+}